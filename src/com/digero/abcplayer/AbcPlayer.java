@@ -1180,7 +1180,7 @@ public class AbcPlayer extends JFrame implements TableLayoutConstants, MidiConst
 				params.abcInfo = info;
 				params.enableLotroErrors = !lotroErrorsMenuItem.isSelected();
 				params.stereo = stereoMenuItem.isSelected();
-				params.generateRegions = true;
+				params.parseInParallel = true;
 				song = AbcToMidi.convert(params);
 			}
 			catch (LotroParseException e)
@@ -1270,7 +1270,7 @@ public class AbcPlayer extends JFrame implements TableLayoutConstants, MidiConst
 				params.abcInfo = info;
 				params.enableLotroErrors = !lotroErrorsMenuItem.isSelected();
 				params.stereo = stereoMenuItem.isSelected();
-				params.generateRegions = true;
+				params.parseInParallel = true;
 				song = AbcToMidi.convert(params);
 			}
 			catch (LotroParseException e)
@@ -1818,8 +1818,20 @@ public class AbcPlayer extends JFrame implements TableLayoutConstants, MidiConst
 	private void refreshSequence()
 	{
 		long position = sequencer.getPosition();
+		boolean running = sequencer.isRunning();
 		Sequence song;
 
+		// Changing instruments or stereo only changes a few events, so try to update the
+		// sequence in place without parsing the song again or resetting the sequencer
+		sequencer.stop();
+		if (AbcToMidi.updateInstruments(sequencer.getSequence(), abcInfo, instrumentOverrideMap,
+				stereoMenuItem.isSelected()))
+		{
+			sequencer.refreshSequenceEvents();
+			sequencer.setRunning(running);
+			return;
+		}
+
 		try
 		{
 			AbcToMidi.Params params = new AbcToMidi.Params(abcData);
@@ -1828,17 +1840,18 @@ public class AbcPlayer extends JFrame implements TableLayoutConstants, MidiConst
 			params.abcInfo = abcInfo;
 			params.enableLotroErrors = false;
 			params.stereo = stereoMenuItem.isSelected();
+			params.parseInParallel = true;
 			song = AbcToMidi.convert(params);
 		}
 		catch (ParseException e)
 		{
 			JOptionPane.showMessageDialog(this, e.getMessage(), "Error changing instrument", JOptionPane.ERROR_MESSAGE);
+			sequencer.setRunning(running);
 			return;
 		}
 
 		try
 		{
-			boolean running = sequencer.isRunning();
 			sequencer.reset(false);
 			sequencer.setSequence(song);
 			sequencer.setPosition(position);
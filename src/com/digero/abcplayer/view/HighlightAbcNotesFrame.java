@@ -57,6 +57,7 @@ import javax.swing.text.View;
 import com.digero.abcplayer.AbcPlayer;
 import com.digero.common.abctomidi.AbcInfo;
 import com.digero.common.abctomidi.AbcRegion;
+import com.digero.common.abctomidi.AbcRegionIndex;
 import com.digero.common.midi.Note;
 import com.digero.common.midi.SequencerEvent;
 import com.digero.common.midi.SequencerEvent.SequencerProperty;
@@ -71,13 +72,18 @@ public class HighlightAbcNotesFrame extends JFrame
 	private SequencerWrapper sequencer;
 
 	private NavigableSet<AbcRegion> regions = new TreeSet<AbcRegion>();
+	private AbcRegionIndex regionIndex = new AbcRegionIndex(regions);
 	private int lineOffset = 0;
 	private boolean showFullPartName = false;
 	private Integer scrollToIndexNextUpdate = null;
 	private NavigableMap<Integer, AbcRegion> indexToRegion = null;
 	private Map<AbcRegion, Object> highlightedRegions = new HashMap<AbcRegion, Object>();
 	private Map<AbcRegion, Object> highlightedTiedRegions = new HashMap<AbcRegion, Object>();
+	/** The tick that highlightedRegions was last updated for, or -1 if it needs to be found again */
+	private long highlightedTick = -1;
 	private int[] lineStartIndex;
+	/** Increased each time the lines change, so regions generated for older lines are ignored */
+	private int regionsGeneration = 0;
 
 	private Highlighter highlighter;
 	private Highlighter.HighlightPainter chordPainter;
@@ -561,6 +567,7 @@ public class HighlightAbcNotesFrame extends JFrame
 		highlighter.removeAllHighlights();
 		highlightedRegions.clear();
 		highlightedTiedRegions.clear();
+		highlightedTick = -1;
 	}
 
 	public void clearLinesAndRegions()
@@ -602,9 +609,61 @@ public class HighlightAbcNotesFrame extends JFrame
 			gutterTextArea.setText(gutterText.toString());
 		}
 
+		setRegions(lines.size(), lineOffset, abcInfo);
+
+		focusTextAreaNextUpdate = true;
+		lastAutoScrollY = -1;
+		scrollToIndexNextUpdate = null;
+		indexToRegion = null;
+		update();
+
+		final int generation = ++regionsGeneration;
+		if (abcInfo != null && abcInfo.isRegionsPending())
+			generateRegions(generation, lines.size(), lineOffset, abcInfo);
+	}
+
+	/**
+	 * Generates the song's regions on another thread, since that parses the whole song again, then
+	 * highlights them if the lines haven't changed since.
+	 */
+	private void generateRegions(final int generation, final int lineCount, final int lineOffset,
+			final AbcInfo abcInfo)
+	{
+		Thread thread = new Thread(new Runnable()
+		{
+			@Override public void run()
+			{
+				abcInfo.getRegions();
+				SwingUtilities.invokeLater(new Runnable()
+				{
+					@Override public void run()
+					{
+						if (generation != regionsGeneration)
+							return;
+
+						clearAllHighlights();
+						setRegions(lineCount, lineOffset, abcInfo);
+						indexToRegion = null;
+						update();
+					}
+				});
+			}
+		}, "ABC regions");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Sets the regions in the view and the parts that can be followed. If the song's regions
+	 * haven't been generated yet, the view has no regions until they are.
+	 */
+	private void setRegions(int lineCount, int lineOffset, AbcInfo abcInfo)
+	{
 		// Init regions
 		{
-			NavigableSet<AbcRegion> regions = (abcInfo != null) ? abcInfo.getRegions() : null;
+			NavigableSet<AbcRegion> regions = null;
+			if (abcInfo != null && !abcInfo.isRegionsPending())
+				regions = abcInfo.getRegions();
 			if (regions == null)
 				regions = new TreeSet<AbcRegion>();
 
@@ -613,7 +672,7 @@ public class HighlightAbcNotesFrame extends JFrame
 			for (AbcRegion region : regions)
 			{
 				int line = region.getLine() - lineOffset;
-				if (line < 0 || line >= lines.size())
+				if (line < 0 || line >= lineCount)
 				{
 					hasRegionsOutOfRange = true;
 					break;
@@ -626,11 +685,20 @@ public class HighlightAbcNotesFrame extends JFrame
 				for (AbcRegion region : regions)
 				{
 					int line = region.getLine() - lineOffset;
-					if (line >= 0 && line < lines.size())
+					if (line >= 0 && line < lineCount)
 						regionsInRange.add(region);
 				}
 
 				regions = regionsInRange;
+				this.regionIndex = new AbcRegionIndex(regions);
+			}
+			else if (abcInfo != null && !regions.isEmpty())
+			{
+				this.regionIndex = abcInfo.getRegionIndex();
+			}
+			else
+			{
+				this.regionIndex = new AbcRegionIndex(regions);
 			}
 
 			this.regions = regions;
@@ -655,12 +723,6 @@ public class HighlightAbcNotesFrame extends JFrame
 			}
 			followTrackComboBox.setEnabled(followTrackComboBox.getItemCount() > 0);
 		}
-
-		focusTextAreaNextUpdate = true;
-		lastAutoScrollY = -1;
-		scrollToIndexNextUpdate = null;
-		indexToRegion = null;
-		update();
 	}
 
 	private int getLine(AbcRegion region)
@@ -804,32 +866,40 @@ public class HighlightAbcNotesFrame extends JFrame
 
 		try
 		{
-			// Add highlighted regions
-			int endOfFollowedTrack = -1;
-			int followedTrackNumber = getFollowedTrackNumber();
-			for (AbcRegion region : regions)
-			{
-				if (region.getStartTick() > tick)
-					break;
+			// Add highlighted regions. When playing forward, the regions that were already on are
+			// still highlighted, so only the regions that started since the last update are added.
+			List<AbcRegion> regionsOn;
+			if (highlightedTick >= 0 && tick >= highlightedTick)
+				regionsOn = regionIndex.getRegionsStarted(highlightedTick, tick);
+			else
+				regionsOn = regionIndex.getRegionsOn(tick);
+			highlightedTick = tick;
 
-				if (isRegionOn(region, tick))
+			for (AbcRegion region : regionsOn)
+			{
+				if (!highlightedRegions.containsKey(region))
 				{
+					Object tieTag = highlightedTiedRegions.remove(region);
+					if (tieTag != null)
+						highlighter.removeHighlight(tieTag);
+
 					int lineStart = lineStartIndex[getLine(region)];
+					int start = lineStart + region.getStartIndex();
 					int end = lineStart + region.getEndIndex();
+					Object tag = highlighter.addHighlight(start, end, getPainter(region));
+					highlightedRegions.put(region, tag);
+				}
+			}
 
-					if (end > endOfFollowedTrack && region.getTrackNumber() == followedTrackNumber)
+			int endOfFollowedTrack = -1;
+			int followedTrackNumber = getFollowedTrackNumber();
+			for (AbcRegion region : highlightedRegions.keySet())
+			{
+				if (region.getTrackNumber() == followedTrackNumber)
+				{
+					int end = lineStartIndex[getLine(region)] + region.getEndIndex();
+					if (end > endOfFollowedTrack)
 						endOfFollowedTrack = end;
-
-					if (!highlightedRegions.containsKey(region))
-					{
-						Object tieTag = highlightedTiedRegions.remove(region);
-						if (tieTag != null)
-							highlighter.removeHighlight(tieTag);
-
-						int start = lineStart + region.getStartIndex();
-						Object tag = highlighter.addHighlight(start, end, getPainter(region));
-						highlightedRegions.put(region, tag);
-					}
 				}
 			}
 
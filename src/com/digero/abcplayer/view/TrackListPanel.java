@@ -12,9 +12,6 @@ import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.TreeMap;
 
 import javax.sound.midi.MidiEvent;
 import javax.sound.midi.ShortMessage;
@@ -29,7 +26,7 @@ import javax.swing.SwingUtilities;
 
 import com.digero.common.abc.LotroInstrument;
 import com.digero.common.abctomidi.AbcInfo;
-import com.digero.common.abctomidi.AbcRegion;
+import com.digero.common.abctomidi.AbcLineIndex;
 import com.digero.common.midi.SequencerEvent;
 import com.digero.common.midi.SequencerEvent.SequencerProperty;
 import com.digero.common.midi.SequencerWrapper;
@@ -63,7 +60,6 @@ public class TrackListPanel extends JPanel implements Listener<SequencerEvent>,
 		public final JLabel lineNumberLabel;
 		public final JToggleButton soloButton;
 		public final JComboBox<LotroInstrument> instrumentComboBox;
-		public NavigableMap<Long, Integer> tickToLineNumber;
 	}
 
 	private boolean showFullPartName = false;
@@ -370,32 +366,16 @@ public class TrackListPanel extends JPanel implements Listener<SequencerEvent>,
 		if (trackControls == null)
 			return;
 
+		long tick = sequencer.getThumbTick();
 		for (int i = 0; i < trackControls.length; i++)
 		{
 			TrackControls info = trackControls[i];
 			if (info == null)
 				continue;
 
-			if (info.tickToLineNumber == null)
-			{
-				info.tickToLineNumber = new TreeMap<Long, Integer>();
-				int prevLine = -1;
-				for (AbcRegion region : abcInfo.getRegions())
-				{
-					if (region.getTrackNumber() == i)
-					{
-						int line = region.getLine();
-						if (line != prevLine)
-						{
-							info.tickToLineNumber.put(region.getStartTick(), region.getLine());
-							prevLine = line;
-						}
-					}
-				}
-			}
-
-			Entry<Long, Integer> entry = info.tickToLineNumber.floorEntry(sequencer.getThumbTick());
-			int lineNumber = (entry != null) ? (entry.getValue() + 1) : 0;
+			AbcLineIndex lineIndex = abcInfo.getPartLineIndex(i);
+			int line = (lineIndex != null) ? lineIndex.tickToLine(tick) : -1;
+			int lineNumber = line + 1;
 			info.lineNumberLabel.setText("<html><a href='.'>" + lineNumber + "</a></html>");
 		}
 	}
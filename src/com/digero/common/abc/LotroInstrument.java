@@ -107,10 +107,11 @@ public enum LotroInstrument
 		return friendlyName;
 	}
 
-	private static Pattern instrumentRegex;
+	private static volatile Pattern instrumentRegex;
 
 	public static Pair<LotroInstrument, MatchResult> matchInstrument(String str)
 	{
+		Pattern instrumentRegex = LotroInstrument.instrumentRegex;
 		if (instrumentRegex == null)
 		{
 			// Build a regex that contains a single capturing group for each instrument
@@ -131,6 +132,7 @@ public enum LotroInstrument
 			regex.append(")\\b");
 
 			instrumentRegex = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+			LotroInstrument.instrumentRegex = instrumentRegex;
 		}
 
 		MatchResult result = null;
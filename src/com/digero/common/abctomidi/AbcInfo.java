@@ -28,6 +28,8 @@ public class AbcInfo implements AbcConstants, IBarNumberCache
 		private boolean nameIsFromExtendedInfo = false;
 		private int startLine = 0;
 		private int endLine = 0;
+		private AbcToMidi.PartNotes notes = null;
+		private AbcLineIndex lines = null;
 	}
 
 	private boolean empty = true;
@@ -36,6 +38,9 @@ public class AbcInfo implements AbcConstants, IBarNumberCache
 	private NavigableMap<Long, Integer> bars = new TreeMap<Long, Integer>();
 	private Map<Integer, AbcInfo.PartInfo> partInfoByIndex = new HashMap<Integer, AbcInfo.PartInfo>();
 	private NavigableSet<AbcRegion> regions;
+	private AbcRegionIndex regionIndex;
+	/** If the song was parsed without generating regions, the parameters to generate them with */
+	private AbcToMidi.Params regionSource;
 	private int primaryTempoBPM = 120;
 	private boolean hasTriplets = false;
 
@@ -58,6 +63,14 @@ public class AbcInfo implements AbcConstants, IBarNumberCache
 		hasTriplets = false;
 		timeSignature = TimeSignature.FOUR_FOUR;
 		keySignature = KeySignature.C_MAJOR;
+		synchronized (this)
+		{
+			regions = null;
+			regionIndex = null;
+			regionSource = null;
+		}
+		for (AbcInfo.PartInfo info : partInfoByIndex.values())
+			info.lines = null;
 	}
 
 	public String getComposer()
@@ -210,6 +223,19 @@ public class AbcInfo implements AbcConstants, IBarNumberCache
 		return info.startLine;
 	}
 
+	/**
+	 * Returns the lines of the ABC text that the part's notes are on, by tick, or null if the part
+	 * has no notes.
+	 */
+	public AbcLineIndex getPartLineIndex(int trackIndex)
+	{
+		AbcInfo.PartInfo info = partInfoByIndex.get(trackIndex);
+		if (info == null)
+			return null;
+
+		return info.lines;
+	}
+
 	public int getPartEndLine(int trackIndex)
 	{
 		AbcInfo.PartInfo info = partInfoByIndex.get(trackIndex);
@@ -295,6 +321,24 @@ public class AbcInfo implements AbcConstants, IBarNumberCache
 		}
 	}
 
+	AbcToMidi.PartNotes getPartNotes(int trackIndex)
+	{
+		AbcInfo.PartInfo info = partInfoByIndex.get(trackIndex);
+		if (info == null)
+			return null;
+
+		return info.notes;
+	}
+
+	void setPartNotes(int trackIndex, AbcToMidi.PartNotes notes)
+	{
+		AbcInfo.PartInfo info = partInfoByIndex.get(trackIndex);
+		if (info == null)
+			partInfoByIndex.put(trackIndex, info = new PartInfo());
+
+		info.notes = notes;
+	}
+
 	void setPartStartLine(int trackIndex, int startLine)
 	{
 		AbcInfo.PartInfo info = partInfoByIndex.get(trackIndex);
@@ -343,17 +387,138 @@ public class AbcInfo implements AbcConstants, IBarNumberCache
 		this.keySignature = keySignature;
 	}
 
-	void addRegion(AbcRegion region)
+	synchronized void addRegion(AbcRegion region)
 	{
 		if (regions == null)
 			regions = new TreeSet<AbcRegion>();
 
 		regions.add(region);
+		regionIndex = null;
+	}
+
+	void addPartLine(int trackIndex, long tick, int line)
+	{
+		AbcInfo.PartInfo info = partInfoByIndex.get(trackIndex);
+		if (info == null)
+			partInfoByIndex.put(trackIndex, info = new PartInfo());
+		if (info.lines == null)
+			info.lines = new AbcLineIndex();
+
+		info.lines.add(tick, line);
+	}
+
+	/**
+	 * Sets the song to parse again if the regions are needed, when it was parsed without
+	 * generating them. The parameters share the caller's list of lines rather than copying it, and
+	 * are released once the regions have been generated.
+	 */
+	synchronized void setRegionSource(AbcToMidi.Params regionSource)
+	{
+		this.regionSource = regionSource;
+	}
+
+	/**
+	 * Adds the regions, bars, triplets and notes found by parsing a part of the song into a
+	 * separate AbcInfo.
+	 */
+	void addNotesFrom(AbcInfo that)
+	{
+		for (Entry<Integer, AbcInfo.PartInfo> entry : that.partInfoByIndex.entrySet())
+		{
+			if (entry.getValue().notes != null)
+				setPartNotes(entry.getKey(), entry.getValue().notes);
+
+			if (entry.getValue().lines != null)
+			{
+				AbcInfo.PartInfo info = partInfoByIndex.get(entry.getKey());
+				if (info == null)
+					partInfoByIndex.put(entry.getKey(), info = new PartInfo());
+
+				info.lines = entry.getValue().lines;
+			}
+		}
+
+		if (that.regions != null)
+		{
+			for (AbcRegion region : that.regions)
+				addRegion(region);
+		}
+
+		// Add the bars in the order they were found, so they get the same numbers
+		long[] barTicks = new long[that.bars.size()];
+		for (Entry<Long, Integer> entry : that.bars.entrySet())
+			barTicks[entry.getValue() - 1] = entry.getKey();
+		for (long tick : barTicks)
+			addBar(tick);
+
+		if (that.hasTriplets)
+			hasTriplets = true;
+	}
+
+	/**
+	 * Returns true if the song was parsed without generating regions, and {@link #getRegions()}
+	 * hasn't generated them yet. Generating them parses the whole song again, so it shouldn't be
+	 * done on the event dispatch thread.
+	 */
+	public synchronized boolean isRegionsPending()
+	{
+		return regions == null && regionSource != null;
 	}
 
+	/**
+	 * Returns the regions of the ABC text for each note, rest and chord. If the song was parsed
+	 * without generating regions, it's parsed again to generate them the first time they're needed
+	 * (see {@link #isRegionsPending()}). This may be called from any thread.
+	 * <p>
+	 * Regions generated by parsing again can differ from the song that's playing where the parser
+	 * chooses notes at random, such as the note of each cowbell hit.
+	 */
 	public NavigableSet<AbcRegion> getRegions()
 	{
-		return regions;
+		AbcToMidi.Params source;
+		synchronized (this)
+		{
+			if (regions != null || regionSource == null)
+				return regions;
+
+			source = regionSource;
+		}
+
+		// Other callers wait for the same regions rather than parsing the song again
+		synchronized (source)
+		{
+			synchronized (this)
+			{
+				if (regionSource != source)
+					return regions;
+			}
+
+			NavigableSet<AbcRegion> generated = AbcToMidi.generateRegions(source);
+
+			synchronized (this)
+			{
+				// Ignore the regions if the song was parsed again while they were being generated
+				if (regionSource == source)
+				{
+					regions = generated;
+					regionSource = null;
+				}
+				return regions;
+			}
+		}
+	}
+
+	/** Returns an index for finding the regions that are on at a tick, or null if there are no regions. */
+	public AbcRegionIndex getRegionIndex()
+	{
+		NavigableSet<AbcRegion> regions = getRegions();
+		synchronized (this)
+		{
+			if (regionIndex == null && regions != null && regions == this.regions)
+				regionIndex = new AbcRegionIndex(regions);
+
+			return regionIndex;
+		}
 	}
 
 	private static final String openPunct = "[-:;\\(\\[\\{\\s]*";
@@ -0,0 +1,392 @@
+package com.digero.common.abctomidi;
+
+import com.digero.common.abc.Dynamics;
+import com.digero.common.util.ParseException;
+
+/**
+ * Splits ABC lines into tokens by scanning characters directly.
+ * <p>
+ * A single lexer is reused for every line of a song, and the details of the current token are
+ * exposed as fields rather than as token objects, so lexing a line doesn't allocate anything. The
+ * tokens (and the errors for malformed input) are the same as those produced by the original
+ * regular expressions, which are still available in {@link RegexAbcLexer}.
+ */
+class AbcLexer
+{
+	static final int END = 0;
+	static final int WHITESPACE = 1;
+	static final int CHORD_START = 2;
+	static final int CHORD_END = 3;
+	/** A bar line: either | or |] */
+	static final int BAR = 4;
+	/** A +decoration+; {@link #dynamics} is null if it isn't a supported dynamics mark */
+	static final int DECORATION = 5;
+	/** The start of a tuplet: ( followed by a digit, which is stored in {@link #tupletP} */
+	static final int TUPLET = 6;
+	static final int SLUR_START = 7;
+	static final int SLUR_END = 8;
+	/** A backslash, which is ignored */
+	static final int CONTINUATION = 9;
+	static final int NOTE = 10;
+
+	private static final Dynamics[] DYNAMICS = Dynamics.values();
+
+	protected String line;
+	protected int lineEnd;
+	protected int pos;
+	protected String fileName;
+	protected int lineNumber;
+
+	// The current token
+	int tokenStart;
+	int tokenEnd;
+
+	// DECORATION
+	Dynamics dynamics;
+
+	// TUPLET
+	int tupletP;
+
+	// NOTE
+	boolean hasAccidental;
+	int accidental; // Semitones: -2, -1, 0 (natural), 1, or 2
+	char noteLetter;
+	int octaveStart;
+	int octave; // Number of ' (positive) or , (negative) characters
+	int numerator;
+	int denominator;
+	int brokenRhythmStart;
+	int brokenRhythm; // Number of > (positive) or < (negative) characters
+	boolean tied;
+
+	// Results of matchInfo() and matchExtendedInfo()
+	char infoType;
+	int fieldStart;
+	int fieldEnd;
+	int valueStart;
+	String value;
+
+	/**
+	 * Prepares the lexer to read the notes from the given line.
+	 *
+	 * @param end The end of the part of the line to read; anything after this is a comment.
+	 */
+	void setLine(String line, int end, String fileName, int lineNumber)
+	{
+		this.line = line;
+		this.lineEnd = end;
+		this.pos = 0;
+		this.fileName = fileName;
+		this.lineNumber = lineNumber;
+	}
+
+	/** The index in the line where the lexer will continue reading. */
+	int getPosition()
+	{
+		return pos;
+	}
+
+	/**
+	 * Checks whether the whole line is an extended info field: <code>%%field: value</code>. If it
+	 * is, sets {@link #fieldStart}, {@link #fieldEnd} (which includes the colon, if present) and
+	 * {@link #value}.
+	 */
+	boolean matchExtendedInfo(String line)
+	{
+		int length = line.length();
+		int i = skipRegexWhitespace(line, 0, length);
+		if (i + 2 >= length || line.charAt(i) != '%' || line.charAt(i + 1) != '%')
+			return false;
+
+		i += 2;
+		fieldStart = i;
+		while (i < length && isFieldNameChar(line.charAt(i)))
+			i++;
+		if (i == fieldStart)
+			return false;
+		if (i < length && line.charAt(i) == ':')
+			i++;
+		fieldEnd = i;
+
+		return matchValue(line, skipRegexWhitespace(line, i, length), length);
+	}
+
+	/**
+	 * Checks whether the line is an info field: <code>X: value</code>. If it is, sets
+	 * {@link #infoType}, {@link #valueStart} and {@link #value}.
+	 */
+	boolean matchInfo(String line, int end)
+	{
+		if (end < 2)
+			return false;
+
+		char type = line.charAt(0);
+		if (type < 'A' || type > 'Z' || line.charAt(1) != ':')
+			return false;
+
+		infoType = type;
+		return matchValue(line, skipRegexWhitespace(line, 2, end), end);
+	}
+
+	private boolean matchValue(String line, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (isLineTerminator(line.charAt(i)))
+				return false;
+		}
+
+		valueStart = start;
+		int trimEnd = end;
+		while (start < trimEnd && line.charAt(start) <= ' ')
+			start++;
+		while (trimEnd > start && line.charAt(trimEnd - 1) <= ' ')
+			trimEnd--;
+		value = line.substring(start, trimEnd);
+		return true;
+	}
+
+	/**
+	 * Reads the next token from the line.
+	 *
+	 * @return The token type, or {@link #END} at the end of the line.
+	 */
+	int next() throws ParseException
+	{
+		if (pos >= lineEnd)
+			return END;
+
+		if (matchNote(pos))
+			return NOTE;
+
+		return nextNonNote();
+	}
+
+	/** Reads a token that isn't a note, starting at {@link #pos}. */
+	protected final int nextNonNote() throws ParseException
+	{
+		tokenStart = pos;
+		char ch = line.charAt(pos++);
+		if (Character.isWhitespace(ch))
+			return token(WHITESPACE);
+
+		switch (ch)
+		{
+			case '[':
+				return token(CHORD_START);
+
+			case ']':
+				return token(CHORD_END);
+
+			case '|':
+				if (pos < lineEnd && line.charAt(pos) == ']')
+					pos++; // |]
+				return token(BAR);
+
+			case '+':
+			{
+				int j = line.indexOf('+', pos);
+				if (j < 0 || j >= lineEnd)
+					throw new ParseException("There is no matching '+'", fileName, lineNumber, tokenStart);
+
+				dynamics = null;
+				for (Dynamics d : DYNAMICS)
+				{
+					String name = d.name();
+					if (name.length() == j - pos && line.regionMatches(pos, name, 0, name.length()))
+					{
+						dynamics = d;
+						break;
+					}
+				}
+				pos = j + 1;
+				return token(DECORATION);
+			}
+
+			case '(':
+				if (pos < lineEnd && Character.isDigit(line.charAt(pos)))
+				{
+					tupletP = Character.digit(line.charAt(pos), 10);
+					pos++;
+					return token(TUPLET);
+				}
+				return token(SLUR_START);
+
+			case ')':
+				return token(SLUR_END);
+
+			case '\\':
+				return token(CONTINUATION);
+
+			default:
+				throw new ParseException("Unknown/unexpected character '" + ch + "'", fileName, lineNumber, tokenStart);
+		}
+	}
+
+	private int token(int type)
+	{
+		tokenEnd = pos;
+		return type;
+	}
+
+	/**
+	 * Tries to read a note at the given index. Follows the same rules as the regular expression
+	 * <code>(_{1,2}|=|\^{1,2})?([xzA-Ga-g])(,{1,5}|'{1,5})?(\d+)?(//?\d*)?(>{1,3}|<{1,3})?(-)?</code>
+	 */
+	private boolean matchNote(int start) throws ParseException
+	{
+		int i = start;
+		char ch = line.charAt(i);
+
+		// Accidental
+		int acc = 0;
+		boolean hasAcc = true;
+		if (ch == '^' || ch == '_')
+		{
+			acc = (ch == '^') ? 1 : -1;
+			if (i + 1 < lineEnd && line.charAt(i + 1) == ch)
+			{
+				acc *= 2;
+				i++;
+			}
+			i++;
+		}
+		else if (ch == '=')
+		{
+			i++;
+		}
+		else
+		{
+			hasAcc = false;
+		}
+
+		// Letter
+		if (i >= lineEnd || !isNoteLetter(line.charAt(i)))
+			return false;
+
+		tokenStart = start;
+		hasAccidental = hasAcc;
+		accidental = acc;
+		noteLetter = line.charAt(i++);
+
+		// Octave
+		octaveStart = i;
+		octave = 0;
+		if (i < lineEnd && (line.charAt(i) == '\'' || line.charAt(i) == ','))
+		{
+			char octaveChar = line.charAt(i);
+			int count = countRepeated(octaveChar, i, 5);
+			octave = (octaveChar == '\'') ? count : -count;
+			i += count;
+		}
+
+		// Length
+		numerator = 1;
+		int digitsEnd = skipDigits(i);
+		if (digitsEnd > i)
+		{
+			numerator = parseDigits(i, digitsEnd);
+			i = digitsEnd;
+		}
+
+		denominator = 1;
+		if (i < lineEnd && line.charAt(i) == '/')
+		{
+			int slashStart = i++;
+			boolean doubleSlash = (i < lineEnd && line.charAt(i) == '/');
+			if (doubleSlash)
+				i++;
+
+			digitsEnd = skipDigits(i);
+			if (digitsEnd == i)
+			{
+				denominator = doubleSlash ? 4 : 2;
+			}
+			else if (doubleSlash)
+			{
+				throw new ParseException("Invalid note length", fileName, lineNumber, slashStart);
+			}
+			else
+			{
+				denominator = parseDigits(i, digitsEnd);
+			}
+			i = digitsEnd;
+		}
+
+		// Broken rhythm
+		brokenRhythmStart = i;
+		brokenRhythm = 0;
+		if (i < lineEnd && (line.charAt(i) == '>' || line.charAt(i) == '<'))
+		{
+			char brokenRhythmChar = line.charAt(i);
+			int count = countRepeated(brokenRhythmChar, i, 3);
+			brokenRhythm = (brokenRhythmChar == '>') ? count : -count;
+			i += count;
+		}
+
+		// Tie
+		tied = (i < lineEnd && line.charAt(i) == '-');
+		if (tied)
+			i++;
+
+		pos = i;
+		tokenEnd = i;
+		return true;
+	}
+
+	private int countRepeated(char ch, int start, int max)
+	{
+		int i = start;
+		while (i < lineEnd && i - start < max && line.charAt(i) == ch)
+			i++;
+		return i - start;
+	}
+
+	private int skipDigits(int i)
+	{
+		while (i < lineEnd && line.charAt(i) >= '0' && line.charAt(i) <= '9')
+			i++;
+		return i;
+	}
+
+	private int parseDigits(int start, int end) throws ParseException
+	{
+		long value = 0;
+		for (int i = start; i < end; i++)
+		{
+			value = value * 10 + (line.charAt(i) - '0');
+			if (value > Integer.MAX_VALUE)
+				throw new ParseException("Invalid note length", fileName, lineNumber, start);
+		}
+		return (int) value;
+	}
+
+	private static boolean isNoteLetter(char ch)
+	{
+		return (ch >= 'A' && ch <= 'G') || (ch >= 'a' && ch <= 'g') || ch == 'x' || ch == 'z';
+	}
+
+	private static boolean isFieldNameChar(char ch)
+	{
+		return (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z') || ch == '-';
+	}
+
+	/** Matches the regular expression \s */
+	private static boolean isRegexWhitespace(char ch)
+	{
+		return ch == ' ' || ch == '\t' || ch == '\n' || ch == '\u000B' || ch == '\f' || ch == '\r';
+	}
+
+	/** Characters that aren't matched by the regular expression . */
+	private static boolean isLineTerminator(char ch)
+	{
+		return ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029';
+	}
+
+	private static int skipRegexWhitespace(String line, int i, int end)
+	{
+		while (i < end && isRegexWhitespace(line.charAt(i)))
+			i++;
+		return i;
+	}
+}
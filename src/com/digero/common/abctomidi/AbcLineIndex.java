@@ -0,0 +1,56 @@
+package com.digero.common.abctomidi;
+
+import java.util.Arrays;
+
+/**
+ * The lines of ABC text that a part's notes are on, by tick. There's an entry for the first note
+ * of the part on each line, in the order that they're played.
+ */
+public class AbcLineIndex
+{
+	private long[] ticks = new long[16];
+	private int[] lines = new int[16];
+	private int size = 0;
+
+	/** Called by the parser for each note, rest or chord, in order. */
+	void add(long tick, int line)
+	{
+		if (size > 0 && lines[size - 1] == line)
+			return;
+
+		if (size > 0 && ticks[size - 1] == tick)
+		{
+			// A later line starts on the same tick; it replaces the earlier one
+			lines[size - 1] = line;
+			return;
+		}
+
+		if (size == ticks.length)
+		{
+			ticks = Arrays.copyOf(ticks, size * 2);
+			lines = Arrays.copyOf(lines, size * 2);
+		}
+
+		ticks[size] = tick;
+		lines[size] = line;
+		size++;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the line (starting from 0) of the note that's playing at the tick, or the last note
+	 * before the tick. Returns -1 if the tick is before the first note of the part.
+	 */
+	public int tickToLine(long tick)
+	{
+		int i = Arrays.binarySearch(ticks, 0, size, tick);
+		if (i < 0)
+			i = -i - 2;
+
+		return (i >= 0) ? lines[i] : -1;
+	}
+}
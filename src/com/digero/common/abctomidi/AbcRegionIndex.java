@@ -0,0 +1,120 @@
+package com.digero.common.abctomidi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds the regions that are playing at a given tick. The regions are sorted by start tick, along
+ * with the latest end tick of all of the regions up to each one, so the regions that are on at a
+ * tick can be found without looking at the regions that ended earlier in the song.
+ * <p>
+ * While a song is playing, {@link #getRegionsStarted(long, long)} finds the regions that started
+ * since the last update, which only looks at those regions.
+ */
+public class AbcRegionIndex
+{
+	private static final Comparator<AbcRegion> START_TICK_ORDER = new Comparator<AbcRegion>()
+	{
+		@Override public int compare(AbcRegion a, AbcRegion b)
+		{
+			return Long.compare(a.getStartTick(), b.getStartTick());
+		}
+	};
+
+	private final AbcRegion[] regions;
+	private final long[] startTicks;
+	private final long[] endTicks;
+	/** The largest end tick of the regions up to and including each index */
+	private final long[] maxEndTicks;
+
+	public AbcRegionIndex(Collection<AbcRegion> regions)
+	{
+		this.regions = regions.toArray(new AbcRegion[regions.size()]);
+		Arrays.sort(this.regions, START_TICK_ORDER);
+
+		startTicks = new long[this.regions.length];
+		endTicks = new long[this.regions.length];
+		maxEndTicks = new long[this.regions.length];
+		long maxEndTick = Long.MIN_VALUE;
+		for (int i = 0; i < this.regions.length; i++)
+		{
+			startTicks[i] = this.regions[i].getStartTick();
+			endTicks[i] = this.regions[i].getEndTick();
+			maxEndTick = Math.max(maxEndTick, endTicks[i]);
+			maxEndTicks[i] = maxEndTick;
+		}
+	}
+
+	public int size()
+	{
+		return regions.length;
+	}
+
+	/** Returns the regions that are on at the tick, in order of start tick. */
+	public List<AbcRegion> getRegionsOn(long tick)
+	{
+		List<AbcRegion> on = new ArrayList<AbcRegion>();
+		int end = upperBound(tick);
+		for (int i = firstEndingAfter(tick, end); i < end; i++)
+		{
+			if (endTicks[i] > tick)
+				on.add(regions[i]);
+		}
+		return on;
+	}
+
+	/**
+	 * Returns the regions that started after fromTick, and are on at toTick, in order of start
+	 * tick. If all of the regions that were on at fromTick are known, these are the regions that
+	 * need to be added to them to get the regions that are on at toTick.
+	 */
+	public List<AbcRegion> getRegionsStarted(long fromTick, long toTick)
+	{
+		List<AbcRegion> started = new ArrayList<AbcRegion>();
+		for (int i = upperBound(fromTick); i < regions.length && startTicks[i] <= toTick; i++)
+		{
+			if (endTicks[i] > toTick)
+				started.add(regions[i]);
+		}
+		return started;
+	}
+
+	/**
+	 * Returns the index of the first region before the end index whose maximum end tick is after
+	 * the tick, or the end index if there isn't one. The maximum end ticks only increase, so none
+	 * of the regions before that index are on at the tick.
+	 */
+	private int firstEndingAfter(long tick, int end)
+	{
+		int low = 0;
+		int high = end;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (maxEndTicks[mid] <= tick)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/** Returns the index of the first region that starts after the tick. */
+	private int upperBound(long tick)
+	{
+		int low = 0;
+		int high = startTicks.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (startTicks[mid] <= tick)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+}
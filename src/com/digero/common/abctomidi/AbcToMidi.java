@@ -6,16 +6,17 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.NavigableSet;
 
 import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
-import javax.sound.midi.Receiver;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Track;
@@ -27,8 +28,8 @@ import com.digero.common.midi.MidiConstants;
 import com.digero.common.midi.MidiFactory;
 import com.digero.common.midi.Note;
 import com.digero.common.midi.PanGenerator;
-import com.digero.common.midi.SequencerWrapper;
 import com.digero.common.util.LotroParseException;
+import com.digero.common.util.ParallelTasks;
 import com.digero.common.util.ParseException;
 import com.sun.media.sound.MidiUtils;
 
@@ -49,6 +50,10 @@ public class AbcToMidi
 		public boolean stereo = true;
 		public boolean generateRegions = false;
 		public AbcInfo abcInfo = null;
+		/** Use the original (slower) regular expression parser instead of the character lexer */
+		public boolean useRegexLexer = false;
+		/** Parse the parts of multi-part songs on multiple threads */
+		public boolean parseInParallel = false;
 
 		public Params(File file) throws IOException
 		{
@@ -60,26 +65,21 @@ public class AbcToMidi
 		{
 			this.filesData = filesData;
 		}
-	}
 
-	private static final Pattern INFO_PATTERN = Pattern.compile("^([A-Z]):\\s*(.*)\\s*$");
-	private static final int INFO_TYPE = 1;
-	private static final int INFO_VALUE = 2;
-
-	private static final Pattern XINFO_PATTERN = Pattern.compile("^\\s*%%([A-Za-z\\-]+)((:?)|\\s)\\s*(.*)\\s*$");
-	private static final int XINFO_FIELD = 1;
-	private static final int XINFO_COLON = 3;
-	private static final int XINFO_VALUE = 4;
-
-	private static final Pattern NOTE_PATTERN = Pattern.compile("(_{1,2}|=|\\^{1,2})?" + "([xzA-Ga-g])"
-			+ "(,{1,5}|'{1,5})?" + "(\\d+)?" + "(//?\\d*)?" + "(>{1,3}|<{1,3})?" + "(-)?");
-	private static final int NOTE_ACCIDENTAL = 1;
-	private static final int NOTE_LETTER = 2;
-	private static final int NOTE_OCTAVE = 3;
-	private static final int NOTE_LEN_NUMER = 4;
-	private static final int NOTE_LEN_DENOM = 5;
-	private static final int NOTE_BROKEN_RHYTHM = 6;
-	private static final int NOTE_TIE = 7;
+		private Params copy()
+		{
+			Params copy = new Params(filesData);
+			copy.useLotroInstruments = useLotroInstruments;
+			if (instrumentOverrideMap != null)
+				copy.instrumentOverrideMap = new HashMap<Integer, LotroInstrument>(instrumentOverrideMap);
+			copy.enableLotroErrors = enableLotroErrors;
+			copy.stereo = stereo;
+			copy.generateRegions = generateRegions;
+			copy.useRegexLexer = useRegexLexer;
+			copy.parseInParallel = parseInParallel;
+			return copy;
+		}
+	}
 
 	/**
 	 * Maps a note name (a, b, c, etc.) to the number of semitones it is above the beginning of the
@@ -122,62 +122,324 @@ public class AbcToMidi
 
 	public static Sequence convert(Params params) throws ParseException
 	{
-		return convert(params.filesData, params.useLotroInstruments, params.instrumentOverrideMap, params.abcInfo,
-				params.enableLotroErrors, params.stereo, params.generateRegions);
-	}
-
-	private static Sequence convert(List<FileAndData> filesData, boolean useLotroInstruments,
-			Map<Integer, LotroInstrument> instrumentOverrideMap, AbcInfo abcInfo, final boolean enableLotroErrors,
-			final boolean stereo, final boolean generateRegions) throws ParseException
-	{
+		AbcInfo abcInfo = params.abcInfo;
 		if (abcInfo == null)
 			abcInfo = new AbcInfo();
 		else
 			abcInfo.reset();
 
-		TuneInfo info = new TuneInfo();
-		Sequence seq = null;
-		Track track = null;
+		if (!params.generateRegions)
+			abcInfo.setRegionSource(params.copy());
+
+		if (params.parseInParallel)
+			return convertInParallel(params, abcInfo);
+
+		Converter converter = new Converter(params, abcInfo);
+		for (FileAndData fileAndData : params.filesData)
+		{
+			converter.startFile(fileAndData);
+			for (String line : fileAndData.lines)
+			{
+				converter.parseLine(line);
+			}
+			converter.endFile();
+		}
+
+		return converter.finish(converter.info, params.stereo);
+	}
+
+	/**
+	 * Parses a song again to generate its regions, for a song that was parsed without them. The
+	 * parameters are the ones that the song was originally parsed with.
+	 * 
+	 * @return The regions, or null if the song can no longer be parsed.
+	 */
+	static NavigableSet<AbcRegion> generateRegions(Params params)
+	{
+		Params copy = params.copy();
+		copy.generateRegions = true;
+		copy.abcInfo = new AbcInfo();
+		try
+		{
+			convert(copy);
+		}
+		catch (ParseException e)
+		{
+			return null;
+		}
+		return copy.abcInfo.getRegions();
+	}
+
+	/**
+	 * Parses the parts of the song on multiple threads.
+	 * <p>
+	 * The lines are first read by a header pass, which handles everything except the notes. This
+	 * is enough to know the state of the tune (key, meter, tempo, track number, etc.) at the start
+	 * of each X: line, and to create the sequence and its tracks. The notes of each part are then
+	 * parsed in parallel, starting from a copy of that state, and the results are merged in the
+	 * order that the parts appear in the file. If there are errors, the error that's thrown is the
+	 * one that would have been thrown by parsing the song sequentially.
+	 */
+	private static Sequence convertInParallel(Params params, AbcInfo abcInfo) throws ParseException
+	{
+		Converter header = new Converter(params, abcInfo);
+		header.skipNotes = true;
+
+		List<PartTask> parts = new ArrayList<PartTask>();
+		PartTask part = new PartTask(params, header, 0, 0);
+		Exception headerError = null;
+		try
+		{
+			for (int f = 0; f < params.filesData.size(); f++)
+			{
+				FileAndData fileAndData = params.filesData.get(f);
+				header.startFile(fileAndData);
+				for (int j = 0; j < fileAndData.lines.size(); j++)
+				{
+					String line = fileAndData.lines.get(j);
+					if (header.isPartStart(line) && (f != part.startFile || j != part.startLine))
+					{
+						part.setEnd(f, j);
+						parts.add(part);
+						part = new PartTask(params, header, f, j);
+					}
+					header.parseLine(line);
+				}
+				header.endFile();
+			}
+		}
+		catch (ParseException e)
+		{
+			// One of the parts will throw the same error (or an earlier one) when it's parsed
+			headerError = e;
+		}
+		catch (RuntimeException e)
+		{
+			headerError = e;
+		}
+		part.setEnd(params.filesData.size(), 0);
+		parts.add(part);
 
-		int channel = 0;
-		int trackNumber = 0;
-		int trackIndex = 0;
-		int noteDivisorChangeLine = 0;
+		ParallelTasks.invokeAll(parts);
 
-		int chordStartIndex = 0;
-		double chordStartTick = 0;
-		double chordEndTick = 0;
-		long PPQN = 0;
-		Map<Integer, AbcRegion> tiedRegions = new HashMap<Integer, AbcRegion>();
+		for (PartTask p : parts)
+		{
+			p.rethrowError();
+		}
 
-		Map<Integer, Integer> tiedNotes = new HashMap<Integer, Integer>(); // noteId => (line << 16) | column
-		Map<Integer, Integer> accidentals = new HashMap<Integer, Integer>(); // noteId => deltaNoteId
+		if (headerError instanceof ParseException)
+			throw (ParseException) headerError;
+		else if (headerError != null)
+			throw (RuntimeException) headerError;
 
-		List<MidiEvent> noteOffEvents = new ArrayList<MidiEvent>();
-		int lineNumberForRegions = -1;
-		for (FileAndData fileAndData : filesData)
+		TuneInfo tempoInfo = new TuneInfo();
+		for (PartTask p : parts)
 		{
+			abcInfo.addNotesFrom(p.converter.abcInfo);
+			tempoInfo.addAllPartsTempos(p.converter.info);
+		}
+
+		return header.finish(tempoInfo, params.stereo);
+	}
+
+	/** Parses the lines of a single part, from its X: line up to the next part's X: line */
+	@SuppressWarnings("serial")//
+	private static class PartTask extends ParallelTasks.Task<ParseException>
+	{
+		private final List<FileAndData> filesData;
+		private final Converter converter;
+		private final int startFile;
+		private final int startLine;
+		private int endFile;
+		private int endLine;
+
+		public PartTask(Params params, Converter header, int startFile, int startLine)
+		{
+			this.filesData = params.filesData;
+			this.converter = new Converter(params, header);
+			this.startFile = startFile;
+			this.startLine = startLine;
+		}
+
+		public void setEnd(int endFile, int endLine)
+		{
+			this.endFile = endFile;
+			this.endLine = endLine;
+		}
+
+		@Override protected void run() throws ParseException
+		{
+			for (int f = startFile; f <= endFile && f < filesData.size(); f++)
+			{
+				FileAndData fileAndData = filesData.get(f);
+				int j = (f == startFile) ? startLine : 0;
+				int end = (f == endFile) ? endLine : fileAndData.lines.size();
+
+				if (j == 0)
+					converter.startFile(fileAndData);
+
+				for (; j < end; j++)
+				{
+					converter.parseLine(fileAndData.lines.get(j));
+				}
+
+				if (f < endFile)
+					converter.endFile();
+			}
+
+			// Parsing the next part's X: line would start by checking for unfinished ties
+			if (endFile < filesData.size())
+				converter.checkTiedNotes();
+
+			converter.addEventsToTrack();
+		}
+	}
+
+	/** Holds the state of the parser while it reads the lines of a song. */
+	private static class Converter
+	{
+		private final boolean useLotroInstruments;
+		private final Map<Integer, LotroInstrument> instrumentOverrideMap;
+		private final boolean enableLotroErrors;
+		private final boolean generateRegions;
+		private final AbcLexer lexer;
+		private final AbcInfo abcInfo;
+
+		/** Only read the info lines; create the sequence and tracks, but don't parse the notes */
+		private boolean skipNotes = false;
+		/** When parsing a part in parallel, the header pass that created the sequence and tracks */
+		private final Converter header;
+
+		private TuneInfo info;
+		private Sequence seq = null;
+		private Track track = null;
+		private PartNotes partNotes = null;
+		private int trackCount = 0;
+
+		private int channel = 0;
+		private int trackNumber = 0;
+		private int trackIndex = 0;
+		private int noteDivisorChangeLine = 0;
+
+		private double chordStartTick = 0;
+		private double chordEndTick = 0;
+		private long PPQN = 0;
+		private Map<Integer, AbcRegion> tiedRegions = new HashMap<Integer, AbcRegion>();
+
+		private Map<Integer, Integer> tiedNotes = new HashMap<Integer, Integer>(); // noteId => (line << 16) | column
+		private Map<Integer, Integer> accidentals = new HashMap<Integer, Integer>(); // noteId => deltaNoteId
+
+		/** The note events of the current part, which are added to the track when the part ends */
+		private final EventBuffer events = new EventBuffer();
+		/**
+		 * For each note ID, the index in the event buffer of the last note off event with that ID. If
+		 * the next note with the same ID starts before this note off, the note off is moved to the
+		 * start of that note.
+		 */
+		private final int[] activeNoteOffs = new int[MidiConstants.NOTE_COUNT];
+		private int lineNumberForRegions = -1;
+
+		private String fileName;
+		private int lineNumber = 0;
+		private int partStartLine = 0;
+
+		public Converter(Params params, AbcInfo abcInfo)
+		{
+			this.useLotroInstruments = params.useLotroInstruments;
+			this.instrumentOverrideMap = params.instrumentOverrideMap;
+			this.enableLotroErrors = params.enableLotroErrors;
+			this.generateRegions = params.generateRegions;
+			this.lexer = params.useRegexLexer ? new RegexAbcLexer() : new AbcLexer();
+			this.abcInfo = abcInfo;
+			this.header = null;
+			this.info = new TuneInfo();
+			Arrays.fill(activeNoteOffs, -1);
+		}
+
+		/**
+		 * Creates a converter that continues from the current state of the header pass. The notes
+		 * that it parses (regions, bars, etc.) are collected in a separate AbcInfo.
+		 */
+		public Converter(Params params, Converter header)
+		{
+			this.useLotroInstruments = params.useLotroInstruments;
+			this.instrumentOverrideMap = params.instrumentOverrideMap;
+			this.enableLotroErrors = params.enableLotroErrors;
+			this.generateRegions = params.generateRegions;
+			this.lexer = params.useRegexLexer ? new RegexAbcLexer() : new AbcLexer();
+			this.abcInfo = new AbcInfo();
+			this.header = header;
+			this.info = new TuneInfo(header.info);
+
+			this.seq = header.seq;
+			this.track = header.track;
+			this.trackCount = header.trackCount;
+			this.channel = header.channel;
+			this.trackNumber = header.trackNumber;
+			this.trackIndex = header.trackIndex;
+			this.noteDivisorChangeLine = header.noteDivisorChangeLine;
+			this.PPQN = header.PPQN;
+			this.lineNumberForRegions = header.lineNumberForRegions;
+			this.fileName = header.fileName;
+			this.lineNumber = header.lineNumber;
+			this.partStartLine = header.partStartLine;
+			Arrays.fill(activeNoteOffs, -1);
+		}
+
+		public void startFile(FileAndData fileAndData)
+		{
+			addEventsToTrack();
 			track = null;
-			String fileName = fileAndData.file.getName();
-			int lineNumber = 0;
-			int partStartLine = 0;
-			for (String line : fileAndData.lines)
+			fileName = fileAndData.file.getName();
+			lineNumber = 0;
+			partStartLine = 0;
+		}
+
+		public void endFile() throws ParseException
+		{
+			if (seq == null)
+				throw new ParseException("The file contains no notes", fileName, lineNumber);
+
+			checkTiedNotes();
+		}
+
+		public void checkTiedNotes() throws ParseException
+		{
+			for (int lineAndColumn : tiedNotes.values())
 			{
+				throw new ParseException("Tied note does not connect to another note", fileName, lineAndColumn >>> 16,
+						lineAndColumn & 0xFFFF);
+			}
+		}
+
+		/** Checks whether the line is an X: line, which starts a new part */
+		public boolean isPartStart(String line)
+		{
+			if (lexer.matchExtendedInfo(line))
+				return false;
+
+			int lineEnd = line.indexOf('%');
+			if (lineEnd < 0)
+				lineEnd = line.length();
+
+			return lexer.matchInfo(line, lineEnd) && lexer.infoType == 'X';
+		}
+
+		public void parseLine(String line) throws ParseException
+		{
 				lineNumberForRegions++;
 				lineNumber++;
 
 				// Handle extended info
-				Matcher xInfoMatcher = XINFO_PATTERN.matcher(line);
-				if (xInfoMatcher.matches())
+				if (lexer.matchExtendedInfo(line))
 				{
-					AbcField field = AbcField.fromString(xInfoMatcher.group(XINFO_FIELD)
-							+ xInfoMatcher.group(XINFO_COLON));
+					AbcField field = AbcField.fromString(line.substring(lexer.fieldStart, lexer.fieldEnd));
 
 					if (field == AbcField.TEMPO)
 					{
 						try
 						{
-							info.addTempoEvent(Math.round(chordStartTick), xInfoMatcher.group(XINFO_VALUE).trim());
+							info.addTempoEvent(Math.round(chordStartTick), lexer.value);
 						}
 						catch (IllegalArgumentException e)
 						{
@@ -186,7 +448,7 @@ public class AbcToMidi
 					}
 					else if (field != null)
 					{
-						String value = xInfoMatcher.group(XINFO_VALUE).trim();
+						String value = lexer.value;
 
 						abcInfo.setExtendedMetadata(field, value);
 
@@ -204,22 +466,21 @@ public class AbcToMidi
 						}
 					}
 
-					continue;
+					return;
 				}
 
-				int comment = line.indexOf('%');
-				if (comment >= 0)
-					line = line.substring(0, comment);
-				if (line.trim().length() == 0)
-					continue;
+				int lineEnd = line.indexOf('%');
+				if (lineEnd < 0)
+					lineEnd = line.length();
+				if (isBlank(line, lineEnd))
+					return;
 
 				int chordSize = 0;
 
-				Matcher infoMatcher = INFO_PATTERN.matcher(line);
-				if (infoMatcher.matches())
+				if (lexer.matchInfo(line, lineEnd))
 				{
-					char type = Character.toUpperCase(infoMatcher.group(INFO_TYPE).charAt(0));
-					String value = infoMatcher.group(INFO_VALUE).trim();
+					char type = lexer.infoType;
+					String value = lexer.value;
 
 					abcInfo.setMetadata(type, value);
 
@@ -228,14 +489,10 @@ public class AbcToMidi
 						switch (type)
 						{
 							case 'X':
-								for (int lineAndColumn : tiedNotes.values())
-								{
-									throw new ParseException("Tied note does not connect to another note", fileName,
-											lineAndColumn >>> 16, lineAndColumn & 0xFFFF);
-								}
+								checkTiedNotes();
 
 								accidentals.clear();
-								noteOffEvents.clear();
+								addEventsToTrack();
 
 								if (trackNumber > 0)
 									abcInfo.setPartEndLine(trackNumber, lineNumberForRegions - 1);
@@ -244,6 +501,7 @@ public class AbcToMidi
 								trackNumber++;
 								partStartLine = lineNumber;
 								chordStartTick = 0;
+								chordEndTick = 0;
 								abcInfo.setPartNumber(trackNumber, info.getPartNumber());
 								abcInfo.setPartStartLine(trackNumber, lineNumberForRegions);
 								track = null; // Will create a new track after the header is done
@@ -297,7 +555,7 @@ public class AbcToMidi
 					}
 					catch (IllegalArgumentException e)
 					{
-						throw new ParseException(e.getMessage(), fileName, lineNumber, infoMatcher.start(INFO_VALUE));
+						throw new ParseException(e.getMessage(), fileName, lineNumber, lexer.valueStart);
 					}
 				}
 				else
@@ -319,14 +577,23 @@ public class AbcToMidi
 						try
 						{
 							PPQN = info.getPpqn();
-							seq = new Sequence(Sequence.PPQ, (int) PPQN);
-
-							abcInfo.setPrimaryTempoBPM(info.getPrimaryTempoBPM());
+							if (header != null)
+							{
+								// The header pass already created the sequence and its tracks
+								seq = header.seq;
+							}
+							else
+							{
+								seq = new Sequence(Sequence.PPQ, (int) PPQN);
 
-							// Create track 0, which will later be filled with the 
-							// tempo events and song metadata (title, etc.)
+								// Create track 0, which will later be filled with the 
+								// tempo events and song metadata (title, etc.)
+								seq.createTrack();
+							}
 							trackIndex = 0;
-							seq.createTrack();
+							trackCount = 1;
+
+							abcInfo.setPrimaryTempoBPM(info.getPrimaryTempoBPM());
 
 							abcInfo.setPartNumber(0, 0);
 							abcInfo.setPartName(0, info.getTitle(), false);
@@ -343,7 +610,7 @@ public class AbcToMidi
 
 					if (track == null)
 					{
-						trackIndex = seq.getTracks().length;
+						trackIndex = trackCount++;
 						channel = getTrackChannel(trackIndex);
 						if (channel > MidiConstants.CHANNEL_COUNT - 1)
 						{
@@ -351,236 +618,188 @@ public class AbcToMidi
 									"Too many parts (max = " + (MidiConstants.CHANNEL_COUNT - 1) + ")", fileName,
 									partStartLine);
 						}
-						track = seq.createTrack();
-						track.add(MidiFactory.createProgramChangeEvent(info.getInstrument().midi.id(), channel, 0));
-						if (useLotroInstruments)
+
+						if (header != null)
+						{
+							track = seq.getTracks()[trackIndex];
+						}
+						else
 						{
-							track.add(MidiFactory.createChannelVolumeEvent(MidiConstants.MAX_VOLUME, channel, 1));
-							track.add(MidiFactory.createReverbControlEvent(AbcConstants.MIDI_REVERB, channel, 1));
-							track.add(MidiFactory.createChorusControlEvent(AbcConstants.MIDI_CHORUS, channel, 1));
+							track = seq.createTrack();
+							track.add(MidiFactory.createProgramChangeEvent(info.getInstrument().midi.id(), channel, 0));
+							if (useLotroInstruments)
+							{
+								track.add(MidiFactory.createChannelVolumeEvent(MidiConstants.MAX_VOLUME, channel, 1));
+								track.add(MidiFactory.createReverbControlEvent(AbcConstants.MIDI_REVERB, channel, 1));
+								track.add(MidiFactory.createChorusControlEvent(AbcConstants.MIDI_CHORUS, channel, 1));
+							}
 						}
 
 						abcInfo.setPartInstrument(trackNumber, info.getInstrument());
 					}
 
-					Matcher m = NOTE_PATTERN.matcher(line);
-					int i = 0;
+					if (skipNotes)
+						return;
+
+					if (partNotes == null || partNotes.track != track)
+					{
+						partNotes = new PartNotes(track, info.getInstrument(), PPQN, useLotroInstruments);
+						abcInfo.setPartNotes(trackNumber, partNotes);
+					}
+
+					lexer.setLine(line, lineEnd, fileName, lineNumber);
 					boolean inChord = false;
+					int chordStartIndex = 0;
 					Tuplet tuplet = null;
 					int brokenRhythmNumerator = 1; // The numerator of the note after the broken rhythm sign
 					int brokenRhythmDenominator = 1; // The denominator of the note after the broken rhythm sign
-					while (true)
+					int token;
+					while ((token = lexer.next()) != AbcLexer.END)
 					{
-						boolean found = m.find(i);
-						int parseEnd = found ? m.start() : line.length();
-						// Parse anything that's not a note
-						for (; i < parseEnd; i++)
+						int i = lexer.tokenStart;
+						switch (token)
 						{
-							char ch = line.charAt(i);
-							if (Character.isWhitespace(ch))
-							{
+							case AbcLexer.WHITESPACE:
 								if (inChord)
 								{
 									throw new ParseException("Unexpected whitespace inside a chord", fileName,
 											lineNumber, i);
 								}
 								continue;
-							}
-
-							switch (ch)
-							{
-								case '[': // Chord start
-									if (inChord)
-									{
-										throw new ParseException("Unexpected '" + ch + "' inside a chord", fileName,
-												lineNumber, i);
-									}
 
-									if (brokenRhythmDenominator != 1 || brokenRhythmNumerator != 1)
-									{
-										throw new ParseException("Can't have broken rhythm (< or >) within a chord",
-												fileName, lineNumber, i);
-									}
+							case AbcLexer.CHORD_START:
+								if (inChord)
+								{
+									throw new ParseException("Unexpected '[' inside a chord", fileName, lineNumber, i);
+								}
 
-									chordSize = 0;
-									inChord = true;
-									chordStartIndex = i;
-									break;
+								if (brokenRhythmDenominator != 1 || brokenRhythmNumerator != 1)
+								{
+									throw new ParseException("Can't have broken rhythm (< or >) within a chord",
+											fileName, lineNumber, i);
+								}
 
-								case ']': // Chord end
-									if (!inChord)
-									{
-										throw new ParseException("Unexpected '" + ch + "'", fileName, lineNumber, i);
-									}
-									inChord = false;
+								chordSize = 0;
+								inChord = true;
+								chordStartIndex = i;
+								continue;
 
-									if (generateRegions)
-									{
-										abcInfo.addRegion(new AbcRegion(lineNumberForRegions, chordStartIndex, i + 1,
-												Math.round(chordStartTick), Math.round(chordEndTick), null, trackIndex));
-									}
+							case AbcLexer.CHORD_END:
+								if (!inChord)
+								{
+									throw new ParseException("Unexpected ']'", fileName, lineNumber, i);
+								}
+								inChord = false;
 
-									chordStartTick = chordEndTick;
-									break;
+								if (generateRegions)
+								{
+									abcInfo.addRegion(new AbcRegion(lineNumberForRegions, chordStartIndex,
+											lexer.tokenEnd, Math.round(chordStartTick), Math.round(chordEndTick), null,
+											trackIndex));
+								}
 
-								case '|': // Bar line
-									if (inChord)
-									{
-										throw new ParseException("Unexpected '" + ch + "' inside a chord", fileName,
-												lineNumber, i);
-									}
+								chordStartTick = chordEndTick;
+								continue;
 
-									if (trackNumber == 1)
-										abcInfo.addBar(Math.round(chordStartTick));
+							case AbcLexer.BAR:
+								if (inChord)
+								{
+									throw new ParseException("Unexpected '|' inside a chord", fileName, lineNumber, i);
+								}
 
-									accidentals.clear();
-									if (i + 1 < line.length() && line.charAt(i + 1) == ']')
-									{
-										i++; // Skip |]
-									}
-									else if (trackNumber == 1)
-									{
-										abcInfo.addBar(Math.round(chordStartTick));
-									}
-									break;
+								if (trackNumber == 1)
+									abcInfo.addBar(Math.round(chordStartTick));
 
-								case '+':
+								accidentals.clear();
+								if (lexer.tokenEnd - i == 1 && trackNumber == 1) // Not |]
 								{
-									int j = line.indexOf('+', i + 1);
-									if (j < 0)
-									{
-										throw new ParseException("There is no matching '+'", fileName, lineNumber, i);
-									}
-									try
-									{
-										info.setDynamics(line.substring(i + 1, j));
-									}
-									catch (IllegalArgumentException iae)
-									{
-										throw new ParseException("Unsupported +decoration+", fileName, lineNumber, i);
-									}
+									abcInfo.addBar(Math.round(chordStartTick));
+								}
+								continue;
 
-									if (enableLotroErrors && inChord)
-									{
-										throw new LotroParseException("Can't include a +decoration+ inside a chord",
-												fileName, lineNumber, i);
-									}
+							case AbcLexer.DECORATION:
+								if (lexer.dynamics == null)
+								{
+									throw new ParseException("Unsupported +decoration+", fileName, lineNumber, i);
+								}
+								info.setDynamics(lexer.dynamics);
 
-									i = j;
-									break;
+								if (enableLotroErrors && inChord)
+								{
+									throw new LotroParseException("Can't include a +decoration+ inside a chord",
+											fileName, lineNumber, i);
 								}
+								continue;
 
-								case '(':
-									// Tuplet or slur start
-									if (i + 1 < line.length() && Character.isDigit(line.charAt(i + 1)))
-									{
-										// If it has a digit following it, it's a tuplet
-										if (tuplet != null)
-										{
-											throw new ParseException("Unexpected '" + ch + "' before end of tuplet",
-													fileName, lineNumber, i);
-										}
-
-										try
-										{
-											for (int j = i + 1; j < line.length(); j++)
-											{
-												if (line.charAt(i) != ':' && !Character.isDigit(line.charAt(i)))
-												{
-													tuplet = new Tuplet(line.substring(i + 1, j + 1),
-															info.isCompoundMeter());
-													i = j;
-													break;
-												}
-											}
-										}
-										catch (IllegalArgumentException e)
-										{
-											throw new ParseException("Invalid tuplet", fileName, lineNumber, i);
-										}
-									}
-									else
-									{
-										// Otherwise it's a slur, which LotRO conveniently ignores
-										if (inChord)
-										{
-											throw new ParseException("Unexpected '" + ch + "' inside a chord",
-													fileName, lineNumber, i);
-										}
-									}
-									break;
+							case AbcLexer.TUPLET:
+								if (tuplet != null)
+								{
+									throw new ParseException("Unexpected '(' before end of tuplet", fileName,
+											lineNumber, i);
+								}
 
-								case ')':
-									// End of a slur, ignore
-									if (inChord)
-									{
-										throw new ParseException("Unexpected '" + ch + "' inside a chord", fileName,
-												lineNumber, i);
-									}
-									break;
+								try
+								{
+									tuplet = new Tuplet(lexer.tupletP, info.isCompoundMeter());
+								}
+								catch (IllegalArgumentException e)
+								{
+									throw new ParseException("Invalid tuplet", fileName, lineNumber, i);
+								}
+								continue;
 
-								case '\\':
-									// Ignore backslashes
-									break;
+							case AbcLexer.SLUR_START:
+							case AbcLexer.SLUR_END:
+								// Slurs are ignored by LotRO
+								if (inChord)
+								{
+									throw new ParseException("Unexpected '" + line.charAt(i) + "' inside a chord",
+											fileName, lineNumber, i);
+								}
+								continue;
 
-								default:
-									throw new ParseException("Unknown/unexpected character '" + ch + "'", fileName,
-											lineNumber, i);
-							}
+							case AbcLexer.CONTINUATION:
+								// Ignore backslashes
+								continue;
 						}
 
-						if (i >= line.length())
-							break;
-
-						// The matcher might find +f+, +ff+, or +fff+ and think it's a note
-						if (i > m.start())
-							continue;
-
+						// The token is a note
 						if (inChord)
 							chordSize++;
 
 						if (enableLotroErrors && inChord && chordSize > AbcConstants.MAX_CHORD_NOTES)
 						{
-							throw new LotroParseException("Too many notes in a chord", fileName, lineNumber, m.start());
+							throw new LotroParseException("Too many notes in a chord", fileName, lineNumber, i);
 						}
 
 						// Parse the note
-						int numerator;
-						int denominator;
-
-						numerator = (m.group(NOTE_LEN_NUMER) == null) ? 1 : Integer.parseInt(m.group(NOTE_LEN_NUMER));
-						String denom = m.group(NOTE_LEN_DENOM);
-						if (denom == null)
-							denominator = 1;
-						else if (denom.equals("/"))
-							denominator = 2;
-						else if (denom.equals("//"))
-							denominator = 4;
-						else
-							denominator = Integer.parseInt(denom.substring(1));
+						int numerator = lexer.numerator;
+						int denominator = lexer.denominator;
 
-						String brokenRhythm = m.group(NOTE_BROKEN_RHYTHM);
-						if (brokenRhythm != null)
+						if (lexer.brokenRhythm != 0)
 						{
+							int brokenRhythmStart = lexer.brokenRhythmStart;
+							int brokenRhythmLength = Math.abs(lexer.brokenRhythm);
 							if (brokenRhythmDenominator != 1 || brokenRhythmNumerator != 1)
 							{
-								throw new ParseException("Invalid broken rhythm: " + brokenRhythm, fileName,
-										lineNumber, m.start(NOTE_BROKEN_RHYTHM));
+								throw new ParseException("Invalid broken rhythm: "
+										+ line.substring(brokenRhythmStart, brokenRhythmStart + brokenRhythmLength),
+										fileName, lineNumber, brokenRhythmStart);
 							}
 							if (inChord)
 							{
 								throw new ParseException("Can't have broken rhythm (< or >) within a chord", fileName,
-										lineNumber, m.start(NOTE_BROKEN_RHYTHM));
+										lineNumber, brokenRhythmStart);
 							}
-							if (m.group(NOTE_TIE) != null)
+							if (lexer.tied)
 							{
 								throw new ParseException("Tied notes can't have broken rhythms (< or >)", fileName,
-										lineNumber, m.start(NOTE_BROKEN_RHYTHM));
+										lineNumber, brokenRhythmStart);
 							}
 
-							int factor = 1 << brokenRhythm.length();
+							int factor = 1 << brokenRhythmLength;
 
-							if (brokenRhythm.charAt(0) == '>')
+							if (lexer.brokenRhythm > 0)
 							{
 								numerator *= 2 * factor - 1;
 								denominator *= factor;
@@ -630,36 +849,30 @@ public class AbcToMidi
 						if (chordEndTick == chordStartTick || noteEndTick < chordEndTick)
 							chordEndTick = noteEndTick;
 
-						char noteLetter = m.group(NOTE_LETTER).charAt(0);
-						String octaveStr = m.group(NOTE_OCTAVE);
-						if (octaveStr == null)
-							octaveStr = "";
+						abcInfo.addPartLine(trackIndex, Math.round(chordStartTick), lineNumberForRegions);
+
+						char noteLetter = lexer.noteLetter;
 						if (noteLetter == 'z' || noteLetter == 'x')
 						{
-							if (m.group(NOTE_ACCIDENTAL) != null && m.group(NOTE_ACCIDENTAL).length() > 0)
+							if (lexer.hasAccidental)
 							{
-								throw new ParseException("Unexpected accidental on a rest", fileName, lineNumber,
-										m.start(NOTE_ACCIDENTAL));
+								throw new ParseException("Unexpected accidental on a rest", fileName, lineNumber, i);
 							}
-							if (octaveStr.length() > 0)
+							if (lexer.octave != 0)
 							{
 								throw new ParseException("Unexpected octave indicator on a rest", fileName, lineNumber,
-										m.start(NOTE_OCTAVE));
+										lexer.octaveStart);
 							}
 
 							if (generateRegions)
 							{
-								abcInfo.addRegion(new AbcRegion(lineNumberForRegions, m.start(), m.end(), Math
+								abcInfo.addRegion(new AbcRegion(lineNumberForRegions, i, lexer.tokenEnd, Math
 										.round(chordStartTick), Math.round(noteEndTick), Note.REST, trackIndex));
 							}
 						}
 						else
 						{
-							int octave = Character.isUpperCase(noteLetter) ? 3 : 4;
-							if (octaveStr.indexOf('\'') >= 0)
-								octave += octaveStr.length();
-							else if (octaveStr.indexOf(',') >= 0)
-								octave -= octaveStr.length();
+							int octave = (Character.isUpperCase(noteLetter) ? 3 : 4) + lexer.octave;
 
 							int noteId;
 							int lotroNoteId;
@@ -669,15 +882,8 @@ public class AbcToMidi
 							if (!useLotroInstruments)
 								noteId += 12 * info.getInstrument().octaveDelta;
 
-							if (m.group(NOTE_ACCIDENTAL) != null)
-							{
-								if (m.group(NOTE_ACCIDENTAL).startsWith("_"))
-									accidentals.put(noteId, -m.group(NOTE_ACCIDENTAL).length());
-								else if (m.group(NOTE_ACCIDENTAL).startsWith("^"))
-									accidentals.put(noteId, m.group(NOTE_ACCIDENTAL).length());
-								else if (m.group(NOTE_ACCIDENTAL).equals("="))
-									accidentals.put(noteId, 0);
-							}
+							if (lexer.hasAccidental)
+								accidentals.put(noteId, lexer.accidental);
 
 							int noteDelta;
 							if (accidentals.containsKey(noteId))
@@ -693,9 +899,9 @@ public class AbcToMidi
 							noteId += noteDelta;
 
 							if (enableLotroErrors && lotroNoteId < Note.MIN_PLAYABLE.id)
-								throw new LotroParseException("Note is too low", fileName, lineNumber, m.start());
+								throw new LotroParseException("Note is too low", fileName, lineNumber, i);
 							else if (enableLotroErrors && lotroNoteId > Note.MAX_PLAYABLE.id)
-								throw new LotroParseException("Note is too high", fileName, lineNumber, m.start());
+								throw new LotroParseException("Note is too high", fileName, lineNumber, i);
 
 							if (info.getInstrument() == LotroInstrument.BASIC_COWBELL
 									|| info.getInstrument() == LotroInstrument.MOOR_COWBELL)
@@ -703,7 +909,7 @@ public class AbcToMidi
 								if (useLotroInstruments)
 								{
 									// Randomize the noteId unless it's part of a note tie
-									if (m.group(NOTE_TIE) == null && !tiedNotes.containsKey(noteId))
+									if (!lexer.tied && !tiedNotes.containsKey(noteId))
 									{
 										int min = info.getInstrument().lowestPlayable.id;
 										int max = info.getInstrument().highestPlayable.id;
@@ -717,31 +923,18 @@ public class AbcToMidi
 								}
 							}
 
-							// Check for overlapping notes, and remove extra note off events
-							Iterator<MidiEvent> noteOffIter = noteOffEvents.iterator();
-							while (noteOffIter.hasNext())
+							// Check for an overlapping note, and end it when this note starts
+							if (noteId >= 0 && noteId < activeNoteOffs.length && activeNoteOffs[noteId] >= 0)
 							{
-								MidiEvent evt = noteOffIter.next();
-								if (evt.getTick() <= chordStartTick)
-								{
-									noteOffIter.remove();
-									continue;
-								}
-
-								int noteOffId = ((ShortMessage) evt.getMessage()).getData1();
-								if (noteOffId == noteId)
-								{
-									track.remove(evt);
-									evt.setTick(Math.round(chordStartTick));
-									track.add(evt);
-									noteOffIter.remove();
-									break;
-								}
+								int index = activeNoteOffs[noteId];
+								activeNoteOffs[noteId] = -1;
+								if (events.getTick(index) > chordStartTick)
+									events.move(index, Math.round(chordStartTick));
 							}
 
 							if (generateRegions)
 							{
-								AbcRegion region = new AbcRegion(lineNumberForRegions, m.start(), m.end(),
+								AbcRegion region = new AbcRegion(lineNumberForRegions, i, lexer.tokenEnd,
 										Math.round(chordStartTick), Math.round(noteEndTick), Note.fromId(noteId),
 										trackIndex);
 
@@ -754,12 +947,13 @@ public class AbcToMidi
 									tiesFrom.setTiesTo(region);
 								}
 
-								if (m.group(NOTE_TIE) != null)
+								if (lexer.tied)
 									tiedRegions.put(noteId, region);
 								else
 									tiedRegions.remove(noteId);
 							}
 
+							MidiEvent noteOn = null;
 							if (!tiedNotes.containsKey(noteId))
 							{
 								if (info.getPpqn() != PPQN)
@@ -768,55 +962,55 @@ public class AbcToMidi
 											"The default note length must be the same for all parts of the song",
 											fileName, noteDivisorChangeLine);
 								}
-								track.add(MidiFactory.createNoteOnEventEx(noteId, channel,
-										info.getDynamics().getVol(useLotroInstruments), Math.round(chordStartTick)));
+								noteOn = MidiFactory.createNoteOnEventEx(noteId, channel,
+										info.getDynamics().getVol(useLotroInstruments), Math.round(chordStartTick));
+								events.add(noteOn);
 							}
 
-							if (m.group(NOTE_TIE) != null)
+							MidiEvent noteOff = null;
+							double MPQN = MidiUtils.convertTempo(curTempoBPM);
+							if (lexer.tied)
 							{
-								int lineAndColumn = (lineNumber << 16) | m.start();
+								int lineAndColumn = (lineNumber << 16) | i;
 								tiedNotes.put(noteId, lineAndColumn);
 							}
 							else
 							{
-								double MPQN = MidiUtils.convertTempo(curTempoBPM);
 								double lengthMicros = (noteEndTick - chordStartTick) * MPQN / PPQN;
 
 								if (enableLotroErrors && lengthMicros < AbcConstants.SHORTEST_NOTE_MICROS)
 								{
-									throw new LotroParseException("Note's duration is too short", fileName, lineNumber,
-											m.start());
+									throw new LotroParseException("Note's duration is too short", fileName,
+											lineNumber, i);
 								}
 								else if (enableLotroErrors && lengthMicros > AbcConstants.LONGEST_NOTE_MICROS)
 								{
-									throw new LotroParseException("Note's duration is too long", fileName, lineNumber,
-											m.start());
+									throw new LotroParseException("Note's duration is too long", fileName,
+											lineNumber, i);
 								}
 
 								// Lengthen to match the note lengths used in the game
 								double noteEndTickTmp = noteEndTick;
 								if (useLotroInstruments)
-								{
-									boolean sustainable = info.getInstrument().isSustainable(lotroNoteId);
-									double extraSeconds = sustainable ? AbcConstants.SUSTAINED_NOTE_HOLD_SECONDS
-											: AbcConstants.NON_SUSTAINED_NOTE_HOLD_SECONDS;
+									noteEndTickTmp += getNoteHoldTicks(info.getInstrument(), lotroNoteId, PPQN, MPQN);
 
-									noteEndTickTmp += extraSeconds * AbcConstants.ONE_SECOND_MICROS * PPQN / MPQN;
-								}
-								MidiEvent noteOff = MidiFactory.createNoteOffEventEx(noteId, channel, info
-										.getDynamics().getVol(useLotroInstruments), Math.round(noteEndTickTmp));
-								track.add(noteOff);
-								noteOffEvents.add(noteOff);
+								noteOff = MidiFactory.createNoteOffEventEx(noteId, channel, info.getDynamics()
+										.getVol(useLotroInstruments), Math.round(noteEndTickTmp));
+								activeNoteOffs[noteId] = events.add(noteOff);
 
 								tiedNotes.remove(noteId);
 							}
+
+							partNotes.add(new ParsedNote(chordStartTick, lotroNoteId, noteOn, noteOff, noteEndTick,
+									MPQN), info.getInstrument());
 						}
 
 						if (!inChord)
 							chordStartTick = noteEndTick;
-						i = m.end();
 					}
 
+					int i = lexer.getPosition();
+
 					if (tuplet != null)
 						throw new ParseException("Tuplet not finished by end of line", fileName, lineNumber, i);
 
@@ -826,108 +1020,171 @@ public class AbcToMidi
 					if (brokenRhythmDenominator != 1 || brokenRhythmNumerator != 1)
 						throw new ParseException("Broken rhythm unfinished at end of line", fileName, lineNumber, i);
 				}
-			}
+		}
 
-			if (seq == null)
-				throw new ParseException("The file contains no notes", fileName, lineNumber);
+		/** Adds the note events of the current part to its track, sorted by tick. */
+		public void addEventsToTrack()
+		{
+			if (track != null)
+				events.addTo(track);
 
-			for (int lineAndColumn : tiedNotes.values())
+			events.clear();
+			Arrays.fill(activeNoteOffs, -1);
+		}
+
+		public Sequence finish(TuneInfo tempoInfo, boolean stereo)
+		{
+			addEventsToTrack();
+			abcInfo.setPartEndLine(trackNumber, lineNumberForRegions);
+
+			PanGenerator pan = null;
+			if (stereo && trackNumber > 1)
+				pan = new PanGenerator();
+
+			Track[] tracks = seq.getTracks();
+
+			// Add tempo events
+			for (Map.Entry<Long, Integer> tempoEvent : tempoInfo.getAllPartsTempoMap().entrySet())
 			{
-				throw new ParseException("Tied note does not connect to another note", fileName, lineAndColumn >>> 16,
-						lineAndColumn & 0xFFFF);
+				long tick = tempoEvent.getKey();
+				int mpq = (int) MidiUtils.convertTempo(tempoEvent.getValue());
+				tracks[0].add(MidiFactory.createTempoEvent(mpq, tick));
 			}
-		}
 
-		abcInfo.setPartEndLine(trackNumber, lineNumberForRegions);
+			// Add name and pan events
+			tracks[0].add(MidiFactory.createTrackNameEvent(abcInfo.getTitle()));
+			for (int i = 1; i <= trackNumber; i++)
+			{
+				tracks[i].add(MidiFactory.createTrackNameEvent(abcInfo.getPartName(i)));
 
-		PanGenerator pan = null;
-		if (stereo && trackNumber > 1)
-			pan = new PanGenerator();
+				int panAmount = PanGenerator.CENTER;
+				if (pan != null)
+					panAmount = pan.get(abcInfo.getPartInstrument(i), abcInfo.getPartName(i));
+				tracks[i].add(MidiFactory.createPanEvent(panAmount, getTrackChannel(i)));
+			}
+
+			// Add time and key signature events
+			tracks[0].add(MidiFactory.createTimeSignatureEvent(abcInfo.getTimeSignature(), 0));
+			if (MidiFactory.isSupportedMidiKeyMode(abcInfo.getKeySignature().mode))
+				tracks[0].add(MidiFactory.createKeySignatureEvent(abcInfo.getKeySignature(), 0));
+
+			return seq;
+		}
+	}
+	/**
+	 * Applies new instruments and stereo settings to a sequence that was created by
+	 * {@link #convert(Params)}, without parsing the song again. Only the events that depend on the
+	 * instruments are changed: the program changes, the pan controllers, and the note off events
+	 * (sustained and non-sustained notes are held for different lengths of time).
+	 * <p>
+	 * The sequencer must not be playing the sequence while it's being updated.
+	 * 
+	 * @param instrumentOverrideMap The instruments to use for each part. Parts that aren't in the
+	 *            map keep their current instrument.
+	 * @return False if the sequence can't be updated in place, and needs to be converted again. In
+	 *         this case the sequence isn't modified.
+	 */
+	public static boolean updateInstruments(Sequence seq, AbcInfo abcInfo,
+			Map<Integer, LotroInstrument> instrumentOverrideMap, boolean stereo)
+	{
+		if (seq == null || abcInfo == null)
+			return false;
 
 		Track[] tracks = seq.getTracks();
+		PartNotes[] parts = new PartNotes[tracks.length];
+		LotroInstrument[] instruments = new LotroInstrument[tracks.length];
 
-		// Add tempo events
-		for (Map.Entry<Long, Integer> tempoEvent : info.getAllPartsTempoMap().entrySet())
+		// Check that all of the parts can be updated before changing anything
+		for (int i = 1; i < tracks.length; i++)
 		{
-			long tick = tempoEvent.getKey();
-			int mpq = (int) MidiUtils.convertTempo(tempoEvent.getValue());
-			tracks[0].add(MidiFactory.createTempoEvent(mpq, tick));
+			parts[i] = abcInfo.getPartNotes(i);
+			if (parts[i] == null || parts[i].track != tracks[i])
+				return false;
+
+			instruments[i] = parts[i].instrument;
+			if (instrumentOverrideMap != null && instrumentOverrideMap.containsKey(i))
+				instruments[i] = instrumentOverrideMap.get(i);
+
+			if (instruments[i] != parts[i].instrument && !parts[i].canChangeInstrument(instruments[i]))
+				return false;
 		}
 
-		// Add name and pan events
-		tracks[0].add(MidiFactory.createTrackNameEvent(abcInfo.getTitle()));
-		for (int i = 1; i <= trackNumber; i++)
+		PanGenerator pan = null;
+		if (stereo && tracks.length > 2)
+			pan = new PanGenerator();
+
+		for (int i = 1; i < tracks.length; i++)
 		{
-			tracks[i].add(MidiFactory.createTrackNameEvent(abcInfo.getPartName(i)));
+			if (instruments[i] != parts[i].instrument)
+			{
+				parts[i].setInstrument(instruments[i]);
+				abcInfo.setPartInstrument(i, instruments[i]);
+			}
 
 			int panAmount = PanGenerator.CENTER;
 			if (pan != null)
 				panAmount = pan.get(abcInfo.getPartInstrument(i), abcInfo.getPartName(i));
-			tracks[i].add(MidiFactory.createPanEvent(panAmount, getTrackChannel(i)));
-		}
 
-		// Add time and key signature events
-		tracks[0].add(MidiFactory.createTimeSignatureEvent(abcInfo.getTimeSignature(), 0));
-		if (MidiFactory.isSupportedMidiKeyMode(abcInfo.getKeySignature().mode))
-			tracks[0].add(MidiFactory.createKeySignatureEvent(abcInfo.getKeySignature(), 0));
+			ShortMessage panMessage = findStartMessage(tracks[i], ShortMessage.CONTROL_CHANGE,
+					MidiConstants.PAN_CONTROL);
+			if (panMessage != null)
+			{
+				try
+				{
+					panMessage.setMessage(ShortMessage.CONTROL_CHANGE, panMessage.getChannel(),
+							MidiConstants.PAN_CONTROL, panAmount);
+				}
+				catch (InvalidMidiDataException e)
+				{
+					throw new RuntimeException(e);
+				}
+			}
+		}
 
-		return seq;
+		return true;
 	}
 
-	@Deprecated// This doesn't work if changing between sustained and non-sustained instruments
-	public static void updateInstrumentRealtime(SequencerWrapper sequencer, int trackIndex, LotroInstrument instrument)
+	/**
+	 * Finds the first message at tick 0 with the given command.
+	 * 
+	 * @param data1 For control changes, the controller number. Otherwise ignored.
+	 */
+	private static ShortMessage findStartMessage(Track track, int command, int data1)
 	{
-		Sequence sequence = sequencer.getSequence();
-		if (sequence == null)
-			return;
-
-		Track[] tracks = sequencer.getSequence().getTracks();
-		if (tracks == null || trackIndex < 0 || trackIndex >= tracks.length)
-			return;
-
-		Track track = tracks[trackIndex];
-
-		// Try to find the existing program change event
-		ShortMessage programChange = null;
-		for (int j = 0; j < track.size(); j++)
+		for (int i = 0; i < track.size(); i++)
 		{
-			MidiEvent evt = track.get(j);
+			MidiEvent evt = track.get(i);
+			if (evt.getTick() > 0)
+				break;
+
 			if (evt.getMessage() instanceof ShortMessage)
 			{
 				ShortMessage m = (ShortMessage) evt.getMessage();
-				if (m.getCommand() == ShortMessage.PROGRAM_CHANGE)
-				{
-					programChange = m;
-					break;
-				}
+				if (m.getCommand() == command && (command != ShortMessage.CONTROL_CHANGE || m.getData1() == data1))
+					return m;
 			}
 		}
+		return null;
+	}
 
-		if (programChange == null)
-			return;
+	/** The number of ticks that a note is held past its end, to match the note lengths in the game */
+	private static double getNoteHoldTicks(LotroInstrument instrument, int lotroNoteId, long PPQN, double MPQN)
+	{
+		boolean sustainable = instrument.isSustainable(lotroNoteId);
+		double extraSeconds = sustainable ? AbcConstants.SUSTAINED_NOTE_HOLD_SECONDS
+				: AbcConstants.NON_SUSTAINED_NOTE_HOLD_SECONDS;
 
-		// Update the program change event and resend it to the sequencer's receiver
-		MidiFactory.modifyProgramChangeMessage(programChange, instrument.midi.id());
+		return extraSeconds * AbcConstants.ONE_SECOND_MICROS * PPQN / MPQN;
+	}
 
-		Receiver receiver = sequencer.getReceiver();
-		if (receiver != null)
+	private static boolean isBlank(String line, int end)
+	{
+		for (int i = 0; i < end; i++)
 		{
-			receiver.send(programChange, -1);
-
-			// Turn off any currently-playing notes
-			ShortMessage noteOff = new ShortMessage();
-			for (int i = MidiConstants.LOWEST_NOTE_ID; i <= MidiConstants.HIGHEST_NOTE_ID; i++)
-			{
-				try
-				{
-					noteOff.setMessage(ShortMessage.NOTE_OFF, programChange.getChannel(), i, 0);
-					receiver.send(noteOff, -1);
-				}
-				catch (InvalidMidiDataException e)
-				{
-				}
-			}
+			if (line.charAt(i) > ' ')
+				return false;
 		}
+		return true;
 	}
 
 	private static int getTrackChannel(int trackNumber)
@@ -973,39 +1230,304 @@ public class AbcToMidi
 		public int q;
 		public int r;
 
-		public Tuplet(String str, boolean compoundMeter)
+		public Tuplet(int p, boolean compoundMeter)
 		{
-			try
+			if (p < 2 || p > 9)
+				throw new IllegalArgumentException();
+
+			this.p = p;
+
+			if (p == 3 || p == 6)
+				q = 2;
+			else if (p == 2 || p == 4 || p == 8)
+				q = 3;
+			else
+				q = compoundMeter ? 3 : 2;
+
+			r = p;
+		}
+	}
+
+	/**
+	 * The note events of a part, in the order that they were parsed. Adding or removing an event in
+	 * the middle of a Track is slow, so the events are kept here until the part is finished, then
+	 * sorted and added to the track all at once.
+	 */
+	private static class EventBuffer
+	{
+		/** Sorts by tick, keeping the events on the same tick in the order that they were added */
+		private static final Comparator<MidiEvent> TICK_ORDER = new Comparator<MidiEvent>()
+		{
+			@Override public int compare(MidiEvent a, MidiEvent b)
 			{
-				String[] parts = str.split(":");
-				if (parts.length < 1 || parts.length > 3)
-					throw new IllegalArgumentException();
-
-				p = Integer.parseInt(parts[0]);
-
-				if (p < 2 || p > 9)
-					throw new IllegalArgumentException();
-
-				if (parts.length >= 2)
-					q = Integer.parseInt(parts[1]);
-				else if (p == 3 || p == 6)
-					q = 2;
-				else if (p == 2 || p == 4 || p == 8)
-					q = 3;
-				else if (p == 5 || p == 7 || p == 9)
-					q = compoundMeter ? 3 : 2;
-				else
-					throw new IllegalArgumentException();
+				return Long.compare(a.getTick(), b.getTick());
+			}
+		};
 
-				if (parts.length >= 3)
-					r = Integer.parseInt(parts[2]);
-				else
-					r = p;
+		private MidiEvent[] events = new MidiEvent[256];
+		private int size = 0;
+		/** The largest tick of any event, including events that were later moved earlier */
+		private long maxTick = 0;
+
+		/** Adds an event, returning its index in the buffer. */
+		public int add(MidiEvent event)
+		{
+			if (size == events.length)
+				events = Arrays.copyOf(events, size * 2);
+
+			events[size] = event;
+			maxTick = Math.max(maxTick, event.getTick());
+			return size++;
+		}
+
+		public long getTick(int index)
+		{
+			return events[index].getTick();
+		}
+
+		/**
+		 * Moves an event to a different tick. It ends up in the same place in the track as if it
+		 * had been removed from the track and added again, after any other events on its new tick.
+		 * 
+		 * @return The new index of the event.
+		 */
+		public int move(int index, long tick)
+		{
+			MidiEvent event = events[index];
+			events[index] = null;
+			event.setTick(tick);
+			return add(event);
+		}
+
+		public void addTo(Track track)
+		{
+			int count = 0;
+			for (int i = 0; i < size; i++)
+			{
+				if (events[i] != null)
+					events[count++] = events[i];
 			}
-			catch (NumberFormatException e)
+
+			// The sort is stable, and the events are almost in order already
+			Arrays.sort(events, 0, count, TICK_ORDER);
+			for (int i = 0; i < count; i++)
+			{
+				track.add(events[i]);
+			}
+
+			// The track's end of track event is never moved earlier, so it stays after the original
+			// tick of a note off event that was moved
+			if (maxTick > track.ticks())
 			{
-				throw new IllegalArgumentException(e);
+				try
+				{
+					track.add(new MidiEvent(new MetaMessage(MidiConstants.META_END_OF_TRACK, new byte[0], 0),
+							maxTick));
+				}
+				catch (InvalidMidiDataException e)
+				{
+					throw new RuntimeException(e);
+				}
 			}
 		}
+
+		public void clear()
+		{
+			Arrays.fill(events, 0, size, null);
+			size = 0;
+			maxTick = 0;
+		}
+	}
+
+	/**
+	 * The notes that were parsed into one track, kept so that the track's instrument can be
+	 * changed without parsing the song again.
+	 */
+	static class PartNotes
+	{
+		private final Track track;
+		private final long PPQN;
+		private final boolean useLotroInstruments;
+		private LotroInstrument instrument;
+		/** False if the instrument changed partway through the part (e.g. from a %%part-name line) */
+		private boolean sameInstrument = true;
+		private List<ParsedNote> notes = new ArrayList<ParsedNote>();
+
+		public PartNotes(Track track, LotroInstrument instrument, long PPQN, boolean useLotroInstruments)
+		{
+			this.track = track;
+			this.instrument = instrument;
+			this.PPQN = PPQN;
+			this.useLotroInstruments = useLotroInstruments;
+		}
+
+		public void add(ParsedNote note, LotroInstrument noteInstrument)
+		{
+			notes.add(note);
+			if (noteInstrument != instrument)
+				sameInstrument = false;
+		}
+
+		public boolean canChangeInstrument(LotroInstrument newInstrument)
+		{
+			// Cowbell notes are randomized when the song is parsed
+			return sameInstrument && !isCowbell(instrument) && !isCowbell(newInstrument);
+		}
+
+		private static boolean isCowbell(LotroInstrument instrument)
+		{
+			return instrument == LotroInstrument.BASIC_COWBELL || instrument == LotroInstrument.MOOR_COWBELL;
+		}
+
+		/**
+		 * Changes the program change, note IDs (when not using LotRO instruments, some instruments
+		 * are played in a different octave) and note off ticks to match the new instrument. The
+		 * events end up in the same order as if the song had been parsed with this instrument.
+		 */
+		public void setInstrument(LotroInstrument newInstrument)
+		{
+			ShortMessage programChange = findStartMessage(track, ShortMessage.PROGRAM_CHANGE, 0);
+			if (programChange != null)
+				MidiFactory.modifyProgramChangeMessage(programChange, newInstrument.midi.id());
+
+			if (!useLotroInstruments && newInstrument.octaveDelta != instrument.octaveDelta)
+			{
+				int deltaNoteId = 12 * (newInstrument.octaveDelta - instrument.octaveDelta);
+				for (ParsedNote note : notes)
+				{
+					if (note.noteOn != null)
+						transpose((ShortMessage) note.noteOn.getMessage(), deltaNoteId);
+					if (note.noteOff != null)
+						transpose((ShortMessage) note.noteOff.getMessage(), deltaNoteId);
+				}
+			}
+
+			instrument = newInstrument;
+
+			// Work out the new note off ticks, moving the note off events the same way that
+			// the parser does when a note overlaps the next note with the same ID
+			List<ParsedNote> noteOffNotes = new ArrayList<ParsedNote>();
+			for (ParsedNote note : notes)
+			{
+				note.shortenedNote = null;
+				note.shortened = false;
+				Iterator<ParsedNote> noteOffIter = noteOffNotes.iterator();
+				while (noteOffIter.hasNext())
+				{
+					ParsedNote other = noteOffIter.next();
+					if (other.noteOffTick <= note.startTick)
+					{
+						noteOffIter.remove();
+						continue;
+					}
+
+					if (other.lotroNoteId == note.lotroNoteId)
+					{
+						other.noteOffTick = Math.round(note.startTick);
+						other.shortened = true;
+						note.shortenedNote = other;
+						noteOffIter.remove();
+						break;
+					}
+				}
+
+				if (note.noteOff != null)
+				{
+					double noteEndTick = note.endTick;
+					if (useLotroInstruments)
+						noteEndTick += getNoteHoldTicks(instrument, note.lotroNoteId, PPQN, note.MPQN);
+
+					note.noteOffTick = Math.round(noteEndTick);
+					noteOffNotes.add(note);
+				}
+			}
+
+			// Everything before the first changed note off can stay where it is
+			long fromTick = Long.MAX_VALUE;
+			for (ParsedNote note : notes)
+			{
+				if (note.noteOff != null && note.noteOff.getTick() != note.noteOffTick)
+					fromTick = Math.min(fromTick, Math.min(note.noteOff.getTick(), note.noteOffTick));
+			}
+
+			if (fromTick == Long.MAX_VALUE)
+				return;
+
+			// The track re-adds its end of track event after the last event, so removing it lets
+			// the track get shorter if the last notes were shortened
+			MidiEvent endOfTrack = track.get(track.size() - 1);
+			if (MidiUtils.isMetaEndOfTrack(endOfTrack.getMessage()))
+				track.remove(endOfTrack);
+
+			for (ParsedNote note : notes)
+			{
+				if (note.noteOn != null && note.noteOn.getTick() >= fromTick)
+					track.remove(note.noteOn);
+				if (note.noteOff != null && note.noteOff.getTick() >= fromTick)
+					track.remove(note.noteOff);
+			}
+
+			// Add the events back in the order that the parser adds them, so that notes that
+			// start and end on the same tick stay in the same order
+			for (ParsedNote note : notes)
+			{
+				if (note.shortenedNote != null)
+					addNoteOff(note.shortenedNote, fromTick);
+
+				if (note.noteOn != null && note.noteOn.getTick() >= fromTick)
+					track.add(note.noteOn);
+
+				if (note.noteOff != null && !note.shortened)
+					addNoteOff(note, fromTick);
+			}
+		}
+
+		private void addNoteOff(ParsedNote note, long fromTick)
+		{
+			if (note.noteOffTick >= fromTick)
+			{
+				note.noteOff.setTick(note.noteOffTick);
+				track.add(note.noteOff);
+			}
+		}
+
+		private static void transpose(ShortMessage m, int deltaNoteId)
+		{
+			try
+			{
+				m.setMessage(m.getCommand(), m.getChannel(), m.getData1() + deltaNoteId, m.getData2());
+			}
+			catch (InvalidMidiDataException e)
+			{
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static class ParsedNote
+	{
+		public final double startTick;
+		public final int lotroNoteId;
+		public final MidiEvent noteOn; // Null if this note is tied from the previous note
+		public final MidiEvent noteOff; // Null if this note is tied to the next note
+		public final double endTick;
+		public final double MPQN;
+
+		// Used by PartNotes.setInstrument()
+		private long noteOffTick;
+		private boolean shortened;
+		private ParsedNote shortenedNote; // The note whose note off was moved to the start of this note
+
+		public ParsedNote(double startTick, int lotroNoteId, MidiEvent noteOn, MidiEvent noteOff, double endTick,
+				double MPQN)
+		{
+			this.startTick = startTick;
+			this.lotroNoteId = lotroNoteId;
+			this.noteOn = noteOn;
+			this.noteOff = noteOff;
+			this.endTick = endTick;
+			this.MPQN = MPQN;
+			this.noteOffTick = (noteOff == null) ? 0 : noteOff.getTick();
+		}
 	}
 }
@@ -0,0 +1,149 @@
+package com.digero.common.abctomidi;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.digero.common.util.ParseException;
+
+/**
+ * The original regular expression-based ABC lexer. This is slower than {@link AbcLexer} since it
+ * allocates strings for every matched group, but it's kept around so the two can be compared.
+ */
+class RegexAbcLexer extends AbcLexer
+{
+	private static final Pattern INFO_PATTERN = Pattern.compile("^([A-Z]):\\s*(.*)\\s*$");
+	private static final int INFO_TYPE = 1;
+	private static final int INFO_VALUE = 2;
+
+	private static final Pattern XINFO_PATTERN = Pattern.compile("^\\s*%%([A-Za-z\\-]+)((:?)|\\s)\\s*(.*)\\s*$");
+	private static final int XINFO_FIELD = 1;
+	private static final int XINFO_COLON = 3;
+	private static final int XINFO_VALUE = 4;
+
+	private static final Pattern NOTE_PATTERN = Pattern.compile("(_{1,2}|=|\\^{1,2})?" + "([xzA-Ga-g])"
+			+ "(,{1,5}|'{1,5})?" + "(\\d+)?" + "(//?\\d*)?" + "(>{1,3}|<{1,3})?" + "(-)?");
+	private static final int NOTE_ACCIDENTAL = 1;
+	private static final int NOTE_LETTER = 2;
+	private static final int NOTE_OCTAVE = 3;
+	private static final int NOTE_LEN_NUMER = 4;
+	private static final int NOTE_LEN_DENOM = 5;
+	private static final int NOTE_BROKEN_RHYTHM = 6;
+	private static final int NOTE_TIE = 7;
+
+	private Matcher m;
+	private boolean found;
+	private boolean needFind;
+	private int parseEnd;
+
+	@Override void setLine(String line, int end, String fileName, int lineNumber)
+	{
+		if (end < line.length())
+			line = line.substring(0, end);
+
+		super.setLine(line, end, fileName, lineNumber);
+		m = NOTE_PATTERN.matcher(line);
+		needFind = true;
+	}
+
+	@Override boolean matchExtendedInfo(String line)
+	{
+		Matcher xInfoMatcher = XINFO_PATTERN.matcher(line);
+		if (!xInfoMatcher.matches())
+			return false;
+
+		fieldStart = xInfoMatcher.start(XINFO_FIELD);
+		fieldEnd = xInfoMatcher.end(XINFO_FIELD) + xInfoMatcher.group(XINFO_COLON).length();
+		valueStart = xInfoMatcher.start(XINFO_VALUE);
+		value = xInfoMatcher.group(XINFO_VALUE).trim();
+		return true;
+	}
+
+	@Override boolean matchInfo(String line, int end)
+	{
+		Matcher infoMatcher = INFO_PATTERN.matcher(line.substring(0, end));
+		if (!infoMatcher.matches())
+			return false;
+
+		infoType = Character.toUpperCase(infoMatcher.group(INFO_TYPE).charAt(0));
+		valueStart = infoMatcher.start(INFO_VALUE);
+		value = infoMatcher.group(INFO_VALUE).trim();
+		return true;
+	}
+
+	@Override int next() throws ParseException
+	{
+		while (true)
+		{
+			if (needFind)
+			{
+				found = m.find(pos);
+				parseEnd = found ? m.start() : line.length();
+				needFind = false;
+			}
+
+			// Parse anything that's not a note
+			if (pos < parseEnd)
+				return nextNonNote();
+
+			if (pos >= line.length())
+				return END;
+
+			needFind = true;
+
+			// The matcher might find +f+, +ff+, or +fff+ and think it's a note
+			if (pos > m.start())
+				continue;
+
+			readNote();
+			return NOTE;
+		}
+	}
+
+	private void readNote()
+	{
+		tokenStart = m.start();
+		tokenEnd = pos = m.end();
+
+		String acc = m.group(NOTE_ACCIDENTAL);
+		hasAccidental = (acc != null);
+		if (acc == null || acc.equals("="))
+			accidental = 0;
+		else if (acc.startsWith("_"))
+			accidental = -acc.length();
+		else
+			accidental = acc.length();
+
+		noteLetter = m.group(NOTE_LETTER).charAt(0);
+
+		String octaveStr = m.group(NOTE_OCTAVE);
+		octaveStart = m.end(NOTE_LETTER);
+		if (octaveStr == null)
+			octave = 0;
+		else if (octaveStr.indexOf('\'') >= 0)
+			octave = octaveStr.length();
+		else
+			octave = -octaveStr.length();
+
+		numerator = (m.group(NOTE_LEN_NUMER) == null) ? 1 : Integer.parseInt(m.group(NOTE_LEN_NUMER));
+		String denom = m.group(NOTE_LEN_DENOM);
+		if (denom == null)
+			denominator = 1;
+		else if (denom.equals("/"))
+			denominator = 2;
+		else if (denom.equals("//"))
+			denominator = 4;
+		else
+			denominator = Integer.parseInt(denom.substring(1));
+
+		String brokenRhythmStr = m.group(NOTE_BROKEN_RHYTHM);
+		brokenRhythmStart = (brokenRhythmStr == null) ? tokenEnd : m.start(NOTE_BROKEN_RHYTHM);
+		if (brokenRhythmStr == null)
+			brokenRhythm = 0;
+		else if (brokenRhythmStr.charAt(0) == '>')
+			brokenRhythm = brokenRhythmStr.length();
+		else
+			brokenRhythm = -brokenRhythmStr.length();
+
+		tied = (m.group(NOTE_TIE) != null);
+	}
+}
@@ -19,6 +19,7 @@ class TuneInfo
 	private int primaryTempoBPM;
 	private NavigableMap<Long, Integer> curPartTempoMap = new TreeMap<Long, Integer>(); // Tick -> BPM
 	private NavigableMap<Long, Integer> allPartsTempoMap = new TreeMap<Long, Integer>(); // Tick -> BPM
+	private int firstPrimaryTempoBPM = 0; // Used at tick 0 if there's no tempo event there
 	private LotroInstrument instrument;
 	private boolean instrumentSet;
 	private Dynamics dynamics;
@@ -42,6 +43,27 @@ class TuneInfo
 		compoundMeter = false;
 	}
 
+	/**
+	 * Copies the current state of the tune. The tempo events from the parts that have already been
+	 * read aren't copied, so the copy only collects the tempo events that are added to it.
+	 */
+	public TuneInfo(TuneInfo that)
+	{
+		partNumber = that.partNumber;
+		title = that.title;
+		titleIsFromExtendedInfo = that.titleIsFromExtendedInfo;
+		key = that.key;
+		ppqn = that.ppqn;
+		primaryTempoBPM = that.primaryTempoBPM;
+		curPartTempoMap.putAll(that.curPartTempoMap);
+		instrument = that.instrument;
+		instrumentSet = that.instrumentSet;
+		dynamics = that.dynamics;
+		compoundMeter = that.compoundMeter;
+		meterNumerator = that.meterNumerator;
+		meterDenominator = that.meterDenominator;
+	}
+
 	public void newPart(int partNumber)
 	{
 		this.partNumber = partNumber;
@@ -148,8 +170,8 @@ class TuneInfo
 	public void setPrimaryTempoBPM(String str)
 	{
 		this.primaryTempoBPM = parseTempo(str);
-		if (!allPartsTempoMap.containsKey(0L))
-			allPartsTempoMap.put(0L, this.primaryTempoBPM);
+		if (firstPrimaryTempoBPM == 0)
+			firstPrimaryTempoBPM = this.primaryTempoBPM;
 		if (!curPartTempoMap.containsKey(0L))
 			curPartTempoMap.put(0L, this.primaryTempoBPM);
 	}
@@ -171,7 +193,18 @@ class TuneInfo
 
 	public NavigableMap<Long, Integer> getAllPartsTempoMap()
 	{
-		return allPartsTempoMap;
+		NavigableMap<Long, Integer> tempoMap = new TreeMap<Long, Integer>(allPartsTempoMap);
+		if (firstPrimaryTempoBPM != 0 && !tempoMap.containsKey(0L))
+			tempoMap.put(0L, firstPrimaryTempoBPM);
+		return tempoMap;
+	}
+
+	/** Adds the tempo events collected by a copy of this tune, as if they had been added here. */
+	public void addAllPartsTempos(TuneInfo that)
+	{
+		allPartsTempoMap.putAll(that.allPartsTempoMap);
+		if (firstPrimaryTempoBPM == 0)
+			firstPrimaryTempoBPM = that.firstPrimaryTempoBPM;
 	}
 
 	private int parseDivisor(String str)
@@ -214,6 +247,11 @@ class TuneInfo
 		dynamics = Dynamics.valueOf(str);
 	}
 
+	public void setDynamics(Dynamics dynamics)
+	{
+		this.dynamics = dynamics;
+	}
+
 	public int getPartNumber()
 	{
 		return partNumber;
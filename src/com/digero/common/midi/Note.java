@@ -95,35 +95,40 @@ public enum Note
 		if (id == REST.id)
 			return REST;
 
-		if (lookupId == null)
+		Note[] lookup = lookupId;
+		if (lookup == null)
 		{
-			lookupId = new Note[B9.id + 1];
+			// Fill in a local copy so other threads never see a partially built table
+			lookup = new Note[B9.id + 1];
 			for (Note n : values())
 			{
-				if (n != REST && lookupId[n.id] == null)
-					lookupId[n.id] = n;
+				if (n != REST && lookup[n.id] == null)
+					lookup[n.id] = n;
 			}
+			lookupId = lookup;
 		}
 
-		if (id < 0 || id >= lookupId.length)
+		if (id < 0 || id >= lookup.length)
 		{
 			return null;
 		}
-		return lookupId[id];
+		return lookup[id];
 	}
 
 	public static Note fromAbc(String abc)
 	{
-		if (lookupAbc == null)
+		Map<String, Note> lookup = lookupAbc;
+		if (lookup == null)
 		{
-			lookupAbc = new HashMap<String, Note>(values().length * 4 / 3 + 1);
+			lookup = new HashMap<String, Note>(values().length * 4 / 3 + 1);
 			for (Note n : values())
 			{
-				lookupAbc.put(n.abc, n);
+				lookup.put(n.abc, n);
 			}
+			lookupAbc = lookup;
 		}
 
-		return lookupAbc.get(abc);
+		return lookup.get(abc);
 	}
 
 	public static Note fromName(String name)
@@ -131,8 +136,8 @@ public enum Note
 		return Enum.valueOf(Note.class, name);
 	}
 
-	private static Note[] lookupId = null;
-	private static Map<String, Note> lookupAbc = null;
+	private static volatile Note[] lookupId = null;
+	private static volatile Map<String, Note> lookupAbc = null;
 
 	private static class IdGenerator
 	{
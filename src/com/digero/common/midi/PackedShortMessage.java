@@ -0,0 +1,48 @@
+package com.digero.common.midi;
+
+import javax.sound.midi.ShortMessage;
+
+/**
+ * A short message created from a message packed into an int, without checking the data bytes. The
+ * status is in the low byte, and the data bytes are above it; see {@link #pack(int, int, int)}.
+ */
+public class PackedShortMessage extends ShortMessage
+{
+	public static int pack(int status, int data1, int data2)
+	{
+		return (status & 0xFF) | ((data1 & 0xFF) << 8) | ((data2 & 0xFF) << 16);
+	}
+
+	public PackedShortMessage(int packedMessage)
+	{
+		super(toBytes(packedMessage));
+	}
+
+	private static byte[] toBytes(int packedMessage)
+	{
+		int status = packedMessage & 0xFF;
+		int length;
+		switch (status & 0xF0)
+		{
+		case PROGRAM_CHANGE:
+		case CHANNEL_PRESSURE:
+			length = 2;
+			break;
+		case 0xF0:
+			length = (status == MIDI_TIME_CODE || status == SONG_SELECT) ? 2 : (status == SONG_POSITION_POINTER) ? 3
+					: 1;
+			break;
+		default:
+			length = 3;
+			break;
+		}
+
+		byte[] data = new byte[length];
+		data[0] = (byte) status;
+		if (length > 1)
+			data[1] = (byte) (packedMessage >>> 8);
+		if (length > 2)
+			data[2] = (byte) (packedMessage >>> 16);
+		return data;
+	}
+}
@@ -0,0 +1,914 @@
+package com.digero.common.midi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+import javax.sound.midi.Transmitter;
+
+import com.sun.media.sound.MidiUtils;
+
+/**
+ * Plays a Sequence by sending its events to a Receiver from a dedicated high-priority thread. Used
+ * by SequencerWrapper instead of the JDK's RealTimeSequencer.
+ * <p>
+ * When the sequence is set, the events of all of its tracks are merged into arrays sorted by time,
+ * with the time of each event in microseconds, so the playback thread only has to step through the
+ * arrays and sleep until the next event is due. Positions are kept in microseconds, so seeking to a
+ * position starts playing from exactly that position, after sending the program changes,
+ * controllers and pitch bends that are in effect there.
+ * <p>
+ * The position and the muted and soloed tracks are published with volatile and atomic references,
+ * so reading them never waits for the playback thread. Other changes (starting, stopping, seeking,
+ * and changing the sequence or the tempo) lock the engine, which the playback thread only holds
+ * while it's sending events.
+ */
+public class SequencerEngine implements MidiConstants
+{
+	private static final int NOTE_COUNT = 128;
+
+	// Where the last value of each kind of event is kept for each channel, when chasing events
+	private static final int CHASE_PROGRAM = 128;
+	private static final int CHASE_PITCH_BEND = 129;
+	private static final int CHASE_CHANNEL_PRESSURE = 130;
+	private static final int CHASE_SLOTS = 131;
+
+	private final Object lock = new Object();
+	private final EngineTransmitter transmitter = new EngineTransmitter();
+	private final AtomicReference<TrackMasks> trackMasks = new AtomicReference<TrackMasks>(TrackMasks.NONE);
+
+	private volatile EventList events = EventList.EMPTY;
+	private volatile Position position = new Position(0, 0, 0, 1.0f, false, 0);
+
+	private volatile Thread thread = null;
+
+	// Guarded by lock
+	private boolean open = false;
+	private int nextEvent = 0;
+	private boolean chasePending = true;
+	private TrackMasks lastTrackMasks = TrackMasks.NONE;
+	/** The track that turned on each note of each channel, or -1 if the note is off */
+	private final int[] noteOnTrack = new int[CHANNEL_COUNT * NOTE_COUNT];
+
+	public SequencerEngine()
+	{
+		Arrays.fill(noteOnTrack, -1);
+	}
+
+	/** Starts the playback thread. */
+	public void open()
+	{
+		synchronized (lock)
+		{
+			if (open)
+				return;
+
+			open = true;
+			thread = new Thread(new Runnable()
+			{
+				@Override public void run()
+				{
+					playLoop();
+				}
+			}, "Sequencer");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MAX_PRIORITY);
+			thread.start();
+		}
+	}
+
+	/** Stops playing, and stops the playback thread. */
+	public void close()
+	{
+		synchronized (lock)
+		{
+			if (!open)
+				return;
+
+			stop();
+			open = false;
+			LockSupport.unpark(thread);
+			thread = null;
+		}
+	}
+
+	public boolean isOpen()
+	{
+		synchronized (lock)
+		{
+			return open;
+		}
+	}
+
+	/** The transmitter that sends the events to the first receiver in the chain. */
+	public Transmitter getTransmitter()
+	{
+		return transmitter;
+	}
+
+	public Sequence getSequence()
+	{
+		return events.sequence;
+	}
+
+	/**
+	 * Sets the sequence to play, and moves to the start of it. The sequence's events are copied,
+	 * so call {@link #refresh()} after changing them.
+	 */
+	public void setSequence(Sequence sequence)
+	{
+		EventList newEvents = (sequence == null) ? EventList.EMPTY : new EventList(sequence);
+		synchronized (lock)
+		{
+			if (sequence == null)
+				stop();
+
+			notesOff();
+			events = newEvents;
+			seek(0, 0);
+		}
+
+		// Forget the tracks that the new sequence doesn't have, so they aren't soloed
+		TrackMasks masks;
+		do
+		{
+			masks = trackMasks.get();
+		}
+		while (!trackMasks.compareAndSet(masks, (sequence == null) ? TrackMasks.NONE : masks.truncate(
+				newEvents.trackCount)));
+		unparkThread();
+	}
+
+	/**
+	 * Reads the events of the sequence again after they've been changed, keeping the position.
+	 * The program changes and controllers in effect at the position are sent again.
+	 */
+	public void refresh()
+	{
+		Sequence sequence = getSequence();
+		EventList newEvents = (sequence == null) ? EventList.EMPTY : new EventList(sequence);
+		synchronized (lock)
+		{
+			long tick = getTickPosition();
+			notesOff();
+			events = newEvents;
+			seek(newEvents.tickToMicros(tick), tick);
+		}
+	}
+
+	public long getTickLength()
+	{
+		return events.tickLength;
+	}
+
+	public long getMicrosecondLength()
+	{
+		return events.microsLength;
+	}
+
+	public long tickToMicros(long tick)
+	{
+		return events.tickToMicros(tick);
+	}
+
+	public long microsToTick(long micros)
+	{
+		return events.microsToTick(micros);
+	}
+
+	public boolean isRunning()
+	{
+		return position.running;
+	}
+
+	public void start()
+	{
+		synchronized (lock)
+		{
+			Position p = position;
+			if (!open || p.running || events.sequence == null)
+				return;
+
+			position = new Position(p.micros, p.tick, System.nanoTime(), p.tempoFactor, true, events.microsLength);
+			LockSupport.unpark(thread);
+		}
+	}
+
+	public void stop()
+	{
+		synchronized (lock)
+		{
+			Position p = position;
+			if (!p.running)
+				return;
+
+			long micros = p.getMicros();
+			position = new Position(micros, events.microsToTick(micros), 0, p.tempoFactor, false, p.lengthMicros);
+			notesOff();
+		}
+	}
+
+	/** Returns the position in the song, in microseconds. Doesn't wait for the playback thread. */
+	public long getMicrosecondPosition()
+	{
+		return position.getMicros();
+	}
+
+	public void setMicrosecondPosition(long micros)
+	{
+		synchronized (lock)
+		{
+			micros = Math.max(0, Math.min(micros, events.microsLength));
+			seek(micros, events.microsToTick(micros));
+		}
+	}
+
+	/** Returns the position in the song, in ticks. Doesn't wait for the playback thread. */
+	public long getTickPosition()
+	{
+		Position p = position;
+		if (!p.running)
+			return p.tick;
+
+		EventList ev = events;
+		long micros = p.getMicros();
+		return (micros >= ev.microsLength) ? ev.tickLength : ev.microsToTick(micros);
+	}
+
+	public void setTickPosition(long tick)
+	{
+		synchronized (lock)
+		{
+			tick = Math.max(0, Math.min(tick, events.tickLength));
+			seek(events.tickToMicros(tick), tick);
+		}
+	}
+
+	public float getTempoFactor()
+	{
+		return position.tempoFactor;
+	}
+
+	public void setTempoFactor(float tempoFactor)
+	{
+		if (tempoFactor <= 0)
+			throw new IllegalArgumentException("Tempo factor must be positive: " + tempoFactor);
+
+		synchronized (lock)
+		{
+			Position p = position;
+			long micros = p.getMicros();
+			position = new Position(micros, p.running ? -1 : p.tick, System.nanoTime(), tempoFactor, p.running,
+					p.lengthMicros);
+			LockSupport.unpark(thread);
+		}
+	}
+
+	public boolean getTrackMute(int track)
+	{
+		return track >= 0 && track < events.trackCount && trackMasks.get().isMuted(track);
+	}
+
+	public void setTrackMute(int track, boolean mute)
+	{
+		if (track < 0 || track >= events.trackCount)
+			return;
+
+		TrackMasks masks;
+		do
+		{
+			masks = trackMasks.get();
+		}
+		while (!trackMasks.compareAndSet(masks, masks.withMute(track, mute)));
+		unparkThread();
+	}
+
+	public boolean getTrackSolo(int track)
+	{
+		return track >= 0 && track < events.trackCount && trackMasks.get().isSoloed(track);
+	}
+
+	public void setTrackSolo(int track, boolean solo)
+	{
+		if (track < 0 || track >= events.trackCount)
+			return;
+
+		TrackMasks masks;
+		do
+		{
+			masks = trackMasks.get();
+		}
+		while (!trackMasks.compareAndSet(masks, masks.withSolo(track, solo)));
+		unparkThread();
+	}
+
+	/** Returns whether the track is played, taking both muting and solo into account. */
+	public boolean isTrackActive(int track)
+	{
+		return trackMasks.get().isActive(track);
+	}
+
+	private void unparkThread()
+	{
+		// The playback thread turns off the notes of tracks that were muted
+		Thread thread = this.thread;
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+
+	/** Moves to a position. Called with the lock held. */
+	private void seek(long micros, long tick)
+	{
+		Position p = position;
+		if (p.running)
+			notesOff();
+
+		position = new Position(micros, tick, System.nanoTime(), p.tempoFactor, p.running, events.microsLength);
+		nextEvent = events.firstIndexAtTick(tick);
+		chasePending = true;
+		LockSupport.unpark(thread);
+	}
+
+	private void playLoop()
+	{
+		while (true)
+		{
+			long waitNanos;
+			synchronized (lock)
+			{
+				if (!open || thread != Thread.currentThread())
+					return;
+
+				waitNanos = playEvents();
+			}
+
+			if (waitNanos < 0)
+				LockSupport.park(this);
+			else if (waitNanos > 0)
+				LockSupport.parkNanos(this, waitNanos);
+		}
+	}
+
+	/**
+	 * Sends the events that are due. Called with the lock held.
+	 *
+	 * @return How long to wait for the next event, in nanoseconds, or -1 to wait until something
+	 *         changes.
+	 */
+	private long playEvents()
+	{
+		Receiver receiver = transmitter.getReceiver();
+		TrackMasks masks = trackMasks.get();
+		if (masks != lastTrackMasks)
+		{
+			lastTrackMasks = masks;
+			notesOff(masks);
+		}
+
+		Position p = position;
+		if (!p.running)
+			return -1;
+
+		EventList ev = events;
+		if (chasePending)
+		{
+			chasePending = false;
+			chase(receiver, ev, nextEvent);
+		}
+
+		long micros = p.getMicros();
+		while (nextEvent < ev.count && ev.micros[nextEvent] <= micros)
+		{
+			send(receiver, ev, nextEvent, masks);
+			nextEvent++;
+		}
+
+		if (nextEvent >= ev.count && micros >= ev.microsLength)
+		{
+			position = new Position(ev.microsLength, ev.tickLength, 0, p.tempoFactor, false, ev.microsLength);
+			notesOff();
+			return -1;
+		}
+
+		long nextMicros = (nextEvent < ev.count) ? ev.micros[nextEvent] : ev.microsLength;
+		return Math.max(1, (long) ((nextMicros - micros) * 1000 / p.tempoFactor));
+	}
+
+	private void send(Receiver receiver, EventList ev, int i, TrackMasks masks)
+	{
+		int message = ev.messages[i];
+		if (message < 0)
+		{
+			if (receiver != null && masks.isActive(ev.tracks[i]))
+				receiver.send(ev.longMessages.get(~message), -1);
+			return;
+		}
+
+		int command = message & 0xF0;
+		if (command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF)
+		{
+			int track = ev.tracks[i];
+			int note = (message & 0x0F) * NOTE_COUNT + ((message >>> 8) & 0x7F);
+			if (command == ShortMessage.NOTE_ON && (message >>> 16) != 0)
+			{
+				if (!masks.isActive(track))
+					return;
+
+				noteOnTrack[note] = track;
+			}
+			else
+			{
+				// Muted tracks only turn off their own notes, not the same note from another track
+				if (!masks.isActive(track) && noteOnTrack[note] != track)
+					return;
+
+				noteOnTrack[note] = -1;
+			}
+		}
+
+		// A new message is sent for each event, since transceivers may change the messages that
+		// they're sent
+		if (receiver != null)
+			receiver.send(new PackedShortMessage(message), -1);
+	}
+
+	/**
+	 * Sends the last program change, controller values, pitch bend and channel pressure of each
+	 * channel before the event index, in the order that they were in the song.
+	 */
+	private void chase(Receiver receiver, EventList ev, int end)
+	{
+		int[] lastIndex = new int[CHANNEL_COUNT * CHASE_SLOTS];
+		Arrays.fill(lastIndex, -1);
+		for (int i = 0; i < end; i++)
+		{
+			int message = ev.messages[i];
+			if (message < 0)
+				continue;
+
+			int slot;
+			switch (message & 0xF0)
+			{
+			case ShortMessage.CONTROL_CHANGE:
+				slot = (message >>> 8) & 0x7F;
+				break;
+			case ShortMessage.PROGRAM_CHANGE:
+				slot = CHASE_PROGRAM;
+				break;
+			case ShortMessage.PITCH_BEND:
+				slot = CHASE_PITCH_BEND;
+				break;
+			case ShortMessage.CHANNEL_PRESSURE:
+				slot = CHASE_CHANNEL_PRESSURE;
+				break;
+			default:
+				continue;
+			}
+			lastIndex[(message & 0x0F) * CHASE_SLOTS + slot] = i;
+		}
+
+		if (receiver == null)
+			return;
+
+		int count = 0;
+		for (int index : lastIndex)
+		{
+			if (index >= 0)
+				lastIndex[count++] = index;
+		}
+		Arrays.sort(lastIndex, 0, count);
+		for (int i = 0; i < count; i++)
+			receiver.send(new PackedShortMessage(ev.messages[lastIndex[i]]), -1);
+	}
+
+	/** Turns off all of the notes that are on. Called with the lock held. */
+	private void notesOff()
+	{
+		notesOff(null);
+	}
+
+	/**
+	 * Turns off the notes that are on from tracks that aren't active, or all notes if masks is
+	 * null. Called with the lock held.
+	 */
+	private void notesOff(TrackMasks masks)
+	{
+		Receiver receiver = transmitter.getReceiver();
+		boolean[] channels = new boolean[CHANNEL_COUNT];
+		for (int note = 0; note < noteOnTrack.length; note++)
+		{
+			int track = noteOnTrack[note];
+			if (track >= 0 && (masks == null || !masks.isActive(track)))
+			{
+				noteOnTrack[note] = -1;
+				channels[note / NOTE_COUNT] = true;
+				if (receiver != null)
+				{
+					int status = ShortMessage.NOTE_OFF | (note / NOTE_COUNT);
+					int noteOff = PackedShortMessage.pack(status, note % NOTE_COUNT, 0);
+					receiver.send(new PackedShortMessage(noteOff), -1);
+				}
+			}
+		}
+
+		if (masks == null && receiver != null)
+		{
+			// Release the sustain pedal, so notes that were turned off don't keep sounding
+			for (int c = 0; c < CHANNEL_COUNT; c++)
+			{
+				if (channels[c])
+				{
+					int sustainOff = PackedShortMessage.pack(ShortMessage.CONTROL_CHANGE | c, 0x40, 0);
+					receiver.send(new PackedShortMessage(sustainOff), -1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The position at a moment in time. While the song is running, the current position is worked
+	 * out from the time that's passed since then.
+	 */
+	private static class Position
+	{
+		public final long micros;
+		/** The tick at the position, if it's known */
+		public final long tick;
+		public final long nanoTime;
+		public final float tempoFactor;
+		public final boolean running;
+		public final long lengthMicros;
+
+		public Position(long micros, long tick, long nanoTime, float tempoFactor, boolean running,
+				long lengthMicros)
+		{
+			this.micros = micros;
+			this.tick = tick;
+			this.nanoTime = nanoTime;
+			this.tempoFactor = tempoFactor;
+			this.running = running;
+			this.lengthMicros = lengthMicros;
+		}
+
+		public long getMicros()
+		{
+			if (!running)
+				return micros;
+
+			long elapsed = (long) ((System.nanoTime() - nanoTime) / 1000.0 * tempoFactor);
+			return Math.min(micros + elapsed, Math.max(micros, lengthMicros));
+		}
+	}
+
+	/** The muted and soloed tracks. Changing a track creates a new TrackMasks. */
+	private static class TrackMasks
+	{
+		public static final TrackMasks NONE = new TrackMasks(new long[0], new long[0]);
+
+		private final long[] mute;
+		private final long[] solo;
+		private final boolean anySolo;
+
+		private TrackMasks(long[] mute, long[] solo)
+		{
+			this.mute = mute;
+			this.solo = solo;
+			boolean anySolo = false;
+			for (long bits : solo)
+				anySolo |= (bits != 0);
+			this.anySolo = anySolo;
+		}
+
+		public boolean isMuted(int track)
+		{
+			return get(mute, track);
+		}
+
+		public boolean isSoloed(int track)
+		{
+			return get(solo, track);
+		}
+
+		public boolean isActive(int track)
+		{
+			return anySolo ? get(solo, track) : !get(mute, track);
+		}
+
+		public TrackMasks withMute(int track, boolean muted)
+		{
+			return new TrackMasks(set(mute, track, muted), solo);
+		}
+
+		public TrackMasks withSolo(int track, boolean soloed)
+		{
+			return new TrackMasks(mute, set(solo, track, soloed));
+		}
+
+		public TrackMasks truncate(int trackCount)
+		{
+			return new TrackMasks(truncate(mute, trackCount), truncate(solo, trackCount));
+		}
+
+		private static long[] truncate(long[] bits, int trackCount)
+		{
+			long[] result = Arrays.copyOf(bits, Math.min(bits.length, (trackCount + 63) >> 6));
+			if ((trackCount & 63) != 0 && result.length == (trackCount + 63) >> 6)
+				result[result.length - 1] &= (1L << trackCount) - 1;
+			return result;
+		}
+
+		private static boolean get(long[] bits, int track)
+		{
+			return track >= 0 && (track >> 6) < bits.length && (bits[track >> 6] & (1L << track)) != 0;
+		}
+
+		private static long[] set(long[] bits, int track, boolean value)
+		{
+			long[] result = Arrays.copyOf(bits, Math.max(bits.length, (track >> 6) + 1));
+			if (value)
+				result[track >> 6] |= (1L << track);
+			else
+				result[track >> 6] &= ~(1L << track);
+			return result;
+		}
+	}
+
+	/**
+	 * The events of a sequence, merged into parallel arrays sorted by tick. Events at the same tick
+	 * are in track order. Short messages are packed into an int with the status in the low byte, and
+	 * system exclusive messages are stored as ~index into longMessages. Meta messages aren't sent,
+	 * so they aren't kept; tempo changes are read from the first track, like MidiUtils.TempoCache.
+	 */
+	private static class EventList
+	{
+		public static final EventList EMPTY = new EventList();
+
+		public final Sequence sequence;
+		public final int count;
+		public final long[] ticks;
+		public final long[] micros;
+		public final int[] messages;
+		public final int[] tracks;
+		public final List<MidiMessage> longMessages;
+		public final int trackCount;
+		public final long tickLength;
+		public final long microsLength;
+
+		private final float divisionType;
+		private final int resolution;
+		private final long[] tempoTicks;
+		private final long[] tempoMicros;
+		private final int[] tempoMPQs;
+
+		private EventList()
+		{
+			sequence = null;
+			count = 0;
+			ticks = new long[0];
+			micros = new long[0];
+			messages = new int[0];
+			tracks = new int[0];
+			longMessages = new ArrayList<MidiMessage>();
+			trackCount = 0;
+			tickLength = 0;
+			microsLength = 0;
+			divisionType = Sequence.PPQ;
+			resolution = 1;
+			tempoTicks = new long[] { 0 };
+			tempoMicros = new long[] { 0 };
+			tempoMPQs = new int[] { DEFAULT_TEMPO_MPQ };
+		}
+
+		public EventList(Sequence sequence)
+		{
+			this.sequence = sequence;
+			divisionType = sequence.getDivisionType();
+			resolution = sequence.getResolution();
+			Track[] trackArray = sequence.getTracks();
+			trackCount = trackArray.length;
+
+			// Tempo changes, starting with the default tempo if the song doesn't set one at tick 0
+			long[] tempoTicks = new long[] { 0 };
+			int[] tempoMPQs = new int[] { DEFAULT_TEMPO_MPQ };
+			int tempoCount = 1;
+			int total = 0;
+			for (int t = 0; t < trackArray.length; t++)
+			{
+				Track track = trackArray[t];
+				total += track.size();
+				for (int i = 0; t == 0 && i < track.size(); i++)
+				{
+					MidiEvent evt = track.get(i);
+					if (!MidiUtils.isMetaTempo(evt.getMessage()))
+						continue;
+
+					if (evt.getTick() == 0)
+					{
+						// Replaces the default tempo, or an earlier tempo at tick 0
+						tempoMPQs[0] = MidiUtils.getTempoMPQ(evt.getMessage());
+						continue;
+					}
+					if (tempoCount == tempoTicks.length)
+					{
+						tempoTicks = Arrays.copyOf(tempoTicks, tempoCount * 2);
+						tempoMPQs = Arrays.copyOf(tempoMPQs, tempoCount * 2);
+					}
+					tempoTicks[tempoCount] = evt.getTick();
+					tempoMPQs[tempoCount] = MidiUtils.getTempoMPQ(evt.getMessage());
+					tempoCount++;
+				}
+			}
+			this.tempoTicks = Arrays.copyOf(tempoTicks, tempoCount);
+			this.tempoMPQs = Arrays.copyOf(tempoMPQs, tempoCount);
+			this.tempoMicros = new long[tempoCount];
+			for (int i = 1; i < tempoCount; i++)
+			{
+				this.tempoMicros[i] = this.tempoMicros[i - 1]
+						+ MidiUtils.ticks2microsec(tempoTicks[i] - tempoTicks[i - 1], tempoMPQs[i - 1], resolution);
+			}
+
+			// Copy the events of the tracks one after the other, then sort them by tick
+			long[] ticks = new long[total];
+			int[] messages = new int[total];
+			int[] tracks = new int[total];
+			longMessages = new ArrayList<MidiMessage>();
+			int count = 0;
+			for (int t = 0; t < trackArray.length; t++)
+			{
+				Track track = trackArray[t];
+				for (int i = 0, sz = track.size(); i < sz; i++)
+				{
+					MidiEvent evt = track.get(i);
+					MidiMessage msg = evt.getMessage();
+					int message;
+					if (msg instanceof ShortMessage)
+					{
+						ShortMessage m = (ShortMessage) msg;
+						message = PackedShortMessage.pack(m.getStatus(), m.getData1(), m.getData2());
+					}
+					else if (msg instanceof SysexMessage)
+					{
+						longMessages.add(msg);
+						message = ~(longMessages.size() - 1);
+					}
+					else
+					{
+						continue;
+					}
+
+					ticks[count] = evt.getTick();
+					messages[count] = message;
+					tracks[count] = t;
+					count++;
+				}
+			}
+
+			int[] order = sortByTick(ticks, count);
+			this.count = count;
+			this.ticks = new long[count];
+			this.micros = new long[count];
+			this.messages = new int[count];
+			this.tracks = new int[count];
+			int tempo = 0;
+			for (int i = 0; i < count; i++)
+			{
+				int from = order[i];
+				long tick = ticks[from];
+				while (tempo + 1 < this.tempoTicks.length && this.tempoTicks[tempo + 1] <= tick)
+					tempo++;
+
+				this.ticks[i] = tick;
+				this.micros[i] = tickToMicros(tick, tempo);
+				this.messages[i] = messages[from];
+				this.tracks[i] = tracks[from];
+			}
+
+			tickLength = sequence.getTickLength();
+			microsLength = tickToMicros(tickLength);
+		}
+
+		/** Returns the indices of the events in order of tick, keeping events at the same tick in order. */
+		private static int[] sortByTick(long[] ticks, int count)
+		{
+			int[] order = new int[count];
+			int[] temp = new int[count];
+			for (int i = 0; i < count; i++)
+				order[i] = i;
+
+			for (int width = 1; width < count; width *= 2)
+			{
+				for (int low = 0; low < count; low += 2 * width)
+				{
+					int mid = Math.min(low + width, count);
+					int high = Math.min(low + 2 * width, count);
+					int a = low, b = mid;
+					for (int i = low; i < high; i++)
+					{
+						boolean left = a < mid && (b >= high || ticks[order[a]] <= ticks[order[b]]);
+						temp[i] = left ? order[a++] : order[b++];
+					}
+				}
+				int[] swap = order;
+				order = temp;
+				temp = swap;
+			}
+			return order;
+		}
+
+		/** Returns the index of the first event at or after the tick. */
+		public int firstIndexAtTick(long tick)
+		{
+			int low = 0;
+			int high = count;
+			while (low < high)
+			{
+				int mid = (low + high) >>> 1;
+				if (ticks[mid] < tick)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+
+		/** Converts a tick to microseconds, the same way as MidiUtils.tick2microsecond(). */
+		public long tickToMicros(long tick)
+		{
+			if (divisionType != Sequence.PPQ)
+				return (long) (1000000 * ((double) tick / (double) (divisionType * resolution)));
+
+			int tempo = Math.max(0, floorIndex(tempoTicks, tick));
+			return tickToMicros(tick, tempo);
+		}
+
+		private long tickToMicros(long tick, int tempo)
+		{
+			if (divisionType != Sequence.PPQ)
+				return (long) (1000000 * ((double) tick / (double) (divisionType * resolution)));
+
+			long ticks = tick - tempoTicks[tempo];
+			return tempoMicros[tempo] + MidiUtils.ticks2microsec(ticks, tempoMPQs[tempo], resolution);
+		}
+
+		/** Converts microseconds to a tick, the same way as MidiUtils.microsecond2tick(). */
+		public long microsToTick(long micros)
+		{
+			if (divisionType != Sequence.PPQ)
+				return (long) (((double) micros) * ((double) divisionType) * ((double) resolution)
+						/ 1000000d);
+
+			if (micros <= 0)
+				return 0;
+
+			int tempo = Math.max(0, floorIndex(tempoMicros, micros));
+			long offset = micros - tempoMicros[tempo];
+			return tempoTicks[tempo] + MidiUtils.microsec2ticks(offset, tempoMPQs[tempo], resolution);
+		}
+
+		/** The index of the last value that's less than or equal to the key, or -1. */
+		private static int floorIndex(long[] sorted, long key)
+		{
+			int low = 0;
+			int high = sorted.length;
+			while (low < high)
+			{
+				int mid = (low + high) >>> 1;
+				if (sorted[mid] <= key)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low - 1;
+		}
+	}
+
+	/** Sends the events to the receiver that's set, which is the first receiver in the chain. */
+	private static class EngineTransmitter implements Transmitter
+	{
+		private volatile Receiver receiver = null;
+
+		@Override public void setReceiver(Receiver receiver)
+		{
+			this.receiver = receiver;
+		}
+
+		@Override public Receiver getReceiver()
+		{
+			return receiver;
+		}
+
+		@Override public void close()
+		{
+			receiver = null;
+		}
+	}
+}
@@ -10,7 +10,6 @@ import javax.sound.midi.MidiSystem;
 import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Receiver;
 import javax.sound.midi.Sequence;
-import javax.sound.midi.Sequencer;
 import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Transmitter;
 import javax.swing.Timer;
@@ -19,21 +18,22 @@ import com.digero.common.midi.SequencerEvent.SequencerProperty;
 import com.digero.common.util.IDiscardable;
 import com.digero.common.util.Listener;
 import com.digero.common.util.ListenerList;
-import com.sun.media.sound.MidiUtils;
 
+/**
+ * Plays a sequence with a {@link SequencerEngine}, through a chain of transceivers, and notifies
+ * listeners of changes to the position and the other properties of the playback.
+ */
 public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardable
 {
 	public static final int UPDATE_FREQUENCY_MILLIS = 25;
 	public static final long UPDATE_FREQUENCY_MICROS = UPDATE_FREQUENCY_MILLIS * 1000;
 
-	protected Sequencer sequencer;
+	protected SequencerEngine sequencer;
 	private Receiver receiver;
 	private Transmitter transmitter;
 	private List<Transceiver> transceivers = new ArrayList<Transceiver>();
 	private long dragTick;
 	private boolean isDragging;
-	private MidiUtils.TempoCache tempoCache = new MidiUtils.TempoCache();
-	private boolean[] trackActiveCache = null;
 
 	private Timer updateTimer = new Timer(UPDATE_FREQUENCY_MILLIS, new TimerActionListener());
 	private long lastUpdateTick = -1;
@@ -43,7 +43,7 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 
 	public SequencerWrapper() throws MidiUnavailableException
 	{
-		sequencer = MidiSystem.getSequencer(false);
+		sequencer = new SequencerEngine();
 		sequencer.open();
 		transmitter = sequencer.getTransmitter();
 		receiver = createReceiver();
@@ -83,8 +83,6 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 
 		if (sequencer != null)
 			sequencer.close();
-
-		trackActiveCache = null;
 	}
 
 	public void addTransceiver(Transceiver transceiver)
@@ -100,6 +98,10 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 		transceivers.add(transceiver);
 	}
 
+	/**
+	 * Notifies listeners of changes to the position while the song is playing. The position is
+	 * read from the engine without waiting for its playback thread.
+	 */
 	private class TimerActionListener implements ActionListener
 	{
 		@Override public void actionPerformed(ActionEvent e)
@@ -107,33 +109,27 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 			if (sequencer != null && sequencer.isOpen())
 			{
 				long songTick = sequencer.getTickPosition();
-				if (songTick >= getTickLength())
+				boolean running = sequencer.isRunning();
+				if (!running && songTick >= getTickLength())
 				{
-					// There's a bug in Sun's RealTimeSequencer, where there is a possible 
-					// deadlock when calling setMicrosecondPosition(0) exactly when the sequencer 
-					// hits the end of the sequence.  It looks like it's safe to call 
-					// sequencer.setTickPosition(0).
-					sequencer.stop();
+					// The engine stops at the end of the song; go back to the start
 					sequencer.setTickPosition(0);
+					songTick = 0;
+				}
+
+				if (lastUpdateTick != songTick)
+				{
 					lastUpdateTick = songTick;
+					fireChangeEvent(SequencerProperty.POSITION);
 				}
-				else
+				if (lastRunning != running)
 				{
-					if (lastUpdateTick != songTick)
-					{
-						lastUpdateTick = songTick;
-						fireChangeEvent(SequencerProperty.POSITION);
-					}
-					boolean running = sequencer.isRunning();
-					if (lastRunning != running)
-					{
-						lastRunning = running;
-						if (running)
-							updateTimer.start();
-						else
-							updateTimer.stop();
-						fireChangeEvent(SequencerProperty.IS_RUNNING);
-					}
+					lastRunning = running;
+					if (running)
+						updateTimer.start();
+					else
+						updateTimer.stop();
+					fireChangeEvent(SequencerProperty.IS_RUNNING);
 				}
 			}
 		}
@@ -143,20 +139,11 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 	{
 		stop();
 		setPosition(0);
-		trackActiveCache = null;
 
 		if (fullReset)
 		{
 			Sequence seqSave = sequencer.getSequence();
-			try
-			{
-				sequencer.setSequence((Sequence) null);
-			}
-			catch (InvalidMidiDataException e)
-			{
-				// This won't happen
-				throw new RuntimeException(e);
-			}
+			sequencer.setSequence(null);
 
 			sequencer.close();
 			transmitter.close();
@@ -164,7 +151,7 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 
 			try
 			{
-				sequencer = MidiSystem.getSequencer(false);
+				sequencer = new SequencerEngine();
 				sequencer.open();
 				transmitter = sequencer.getTransmitter();
 				receiver = createReceiver();
@@ -174,15 +161,7 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 				throw new RuntimeException(e1);
 			}
 
-			try
-			{
-				sequencer.setSequence(seqSave);
-			}
-			catch (InvalidMidiDataException e)
-			{
-				// This won't happen
-				throw new RuntimeException(e);
-			}
+			sequencer.setSequence(seqSave);
 
 			// Hook up the transmitter to the receiver through any transceivers that we have
 			Transmitter prevTransmitter = transmitter;
@@ -224,10 +203,6 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 				msg.setMessage(ShortMessage.SYSTEM_RESET);
 				receiver.send(msg, -1);
 			}
-			catch (MidiUnavailableException e)
-			{
-				// Ignore
-			}
 			catch (InvalidMidiDataException e)
 			{
 				// Ignore
@@ -261,14 +236,7 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 
 	public void setPosition(long position)
 	{
-		if (position == 0)
-		{
-			// Sun's RealtimeSequencer isn't entirely reliable when calling 
-			// setMicrosecondPosition(0). Instead call setTickPosition(0),  
-			// which has the same effect and isn't so buggy.
-			setTickPosition(0);
-		}
-		else if (position != getPosition())
+		if (position != getPosition())
 		{
 			sequencer.setMicrosecondPosition(position);
 			lastUpdateTick = sequencer.getTickPosition();
@@ -278,20 +246,18 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 
 	@Override public long microsToTick(long micros)
 	{
-		Sequence sequence = getSequence();
-		if (sequence == null)
+		if (getSequence() == null)
 			return 0;
 
-		return MidiUtils.microsecond2tick(sequence, micros, tempoCache);
+		return sequencer.microsToTick(micros);
 	}
 
 	@Override public long tickToMicros(long tick)
 	{
-		Sequence sequence = getSequence();
-		if (sequence == null)
+		if (getSequence() == null)
 			return 0;
 
-		return MidiUtils.tick2microsecond(sequence, tick, tempoCache);
+		return sequencer.tickToMicros(tick);
 	}
 
 	public long getLength()
@@ -362,7 +328,6 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 	{
 		if (mute != this.getTrackMute(track))
 		{
-			trackActiveCache = null;
 			sequencer.setTrackMute(track, mute);
 			fireChangeEvent(SequencerProperty.TRACK_ACTIVE);
 		}
@@ -377,7 +342,6 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 	{
 		if (solo != this.getTrackSolo(track))
 		{
-			trackActiveCache = null;
 			sequencer.setTrackSolo(track, solo);
 			fireChangeEvent(SequencerProperty.TRACK_ACTIVE);
 		}
@@ -391,40 +355,11 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 		if (track < 0)
 			return true;
 
-		if (trackActiveCache != null && track < trackActiveCache.length)
-			return trackActiveCache[track];
-
 		Sequence song = sequencer.getSequence();
-		if (song == null)
+		if (song == null || track >= song.getTracks().length)
 			return true;
 
-		int trackCount = song.getTracks().length;
-		if (track >= trackCount)
-			return true;
-
-		if (trackActiveCache == null || trackActiveCache.length != trackCount)
-			trackActiveCache = new boolean[trackCount];
-
-		boolean foundSoloPart = false;
-		for (int i = 0; i < trackCount; i++)
-		{
-			if (sequencer.getTrackSolo(i))
-			{
-				trackActiveCache[i] = true;
-				if (!foundSoloPart)
-				{
-					foundSoloPart = true;
-					for (int j = 0; j < i; j++)
-						trackActiveCache[j] = false;
-				}
-			}
-			else
-			{
-				trackActiveCache[i] = !foundSoloPart && !sequencer.getTrackMute(i);
-			}
-		}
-
-		return trackActiveCache[track];
+		return sequencer.isTrackActive(track);
 	}
 
 	/**
@@ -513,11 +448,8 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 	{
 		if (sequencer.getSequence() != sequence)
 		{
-			trackActiveCache = null;
 			boolean preLoaded = isLoaded();
 			sequencer.setSequence(sequence);
-			if (sequence != null)
-				tempoCache.refresh(sequence);
 			if (preLoaded != isLoaded())
 				fireChangeEvent(SequencerProperty.IS_LOADED);
 			fireChangeEvent(SequencerProperty.LENGTH);
@@ -525,6 +457,19 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 		}
 	}
 
+	/**
+	 * Call after modifying the events of the current sequence in place, so the sequencer picks up
+	 * the changes. The sequencer should be stopped while the events are being modified.
+	 */
+	public void refreshSequenceEvents()
+	{
+		// The engine copies the events again, and resends any program changes and controllers
+		// that are in effect at the current position
+		sequencer.refresh();
+		lastUpdateTick = sequencer.getTickPosition();
+		fireChangeEvent(SequencerProperty.LENGTH);
+	}
+
 	public void clearSequence()
 	{
 		try
@@ -558,7 +503,7 @@ public class SequencerWrapper implements MidiConstants, ITempoCache, IDiscardabl
 		return receiver;
 	}
 
-	public void open() throws MidiUnavailableException
+	public void open()
 	{
 		sequencer.open();
 	}
@@ -0,0 +1,106 @@
+package com.digero.common.util;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs tasks in parallel on one ForkJoinPool shared by the whole application. Parsing, loading and
+ * exporting all use the same pool, so work started at the same time (e.g. exporting while a song
+ * loads) doesn't run more threads than there are processors.
+ */
+public class ParallelTasks
+{
+	private static ForkJoinPool pool = null;
+
+	private ParallelTasks()
+	{
+	}
+
+	public static synchronized ForkJoinPool getPool()
+	{
+		if (pool == null)
+			pool = new ForkJoinPool();
+
+		return pool;
+	}
+
+	/**
+	 * Runs the tasks and waits for all of them to finish. A single task is run on the calling
+	 * thread. Errors are kept by each task; call {@link Task#rethrowError()} to check them.
+	 * <p>
+	 * The tasks are started in the order of the list, so put the longest tasks first to keep a
+	 * long task that's started last from leaving the other threads waiting for it.
+	 */
+	public static void invokeAll(List<? extends Task<?>> tasks)
+	{
+		if (tasks.size() > 1)
+			getPool().invoke(new TaskList(tasks));
+		else if (tasks.size() == 1)
+			tasks.get(0).compute();
+	}
+
+	/**
+	 * A task that keeps the exception it fails with, so that it can be thrown again on the thread
+	 * that waits for the task, as the exception that the task declares.
+	 */
+	@SuppressWarnings("serial")//
+	public static abstract class Task<E extends Exception> extends RecursiveAction
+	{
+		private Throwable error = null;
+
+		protected abstract void run() throws E;
+
+		@Override protected final void compute()
+		{
+			try
+			{
+				run();
+			}
+			catch (Throwable e)
+			{
+				error = e;
+			}
+		}
+
+		/** Throws the exception that the task failed with, if it failed. */
+		public void rethrowError() throws E
+		{
+			if (error instanceof RuntimeException)
+				throw (RuntimeException) error;
+			else if (error instanceof Error)
+				throw (Error) error;
+			else if (error != null)
+				throw ParallelTasks.<E> cast(error);
+		}
+	}
+
+	/** run() can only throw E or unchecked exceptions, so any other error is an E */
+	@SuppressWarnings("unchecked")//
+	private static <E extends Exception> E cast(Throwable error)
+	{
+		return (E) error;
+	}
+
+	@SuppressWarnings("serial")//
+	private static class TaskList extends RecursiveAction
+	{
+		private final List<? extends Task<?>> tasks;
+
+		public TaskList(List<? extends Task<?>> tasks)
+		{
+			this.tasks = tasks;
+		}
+
+		@Override protected void compute()
+		{
+			// ForkJoinTask.invokeAll() forks the tasks from the end of the list, and idle threads
+			// steal the task that was forked first. Forking in list order and joining in the same
+			// order means that both the idle threads and this one take the tasks in list order.
+			for (Task<?> task : tasks)
+				task.fork();
+			for (Task<?> task : tasks)
+				task.join();
+		}
+	}
+}
@@ -252,6 +252,26 @@ public final class Util
 		return (value / grid) * grid;
 	}
 
+	/**
+	 * Finds the index of the last element in a sorted array that is less than or equal to key.
+	 * 
+	 * @return The index, or -1 if every element is greater than key.
+	 */
+	public static int floorIndex(long[] sorted, long key)
+	{
+		int low = 0;
+		int high = sorted.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (sorted[mid] <= key)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low - 1;
+	}
+
 	public static boolean openURL(String url)
 	{
 		try
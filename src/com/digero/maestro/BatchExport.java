@@ -0,0 +1,293 @@
+package com.digero.maestro;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.prefs.Preferences;
+
+import com.digero.maestro.abc.AbcSong;
+import com.digero.maestro.abc.PartAutoNumberer;
+import com.digero.maestro.abc.PartNameTemplate;
+import com.digero.maestro.util.FileResolver;
+
+/**
+ * Exports Maestro song files (.msx) to ABC without showing any UI. Songs are loaded and exported
+ * concurrently on a fixed number of threads, and a report with the time taken for each song and
+ * the reason for any failures is written at the end.
+ * <p>
+ * Usage: BatchExport [-threads N] [-out DIR] [-report FILE] &lt;file.msx or directory&gt; [...]
+ * <p>
+ * Directories are searched recursively for .msx files. Each song is exported to the ABC file it
+ * was last exported to, unless -out is given, in which case it's written to DIR with the same
+ * name as the .msx file. The exit code is 1 if any song failed to export.
+ */
+public class BatchExport
+{
+	private static class Result
+	{
+		public final File songFile;
+		public File exportFile;
+		public long loadMillis;
+		public long exportMillis;
+		public String error;
+
+		public Result(File songFile)
+		{
+			this.songFile = songFile;
+		}
+	}
+
+	/**
+	 * Never prompts the user. If the song's MIDI or ABC file can't be found, looks for a file with
+	 * the same name next to the .msx file, in case they were moved together.
+	 */
+	private static class NonInteractiveResolver implements FileResolver
+	{
+		private final File songDir;
+		private String lastMessage;
+
+		public NonInteractiveResolver(File songFile)
+		{
+			this.songDir = songFile.getAbsoluteFile().getParentFile();
+		}
+
+		@Override public File locateFile(File original, String message)
+		{
+			lastMessage = message;
+			File moved = new File(songDir, original.getName());
+			if (!moved.equals(original.getAbsoluteFile()) && moved.isFile())
+				return moved;
+			return null;
+		}
+
+		@Override public File resolveFile(File original, String message)
+		{
+			lastMessage = message;
+			return null;
+		}
+	}
+
+	private final Preferences prefs = Preferences.userNodeForPackage(MaestroMain.class);
+	private final File outputDir;
+
+	private BatchExport(File outputDir)
+	{
+		this.outputDir = outputDir;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		System.setProperty("java.awt.headless", "true");
+		MaestroMain.loadAppVersion();
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		File outputDir = null;
+		File reportFile = null;
+		List<File> songFiles = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++)
+		{
+			if (args[i].equals("-threads") && i + 1 < args.length)
+				threads = Math.max(1, Integer.parseInt(args[++i]));
+			else if (args[i].equals("-out") && i + 1 < args.length)
+				outputDir = new File(args[++i]);
+			else if (args[i].equals("-report") && i + 1 < args.length)
+				reportFile = new File(args[++i]);
+			else if (new File(args[i]).isDirectory())
+				addSongFiles(songFiles, new File(args[i]));
+			else
+				songFiles.add(new File(args[i]));
+		}
+
+		if (songFiles.isEmpty())
+		{
+			System.err.println("Usage: BatchExport [-threads N] [-out DIR] [-report FILE] "
+					+ "<file" + AbcSong.MSX_FILE_EXTENSION + " or directory> [...]");
+			System.exit(2);
+		}
+
+		if (outputDir != null && !outputDir.isDirectory() && !outputDir.mkdirs())
+		{
+			System.err.println("Unable to create the output directory: " + outputDir);
+			System.exit(2);
+		}
+
+		long startMillis = System.currentTimeMillis();
+		List<Result> results = new BatchExport(outputDir).run(songFiles, threads);
+		long totalMillis = System.currentTimeMillis() - startMillis;
+
+		PrintWriter report = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		writeReport(report, results, threads, totalMillis);
+		report.flush();
+
+		if (reportFile != null)
+		{
+			try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(reportFile),
+					StandardCharsets.UTF_8)))
+			{
+				writeReport(out, results, threads, totalMillis);
+			}
+		}
+
+		for (Result result : results)
+		{
+			if (result.error != null)
+				System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	private List<Result> run(List<File> songFiles, int threads) throws InterruptedException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, songFiles.size()));
+		try
+		{
+			List<Future<Result>> futures = new ArrayList<Future<Result>>(songFiles.size());
+			for (final File songFile : songFiles)
+			{
+				futures.add(executor.submit(new Callable<Result>()
+				{
+					@Override public Result call()
+					{
+						return export(songFile);
+					}
+				}));
+			}
+
+			List<Result> results = new ArrayList<Result>(futures.size());
+			for (int i = 0; i < futures.size(); i++)
+			{
+				try
+				{
+					results.add(futures.get(i).get());
+				}
+				catch (ExecutionException e)
+				{
+					Result result = new Result(songFiles.get(i));
+					result.error = describe(e.getCause());
+					results.add(result);
+				}
+			}
+			return results;
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	private Result export(File songFile)
+	{
+		Result result = new Result(songFile);
+		NonInteractiveResolver resolver = new NonInteractiveResolver(songFile);
+
+		// The numberer and name template keep track of the song they belong to, so each song needs
+		// its own. They read the same preferences as the main window.
+		PartAutoNumberer partAutoNumberer = new PartAutoNumberer(prefs.node("partAutoNumberer"));
+		PartNameTemplate partNameTemplate = new PartNameTemplate(prefs.node("partNameTemplate"));
+
+		AbcSong song = null;
+		long startNanos = System.nanoTime();
+		try
+		{
+			song = new AbcSong(songFile, partAutoNumberer, partNameTemplate, resolver);
+			result.loadMillis = (System.nanoTime() - startNanos) / 1000000;
+
+			if (song.getParts().isEmpty())
+				throw new IOException("The song has no parts");
+
+			result.exportFile = getExportFile(song, songFile);
+			startNanos = System.nanoTime();
+			song.exportAbc(result.exportFile);
+			result.exportMillis = (System.nanoTime() - startNanos) / 1000000;
+		}
+		catch (Exception | AssertionError e)
+		{
+			result.error = describe(e);
+			if (resolver.lastMessage != null)
+				result.error += " (" + resolver.lastMessage.replaceAll("\\s+", " ") + ")";
+		}
+		finally
+		{
+			if (song != null)
+				song.discard();
+		}
+		return result;
+	}
+
+	private File getExportFile(AbcSong song, File songFile)
+	{
+		String name = songFile.getName();
+		int dot = name.lastIndexOf('.');
+		name = ((dot > 0) ? name.substring(0, dot) : name) + ".abc";
+
+		if (outputDir != null)
+			return new File(outputDir, name);
+
+		if (song.getExportFile() != null)
+			return song.getExportFile();
+
+		return new File(songFile.getAbsoluteFile().getParentFile(), name);
+	}
+
+	private static String describe(Throwable e)
+	{
+		String message = e.getMessage();
+		if (message == null || message.isEmpty())
+			return e.getClass().getSimpleName();
+		return e.getClass().getSimpleName() + ": " + message.replaceAll("\\s+", " ");
+	}
+
+	private static void writeReport(PrintWriter out, List<Result> results, int threads, long totalMillis)
+	{
+		int failed = 0;
+		long loadMillis = 0;
+		long exportMillis = 0;
+		for (Result result : results)
+		{
+			if (result.error == null)
+			{
+				out.printf("OK      %6d ms load %6d ms export  %s -> %s%n", result.loadMillis, result.exportMillis,
+						result.songFile, result.exportFile);
+				loadMillis += result.loadMillis;
+				exportMillis += result.exportMillis;
+			}
+			else
+			{
+				out.printf("FAILED  %s: %s%n", result.songFile, result.error);
+				failed++;
+			}
+		}
+
+		out.printf("%nExported %d of %d songs in %d ms on %d threads (%d ms loading, %d ms exporting)%n",
+				results.size() - failed, results.size(), totalMillis, threads, loadMillis, exportMillis);
+	}
+
+	private static void addSongFiles(List<File> songFiles, File file)
+	{
+		if (file.isDirectory())
+		{
+			File[] children = file.listFiles();
+			if (children != null)
+			{
+				Arrays.sort(children);
+				for (File child : children)
+					addSongFiles(songFiles, child);
+			}
+		}
+		else if (file.getName().toLowerCase().endsWith(AbcSong.MSX_FILE_EXTENSION))
+		{
+			songFiles.add(file);
+		}
+	}
+}
@@ -21,17 +21,7 @@ public class MaestroMain
 
 	public static void main(final String[] args) throws Exception
 	{
-		try
-		{
-			Properties props = new Properties();
-			props.load(MaestroMain.class.getResourceAsStream("version.txt"));
-			String versionString = props.getProperty("version.Maestro");
-			if (versionString != null)
-				APP_VERSION = Version.parseVersion(versionString);
-		}
-		catch (IOException ex)
-		{
-		}
+		loadAppVersion();
 
 		System.setProperty("sun.sound.useNewAudioEngine", "true");
 
@@ -62,6 +52,21 @@ public class MaestroMain
 		}
 	}
 
+	static void loadAppVersion()
+	{
+		try
+		{
+			Properties props = new Properties();
+			props.load(MaestroMain.class.getResourceAsStream("version.txt"));
+			String versionString = props.getProperty("version.Maestro");
+			if (versionString != null)
+				APP_VERSION = Version.parseVersion(versionString);
+		}
+		catch (IOException ex)
+		{
+		}
+	}
+
 	/** Tells the WinRun4J launcher that we're ready to accept activate() calls. */
 	public static native void ready();
 
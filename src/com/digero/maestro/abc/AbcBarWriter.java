@@ -0,0 +1,114 @@
+package com.digero.maestro.abc;
+
+import java.io.PrintWriter;
+
+/**
+ * Writes the notes of a bar of ABC, breaking the line as it goes if the bar gets too long. A line
+ * is broken at the last space within LINE_LENGTH characters of its start, and the rest of the bar
+ * continues on a new line indented by a tab. Trailing whitespace at the end of the bar is dropped.
+ * <p>
+ * Only the current line is kept in memory, so very long bars are written in linear time.
+ */
+public class AbcBarWriter
+{
+	public static final int LINE_LENGTH = 160;
+	private static final String LINE_BREAK = "\r\n\t";
+
+	private final PrintWriter out;
+
+	/** The part of the bar that hasn't been written yet, starting from the beginning of its line */
+	private final StringBuilder line = new StringBuilder(LINE_LENGTH * 2);
+
+	/** The length of the line, not counting trailing whitespace */
+	private int trimmedLength = 0;
+
+	private boolean empty = true;
+
+	public AbcBarWriter(PrintWriter out)
+	{
+		this.out = out;
+	}
+
+	/** Returns true if nothing has been added to the bar since it was last written. */
+	public boolean isEmpty()
+	{
+		return empty;
+	}
+
+	public AbcBarWriter append(char c)
+	{
+		line.append(c);
+		empty = false;
+		if (!Character.isWhitespace(c))
+		{
+			trimmedLength = line.length();
+			breakLines();
+		}
+		return this;
+	}
+
+	public AbcBarWriter append(String s)
+	{
+		if (s.isEmpty())
+			return this;
+
+		int start = line.length();
+		line.append(s);
+		empty = false;
+		for (int i = line.length() - 1; i >= start; i--)
+		{
+			if (!Character.isWhitespace(line.charAt(i)))
+			{
+				trimmedLength = i + 1;
+				breakLines();
+				break;
+			}
+		}
+		return this;
+	}
+
+	public AbcBarWriter append(int i)
+	{
+		return append(String.valueOf(i));
+	}
+
+	public AbcBarWriter append(Object o)
+	{
+		return append(String.valueOf(o));
+	}
+
+	/** Writes out the rest of the bar, without its trailing whitespace, and starts a new bar. */
+	public void write()
+	{
+		out.append(line, 0, trimmedLength);
+		line.setLength(0);
+		trimmedLength = 0;
+		empty = true;
+	}
+
+	private void breakLines()
+	{
+		while (trimmedLength > LINE_LENGTH)
+		{
+			int i = LINE_LENGTH;
+			while (i >= 2 && line.charAt(i) != ' ')
+				i--;
+
+			if (i >= 2)
+			{
+				// Replace the space with a line break; the tab starts the new line
+				out.append(line, 0, i).append(LINE_BREAK, 0, LINE_BREAK.length() - 1);
+				line.delete(0, i);
+				line.setCharAt(0, '\t');
+				trimmedLength -= i;
+			}
+			else
+			{
+				// No space to break the line at; look for one starting from the next character
+				out.append(line.charAt(0));
+				line.deleteCharAt(0);
+				trimmedLength--;
+			}
+		}
+	}
+}
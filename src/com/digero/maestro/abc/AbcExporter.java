@@ -1,14 +1,21 @@
 package com.digero.maestro.abc;
 
+import java.io.BufferedWriter;
+import java.io.CharArrayWriter;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.Track;
 
@@ -22,13 +29,19 @@ import com.digero.common.midi.MidiFactory;
 import com.digero.common.midi.Note;
 import com.digero.common.midi.PanGenerator;
 import com.digero.common.util.Pair;
+import com.digero.common.util.ParallelTasks;
 import com.digero.common.util.Util;
 import com.digero.maestro.MaestroMain;
 import com.digero.maestro.midi.Chord;
 import com.digero.maestro.midi.NoteEvent;
+import com.digero.maestro.midi.NoteEventList;
+import com.digero.maestro.midi.NoteEventQueue;
 
 public class AbcExporter
 {
+	/** Pass as the toBar of a bar range to export up to the end of the song */
+	public static final int END_OF_SONG = Integer.MAX_VALUE;
+
 	// Max parts for MIDI preview
 	private static final int MAX_PARTS = MidiConstants.CHANNEL_COUNT - 2; // Track 0 is reserved for metadata, and Track 9 is reserved for drums
 
@@ -38,8 +51,10 @@ public class AbcExporter
 	private KeySignature keySignature;
 
 	private boolean skipSilenceAtStart;
+	private boolean reuseQuantizedParts = true;
 	private long exportStartTick;
 	private long exportEndTick;
+	private Map<AbcPart, Integer> previewTrackNumbers = Collections.emptyMap();
 
 	public AbcExporter(List<AbcPart> parts, QuantizedTimingInfo timingInfo, KeySignature keySignature,
 			AbcMetadataSource metadata) throws AbcConversionException
@@ -88,6 +103,20 @@ public class AbcExporter
 		this.skipSilenceAtStart = skipSilenceAtStart;
 	}
 
+	public boolean isReuseQuantizedParts()
+	{
+		return reuseQuantizedParts;
+	}
+
+	/**
+	 * If true (the default), parts whose settings haven't changed since they were last exported
+	 * reuse their previously quantized notes instead of being quantized again.
+	 */
+	public void setReuseQuantizedParts(boolean reuseQuantizedParts)
+	{
+		this.reuseQuantizedParts = reuseQuantizedParts;
+	}
+
 	public AbcMetadataSource getMetadataSource()
 	{
 		return metadata;
@@ -103,6 +132,17 @@ public class AbcExporter
 		return exportEndTick;
 	}
 
+	/**
+	 * The track number of each part in the sequence built by the last call to
+	 * {@link #exportToPreview(boolean, int, int)}. The parts aren't changed by building a preview,
+	 * so that a preview built in the background doesn't change parts that are in use; the caller
+	 * sets {@link AbcPart#setPreviewSequenceTrackNumber(int)} when the preview is used.
+	 */
+	public Map<AbcPart, Integer> getPreviewTrackNumbers()
+	{
+		return previewTrackNumbers;
+	}
+
 	public long getExportStartMicros()
 	{
 		return qtm.tickToMicros(getExportStartTick());
@@ -117,9 +157,9 @@ public class AbcExporter
 	{
 		public final int trackNumber;
 		public final AbcPart part;
-		public final List<NoteEvent> noteEvents;
+		public final NoteEventList noteEvents;
 
-		public ExportTrackInfo(int trackNumber, AbcPart part, List<NoteEvent> noteEvents)
+		public ExportTrackInfo(int trackNumber, AbcPart part, NoteEventList noteEvents)
 		{
 			this.trackNumber = trackNumber;
 			this.part = part;
@@ -129,6 +169,19 @@ public class AbcExporter
 
 	public Pair<List<ExportTrackInfo>, Sequence> exportToPreview(boolean useLotroInstruments)
 			throws AbcConversionException, InvalidMidiDataException
+	{
+		return exportToPreview(useLotroInstruments, 0, END_OF_SONG);
+	}
+
+	/**
+	 * Previews only the notes that are playing during a range of bars. Notes that start before the
+	 * range are cut off at its first bar, and notes that continue past it are cut off at its end.
+	 * 
+	 * @param fromBar The first bar to preview, counting from 0 at the start of the exported song.
+	 * @param toBar The bar after the last one to preview, or {@link #END_OF_SONG}.
+	 */
+	public Pair<List<ExportTrackInfo>, Sequence> exportToPreview(boolean useLotroInstruments, int fromBar, int toBar)
+			throws AbcConversionException, InvalidMidiDataException
 	{
 		try
 		{
@@ -138,9 +191,7 @@ public class AbcExporter
 						+ "This song currently has " + parts.size() + " parts.");
 			}
 
-			Pair<Long, Long> startEndTick = getSongStartEndTick(true /* lengthenToBar */, false /* accountForSustain */);
-			exportStartTick = startEndTick.first;
-			exportEndTick = startEndTick.second;
+			setExportRange(fromBar, toBar);
 
 			Sequence sequence = new Sequence(Sequence.PPQ, qtm.getMidiResolution());
 
@@ -158,6 +209,11 @@ public class AbcExporter
 						useLotroInstruments));
 			}
 
+			Map<AbcPart, Integer> trackNumbers = new LinkedHashMap<AbcPart, Integer>();
+			for (ExportTrackInfo info : infoList)
+				trackNumbers.put(info.part, info.trackNumber);
+			previewTrackNumbers = Collections.unmodifiableMap(trackNumbers);
+
 			return new Pair<List<ExportTrackInfo>, Sequence>(infoList, sequence);
 		}
 		catch (RuntimeException e)
@@ -191,40 +247,37 @@ public class AbcExporter
 	private ExportTrackInfo exportPartToPreview(AbcPart part, Sequence sequence, long songStartTick, long songEndTick,
 			int pan, boolean useLotroInstruments) throws AbcConversionException
 	{
-		List<Chord> chords = combineAndQuantize(part, false, songStartTick, songEndTick);
+		QuantizedPart quantized = quantize(part, songStartTick, songEndTick);
 
-		int trackNumber = exportPartToMidi(part, sequence, chords, pan, useLotroInstruments);
+		int trackNumber = exportPartToMidi(part, sequence, quantized, pan, useLotroInstruments);
 
-		List<NoteEvent> noteEvents = new ArrayList<NoteEvent>(chords.size());
-		for (Chord chord : chords)
+		NoteEventList noteEvents = quantized.previewNotes;
+		if (noteEvents == null)
 		{
-			for (int i = 0; i < chord.size(); i++)
+			NoteEventList.Builder builder = new NoteEventList.Builder(qtm);
+			for (Chord chord : quantized.chords)
 			{
-				NoteEvent ne = chord.get(i);
-				// Skip rests and notes that are the continuation of a tied note
-				if (ne.note == Note.REST || ne.tiesFrom != null)
-					continue;
-
-				// Convert tied notes into a single note event
-				if (ne.tiesTo != null)
+				for (int i = 0; i < chord.size(); i++)
 				{
-					ne.setEndTick(ne.getTieEnd().getEndTick());
-					ne.tiesTo = null;
-					// Not fixing up the ne.tiesTo.tiesFrom pointer since we that for the    
-					// (ne.tiesFrom != null) check above, and we otherwise don't care about ne.tiesTo.
-				}
+					NoteEvent ne = chord.get(i);
+					// Skip rests and notes that are the continuation of a tied note
+					if (ne.note == Note.REST || ne.tiesFrom != null)
+						continue;
 
-				noteEvents.add(ne);
+					// Convert tied notes into a single note event
+					builder.add(ne.note.id, ne.velocity, ne.getStartTick(), ne.getTieEnd().getEndTick());
+				}
 			}
+			noteEvents = quantized.previewNotes = builder.build();
 		}
 
 		return new ExportTrackInfo(trackNumber, part, noteEvents);
 	}
 
-	private int exportPartToMidi(AbcPart part, Sequence out, List<Chord> chords, int pan, boolean useLotroInstruments)
+	private int exportPartToMidi(AbcPart part, Sequence out, QuantizedPart quantized, int pan,
+			boolean useLotroInstruments)
 	{
 		int trackNumber = out.getTracks().length;
-		part.setPreviewSequenceTrackNumber(trackNumber);
 		int channel = trackNumber;
 		if (channel >= MidiConstants.DRUM_CHANNEL)
 			channel++;
@@ -241,6 +294,25 @@ public class AbcExporter
 		}
 		track.add(MidiFactory.createPanEvent(pan, channel));
 
+		QuantizedPart.PreviewEvents previewEvents = quantized.previewEvents;
+		if (previewEvents == null || previewEvents.channel != channel
+				|| previewEvents.useLotroInstruments != useLotroInstruments)
+		{
+			List<MidiEvent> events = createMidiNoteEvents(part, quantized.chords, channel, useLotroInstruments);
+			previewEvents = new QuantizedPart.PreviewEvents(channel, useLotroInstruments, events);
+			quantized.previewEvents = previewEvents;
+		}
+
+		for (MidiEvent event : previewEvents.events)
+			track.add(event);
+
+		return trackNumber;
+	}
+
+	private List<MidiEvent> createMidiNoteEvents(AbcPart part, List<Chord> chords, int channel,
+			boolean useLotroInstruments)
+	{
+		List<MidiEvent> events = new ArrayList<MidiEvent>();
 		List<NoteEvent> notesOn = new ArrayList<NoteEvent>();
 
 		int noteDelta = 0;
@@ -274,7 +346,7 @@ public class AbcExporter
 					{
 						// This note has been turned off
 						onIter.remove();
-						track.add(MidiFactory.createNoteOffEvent(on.note.id + noteDelta, channel, endTick));
+						events.add(MidiFactory.createNoteOffEvent(on.note.id + noteDelta, channel, endTick));
 					}
 				}
 
@@ -294,7 +366,7 @@ public class AbcExporter
 				if (endTick != ne.getEndTick())
 					ne = new NoteEvent(ne.note, ne.velocity, ne.getStartTick(), endTick, qtm);
 
-				track.add(MidiFactory.createNoteOnEventEx(ne.note.id + noteDelta, channel,
+				events.add(MidiFactory.createNoteOnEventEx(ne.note.id + noteDelta, channel,
 						dynamics.getVol(useLotroInstruments), ne.getStartTick()));
 				notesOn.add(ne);
 			}
@@ -302,19 +374,35 @@ public class AbcExporter
 
 		for (NoteEvent on : notesOn)
 		{
-			track.add(MidiFactory.createNoteOffEvent(on.note.id + noteDelta, channel, on.getEndTick()));
+			events.add(MidiFactory.createNoteOffEvent(on.note.id + noteDelta, channel, on.getEndTick()));
 		}
 
-		return trackNumber;
+		return events;
 	}
 
+	/**
+	 * Writes the ABC file using the platform's default character set, which is what LotRO and
+	 * AbcToMidi use to read it.
+	 */
 	public void exportToAbc(OutputStream os) throws AbcConversionException
 	{
-		Pair<Long, Long> startEnd = getSongStartEndTick(true /* lengthenToBar */, false /* accountForSustain */);
-		exportStartTick = startEnd.first;
-		exportEndTick = startEnd.second;
+		exportToAbc(os, Charset.defaultCharset());
+	}
+
+	public void exportToAbc(OutputStream os, Charset charset) throws AbcConversionException
+	{
+		exportToAbc(os, charset, 0, END_OF_SONG);
+	}
+
+	/**
+	 * Writes an ABC file with only the notes that are playing during a range of bars, the same way
+	 * that {@link #exportToPreview(boolean, int, int)} previews them.
+	 */
+	public void exportToAbc(OutputStream os, Charset charset, int fromBar, int toBar) throws AbcConversionException
+	{
+		setExportRange(fromBar, toBar);
 
-		PrintStream out = new PrintStream(os);
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(os, charset)));
 		if (!parts.isEmpty())
 		{
 			out.println("%abc-2.1");
@@ -332,17 +420,73 @@ public class AbcExporter
 			out.println(AbcField.ABC_VERSION + "2.1");
 		}
 
+		// Quantize the parts and write their notes in parallel, then write them out in order
+		List<PartExportTask> tasks = new ArrayList<PartExportTask>(parts.size());
 		for (AbcPart part : parts)
 		{
-			exportPartToAbc(part, exportStartTick, exportEndTick, out);
+			tasks.add(new PartExportTask(part, exportStartTick, exportEndTick));
 		}
+
+		ParallelTasks.invokeAll(tasks);
+
+		for (PartExportTask task : tasks)
+		{
+			task.rethrowError();
+			exportPartHeaderToAbc(task.part, out);
+			out.write(task.notes.toCharArray());
+		}
+
+		out.flush();
+		if (out.checkError())
+			throw new AbcConversionException("Failed to write the ABC file");
 	}
 
-	private void exportPartToAbc(AbcPart part, long songStartTick, long songEndTick, PrintStream out)
-			throws AbcConversionException
+	/**
+	 * Combines and quantizes the notes of each part the same way that {@link #exportToAbc} does,
+	 * without writing any output. This lets the quantization be timed on its own.
+	 */
+	public List<List<Chord>> quantizeParts() throws AbcConversionException
 	{
-		List<Chord> chords = combineAndQuantize(part, true, songStartTick, songEndTick);
+		setExportRange(0, END_OF_SONG);
 
+		List<List<Chord>> result = new ArrayList<List<Chord>>(parts.size());
+		for (AbcPart part : parts)
+		{
+			result.add(quantize(part, exportStartTick, exportEndTick).chords);
+		}
+		return result;
+	}
+
+	/** Quantizes a part and writes its notes to a buffer */
+	@SuppressWarnings("serial")//
+	private class PartExportTask extends ParallelTasks.Task<AbcConversionException>
+	{
+		private final AbcPart part;
+		private final long songStartTick;
+		private final long songEndTick;
+		private final CharArrayWriter notes = new CharArrayWriter();
+
+		public PartExportTask(AbcPart part, long songStartTick, long songEndTick)
+		{
+			this.part = part;
+			this.songStartTick = songStartTick;
+			this.songEndTick = songEndTick;
+		}
+
+		@Override protected void run() throws AbcConversionException
+		{
+			PrintWriter out = new PrintWriter(notes);
+			exportPartToAbc(part, songStartTick, songEndTick, out);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Writes the part's header. This is done on the calling thread, since the part name template
+	 * isn't safe to use from more than one thread.
+	 */
+	private void exportPartHeaderToAbc(AbcPart part, PrintWriter out)
+	{
 		out.println();
 		out.println("X: " + part.getPartNumber());
 		if (metadata != null)
@@ -365,6 +509,13 @@ public class AbcExporter
 		out.println("Q: " + qtm.getPrimaryExportTempoBPM());
 		out.println("K: " + keySignature);
 		out.println();
+	}
+
+	/** Writes the part's notes. This can be called for several parts at once on different threads. */
+	private void exportPartToAbc(AbcPart part, long songStartTick, long songEndTick, PrintWriter out)
+			throws AbcConversionException
+	{
+		List<Chord> chords = quantize(part, songStartTick, songEndTick).chords;
 
 		// Keep track of which notes have been sharped or flatted so 
 		// we can naturalize them the next time they show up.
@@ -372,7 +523,6 @@ public class AbcExporter
 		boolean[] flats = new boolean[Note.MAX_PLAYABLE.id + 1];
 
 		// Write out ABC notation
-		final int BAR_LENGTH = 160;
 		final long songStartMicros = qtm.tickToMicros(songStartTick);
 		final int firstBarNumber = qtm.tickToBarNumber(songStartTick);
 		final int primaryExportTempoBPM = qtm.getPrimaryExportTempoBPM();
@@ -381,36 +531,7 @@ public class AbcExporter
 		Dynamics curDyn = null;
 		Dynamics initDyn = null;
 
-		final StringBuilder bar = new StringBuilder();
-
-		Runnable addLineBreaks = new Runnable()
-		{
-			@Override public void run()
-			{
-				// Trim end
-				int length = bar.length();
-				if (length == 0)
-					return;
-
-				while (Character.isWhitespace(bar.charAt(length - 1)))
-					length--;
-				bar.setLength(length);
-
-				// Insert line breaks inside very long bars
-				for (int i = BAR_LENGTH; i < bar.length(); i += BAR_LENGTH)
-				{
-					for (int j = 0; j < BAR_LENGTH - 1; j++, i--)
-					{
-						if (bar.charAt(i) == ' ')
-						{
-							bar.replace(i, i + 1, "\r\n\t");
-							i += "\r\n\t".length() - 1;
-							break;
-						}
-					}
-				}
-			}
-		};
+		final AbcBarWriter bar = new AbcBarWriter(out);
 
 		for (Chord c : chords)
 		{
@@ -427,20 +548,16 @@ public class AbcExporter
 				continue;
 			}
 
-			c.sort();
-
 			// Is this the start of a new bar?
 			int barNumber = qtm.tickToBarNumber(c.getStartTick());
 			assert curBarNumber <= barNumber;
 			if (curBarNumber < barNumber)
 			{
 				// Print the previous bar
-				if (bar.length() > 0)
+				if (!bar.isEmpty())
 				{
-					addLineBreaks.run();
-					out.print(bar);
+					bar.write();
 					out.println(" |");
-					bar.setLength(0);
 				}
 
 				curBarNumber = barNumber;
@@ -463,12 +580,11 @@ public class AbcExporter
 				curExportTempoBPM = tm.getExportTempoBPM();
 
 				// Print the partial bar
-				if (bar.length() > 0)
+				if (!bar.isEmpty())
 				{
-					addLineBreaks.run();
-					out.println(bar);
-					bar.setLength(0);
-					bar.append("\t");
+					bar.write();
+					out.println();
+					bar.append('\t');
 					out.print("\t");
 				}
 
@@ -483,11 +599,6 @@ public class AbcExporter
 				curDyn = newDyn;
 			}
 
-			if (c.size() > 1)
-			{
-				bar.append('[');
-			}
-
 			int notesWritten = 0;
 			for (int j = 0; j < c.size(); j++)
 			{
@@ -498,6 +609,10 @@ public class AbcExporter
 					continue;
 				}
 
+				// Start the chord once we know it has at least one note to write
+				if (notesWritten == 0 && c.size() > 1)
+					bar.append('[');
+
 				String noteAbc = evt.note.abc;
 				if (evt.note != Note.REST)
 				{
@@ -562,54 +677,79 @@ public class AbcExporter
 				notesWritten++;
 			}
 
-			if (c.size() > 1)
-			{
-				if (notesWritten == 0)
-				{
-					// Remove the [
-					bar.delete(bar.length() - 1, bar.length());
-				}
-				else
-				{
-					bar.append(']');
-				}
-			}
+			if (c.size() > 1 && notesWritten > 0)
+				bar.append(']');
 
 			bar.append(' ');
 		}
 
-		addLineBreaks.run();
-		out.print(bar);
+		bar.write();
 		out.println(" |]");
 		out.println();
 	}
 
 	/**
-	 * Combine the tracks into one, quantize the note lengths, separate into chords.
+	 * Returns the part's notes combined and quantized into chords, reusing the part's previous
+	 * result if none of the settings that affect it have changed.
 	 */
-	private List<Chord> combineAndQuantize(AbcPart part, boolean addTies, final long songStartTick,
-			final long songEndTick) throws AbcConversionException
+	private QuantizedPart quantize(AbcPart part, long songStartTick, long songEndTick) throws AbcConversionException
 	{
+		QuantizedPart.Key key = new QuantizedPart.Key(part, qtm, songStartTick, songEndTick);
+		if (reuseQuantizedParts)
+		{
+			QuantizedPart previous = part.getQuantized();
+			if (previous != null && previous.key.equals(key))
+				return previous;
+		}
+
+		QuantizedPart quantized = new QuantizedPart(key, combineAndQuantize(part, songStartTick, songEndTick));
+
+		// Don't keep the result if the part was edited (on another thread) while it was being quantized
+		if (reuseQuantizedParts && key.equals(new QuantizedPart.Key(part, qtm, songStartTick, songEndTick)))
+			part.setQuantized(quantized);
+
+		return quantized;
+	}
+
+	/**
+	 * Combine the tracks into one, quantize the note lengths, separate into chords. The chords are
+	 * used for both the ABC file and the preview, so that the preview plays what's in the file.
+	 */
+	private List<Chord> combineAndQuantize(AbcPart part, final long songStartTick, final long songEndTick)
+			throws AbcConversionException
+	{
+		final long quantizedStartTick = qtm.quantize(songStartTick);
+		final long quantizedEndTick = (songEndTick < Long.MAX_VALUE) ? qtm.quantize(songEndTick) : Long.MAX_VALUE;
+
 		// Combine the events from the enabled tracks
 		List<NoteEvent> events = new ArrayList<NoteEvent>();
 		for (int t = 0; t < part.getTrackCount(); t++)
 		{
 			if (part.isTrackEnabled(t))
 			{
-				for (NoteEvent ne : part.getTrackEvents(t))
+				NoteEventList trackEvents = part.getTrackEvents(t);
+				for (int i = 0; i < trackEvents.size(); i++)
 				{
 					// Skip notes that are outside of the play range.
-					if (ne.getEndTick() <= songStartTick || ne.getStartTick() >= songEndTick)
+					if (trackEvents.getEndTick(i) <= songStartTick || trackEvents.getStartTick(i) >= songEndTick)
 						continue;
 
-					Note mappedNote = part.mapNote(t, ne.note.id);
+					// Also skip notes that are quantized to outside of the play range. When exporting a
+					// range of bars, these notes are played in the bars before or after the range.
+					if (trackEvents.getStartTick(i) < songStartTick
+							&& qtm.quantize(trackEvents.getEndTick(i)) <= quantizedStartTick)
+						continue;
+					if (qtm.quantize(trackEvents.getStartTick(i)) >= quantizedEndTick)
+						continue;
+
+					Note mappedNote = part.mapNote(t, trackEvents.getNoteId(i));
 					if (mappedNote != null)
 					{
 						assert mappedNote.id >= part.getInstrument().lowestPlayable.id : mappedNote;
 						assert mappedNote.id <= part.getInstrument().highestPlayable.id : mappedNote;
-						long startTick = Math.max(ne.getStartTick(), songStartTick);
-						long endTick = Math.min(ne.getEndTick(), songEndTick);
-						int velocity = ne.velocity + part.getTrackVolumeAdjust(t);
+						long startTick = Math.max(trackEvents.getStartTick(i), songStartTick);
+						long endTick = Math.min(trackEvents.getEndTick(i), songEndTick);
+						int velocity = trackEvents.getVelocity(i) + part.getTrackVolumeAdjust(t);
 						events.add(new NoteEvent(mappedNote, velocity, startTick, endTick, qtm));
 					}
 				}
@@ -622,10 +762,10 @@ public class AbcExporter
 		Collections.sort(events);
 
 		// Quantize the events
-		Iterator<NoteEvent> neIter = events.iterator();
-		while (neIter.hasNext())
+		int count = 0;
+		for (int i = 0; i < events.size(); i++)
 		{
-			NoteEvent ne = neIter.next();
+			NoteEvent ne = events.get(i);
 
 			ne.setStartTick(qtm.quantize(ne.getStartTick()));
 			ne.setEndTick(qtm.quantize(ne.getEndTick()));
@@ -634,14 +774,15 @@ public class AbcExporter
 			if (ne.getLengthTicks() == 0)
 			{
 				if (ne.note == Note.REST)
-					neIter.remove();
-				else
-					ne.setLengthTicks(qtm.getTimingInfo(ne.getStartTick()).getMinNoteLengthTicks());
+					continue;
+
+				ne.setLengthTicks(qtm.getTimingInfo(ne.getStartTick()).getMinNoteLengthTicks());
 			}
+			events.set(count++, ne);
 		}
+		events.subList(count, events.size()).clear();
 
 		// Add initial rest if necessary
-		long quantizedStartTick = qtm.quantize(songStartTick);
 		if (events.get(0).getStartTick() > quantizedStartTick)
 		{
 			events.add(0, new NoteEvent(Note.REST, Dynamics.DEFAULT.midiVol, quantizedStartTick, events.get(0)
@@ -651,7 +792,6 @@ public class AbcExporter
 		// Add a rest at the end if necessary
 		if (songEndTick < Long.MAX_VALUE)
 		{
-			long quantizedEndTick = qtm.quantize(songEndTick);
 			NoteEvent lastEvent = events.get(events.size() - 1);
 			if (lastEvent.getEndTick() < quantizedEndTick)
 			{
@@ -667,22 +807,17 @@ public class AbcExporter
 			}
 		}
 
-		// Remove duplicate notes
-		List<NoteEvent> notesOn = new ArrayList<NoteEvent>();
-		neIter = events.iterator();
-		dupLoop: while (neIter.hasNext())
+		// Remove duplicate notes. Only one note of each pitch is left on at a time, so the note
+		// that's currently on is kept for each pitch. The rests at the start and end never overlap.
+		NoteEvent[] notesOn = new NoteEvent[MidiConstants.NOTE_COUNT];
+		count = 0;
+		for (int i = 0; i < events.size(); i++)
 		{
-			NoteEvent ne = neIter.next();
-			Iterator<NoteEvent> onIter = notesOn.iterator();
-			while (onIter.hasNext())
+			NoteEvent ne = events.get(i);
+			if (ne.note != Note.REST)
 			{
-				NoteEvent on = onIter.next();
-				if (on.getEndTick() < ne.getStartTick())
-				{
-					// This note has already been turned off
-					onIter.remove();
-				}
-				else if (on.note.id == ne.note.id)
+				NoteEvent on = notesOn[ne.note.id];
+				if (on != null && on.getEndTick() >= ne.getStartTick())
 				{
 					if (on.getStartTick() == ne.getStartTick())
 					{
@@ -692,8 +827,7 @@ public class AbcExporter
 							on.setEndTick(ne.getEndTick());
 
 						// Remove the duplicate note
-						neIter.remove();
-						continue dupLoop;
+						continue;
 					}
 					else
 					{
@@ -706,32 +840,32 @@ public class AbcExporter
 						// 2. Shorten the note that's currently on to end at the same time that 
 						//    the next one starts.
 						on.setEndTick(ne.getStartTick());
-						onIter.remove();
 					}
 				}
+				notesOn[ne.note.id] = ne;
 			}
-			notesOn.add(ne);
+			events.set(count++, ne);
 		}
+		events.subList(count, events.size()).clear();
 
-		breakLongNotes(part, events, addTies);
+		NoteEventQueue queue = new NoteEventQueue(breakLongNotes(part, events));
 
 		List<Chord> chords = new ArrayList<Chord>(events.size() / 2);
 		List<NoteEvent> tmpEvents = new ArrayList<NoteEvent>();
 
 		// Combine notes that play at the same time into chords
-		Chord curChord = new Chord(events.get(0));
+		Chord curChord = new Chord(queue.poll());
 		chords.add(curChord);
-		for (int i = 1; i < events.size(); i++)
+		for (NoteEvent ne = queue.peek(); ne != null; ne = queue.peek())
 		{
-			NoteEvent ne = events.get(i);
 			if (curChord.getStartTick() == ne.getStartTick())
 			{
 				// This note starts at the same time as the rest of the notes in the chord
+				queue.poll();
 				if (!curChord.add(ne))
 				{
 					// Couldn't add the note (too many notes in the chord)
-					removeNote(events, i);
-					i--;
+					removeNote(queue, ne);
 				}
 			}
 			else
@@ -739,70 +873,31 @@ public class AbcExporter
 				// Create a new chord
 				Chord nextChord = new Chord(ne);
 
-				if (addTies)
-				{
-					// The curChord has all the notes it will get. But before continuing, 
-					// normalize the chord so that all notes end at the same time and end 
-					// before the next chord starts.
-					boolean reprocessCurrentNote = false;
-					long targetEndTick = Math.min(nextChord.getStartTick(), curChord.getEndTick());
-
-					for (int j = 0; j < curChord.size(); j++)
-					{
-						NoteEvent jne = curChord.get(j);
-						if (jne.getEndTick() > targetEndTick)
-						{
-							// This note extends past the end of the chord; break it into two tied notes
-							NoteEvent next = jne.splitWithTieAtTick(targetEndTick);
-
-							int ins = Collections.binarySearch(events, next);
-							if (ins < 0)
-								ins = -ins - 1;
-							assert (ins >= i);
-							// If we're inserting before the current note, back up and process the added note
-							if (ins == i)
-								reprocessCurrentNote = true;
-
-							events.add(ins, next);
-						}
-					}
+				// The curChord has all the notes it will get. But before continuing, 
+				// normalize the chord so that all notes end at the same time and end 
+				// before the next chord starts.
+				long targetEndTick = Math.min(nextChord.getStartTick(), curChord.getEndTick());
 
-					// The shorter notes will have changed the chord's duration
-					if (targetEndTick < curChord.getEndTick())
-						curChord.recalcEndTick();
-
-					if (reprocessCurrentNote)
+				for (int j = 0; j < curChord.size(); j++)
+				{
+					NoteEvent jne = curChord.get(j);
+					if (jne.getEndTick() > targetEndTick)
 					{
-						i--;
-						continue;
+						// This note extends past the end of the chord; break it into two tied notes
+						queue.add(jne.splitWithTieAtTick(targetEndTick));
 					}
 				}
-				else
-				{
-					// If we're not allowed to add ties, use the old method of shortening the 
-					// chord by inserting a short rest. 
 
-					// The next chord starts playing immediately after the *shortest* note (or rest) in
-					// the current chord is finished, so we may need to add a rest inside the chord to
-					// shorten it, or a rest after the chord to add a pause.
+				// The shorter notes will have changed the chord's duration
+				if (targetEndTick < curChord.getEndTick())
+					curChord.recalcEndTick();
 
-					if (curChord.getEndTick() > nextChord.getStartTick())
-					{
-						// Make sure there's room to add the rest
-						while (curChord.size() >= Chord.MAX_CHORD_NOTES)
-						{
-							removeNote(events, curChord.remove(curChord.size() - 1));
-						}
-					}
+				// If one of the added notes comes before the current note, process it first
+				if (queue.peek() != ne)
+					continue;
 
-					// Check the chord length again, since removing a note might have changed its length
-					if (curChord.getEndTick() > nextChord.getStartTick())
-					{
-						// If the chord is too long, add a short rest in the chord to shorten it
-						curChord.add(new NoteEvent(Note.REST, Dynamics.DEFAULT.midiVol, curChord.getStartTick(),
-								nextChord.getStartTick(), qtm));
-					}
-				}
+				// The current note starts the next chord
+				queue.poll();
 
 				// Insert a rest between the chords if needed
 				if (curChord.getEndTick() < nextChord.getStartTick())
@@ -810,9 +905,8 @@ public class AbcExporter
 					tmpEvents.clear();
 					tmpEvents.add(new NoteEvent(Note.REST, Dynamics.DEFAULT.midiVol, curChord.getEndTick(), nextChord
 							.getStartTick(), qtm));
-					breakLongNotes(part, tmpEvents, addTies);
 
-					for (NoteEvent restEvent : tmpEvents)
+					for (NoteEvent restEvent : breakLongNotes(part, tmpEvents))
 						chords.add(new Chord(restEvent));
 				}
 
@@ -821,14 +915,24 @@ public class AbcExporter
 			}
 		}
 
+		// Sort the notes of each chord now, since the chords are shared by the ABC and the preview
+		for (Chord c : chords)
+			c.sort();
+
 		return chords;
 	}
 
-	private void breakLongNotes(AbcPart part, List<NoteEvent> events, boolean addTies)
+	/**
+	 * Returns the events with notes that are too long for LotRO broken up, and with notes split into
+	 * tied notes at bar lines and note-length boundaries.
+	 */
+	private List<NoteEvent> breakLongNotes(AbcPart part, List<NoteEvent> events)
 	{
-		for (int i = 0; i < events.size(); i++)
+		List<NoteEvent> result = new ArrayList<NoteEvent>(events.size());
+		NoteEventQueue queue = new NoteEventQueue(events);
+		for (NoteEvent ne = queue.poll(); ne != null; ne = queue.poll())
 		{
-			NoteEvent ne = events.get(i);
+			result.add(ne);
 			TimingInfo tm = qtm.getTimingInfo(ne.getStartTick());
 			long maxNoteEndTick = ne.getStartTick() + tm.getMaxNoteLengthTicks();
 
@@ -851,11 +955,7 @@ public class AbcExporter
 				if (ne.note == Note.REST || part.getInstrument().isSustainable(ne.note.id))
 				{
 					NoteEvent next = new NoteEvent(ne.note, ne.velocity, maxNoteEndTick, ne.getEndTick(), qtm);
-					int ins = Collections.binarySearch(events, next);
-					if (ins < 0)
-						ins = -ins - 1;
-					assert (ins > i);
-					events.add(ins, next);
+					queue.add(next);
 
 					/* If the final note is less than a full bar length, just tie it to the original
 					 * note rather than creating a hard break. We don't want the last piece of a
@@ -872,62 +972,55 @@ public class AbcExporter
 				ne.setEndTick(maxNoteEndTick);
 			}
 
-			if (addTies)
-			{
-				// Tie notes across bar boundaries
-				long targetEndTick = Math.min(ne.getEndTick(), qtm.tickToBarEndTick(ne.getStartTick()));
+			// Tie notes across bar boundaries
+			long targetEndTick = Math.min(ne.getEndTick(), qtm.tickToBarEndTick(ne.getStartTick()));
 
-				// Tie notes across tempo boundaries
-				final QuantizedTimingInfo.TimingInfoEvent nextTempoEvent = qtm.getNextTimingEvent(ne.getStartTick());
-				if (nextTempoEvent != null && nextTempoEvent.tick < targetEndTick)
-					targetEndTick = nextTempoEvent.tick;
+			// Tie notes across tempo boundaries
+			final QuantizedTimingInfo.TimingInfoEvent nextTempoEvent = qtm.getNextTimingEvent(ne.getStartTick());
+			if (nextTempoEvent != null && nextTempoEvent.tick < targetEndTick)
+				targetEndTick = nextTempoEvent.tick;
 
-				/* Make sure that quarter notes start on quarter-note boundaries within the bar, and
-				 * that eighth notes start on eight-note boundaries, and so on. Add a tie at the
-				 * boundary if they start past the boundary. */
-				{
-					long barStartTick = qtm.tickToBarStartTick(ne.getStartTick());
-					long gridTicks = tm.getMinNoteLengthTicks();
-					long wholeNoteTicks = tm.getBarLengthTicks() * tm.getMeter().denominator / tm.getMeter().numerator;
+			/* Make sure that quarter notes start on quarter-note boundaries within the bar, and
+			 * that eighth notes start on eight-note boundaries, and so on. Add a tie at the
+			 * boundary if they start past the boundary. */
+			{
+				long barStartTick = qtm.tickToBarStartTick(ne.getStartTick());
+				long gridTicks = tm.getMinNoteLengthTicks();
+				long wholeNoteTicks = tm.getBarLengthTicks() * tm.getMeter().denominator / tm.getMeter().numerator;
 
-					// Try unit note lengths of whole, then half, quarter, eighth, sixteenth, etc.
-					for (long unitNoteTicks = wholeNoteTicks; unitNoteTicks > gridTicks * 2; unitNoteTicks /= 2)
+				// Try unit note lengths of whole, then half, quarter, eighth, sixteenth, etc.
+				for (long unitNoteTicks = wholeNoteTicks; unitNoteTicks > gridTicks * 2; unitNoteTicks /= 2)
+				{
+					// Check if this note starts on the current unit-note grid
+					final long startTickInsideBar = ne.getStartTick() - barStartTick;
+					if (Util.floorGrid(startTickInsideBar, unitNoteTicks) == startTickInsideBar)
 					{
-						// Check if this note starts on the current unit-note grid
-						final long startTickInsideBar = ne.getStartTick() - barStartTick;
-						if (Util.floorGrid(startTickInsideBar, unitNoteTicks) == startTickInsideBar)
+						// Ok, this note starts on this unit grid, now make sure it ends on the next
+						// unit grid. If it ends before the next unit grid, keep halving the length.
+						if (targetEndTick >= ne.getStartTick() + unitNoteTicks)
 						{
-							// Ok, this note starts on this unit grid, now make sure it ends on the next
-							// unit grid. If it ends before the next unit grid, keep halving the length.
-							if (targetEndTick >= ne.getStartTick() + unitNoteTicks)
-							{
-								// Exception: dotted notes (1.5x the unit grid) are ok
-								if (targetEndTick != ne.getStartTick() + (unitNoteTicks * 3 / 2))
-									targetEndTick = ne.getStartTick() + unitNoteTicks;
-
-								break;
-							}
+							// Exception: dotted notes (1.5x the unit grid) are ok
+							if (targetEndTick != ne.getStartTick() + (unitNoteTicks * 3 / 2))
+								targetEndTick = ne.getStartTick() + unitNoteTicks;
+
+							break;
 						}
 					}
 				}
+			}
 
-				if (ne.getEndTick() > targetEndTick)
-				{
-					NoteEvent next = ne.splitWithTieAtTick(targetEndTick);
-					int ins = Collections.binarySearch(events, next);
-					if (ins < 0)
-						ins = -ins - 1;
-					assert (ins > i);
-					events.add(ins, next);
-				}
+			if (ne.getEndTick() > targetEndTick)
+			{
+				queue.add(ne.splitWithTieAtTick(targetEndTick));
 			}
 		}
+		return result;
 	}
 
 	/** Removes a note and breaks any ties the note has. */
-	private void removeNote(List<NoteEvent> events, int i)
+	private void removeNote(NoteEventQueue queue, NoteEvent ne)
 	{
-		NoteEvent ne = events.remove(i);
+		queue.remove(ne);
 
 		// If the note is tied from another (previous) note, break the incoming tie
 		if (ne.tiesFrom != null)
@@ -939,14 +1032,31 @@ public class AbcExporter
 		// Remove the remainder of the notes that this is tied to (if any)
 		for (NoteEvent neTie = ne.tiesTo; neTie != null; neTie = neTie.tiesTo)
 		{
-			events.remove(neTie);
+			queue.remove(neTie);
 		}
 	}
 
-	/** Removes a note and breaks any ties the note has. */
-	private void removeNote(List<NoteEvent> events, NoteEvent ne)
+	/**
+	 * Sets the export start and end ticks to a range of bars of the song. Notes are cut off at the
+	 * edges of the range when they're combined and quantized, and any part of a note that's split
+	 * across bars inside the range is tied the same way as in the whole song.
+	 */
+	private void setExportRange(int fromBar, int toBar)
 	{
-		removeNote(events, events.indexOf(ne));
+		if (fromBar < 0 || toBar < fromBar)
+			throw new IllegalArgumentException("Invalid bar range: " + fromBar + " to " + toBar);
+
+		Pair<Long, Long> startEnd = getSongStartEndTick(true /* lengthenToBar */, false /* accountForSustain */);
+		exportStartTick = startEnd.first;
+		exportEndTick = startEnd.second;
+
+		// The song starts and ends on bar lines, so the range can be counted in whole bars
+		int firstBar = qtm.tickToBarNumber(exportStartTick);
+		int barCount = qtm.tickToBarNumber(exportEndTick) - firstBar;
+		if (toBar < barCount)
+			exportEndTick = qtm.barNumberToBarStartTick(firstBar + toBar);
+		if (fromBar > 0)
+			exportStartTick = qtm.barNumberToBarStartTick(firstBar + Math.min(fromBar, barCount));
 	}
 
 	public Pair<Long, Long> getSongStartEndTick(boolean lengthenToBar, boolean accountForSustain)
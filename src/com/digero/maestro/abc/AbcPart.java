@@ -1,8 +1,6 @@
 package com.digero.maestro.abc;
 
 import java.util.BitSet;
-import java.util.List;
-import java.util.ListIterator;
 import java.util.SortedSet;
 import java.util.prefs.Preferences;
 import java.util.regex.MatchResult;
@@ -27,7 +25,7 @@ import com.digero.common.util.ParseException;
 import com.digero.common.util.Version;
 import com.digero.maestro.abc.AbcPartEvent.AbcPartProperty;
 import com.digero.maestro.abc.AbcSongEvent.AbcSongProperty;
-import com.digero.maestro.midi.NoteEvent;
+import com.digero.maestro.midi.NoteEventList;
 import com.digero.maestro.midi.SequenceInfo;
 import com.digero.maestro.midi.TrackInfo;
 import com.digero.maestro.util.SaveUtil;
@@ -48,6 +46,7 @@ public class AbcPart implements AbcPartMetadataSource, NumberedAbcPart, IDiscard
 	private final AbcSong abcSong;
 	private int enabledTrackCount = 0;
 	private int previewSequenceTrackNumber = -1;
+	private QuantizedPart quantized = null;
 	private final ListenerList<AbcPartEvent> listeners = new ListenerList<AbcPartEvent>();
 	private Preferences drumPrefs = Preferences.userNodeForPackage(AbcPart.class).node("drums");
 
@@ -82,6 +81,10 @@ public class AbcPart implements AbcPartMetadataSource, NumberedAbcPart, IDiscard
 				drumNoteMap[i] = null;
 			}
 		}
+		synchronized (this)
+		{
+			quantized = null;
+		}
 	}
 
 	public void saveToXml(Element ele)
@@ -271,7 +274,7 @@ public class AbcPart implements AbcPartMetadataSource, NumberedAbcPart, IDiscard
 		}
 	};
 
-	public List<NoteEvent> getTrackEvents(int track)
+	public NoteEventList getTrackEvents(int track)
 	{
 		return abcSong.getSequenceInfo().getTrackInfo(track).getEvents();
 	}
@@ -315,12 +318,13 @@ public class AbcPart implements AbcPartMetadataSource, NumberedAbcPart, IDiscard
 		{
 			if (isTrackEnabled(t))
 			{
-				for (NoteEvent ne : getTrackEvents(t))
+				NoteEventList evts = getTrackEvents(t);
+				for (int i = 0; i < evts.size(); i++)
 				{
-					if (mapNote(t, ne.note.id) != null)
+					if (mapNote(t, evts.getNoteId(i)) != null)
 					{
-						if (ne.getStartTick() < startTick)
-							startTick = ne.getStartTick();
+						if (evts.getStartTick(i) < startTick)
+							startTick = evts.getStartTick(i);
 						break;
 					}
 				}
@@ -345,21 +349,19 @@ public class AbcPart implements AbcPartMetadataSource, NumberedAbcPart, IDiscard
 		{
 			if (isTrackEnabled(t))
 			{
-				List<NoteEvent> evts = getTrackEvents(t);
-				ListIterator<NoteEvent> iter = evts.listIterator(evts.size());
-				while (iter.hasPrevious())
+				NoteEventList evts = getTrackEvents(t);
+				for (int i = evts.size() - 1; i >= 0; i--)
 				{
-					NoteEvent ne = iter.previous();
-					if (mapNote(t, ne.note.id) != null)
+					int noteId = evts.getNoteId(i);
+					if (mapNote(t, noteId) != null)
 					{
 						long noteEndTick;
-						if (!accountForSustain || instrument.isSustainable(ne.note.id))
-							noteEndTick = ne.getEndTick();
+						if (!accountForSustain || instrument.isSustainable(noteId))
+							noteEndTick = evts.getEndTick(i);
 						else
 						{
-							ITempoCache tc = ne.getTempoCache();
-							noteEndTick = tc.microsToTick(tc.tickToMicros(ne.getStartTick())
-									+ TimingInfo.ONE_SECOND_MICROS);
+							ITempoCache tc = evts.getTempoCache();
+							noteEndTick = tc.microsToTick(evts.getStartMicros(i) + TimingInfo.ONE_SECOND_MICROS);
 						}
 
 						if (noteEndTick > endTick)
@@ -524,6 +526,17 @@ public class AbcPart implements AbcPartMetadataSource, NumberedAbcPart, IDiscard
 		return previewSequenceTrackNumber;
 	}
 
+	/** The notes from the last time AbcExporter quantized this part. */
+	synchronized QuantizedPart getQuantized()
+	{
+		return quantized;
+	}
+
+	synchronized void setQuantized(QuantizedPart result)
+	{
+		quantized = result;
+	}
+
 	@Override public int getPartNumber()
 	{
 		return partNumber;
@@ -0,0 +1,121 @@
+package com.digero.maestro.abc;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sound.midi.MidiEvent;
+
+import com.digero.common.abc.LotroInstrument;
+import com.digero.common.midi.MidiConstants;
+import com.digero.common.midi.Note;
+import com.digero.maestro.midi.Chord;
+import com.digero.maestro.midi.NoteEventList;
+
+/**
+ * The chords that AbcExporter produced by combining and quantizing a part's notes, along with a
+ * key describing everything that they were built from. The same chords are used for the ABC file
+ * and the preview. Each part keeps its most recent result, so that exporting or previewing a song
+ * only needs to quantize the parts that have changed.
+ * <p>
+ * The chords must not be modified once they've been stored here.
+ */
+class QuantizedPart
+{
+	/**
+	 * Everything that combineAndQuantize() reads from the part and the song. Rather than tracking
+	 * the transpose, drum map, etc. separately, each enabled track stores the note that every MIDI
+	 * note maps to.
+	 */
+	static class Key
+	{
+		private final QuantizedTimingInfo qtm;
+		private final long songStartTick;
+		private final long songEndTick;
+		private final LotroInstrument instrument;
+		private final int[] tracks;
+		private final int hash;
+
+		public Key(AbcPart part, QuantizedTimingInfo qtm, long songStartTick, long songEndTick)
+		{
+			this.qtm = qtm;
+			this.songStartTick = songStartTick;
+			this.songEndTick = songEndTick;
+			this.instrument = part.getInstrument();
+
+			int enabledCount = 0;
+			for (int t = 0; t < part.getTrackCount(); t++)
+			{
+				if (part.isTrackEnabled(t))
+					enabledCount++;
+			}
+
+			tracks = new int[enabledCount * (MidiConstants.NOTE_COUNT + 2)];
+			int i = 0;
+			for (int t = 0; t < part.getTrackCount(); t++)
+			{
+				if (!part.isTrackEnabled(t))
+					continue;
+
+				tracks[i++] = t;
+				tracks[i++] = part.getTrackVolumeAdjust(t);
+				for (int id = MidiConstants.LOWEST_NOTE_ID; id <= MidiConstants.HIGHEST_NOTE_ID; id++)
+				{
+					Note mapped = part.mapNote(t, id);
+					tracks[i++] = (mapped == null) ? -1 : mapped.id;
+				}
+			}
+
+			int h = System.identityHashCode(qtm);
+			h = 31 * h + (int) (songStartTick ^ (songStartTick >>> 32));
+			h = 31 * h + (int) (songEndTick ^ (songEndTick >>> 32));
+			h = 31 * h + instrument.ordinal();
+			h = 31 * h + Arrays.hashCode(tracks);
+			this.hash = h;
+		}
+
+		@Override public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override public boolean equals(Object obj)
+		{
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+
+			Key that = (Key) obj;
+			return this.hash == that.hash && this.qtm == that.qtm && this.songStartTick == that.songStartTick
+					&& this.songEndTick == that.songEndTick && this.instrument == that.instrument
+					&& Arrays.equals(this.tracks, that.tracks);
+		}
+	}
+
+	public final Key key;
+	public final List<Chord> chords;
+
+	// The preview's note events and MIDI note events, built from the chords the first time they're needed
+	volatile NoteEventList previewNotes;
+	volatile PreviewEvents previewEvents;
+
+	static class PreviewEvents
+	{
+		public final int channel;
+		public final boolean useLotroInstruments;
+		public final List<MidiEvent> events;
+
+		public PreviewEvents(int channel, boolean useLotroInstruments, List<MidiEvent> events)
+		{
+			this.channel = channel;
+			this.useLotroInstruments = useLotroInstruments;
+			this.events = events;
+		}
+	}
+
+	public QuantizedPart(Key key, List<Chord> chords)
+	{
+		this.key = key;
+		this.chords = chords;
+	}
+}
@@ -1,12 +1,10 @@
 package com.digero.maestro.abc;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.NavigableMap;
-import java.util.NavigableSet;
 import java.util.TreeMap;
-import java.util.TreeSet;
 
 import com.digero.common.midi.IBarNumberCache;
 import com.digero.common.midi.ITempoCache;
@@ -21,8 +19,18 @@ public class QuantizedTimingInfo implements ITempoCache, IBarNumberCache
 	// Tick => TimingInfoEvent
 	private final NavigableMap<Long, TimingInfoEvent> timingInfoByTick = new TreeMap<Long, TimingInfoEvent>();
 
-	private NavigableSet<Long> barStartTicks = null;
-	private Long[] barStartTickByBar = null;
+	// The timing events in order, for binary searches by tick or by micros. The segment arrays hold
+	// the values that quantize() and tickToBarNumber() need from each event.
+	private final TimingInfoEvent[] timingEvents;
+	private final long[] timingEventTicks;
+	private final long[] timingEventMicros;
+	private final double[] segmentBarNumbers;
+	private final double[] segmentBarLengthTicks;
+	private final long[] segmentGridTicks;
+
+	// The start tick of each bar, sorted; indexed by bar number. Calculated the first time it's
+	// needed, which may happen on several threads at once when parts are exported in parallel.
+	private volatile long[] barStartTicks = null;
 	private final long songLengthTicks;
 	private final int tickResolution;
 
@@ -107,6 +115,22 @@ public class QuantizedTimingInfo implements ITempoCache, IBarNumberCache
 
 			timingInfoByTick.put(tick, event);
 		}
+
+		timingEvents = timingInfoByTick.values().toArray(new TimingInfoEvent[timingInfoByTick.size()]);
+		timingEventTicks = new long[timingEvents.length];
+		timingEventMicros = new long[timingEvents.length];
+		segmentBarNumbers = new double[timingEvents.length];
+		segmentBarLengthTicks = new double[timingEvents.length];
+		segmentGridTicks = new long[timingEvents.length];
+		for (int i = 0; i < timingEvents.length; i++)
+		{
+			TimingInfoEvent e = timingEvents[i];
+			timingEventTicks[i] = e.tick;
+			timingEventMicros[i] = e.micros;
+			segmentBarNumbers[i] = e.barNumber;
+			segmentBarLengthTicks[i] = e.info.getBarLengthTicks();
+			segmentGridTicks[i] = e.info.getMinNoteLengthTicks();
+		}
 	}
 
 	public int getPrimaryTempoMPQ()
@@ -151,8 +175,8 @@ public class QuantizedTimingInfo implements ITempoCache, IBarNumberCache
 
 	public long quantize(long tick)
 	{
-		TimingInfoEvent e = getTimingEventForTick(tick);
-		return e.tick + Util.roundGrid(tick - e.tick, e.info.getMinNoteLengthTicks());
+		int i = getTimingEventIndex(tick);
+		return timingEventTicks[i] + Util.roundGrid(tick - timingEventTicks[i], segmentGridTicks[i]);
 	}
 
 	@Override public long tickToMicros(long tick)
@@ -169,40 +193,34 @@ public class QuantizedTimingInfo implements ITempoCache, IBarNumberCache
 
 	@Override public int tickToBarNumber(long tick)
 	{
-		TimingInfoEvent e = getTimingEventForTick(tick);
-		return (int) Math.floor(e.barNumber + (tick - e.tick) / ((double) e.info.getBarLengthTicks()));
+		int i = getTimingEventIndex(tick);
+		return (int) Math.floor(segmentBarNumbers[i] + (tick - timingEventTicks[i]) / segmentBarLengthTicks[i]);
 	}
 
 	public long tickToBarStartTick(long tick)
 	{
-		if (barStartTicks == null)
-			calcBarStarts();
-
-		if (tick <= barStartTicks.last())
-			return barStartTicks.floor(tick);
+		long[] barStartTicks = getBarStartTicks();
+		if (tick <= barStartTicks[barStartTicks.length - 1])
+			return barStartTicks[Math.max(Util.floorIndex(barStartTicks, tick), 0)];
 
 		return barNumberToBarStartTick(tickToBarNumber(tick));
 	}
 
 	public long tickToBarEndTick(long tick)
 	{
-		if (barStartTicks == null)
-			calcBarStarts();
-
-		Long endTick = barStartTicks.higher(tick);
-		if (endTick != null)
-			return endTick;
+		long[] barStartTicks = getBarStartTicks();
+		int i = Util.floorIndex(barStartTicks, tick) + 1;
+		if (i < barStartTicks.length)
+			return barStartTicks[i];
 
 		return barNumberToBarEndTick(tickToBarNumber(tick));
 	}
 
 	public long barNumberToBarStartTick(int barNumber)
 	{
-		if (barStartTickByBar == null)
-			calcBarStarts();
-
-		if (barNumber < barStartTickByBar.length)
-			return barStartTickByBar[barNumber];
+		long[] barStartTicks = getBarStartTicks();
+		if (barNumber < barStartTicks.length)
+			return barStartTicks[barNumber];
 
 		TimingInfoEvent e = timingInfoByTick.lastEntry().getValue();
 		return e.tick + Math.round((barNumber - e.barNumber) * e.info.getBarLengthTicks());
@@ -223,10 +241,21 @@ public class QuantizedTimingInfo implements ITempoCache, IBarNumberCache
 		return tickResolution;
 	}
 
-	private void calcBarStarts()
+	private long[] getBarStartTicks()
+	{
+		// If two threads get here at once they'll both calculate the same array, which is harmless
+		long[] barStarts = barStartTicks;
+		if (barStarts == null)
+			barStartTicks = barStarts = calcBarStarts();
+
+		return barStarts;
+	}
+
+	private long[] calcBarStarts()
 	{
-		barStartTicks = new TreeSet<Long>();
-		barStartTicks.add(0L);
+		long[] barStarts = new long[64];
+		int count = 0;
+		barStarts[count++] = 0;
 		TimingInfoEvent prev = null;
 		for (TimingInfoEvent event : timingInfoByTick.values())
 		{
@@ -237,7 +266,9 @@ public class QuantizedTimingInfo implements ITempoCache, IBarNumberCache
 						+ Math.round((Math.ceil(prev.barNumber) - prev.barNumber) * prev.info.getBarLengthTicks());
 				while (barStart < event.tick)
 				{
-					barStartTicks.add(barStart);
+					if (count == barStarts.length)
+						barStarts = Arrays.copyOf(barStarts, count * 2);
+					barStarts[count++] = barStart;
 					barStart += prev.info.getBarLengthTicks();
 				}
 			}
@@ -249,36 +280,47 @@ public class QuantizedTimingInfo implements ITempoCache, IBarNumberCache
 				+ Math.round((Math.ceil(prev.barNumber) - prev.barNumber) * prev.info.getBarLengthTicks());
 		while (barStart <= songLengthTicks)
 		{
-			barStartTicks.add(barStart);
+			if (count == barStarts.length)
+				barStarts = Arrays.copyOf(barStarts, count * 2);
+			barStarts[count++] = barStart;
 			barStart += prev.info.getBarLengthTicks();
 		}
-		barStartTicks.add(barStart);
+		if (count == barStarts.length)
+			barStarts = Arrays.copyOf(barStarts, count + 1);
+		barStarts[count++] = barStart;
+
+		// Sort and remove duplicates (the first bar usually starts at tick 0)
+		Arrays.sort(barStarts, 0, count);
+		int unique = 0;
+		for (int i = 0; i < count; i++)
+		{
+			if (unique == 0 || barStarts[i] != barStarts[unique - 1])
+				barStarts[unique++] = barStarts[i];
+		}
 
-		barStartTickByBar = barStartTicks.toArray(new Long[0]);
+		return Arrays.copyOf(barStarts, unique);
+	}
+
+	private int getTimingEventIndex(long tick)
+	{
+		return Math.max(Util.floorIndex(timingEventTicks, tick), 0);
 	}
 
 	TimingInfoEvent getTimingEventForTick(long tick)
 	{
-		return timingInfoByTick.floorEntry(tick).getValue();
+		return timingEvents[getTimingEventIndex(tick)];
 	}
 
 	TimingInfoEvent getTimingEventForMicros(long micros)
 	{
-		TimingInfoEvent retVal = timingInfoByTick.firstEntry().getValue();
-		for (TimingInfoEvent event : timingInfoByTick.values())
-		{
-			if (event.micros > micros)
-				break;
-
-			retVal = event;
-		}
-		return retVal;
+		int i = Util.floorIndex(timingEventMicros, micros);
+		return timingEvents[Math.max(i, 0)];
 	}
 
 	TimingInfoEvent getNextTimingEvent(long tick)
 	{
-		Map.Entry<Long, TimingInfoEvent> entry = timingInfoByTick.higherEntry(tick);
-		return (entry == null) ? null : entry.getValue();
+		int i = Util.floorIndex(timingEventTicks, tick) + 1;
+		return (i < timingEvents.length) ? timingEvents[i] : null;
 	}
 
 	NavigableMap<Long, TimingInfoEvent> getTimingInfoByTick()
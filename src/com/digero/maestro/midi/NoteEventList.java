@@ -0,0 +1,289 @@
+package com.digero.maestro.midi;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import com.digero.common.midi.ITempoCache;
+
+/**
+ * A read-only list of notes, stored as parallel arrays of primitives rather than as
+ * {@link NoteEvent} objects. Tracks from large MIDI files can have hundreds of thousands of notes,
+ * and storing them this way uses a fraction of the memory and gives the garbage collector almost
+ * nothing to do.
+ * <p>
+ * Notes are accessed by index. Times in microseconds aren't stored; they're calculated from the
+ * tick using the list's tempo cache.
+ */
+public class NoteEventList
+{
+	public static final NoteEventList EMPTY = new NoteEventList(null, 0);
+
+	private static final int NO_TIE = -1;
+
+	private final ITempoCache tempoCache;
+
+	long[] startTicks;
+	long[] endTicks;
+	byte[] noteIds;
+	byte[] velocities;
+	int[] tiesFrom; // null if there are no ties
+	int[] tiesTo;
+	int size;
+
+	NoteEventList(ITempoCache tempoCache, int capacity)
+	{
+		this.tempoCache = tempoCache;
+		this.startTicks = new long[capacity];
+		this.endTicks = new long[capacity];
+		this.noteIds = new byte[capacity];
+		this.velocities = new byte[capacity];
+	}
+
+	public ITempoCache getTempoCache()
+	{
+		return tempoCache;
+	}
+
+	public final int size()
+	{
+		return size;
+	}
+
+	public final boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public final int getNoteId(int i)
+	{
+		return noteIds[i] & 0xFF;
+	}
+
+	/**
+	 * The velocity of the note, from 0 to 255. Notes read from MIDI files are at most 127, but notes
+	 * with a track volume adjustment added (e.g. in the preview) can be higher.
+	 */
+	public final int getVelocity(int i)
+	{
+		return velocities[i] & 0xFF;
+	}
+
+	public final long getStartTick(int i)
+	{
+		return startTicks[i];
+	}
+
+	public final long getEndTick(int i)
+	{
+		return endTicks[i];
+	}
+
+	public final long getLengthTicks(int i)
+	{
+		return endTicks[i] - startTicks[i];
+	}
+
+	public final long getStartMicros(int i)
+	{
+		return tempoCache.tickToMicros(startTicks[i]);
+	}
+
+	public final long getEndMicros(int i)
+	{
+		return tempoCache.tickToMicros(endTicks[i]);
+	}
+
+	public final long getLengthMicros(int i)
+	{
+		return getEndMicros(i) - getStartMicros(i);
+	}
+
+	/** The index of the note that this note is tied from, or -1 if it isn't tied from another note. */
+	public final int getTiesFrom(int i)
+	{
+		return (tiesFrom == null) ? NO_TIE : tiesFrom[i];
+	}
+
+	/** The index of the note that this note is tied to, or -1 if it isn't tied to another note. */
+	public final int getTiesTo(int i)
+	{
+		return (tiesTo == null) ? NO_TIE : tiesTo[i];
+	}
+
+	/** Writes the notes for {@link SequenceInfoCache}. */
+	void writeTo(DataOutputStream out) throws IOException
+	{
+		out.writeInt(size);
+		SequenceInfoCache.writeLongs(out, startTicks, size);
+		SequenceInfoCache.writeLongs(out, endTicks, size);
+		out.write(noteIds, 0, size);
+		out.write(velocities, 0, size);
+		out.writeBoolean(tiesFrom != null);
+		if (tiesFrom != null)
+		{
+			SequenceInfoCache.writeInts(out, tiesFrom, size);
+			SequenceInfoCache.writeInts(out, tiesTo, size);
+		}
+	}
+
+	/** Reads notes that were written by {@link #writeTo(DataOutputStream)}. */
+	static NoteEventList readFrom(ByteBuffer in, ITempoCache tempoCache)
+	{
+		NoteEventList list = new NoteEventList(tempoCache, 0);
+		list.size = in.getInt();
+		list.startTicks = SequenceInfoCache.readLongs(in, list.size);
+		list.endTicks = SequenceInfoCache.readLongs(in, list.size);
+		list.noteIds = SequenceInfoCache.readBytes(in, list.size);
+		list.velocities = SequenceInfoCache.readBytes(in, list.size);
+		if (in.get() != 0)
+		{
+			list.tiesFrom = SequenceInfoCache.readInts(in, list.size);
+			list.tiesTo = SequenceInfoCache.readInts(in, list.size);
+		}
+		return list;
+	}
+
+	/**
+	 * Builds a NoteEventList. Notes can be added, modified and removed until {@link #build()} is
+	 * called. Removing a note is constant-time; removed notes are dropped when the list is built.
+	 */
+	public static class Builder extends NoteEventList
+	{
+		private BitSet removed = null; // Indices of the notes that have been removed
+		private int removedCount = 0;
+
+		public Builder(ITempoCache tempoCache)
+		{
+			super(tempoCache, 16);
+		}
+
+		/**
+		 * Adds a note to the end of the list.
+		 *
+		 * @param velocity The velocity of the note. Values outside of the range 0-255 are clamped.
+		 * @return The index of the new note.
+		 */
+		public int add(int noteId, int velocity, long startTick, long endTick)
+		{
+			assert noteId >= 0 && noteId <= 255 : noteId;
+
+			if (size == startTicks.length)
+				grow();
+
+			startTicks[size] = startTick;
+			endTicks[size] = endTick;
+			noteIds[size] = (byte) noteId;
+			velocities[size] = (byte) Math.max(0, Math.min(255, velocity));
+			if (tiesFrom != null)
+			{
+				tiesFrom[size] = NO_TIE;
+				tiesTo[size] = NO_TIE;
+			}
+			return size++;
+		}
+
+		public void setEndTick(int i, long endTick)
+		{
+			endTicks[i] = endTick;
+		}
+
+		/** Ties the note at index <code>from</code> to the note at index <code>to</code>. */
+		public void setTie(int from, int to)
+		{
+			if (tiesFrom == null)
+			{
+				tiesFrom = new int[startTicks.length];
+				tiesTo = new int[startTicks.length];
+				Arrays.fill(tiesFrom, NO_TIE);
+				Arrays.fill(tiesTo, NO_TIE);
+			}
+			tiesTo[from] = to;
+			tiesFrom[to] = from;
+		}
+
+		/** Marks the note at the given index as removed. The indices of the other notes don't change. */
+		public void remove(int i)
+		{
+			if (removed == null)
+				removed = new BitSet(size);
+
+			if (!removed.get(i))
+			{
+				removed.set(i);
+				removedCount++;
+			}
+		}
+
+		/** The number of notes that have been added and not removed. */
+		public int getNoteCount()
+		{
+			return size - removedCount;
+		}
+
+		public boolean isRemoved(int i)
+		{
+			return removed != null && removed.get(i);
+		}
+
+		/** Creates a NoteEventList containing the notes that haven't been removed, in the same order. */
+		public NoteEventList build()
+		{
+			int count = size - removedCount;
+			NoteEventList list = new NoteEventList(getTempoCache(), count);
+			list.size = count;
+
+			int[] newIndex = (tiesFrom != null) ? new int[size] : null;
+			for (int i = 0, j = 0; i < size; i++)
+			{
+				if (isRemoved(i))
+				{
+					if (newIndex != null)
+						newIndex[i] = NO_TIE;
+					continue;
+				}
+
+				list.startTicks[j] = startTicks[i];
+				list.endTicks[j] = endTicks[i];
+				list.noteIds[j] = noteIds[i];
+				list.velocities[j] = velocities[i];
+				if (newIndex != null)
+					newIndex[i] = j;
+				j++;
+			}
+
+			if (newIndex != null)
+			{
+				list.tiesFrom = new int[count];
+				list.tiesTo = new int[count];
+				for (int i = 0; i < size; i++)
+				{
+					int j = newIndex[i];
+					if (j != NO_TIE)
+					{
+						list.tiesFrom[j] = (tiesFrom[i] == NO_TIE) ? NO_TIE : newIndex[tiesFrom[i]];
+						list.tiesTo[j] = (tiesTo[i] == NO_TIE) ? NO_TIE : newIndex[tiesTo[i]];
+					}
+				}
+			}
+
+			return list;
+		}
+
+		private void grow()
+		{
+			int capacity = startTicks.length * 2;
+			startTicks = Arrays.copyOf(startTicks, capacity);
+			endTicks = Arrays.copyOf(endTicks, capacity);
+			noteIds = Arrays.copyOf(noteIds, capacity);
+			velocities = Arrays.copyOf(velocities, capacity);
+			if (tiesFrom != null)
+			{
+				tiesFrom = Arrays.copyOf(tiesFrom, capacity);
+				tiesTo = Arrays.copyOf(tiesTo, capacity);
+			}
+		}
+	}
+}
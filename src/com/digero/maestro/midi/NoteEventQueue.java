@@ -0,0 +1,199 @@
+package com.digero.maestro.midi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Reads a list of notes in order, while notes that are split off of them are added. The list must
+ * be sorted by start tick, and notes can only be added after the last note that was read.
+ * <p>
+ * The notes come out in the same order as they would if each added note were inserted into the
+ * list with {@link Collections#binarySearch(List, Object)}. After quantizing, notes that start on
+ * the same tick aren't always sorted by pitch, so where a binary search puts a note among them
+ * depends on the size of the whole list. The order matters when a chord has too many notes, since
+ * the notes that come last are the ones that get dropped.
+ * <p>
+ * Rather than inserting into one big list, the notes of the original list are kept in runs by
+ * start tick, with the number of notes up to each run kept in a Fenwick tree. Added notes that
+ * start on one of those ticks are inserted into the run where the binary search would have put
+ * them; other added notes are kept in a priority queue.
+ */
+public class NoteEventQueue
+{
+	/** The distinct start ticks of the original list */
+	private final long[] runTicks;
+	/** The notes that start on each of the runTicks, in order */
+	private final List<List<NoteEvent>> runs;
+	/** Fenwick tree of the number of notes starting from each run tick up to the next one */
+	private final int[] counts;
+	private int size;
+
+	private final PriorityQueue<NoteEvent> added = new PriorityQueue<NoteEvent>();
+	private final Set<NoteEvent> removed = Collections.newSetFromMap(new IdentityHashMap<NoteEvent, Boolean>());
+
+	private int run = 0;
+	private int runIndex = 0;
+
+	public NoteEventQueue(List<NoteEvent> events)
+	{
+		long[] ticks = new long[events.size()];
+		runs = new ArrayList<List<NoteEvent>>();
+		int runCount = 0;
+		for (NoteEvent ne : events)
+		{
+			if (runCount == 0 || ticks[runCount - 1] != ne.getStartTick())
+			{
+				assert runCount == 0 || ticks[runCount - 1] < ne.getStartTick() : "Notes aren't sorted";
+				ticks[runCount++] = ne.getStartTick();
+				runs.add(new ArrayList<NoteEvent>(2));
+			}
+			runs.get(runCount - 1).add(ne);
+		}
+		runTicks = Arrays.copyOf(ticks, runCount);
+
+		counts = new int[runCount + 1];
+		for (int i = 0; i < runCount; i++)
+			addCount(i, runs.get(i).size());
+		size = events.size();
+	}
+
+	/** Returns the next note without removing it, or null if there are no more notes. */
+	public NoteEvent peek()
+	{
+		while (run < runs.size() && runIndex >= runs.get(run).size())
+		{
+			run++;
+			runIndex = 0;
+		}
+		NoteEvent next = (run < runs.size()) ? runs.get(run).get(runIndex) : null;
+
+		while (!added.isEmpty() && removed.remove(added.peek()))
+			added.poll();
+		if (!added.isEmpty() && (next == null || added.peek().getStartTick() < next.getStartTick()))
+			next = added.peek();
+
+		return next;
+	}
+
+	/** Returns the next note and moves past it, or returns null if there are no more notes. */
+	public NoteEvent poll()
+	{
+		NoteEvent next = peek();
+		if (next != null)
+		{
+			if (next == added.peek())
+				added.poll();
+			else
+				runIndex++;
+		}
+		return next;
+	}
+
+	/** Adds a note that starts after the last note that was read. */
+	public void add(NoteEvent ne)
+	{
+		int i = findRun(ne.getStartTick());
+		if (runTicks[i] == ne.getStartTick() && (i > run || (i == run && runIndex == 0)))
+		{
+			List<NoteEvent> notes = runs.get(i);
+			int runStart = getCount(i);
+			notes.add(binarySearchIndex(ne, runStart, notes) - runStart, ne);
+		}
+		else
+		{
+			added.add(ne);
+		}
+		addCount(i, 1);
+		size++;
+	}
+
+	/** Removes a note, whether or not it has been read. */
+	public void remove(NoteEvent ne)
+	{
+		int i = findRun(ne.getStartTick());
+		if (runTicks[i] != ne.getStartTick() || !removeFromRun(i, ne))
+			removed.add(ne);
+
+		addCount(i, -1);
+		size--;
+	}
+
+	/** Returns the index of the last run that starts on or before the tick. */
+	private int findRun(long tick)
+	{
+		int i = Arrays.binarySearch(runTicks, tick);
+		if (i < 0)
+			i = -i - 2;
+
+		assert i >= 0 : "Note starts before the first note";
+		return i;
+	}
+
+	private boolean removeFromRun(int i, NoteEvent ne)
+	{
+		List<NoteEvent> notes = runs.get(i);
+		for (int j = 0; j < notes.size(); j++)
+		{
+			if (notes.get(j) == ne)
+			{
+				notes.remove(j);
+				if (i == run && j < runIndex)
+					runIndex--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the index that Collections.binarySearch() would insert the note at, if all of the
+	 * notes were in one list. The notes before the run of notes on the same tick start earlier, and
+	 * the notes after it start later, so only the notes in the run need to be compared.
+	 */
+	private int binarySearchIndex(NoteEvent ne, int runStart, List<NoteEvent> runNotes)
+	{
+		int runEnd = runStart + runNotes.size();
+		int low = 0;
+		int high = size - 1;
+		while (low <= high)
+		{
+			int mid = (low + high) >>> 1;
+			int cmp;
+			if (mid < runStart)
+				cmp = -1;
+			else if (mid >= runEnd)
+				cmp = 1;
+			else
+				cmp = runNotes.get(mid - runStart).compareTo(ne);
+
+			if (cmp < 0)
+				low = mid + 1;
+			else if (cmp > 0)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return low;
+	}
+
+	/** Adds to the number of notes in run i and the notes after it that start before the next run. */
+	private void addCount(int i, int delta)
+	{
+		for (i++; i < counts.length; i += i & -i)
+			counts[i] += delta;
+	}
+
+	/** Returns the number of notes that start before run i. */
+	private int getCount(int i)
+	{
+		int count = 0;
+		for (; i > 0; i -= i & -i)
+			count += counts[i];
+		return count;
+	}
+}
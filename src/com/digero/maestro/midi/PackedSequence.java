@@ -0,0 +1,353 @@
+package com.digero.maestro.midi;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+import com.digero.common.midi.MidiConstants;
+import com.digero.common.midi.PackedShortMessage;
+
+/**
+ * A MIDI sequence made of {@link PackedTrack}s. MIDI files are read directly into the packed
+ * tracks, and a {@link Sequence} is only created when one is needed for playback.
+ */
+public class PackedSequence implements MidiConstants
+{
+	private static final int MTHD_MAGIC = 0x4d546864; // 'MThd'
+	private static final int MTRK_MAGIC = 0x4d54726b; // 'MTrk'
+
+	private final float divisionType;
+	private final int resolution;
+	private final List<PackedTrack> tracks;
+
+	public PackedSequence(float divisionType, int resolution, List<PackedTrack> tracks)
+	{
+		this.divisionType = divisionType;
+		this.resolution = resolution;
+		this.tracks = Collections.unmodifiableList(tracks);
+	}
+
+	public static PackedSequence fromSequence(Sequence sequence)
+	{
+		Track[] tracks = sequence.getTracks();
+		List<PackedTrack> packedTracks = new ArrayList<PackedTrack>(tracks.length);
+		for (Track track : tracks)
+			packedTracks.add(PackedTrack.fromTrack(track));
+
+		return new PackedSequence(sequence.getDivisionType(), sequence.getResolution(), packedTracks);
+	}
+
+	/**
+	 * Reads a MIDI file. Standard MIDI files are parsed from a memory-mapped view of the file,
+	 * decoding the events straight into packed tracks. Other files, and standard MIDI files that
+	 * can't be parsed, are read with {@link MidiSystem#getSequence(File)}, so the same files load
+	 * (or fail to load with the same errors) as before.
+	 */
+	public static PackedSequence read(File midiFile) throws InvalidMidiDataException, IOException
+	{
+		try
+		{
+			return new StandardMidiFileParser(midiFile).parse();
+		}
+		catch (InvalidMidiDataException e)
+		{
+			return fromSequence(MidiSystem.getSequence(midiFile));
+		}
+		catch (EOFException e)
+		{
+			return fromSequence(MidiSystem.getSequence(midiFile));
+		}
+	}
+
+	public float getDivisionType()
+	{
+		return divisionType;
+	}
+
+	public int getResolution()
+	{
+		return resolution;
+	}
+
+	public List<PackedTrack> getTracks()
+	{
+		return tracks;
+	}
+
+	/** Creates a new Sequence with the events of the tracks. */
+	public Sequence toSequence()
+	{
+		Sequence sequence;
+		try
+		{
+			sequence = new Sequence(divisionType, resolution);
+		}
+		catch (InvalidMidiDataException e)
+		{
+			// The division type was read from a valid MIDI file or sequence
+			throw new RuntimeException(e);
+		}
+
+		for (PackedTrack track : tracks)
+			track.addTo(sequence.createTrack());
+
+		return sequence;
+	}
+
+	/** Writes the sequence for {@link SequenceInfoCache}. */
+	void writeTo(DataOutputStream out) throws IOException
+	{
+		out.writeFloat(divisionType);
+		out.writeInt(resolution);
+		out.writeInt(tracks.size());
+		for (PackedTrack track : tracks)
+			track.writeTo(out);
+	}
+
+	/** Reads a sequence that was written by {@link #writeTo(DataOutputStream)}. */
+	static PackedSequence readFrom(ByteBuffer in) throws InvalidMidiDataException, IOException
+	{
+		float divisionType = in.getFloat();
+		int resolution = in.getInt();
+		int trackCount = in.getInt();
+		List<PackedTrack> tracks = new ArrayList<PackedTrack>();
+		for (int i = 0; i < trackCount; i++)
+			tracks.add(PackedTrack.readFrom(in));
+
+		return new PackedSequence(divisionType, resolution, tracks);
+	}
+
+	/**
+	 * Parses a Standard MIDI File the same way as the JDK's StandardMidiFileReader, without
+	 * creating a MidiEvent and a MidiMessage for each event, or copying each track into an array.
+	 * Only meta and system exclusive events are read into MidiMessages.
+	 */
+	private static class StandardMidiFileParser
+	{
+		private final File file;
+		private ByteBuffer buffer;
+		private int trackEnd;
+
+		public StandardMidiFileParser(File file)
+		{
+			this.file = file;
+		}
+
+		public PackedSequence parse() throws InvalidMidiDataException, IOException
+		{
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+			{
+				if (channel.size() > Integer.MAX_VALUE)
+					throw new InvalidMidiDataException("The MIDI file is too large");
+
+				// The mapping stays valid after the channel is closed, until the buffer is collected
+				buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+
+			if (buffer.remaining() < 14 || buffer.getInt() != MTHD_MAGIC)
+				throw new InvalidMidiDataException("Not a Standard MIDI File");
+
+			int headerLength = buffer.getInt();
+			int type = buffer.getShort();
+			int trackCount = buffer.getShort();
+			int timing = buffer.getShort();
+
+			float divisionType;
+			int resolution;
+			if (timing > 0)
+			{
+				divisionType = Sequence.PPQ;
+				resolution = timing;
+			}
+			else
+			{
+				switch (-(timing >> 8))
+				{
+				case 24:
+					divisionType = Sequence.SMPTE_24;
+					break;
+				case 25:
+					divisionType = Sequence.SMPTE_25;
+					break;
+				case 29:
+					divisionType = Sequence.SMPTE_30DROP;
+					break;
+				case 30:
+					divisionType = Sequence.SMPTE_30;
+					break;
+				default:
+					throw new InvalidMidiDataException("Unknown frame code: " + -(timing >> 8));
+				}
+				resolution = timing & 0xFF;
+			}
+
+			if (headerLength > 6)
+				buffer.position(Math.min(buffer.limit(), buffer.position() + headerLength - 6));
+
+			if (type != 0 && type != 1)
+				throw new InvalidMidiDataException("Invalid or unsupported file type: " + type);
+
+			List<PackedTrack> tracks = new ArrayList<PackedTrack>(Math.max(trackCount, 0));
+			for (int i = 0; i < trackCount; i++)
+			{
+				if (!nextTrack())
+					break;
+
+				tracks.add(readTrack());
+			}
+			return new PackedSequence(divisionType, resolution, tracks);
+		}
+
+		/**
+		 * Finds the next track chunk, skipping other chunks. Returns false if the file ends before
+		 * the track does, in which case the rest of the file is ignored.
+		 */
+		private boolean nextTrack() throws EOFException
+		{
+			int magic;
+			int length = 0;
+			do
+			{
+				if (length < 0 || length > buffer.remaining())
+					return false;
+				buffer.position(buffer.position() + length);
+
+				if (buffer.remaining() < 8)
+					throw new EOFException("invalid MIDI file");
+				magic = buffer.getInt();
+				length = buffer.getInt();
+			}
+			while (magic != MTRK_MAGIC);
+
+			if (length < 0 || length > buffer.remaining())
+				return false;
+
+			trackEnd = buffer.position() + length;
+			return true;
+		}
+
+		private PackedTrack readTrack() throws InvalidMidiDataException, EOFException
+		{
+			PackedTrack track = new PackedTrack((trackEnd - buffer.position()) / 3);
+			long tick = 0;
+			int runningStatus = 0;
+			while (buffer.position() < trackEnd)
+			{
+				tick += readVarInt();
+
+				int status;
+				int data1 = -1;
+				int b = readUnsigned();
+				if (b >= 0x80)
+				{
+					status = b;
+				}
+				else
+				{
+					// Running status
+					status = runningStatus;
+					data1 = b;
+				}
+
+				switch (status & 0xF0)
+				{
+				case 0x80:
+				case 0x90:
+				case 0xA0:
+				case 0xB0:
+				case 0xE0:
+					if (data1 == -1)
+						data1 = readUnsigned();
+					track.addShortMessage(tick, PackedShortMessage.pack(status, data1, readUnsigned()));
+					break;
+
+				case 0xC0:
+				case 0xD0:
+					if (data1 == -1)
+						data1 = readUnsigned();
+					track.addShortMessage(tick, PackedShortMessage.pack(status, data1, 0));
+					break;
+
+				case 0xF0:
+					if (status == 0xF0 || status == 0xF7)
+					{
+						SysexMessage sysex = new SysexMessage();
+						byte[] data = readData();
+						sysex.setMessage(status, data, data.length);
+						track.add(tick, sysex);
+					}
+					else if (status == 0xFF)
+					{
+						int metaType = readUnsigned();
+						MetaMessage meta = new MetaMessage();
+						byte[] data = readData();
+						meta.setMessage(metaType, data, data.length);
+						track.add(tick, meta);
+						if (metaType == META_END_OF_TRACK)
+						{
+							// Anything after the end of the track is ignored
+							buffer.position(trackEnd);
+							return track;
+						}
+					}
+					else
+					{
+						throw new InvalidMidiDataException("Invalid status byte: " + status);
+					}
+					break;
+
+				default:
+					throw new InvalidMidiDataException("Invalid status byte: " + status);
+				}
+				runningStatus = status;
+			}
+			return track;
+		}
+
+		private int readUnsigned() throws EOFException
+		{
+			if (buffer.position() >= trackEnd)
+				throw new EOFException("invalid MIDI file");
+
+			return buffer.get() & 0xFF;
+		}
+
+		private long readVarInt() throws EOFException
+		{
+			long value = 0;
+			int b;
+			do
+			{
+				b = readUnsigned();
+				value = (value << 7) | (b & 0x7F);
+			}
+			while ((b & 0x80) != 0);
+			return value;
+		}
+
+		private byte[] readData() throws InvalidMidiDataException, EOFException
+		{
+			int length = (int) readVarInt();
+			if (length < 0 || length > trackEnd - buffer.position())
+				throw new InvalidMidiDataException("Message length is out of bounds: " + length);
+
+			byte[] data = new byte[length];
+			buffer.get(data);
+			return data;
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package com.digero.maestro.midi;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+import com.digero.common.midi.MidiConstants;
+import com.digero.common.midi.PackedShortMessage;
+
+/**
+ * The events of a MIDI track, sorted by tick, without an object for each event. Short messages
+ * (notes, controllers, pitch bends, etc.) are packed into an int, with the status in the low byte
+ * and the data bytes above it. Meta and system exclusive messages are rare, and are kept as
+ * MidiMessage objects.
+ * <p>
+ * Like a {@link Track}, the end of track event isn't kept with the other events; the track keeps
+ * the tick of the end of the track, which is never before the last event.
+ */
+public class PackedTrack implements MidiConstants
+{
+	// The kinds of long messages, for writeTo()
+	private static final int META = 0;
+	private static final int SYSEX = 1;
+
+	private long[] ticks;
+	/** The packed short message, or ~index into longMessages */
+	private int[] messages;
+	private final List<MidiMessage> longMessages = new ArrayList<MidiMessage>();
+	private int size = 0;
+	private long endOfTrackTick = 0;
+
+	public PackedTrack()
+	{
+		this(16);
+	}
+
+	public PackedTrack(int capacity)
+	{
+		ticks = new long[Math.max(capacity, 1)];
+		messages = new int[ticks.length];
+	}
+
+	public static PackedTrack fromTrack(Track track)
+	{
+		PackedTrack packed = new PackedTrack(track.size());
+		for (int i = 0, sz = track.size(); i < sz; i++)
+		{
+			MidiEvent evt = track.get(i);
+			packed.add(evt.getTick(), evt.getMessage());
+		}
+		return packed;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public long getTick(int i)
+	{
+		return ticks[i];
+	}
+
+	/** The tick of the end of track event. */
+	public long getEndOfTrackTick()
+	{
+		return endOfTrackTick;
+	}
+
+	public boolean isShortMessage(int i)
+	{
+		return messages[i] >= 0;
+	}
+
+	/**
+	 * Returns the packed short message at the index; see
+	 * {@link PackedShortMessage#pack(int, int, int)}.
+	 */
+	public int getPackedMessage(int i)
+	{
+		assert isShortMessage(i);
+		return messages[i];
+	}
+
+	public int getStatus(int i)
+	{
+		return getPackedMessage(i) & 0xFF;
+	}
+
+	public int getCommand(int i)
+	{
+		return getPackedMessage(i) & 0xF0;
+	}
+
+	public int getChannel(int i)
+	{
+		return getPackedMessage(i) & 0x0F;
+	}
+
+	public int getData1(int i)
+	{
+		return (getPackedMessage(i) >>> 8) & 0xFF;
+	}
+
+	public int getData2(int i)
+	{
+		return (getPackedMessage(i) >>> 16) & 0xFF;
+	}
+
+	/** Returns the meta or system exclusive message at the index, or null for short messages. */
+	public MidiMessage getLongMessage(int i)
+	{
+		return isShortMessage(i) ? null : longMessages.get(~messages[i]);
+	}
+
+	/** Returns the message at the index, creating a ShortMessage for short messages. */
+	public MidiMessage getMessage(int i)
+	{
+		return isShortMessage(i) ? new PackedShortMessage(messages[i]) : longMessages.get(~messages[i]);
+	}
+
+	/**
+	 * Adds a short message to the end of the track. The tick must not be before the last event.
+	 */
+	public void addShortMessage(long tick, int packedMessage)
+	{
+		assert packedMessage >= 0 && (packedMessage & 0x80) != 0 : packedMessage;
+		append(tick, packedMessage);
+	}
+
+	/**
+	 * Adds a message to the end of the track. The tick must not be before the last event. As with
+	 * a {@link Track}, adding an end of track event only moves the end of the track.
+	 */
+	public void add(long tick, MidiMessage msg)
+	{
+		if (msg instanceof ShortMessage)
+		{
+			ShortMessage m = (ShortMessage) msg;
+			append(tick, PackedShortMessage.pack(m.getStatus(), m.getData1(), m.getData2()));
+		}
+		else if (msg instanceof MetaMessage && ((MetaMessage) msg).getType() == META_END_OF_TRACK)
+		{
+			if (tick > endOfTrackTick)
+				endOfTrackTick = tick;
+		}
+		else
+		{
+			longMessages.add(msg);
+			append(tick, ~(longMessages.size() - 1));
+		}
+	}
+
+	/** Adds the event at index i of another track to the end of this track. */
+	public void add(PackedTrack from, int i)
+	{
+		if (from.isShortMessage(i))
+			append(from.ticks[i], from.messages[i]);
+		else
+			add(from.ticks[i], from.longMessages.get(~from.messages[i]));
+	}
+
+	private void append(long tick, int message)
+	{
+		assert size == 0 || tick >= ticks[size - 1] : "Events must be added in order";
+
+		if (size == ticks.length)
+		{
+			ticks = Arrays.copyOf(ticks, Math.max(size * 2, 16));
+			messages = Arrays.copyOf(messages, ticks.length);
+		}
+
+		ticks[size] = tick;
+		messages[size] = message;
+		size++;
+		if (tick > endOfTrackTick)
+			endOfTrackTick = tick;
+	}
+
+	/**
+	 * Moves the events that are past the end tick, and the end of the track, back to the end tick.
+	 * Since the track is sorted by tick, they're all at the end of the track, and it stays sorted.
+	 */
+	void moveEventsToEnd(long endTick)
+	{
+		for (int i = size - 1; i >= 0 && ticks[i] > endTick; i--)
+			ticks[i] = endTick;
+
+		if (endOfTrackTick > endTick)
+			endOfTrackTick = endTick;
+	}
+
+	/** Adds the events of this track, and its end of track event, to a new track of the sequence. */
+	void addTo(Track track)
+	{
+		for (int i = 0; i < size; i++)
+			track.add(new MidiEvent(getMessage(i), ticks[i]));
+
+		try
+		{
+			track.add(new MidiEvent(new MetaMessage(META_END_OF_TRACK, new byte[0], 0), endOfTrackTick));
+		}
+		catch (InvalidMidiDataException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Writes the track for {@link SequenceInfoCache}. */
+	void writeTo(DataOutputStream out) throws IOException
+	{
+		out.writeInt(size);
+		SequenceInfoCache.writeLongs(out, ticks, size);
+		SequenceInfoCache.writeInts(out, messages, size);
+		out.writeLong(endOfTrackTick);
+
+		out.writeInt(longMessages.size());
+		for (MidiMessage msg : longMessages)
+		{
+			if (msg instanceof MetaMessage)
+			{
+				MetaMessage m = (MetaMessage) msg;
+				out.writeByte(META);
+				out.writeByte(m.getType());
+				out.writeInt(m.getData().length);
+				out.write(m.getData());
+			}
+			else if (msg instanceof SysexMessage)
+			{
+				out.writeByte(SYSEX);
+				out.writeInt(msg.getLength());
+				out.write(msg.getMessage());
+			}
+			else
+			{
+				throw new IOException("Unknown message type: " + msg.getClass().getName());
+			}
+		}
+	}
+
+	/** Reads a track that was written by {@link #writeTo(DataOutputStream)}. */
+	static PackedTrack readFrom(ByteBuffer in) throws InvalidMidiDataException, IOException
+	{
+		PackedTrack track = new PackedTrack(0);
+		track.size = in.getInt();
+		track.ticks = SequenceInfoCache.readLongs(in, track.size);
+		track.messages = SequenceInfoCache.readInts(in, track.size);
+		track.endOfTrackTick = in.getLong();
+
+		int longMessageCount = in.getInt();
+		for (int i = 0; i < longMessageCount; i++)
+		{
+			int kind = in.get();
+			if (kind == META)
+			{
+				int type = in.get() & 0xFF;
+				byte[] data = SequenceInfoCache.readBytes(in, in.getInt());
+				track.longMessages.add(new MetaMessage(type, data, data.length));
+			}
+			else if (kind == SYSEX)
+			{
+				byte[] data = SequenceInfoCache.readBytes(in, in.getInt());
+				track.longMessages.add(new SysexMessage(data, data.length));
+			}
+			else
+			{
+				throw new IOException("Unknown message type: " + kind);
+			}
+		}
+		return track;
+	}
+}
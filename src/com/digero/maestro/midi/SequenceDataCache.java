@@ -1,5 +1,8 @@
 package com.digero.maestro.midi;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -7,6 +10,7 @@ import java.util.Map.Entry;
 import java.util.NavigableMap;
 import java.util.TreeMap;
 
+import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
 import javax.sound.midi.MidiMessage;
@@ -22,6 +26,12 @@ import com.digero.common.util.Util;
 import com.digero.maestro.abc.TimingInfo;
 import com.sun.media.sound.MidiUtils;
 
+/**
+ * The tempos, time signature, and the instruments, volumes and pitch bend ranges of each channel of
+ * a song. The cache isn't changed after it's created, so several threads can read it at once, e.g.
+ * while the tracks of a song are read in parallel. Each thread reads controller values through its
+ * own {@link Cursor}.
+ */
 public class SequenceDataCache implements MidiConstants, ITempoCache, IBarNumberCache
 {
 	private final int tickResolution;
@@ -30,107 +40,59 @@ public class SequenceDataCache implements MidiConstants, ITempoCache, IBarNumber
 	private final int minTempoMPQ;
 	private final int maxTempoMPQ;
 	private final TimeSignature timeSignature;
-	private NavigableMap<Long, TempoEvent> tempo = new TreeMap<Long, TempoEvent>();
+	private final NavigableMap<Long, TempoEvent> tempo = new TreeMap<Long, TempoEvent>();
+
+	// The tempo events sorted by tick (and by micros), for binary searches
+	private final TempoEvent[] tempoEvents;
+	private final long[] tempoTicks;
+	private final long[] tempoMicros;
 
 	private final long songLengthTicks;
 
-	private MapByChannel instruments = new MapByChannel(DEFAULT_INSTRUMENT);
-	private MapByChannel volume = new MapByChannel(DEFAULT_CHANNEL_VOLUME);
-	private MapByChannel pitchBendCoarse = new MapByChannel(DEFAULT_PITCH_BEND_RANGE_SEMITONES);
-	private MapByChannel pitchBendFine = new MapByChannel(DEFAULT_PITCH_BEND_RANGE_CENTS);
+	private final MapByChannel instruments;
+	private final MapByChannel volume;
+	private final MapByChannel pitchBendCoarse;
+	private final MapByChannel pitchBendFine;
 
 	public SequenceDataCache(Sequence song)
+	{
+		this(Builder.scan(song), Long.MAX_VALUE);
+	}
+
+	/** See {@link Builder#build(long)} */
+	private SequenceDataCache(Builder builder, long endTick)
 	{
 		Map<Integer, Long> tempoLengths = new HashMap<Integer, Long>();
 
 		tempo.put(0L, TempoEvent.DEFAULT_TEMPO);
 		int minTempoMPQ = Integer.MAX_VALUE;
 		int maxTempoMPQ = Integer.MIN_VALUE;
-		TimeSignature timeSignature = null;
-
-		divisionType = song.getDivisionType();
-		tickResolution = song.getResolution();
 
-		// Keep track of the active registered paramater number for pitch bend range
-		int[] rpn = new int[CHANNEL_COUNT];
-		Arrays.fill(rpn, REGISTERED_PARAM_NONE);
+		divisionType = builder.divisionType;
+		tickResolution = builder.tickResolution;
+		instruments = builder.instruments.trim();
+		volume = builder.volume.trim();
+		pitchBendCoarse = builder.pitchBendCoarse.trim();
+		pitchBendFine = builder.pitchBendFine.trim();
 
-		Track[] tracks = song.getTracks();
-		long lastTick = 0;
-		for (int iTrack = 0; iTrack < tracks.length; iTrack++)
+		for (int i = 0; i < builder.tempoCount; i++)
 		{
-			Track track = tracks[iTrack];
-
-			for (int j = 0, sz = track.size(); j < sz; j++)
-			{
-				MidiEvent evt = track.get(j);
-				MidiMessage msg = evt.getMessage();
-				long tick = evt.getTick();
-				if (tick > lastTick)
-					lastTick = tick;
-
-				if (msg instanceof ShortMessage)
-				{
-					ShortMessage m = (ShortMessage) msg;
-					int cmd = m.getCommand();
-					int ch = m.getChannel();
-
-					if (cmd == ShortMessage.PROGRAM_CHANGE)
-					{
-						if (ch != DRUM_CHANNEL)
-						{
-							instruments.put(ch, tick, m.getData1());
-						}
-					}
-					else if (cmd == ShortMessage.CONTROL_CHANGE)
-					{
-						switch (m.getData1())
-						{
-						case CHANNEL_VOLUME_CONTROLLER_COARSE:
-							volume.put(ch, tick, m.getData2());
-							break;
-						case REGISTERED_PARAMETER_NUMBER_MSB:
-							rpn[ch] = (rpn[ch] & 0x7F) | ((m.getData2() & 0x7F) << 7);
-							break;
-						case REGISTERED_PARAMETER_NUMBER_LSB:
-							rpn[ch] = (rpn[ch] & (0x7F << 7)) | (m.getData2() & 0x7F);
-							break;
-						case DATA_ENTRY_COARSE:
-							if (rpn[ch] == REGISTERED_PARAM_PITCH_BEND_RANGE)
-								pitchBendCoarse.put(ch, tick, m.getData2());
-							break;
-						case DATA_ENTRY_FINE:
-							if (rpn[ch] == REGISTERED_PARAM_PITCH_BEND_RANGE)
-								pitchBendFine.put(ch, tick, m.getData2());
-							break;
-						}
-					}
-				}
-				else if (iTrack == 0 && (divisionType == Sequence.PPQ) && MidiUtils.isMetaTempo(msg))
-				{
-					TempoEvent te = getTempoEventForTick(tick);
-					long elapsedMicros = MidiUtils.ticks2microsec(tick - te.tick, te.tempoMPQ, tickResolution);
-					tempoLengths.put(te.tempoMPQ, elapsedMicros + Util.valueOf(tempoLengths.get(te.tempoMPQ), 0));
-					tempo.put(tick, new TempoEvent(MidiUtils.getTempoMPQ(msg), tick, te.micros + elapsedMicros));
-
-					if (te.tempoMPQ < minTempoMPQ)
-						minTempoMPQ = te.tempoMPQ;
-					if (te.tempoMPQ > maxTempoMPQ)
-						maxTempoMPQ = te.tempoMPQ;
-				}
-				else if (msg instanceof MetaMessage)
-				{
-					MetaMessage m = (MetaMessage) msg;
-					if (m.getType() == META_TIME_SIGNATURE && timeSignature == null)
-					{
-						timeSignature = new TimeSignature(m);
-					}
-				}
-			}
+			long tick = Math.min(builder.tempoTicks[i], endTick);
+			TempoEvent te = tempo.floorEntry(tick).getValue();
+			long elapsedMicros = MidiUtils.ticks2microsec(tick - te.tick, te.tempoMPQ, tickResolution);
+			tempoLengths.put(te.tempoMPQ, elapsedMicros + Util.valueOf(tempoLengths.get(te.tempoMPQ), 0));
+			tempo.put(tick, new TempoEvent(builder.tempoMPQs[i], tick, te.micros + elapsedMicros));
+
+			if (te.tempoMPQ < minTempoMPQ)
+				minTempoMPQ = te.tempoMPQ;
+			if (te.tempoMPQ > maxTempoMPQ)
+				maxTempoMPQ = te.tempoMPQ;
 		}
 
+		long lastTick = Math.min(builder.lastTick, endTick);
+
 		// Account for the duration of the final tempo
-		TempoEvent te = getTempoEventForTick(lastTick);
+		TempoEvent te = tempo.floorEntry(lastTick).getValue();
 		long elapsedMicros = MidiUtils.ticks2microsec(lastTick - te.tick, te.tempoMPQ, tickResolution);
 		tempoLengths.put(te.tempoMPQ, elapsedMicros + Util.valueOf(tempoLengths.get(te.tempoMPQ), 0));
 
@@ -144,9 +106,232 @@ public class SequenceDataCache implements MidiConstants, ITempoCache, IBarNumber
 
 		this.minTempoMPQ = (minTempoMPQ == Integer.MAX_VALUE) ? DEFAULT_TEMPO_MPQ : minTempoMPQ;
 		this.maxTempoMPQ = (maxTempoMPQ == Integer.MIN_VALUE) ? DEFAULT_TEMPO_MPQ : maxTempoMPQ;
-		this.timeSignature = (timeSignature == null) ? TimeSignature.FOUR_FOUR : timeSignature;
+		this.timeSignature = (builder.timeSignature == null) ? TimeSignature.FOUR_FOUR : builder.timeSignature;
 
 		songLengthTicks = lastTick;
+
+		tempoEvents = tempo.values().toArray(new TempoEvent[tempo.size()]);
+		tempoTicks = new long[tempoEvents.length];
+		tempoMicros = new long[tempoEvents.length];
+		for (int i = 0; i < tempoEvents.length; i++)
+		{
+			tempoTicks[i] = tempoEvents[i].tick;
+			tempoMicros[i] = tempoEvents[i].micros;
+		}
+	}
+
+	/** Reads a cache that was written by {@link #writeTo(DataOutputStream)}. */
+	private SequenceDataCache(ByteBuffer in) throws InvalidMidiDataException
+	{
+		divisionType = in.getFloat();
+		tickResolution = in.getInt();
+		primaryTempoMPQ = in.getInt();
+		minTempoMPQ = in.getInt();
+		maxTempoMPQ = in.getInt();
+		timeSignature = SequenceInfoCache.readTimeSignature(in);
+		songLengthTicks = in.getLong();
+
+		int tempoCount = in.getInt();
+		tempoEvents = new TempoEvent[Math.max(tempoCount, 0)];
+		tempoTicks = new long[tempoEvents.length];
+		tempoMicros = new long[tempoEvents.length];
+		for (int i = 0; i < tempoEvents.length; i++)
+		{
+			tempoEvents[i] = new TempoEvent(in.getInt(), in.getLong(), in.getLong());
+			tempoTicks[i] = tempoEvents[i].tick;
+			tempoMicros[i] = tempoEvents[i].micros;
+			tempo.put(tempoTicks[i], tempoEvents[i]);
+		}
+
+		instruments = MapByChannel.readFrom(in, DEFAULT_INSTRUMENT);
+		volume = MapByChannel.readFrom(in, DEFAULT_CHANNEL_VOLUME);
+		pitchBendCoarse = MapByChannel.readFrom(in, DEFAULT_PITCH_BEND_RANGE_SEMITONES);
+		pitchBendFine = MapByChannel.readFrom(in, DEFAULT_PITCH_BEND_RANGE_CENTS);
+	}
+
+	static SequenceDataCache readFrom(ByteBuffer in) throws InvalidMidiDataException
+	{
+		return new SequenceDataCache(in);
+	}
+
+	/** Writes the cache for {@link SequenceInfoCache}. */
+	void writeTo(DataOutputStream out) throws IOException
+	{
+		out.writeFloat(divisionType);
+		out.writeInt(tickResolution);
+		out.writeInt(primaryTempoMPQ);
+		out.writeInt(minTempoMPQ);
+		out.writeInt(maxTempoMPQ);
+		SequenceInfoCache.writeTimeSignature(out, timeSignature);
+		out.writeLong(songLengthTicks);
+
+		out.writeInt(tempoEvents.length);
+		for (TempoEvent te : tempoEvents)
+		{
+			out.writeInt(te.tempoMPQ);
+			out.writeLong(te.tick);
+			out.writeLong(te.micros);
+		}
+
+		instruments.writeTo(out);
+		volume.writeTo(out);
+		pitchBendCoarse.writeTo(out);
+		pitchBendFine.writeTo(out);
+	}
+
+	/**
+	 * Collects the instruments, volumes, pitch bend ranges and tempos of a song one event at a
+	 * time, so that they can be read in the same pass as other work on the song's events. Events
+	 * on each channel, and tempo events, must be added in the order that they're played.
+	 */
+	static class Builder
+	{
+		private final float divisionType;
+		private final int tickResolution;
+
+		private final MapByChannel instruments = new MapByChannel(DEFAULT_INSTRUMENT);
+		private final MapByChannel volume = new MapByChannel(DEFAULT_CHANNEL_VOLUME);
+		private final MapByChannel pitchBendCoarse = new MapByChannel(DEFAULT_PITCH_BEND_RANGE_SEMITONES);
+		private final MapByChannel pitchBendFine = new MapByChannel(DEFAULT_PITCH_BEND_RANGE_CENTS);
+
+		// Keep track of the active registered paramater number for pitch bend range
+		private final int[] rpn = new int[CHANNEL_COUNT];
+
+		private long[] tempoTicks = new long[8];
+		private int[] tempoMPQs = new int[8];
+		private int tempoCount = 0;
+
+		private TimeSignature timeSignature = null;
+		private long lastTick = 0;
+
+		Builder(float divisionType, int tickResolution)
+		{
+			this.divisionType = divisionType;
+			this.tickResolution = tickResolution;
+			Arrays.fill(rpn, REGISTERED_PARAM_NONE);
+		}
+
+		static Builder scan(Sequence song)
+		{
+			Builder builder = new Builder(song.getDivisionType(), song.getResolution());
+			Track[] tracks = song.getTracks();
+			for (int iTrack = 0; iTrack < tracks.length; iTrack++)
+			{
+				Track track = tracks[iTrack];
+				for (int j = 0, sz = track.size(); j < sz; j++)
+				{
+					builder.add(track.get(j), iTrack == 0);
+				}
+			}
+			return builder;
+		}
+
+		/**
+		 * Adds an event from the song. Tempo events are only read from the first track.
+		 */
+		void add(MidiEvent evt, boolean isTrack0)
+		{
+			MidiMessage msg = evt.getMessage();
+			if (msg instanceof ShortMessage)
+			{
+				ShortMessage m = (ShortMessage) msg;
+				addShortMessage(evt.getTick(), m.getCommand(), m.getChannel(), m.getData1(), m.getData2());
+			}
+			else
+			{
+				addLongMessage(evt.getTick(), msg, isTrack0);
+			}
+		}
+
+		/**
+		 * Adds the event at index i of a track of the song. Tempo events are only read from the
+		 * first track.
+		 */
+		void add(PackedTrack track, int i, boolean isTrack0)
+		{
+			if (track.isShortMessage(i))
+			{
+				addShortMessage(track.getTick(i), track.getCommand(i), track.getChannel(i), track.getData1(i),
+						track.getData2(i));
+			}
+			else
+			{
+				addLongMessage(track.getTick(i), track.getLongMessage(i), isTrack0);
+			}
+		}
+
+		private void addShortMessage(long tick, int cmd, int ch, int data1, int data2)
+		{
+			if (tick > lastTick)
+				lastTick = tick;
+
+			if (cmd == ShortMessage.PROGRAM_CHANGE)
+			{
+				if (ch != DRUM_CHANNEL)
+				{
+					instruments.put(ch, tick, data1);
+				}
+			}
+			else if (cmd == ShortMessage.CONTROL_CHANGE)
+			{
+				switch (data1)
+				{
+				case CHANNEL_VOLUME_CONTROLLER_COARSE:
+					volume.put(ch, tick, data2);
+					break;
+				case REGISTERED_PARAMETER_NUMBER_MSB:
+					rpn[ch] = (rpn[ch] & 0x7F) | ((data2 & 0x7F) << 7);
+					break;
+				case REGISTERED_PARAMETER_NUMBER_LSB:
+					rpn[ch] = (rpn[ch] & (0x7F << 7)) | (data2 & 0x7F);
+					break;
+				case DATA_ENTRY_COARSE:
+					if (rpn[ch] == REGISTERED_PARAM_PITCH_BEND_RANGE)
+						pitchBendCoarse.put(ch, tick, data2);
+					break;
+				case DATA_ENTRY_FINE:
+					if (rpn[ch] == REGISTERED_PARAM_PITCH_BEND_RANGE)
+						pitchBendFine.put(ch, tick, data2);
+					break;
+				}
+			}
+		}
+
+		/** Adds a meta or system exclusive message. */
+		private void addLongMessage(long tick, MidiMessage msg, boolean isTrack0)
+		{
+			if (tick > lastTick)
+				lastTick = tick;
+
+			if (isTrack0 && (divisionType == Sequence.PPQ) && MidiUtils.isMetaTempo(msg))
+			{
+				if (tempoCount == tempoTicks.length)
+				{
+					tempoTicks = Arrays.copyOf(tempoTicks, tempoCount * 2);
+					tempoMPQs = Arrays.copyOf(tempoMPQs, tempoCount * 2);
+				}
+				tempoTicks[tempoCount] = tick;
+				tempoMPQs[tempoCount] = MidiUtils.getTempoMPQ(msg);
+				tempoCount++;
+			}
+			else if (msg instanceof MetaMessage)
+			{
+				MetaMessage m = (MetaMessage) msg;
+				if (m.getType() == META_TIME_SIGNATURE && timeSignature == null)
+				{
+					timeSignature = new TimeSignature(m);
+				}
+			}
+		}
+
+		/**
+		 * Creates the cache. Events that were added past the end tick are treated as if they were
+		 * at the end tick.
+		 */
+		SequenceDataCache build(long endTick)
+		{
+			return new SequenceDataCache(this, endTick);
+		}
 	}
 
 	public int getInstrument(int channel, long tick)
@@ -164,6 +349,55 @@ public class SequenceDataCache implements MidiConstants, ITempoCache, IBarNumber
 		return pitchBendCoarse.get(channel, tick) + (pitchBendFine.get(channel, tick) / 100.0);
 	}
 
+	/**
+	 * Creates a cursor for reading the instruments, volumes and pitch bend ranges at increasing
+	 * ticks, e.g. while reading a track's events.
+	 */
+	public Cursor cursor()
+	{
+		return new Cursor();
+	}
+
+	/**
+	 * Reads the instruments, volumes and pitch bend ranges of the song at ticks that are read in
+	 * order, without searching from the start for each one. Reading an earlier tick still works,
+	 * but searches again. A cursor must only be used by one thread at a time.
+	 */
+	public class Cursor
+	{
+		private final int[] instrumentPosition = newPosition();
+		private final int[] volumePosition = newPosition();
+		private final int[] pitchBendCoarsePosition = newPosition();
+		private final int[] pitchBendFinePosition = newPosition();
+
+		private Cursor()
+		{
+		}
+
+		private int[] newPosition()
+		{
+			int[] position = new int[CHANNEL_COUNT];
+			Arrays.fill(position, -1);
+			return position;
+		}
+
+		public int getInstrument(int channel, long tick)
+		{
+			return instruments.get(channel, tick, instrumentPosition);
+		}
+
+		public int getVolume(int channel, long tick)
+		{
+			return volume.get(channel, tick, volumePosition);
+		}
+
+		public double getPitchBendRange(int channel, long tick)
+		{
+			return pitchBendCoarse.get(channel, tick, pitchBendCoarsePosition)
+					+ (pitchBendFine.get(channel, tick, pitchBendFinePosition) / 100.0);
+		}
+	}
+
 	public long getSongLengthTicks()
 	{
 		return songLengthTicks;
@@ -248,6 +482,7 @@ public class SequenceDataCache implements MidiConstants, ITempoCache, IBarNumber
 		return (int) (tick / getBarLengthTicks());
 	}
 
+	/** Returns the tempo events by tick. The map must not be changed, since other threads may be reading it. */
 	public NavigableMap<Long, TempoEvent> getTempoEvents()
 	{
 		return tempo;
@@ -274,59 +509,194 @@ public class SequenceDataCache implements MidiConstants, ITempoCache, IBarNumber
 
 	public TempoEvent getTempoEventForTick(long tick)
 	{
-		Entry<Long, TempoEvent> entry = tempo.floorEntry(tick);
-		if (entry != null)
-			return entry.getValue();
-
-		return TempoEvent.DEFAULT_TEMPO;
+		int i = Util.floorIndex(tempoTicks, tick);
+		return (i < 0) ? TempoEvent.DEFAULT_TEMPO : tempoEvents[i];
 	}
 
 	public TempoEvent getTempoEventForMicros(long micros)
 	{
-		TempoEvent prev = TempoEvent.DEFAULT_TEMPO;
-		for (TempoEvent event : tempo.values())
-		{
-			if (event.micros > micros)
-				break;
-
-			prev = event;
-		}
-		return prev;
+		int i = Util.floorIndex(tempoMicros, micros);
+		return (i < 0) ? TempoEvent.DEFAULT_TEMPO : tempoEvents[i];
 	}
 
 	/**
-	 * Map by channel
+	 * The values of a controller (or the program) of each channel, with the ticks that they change
+	 * at. Each channel's values are kept in parallel arrays sorted by tick, so a value can be found
+	 * with a binary search, or by moving forward from the last value that was found.
 	 */
 	private static class MapByChannel
 	{
-		private NavigableMap<Long, Integer>[] map;
-		private int defaultValue;
+		private static final long[] NO_TICKS = new long[0];
+		private static final int[] NO_VALUES = new int[0];
+
+		private final long[][] ticks = new long[CHANNEL_COUNT][];
+		private final int[][] values = new int[CHANNEL_COUNT][];
+		// Only used while the values are being put, before trim() is called
+		private final int[] counts = new int[CHANNEL_COUNT];
+		private final boolean[] sorted = new boolean[CHANNEL_COUNT];
+		private final int defaultValue;
 
-		@SuppressWarnings("unchecked")//
 		public MapByChannel(int defaultValue)
 		{
-			map = new NavigableMap[CHANNEL_COUNT];
 			this.defaultValue = defaultValue;
+			Arrays.fill(ticks, NO_TICKS);
+			Arrays.fill(values, NO_VALUES);
+			Arrays.fill(sorted, true);
+		}
+
+		/**
+		 * Sets the value at a tick. If a channel's values aren't put in order, they're sorted by
+		 * {@link #trim()}. As with a map, a later value at the same tick replaces the earlier one.
+		 */
+		public void put(int channel, long tick, int value)
+		{
+			int count = counts[channel];
+			if (count > 0 && sorted[channel] && ticks[channel][count - 1] >= tick)
+			{
+				if (ticks[channel][count - 1] == tick)
+				{
+					values[channel][count - 1] = value;
+					return;
+				}
+				sorted[channel] = false;
+			}
+
+			if (count == ticks[channel].length)
+			{
+				ticks[channel] = Arrays.copyOf(ticks[channel], Math.max(count * 2, 8));
+				values[channel] = Arrays.copyOf(values[channel], ticks[channel].length);
+			}
+			ticks[channel][count] = tick;
+			values[channel][count] = value;
+			counts[channel] = count + 1;
 		}
 
-		public void put(int channel, long tick, Integer value)
+		/**
+		 * Sorts the values that weren't put in order, and trims the arrays so that their lengths are
+		 * the number of values. Called once all of the values have been put.
+		 */
+		public MapByChannel trim()
 		{
-			if (map[channel] == null)
-				map[channel] = new TreeMap<Long, Integer>();
+			for (int c = 0; c < CHANNEL_COUNT; c++)
+			{
+				if (!sorted[c])
+				{
+					sortByTick(ticks[c], values[c], counts[c]);
+					sorted[c] = true;
 
-			map[channel].put(tick, value);
+					// Keep the last value put at each tick
+					int count = 0;
+					for (int i = 0; i < counts[c]; i++)
+					{
+						if (count > 0 && ticks[c][count - 1] == ticks[c][i])
+							count--;
+						ticks[c][count] = ticks[c][i];
+						values[c][count] = values[c][i];
+						count++;
+					}
+					counts[c] = count;
+				}
+
+				if (ticks[c].length != counts[c])
+				{
+					ticks[c] = Arrays.copyOf(ticks[c], counts[c]);
+					values[c] = Arrays.copyOf(values[c], counts[c]);
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * Sorts the first count values by tick with a merge sort, which keeps values at the same tick
+		 * in the order that they were put.
+		 */
+		private static void sortByTick(long[] ticks, int[] values, int count)
+		{
+			long[] fromTicks = ticks;
+			int[] fromValues = values;
+			long[] toTicks = new long[count];
+			int[] toValues = new int[count];
+			for (int width = 1; width < count; width *= 2)
+			{
+				for (int low = 0; low < count; low += 2 * width)
+				{
+					int mid = Math.min(low + width, count);
+					int high = Math.min(low + 2 * width, count);
+					int a = low, b = mid;
+					for (int i = low; i < high; i++)
+					{
+						int from = (a < mid && (b >= high || fromTicks[a] <= fromTicks[b])) ? a++ : b++;
+						toTicks[i] = fromTicks[from];
+						toValues[i] = fromValues[from];
+					}
+				}
+
+				long[] tmpTicks = fromTicks;
+				fromTicks = toTicks;
+				toTicks = tmpTicks;
+				int[] tmpValues = fromValues;
+				fromValues = toValues;
+				toValues = tmpValues;
+			}
+
+			if (fromTicks != ticks)
+			{
+				System.arraycopy(fromTicks, 0, ticks, 0, count);
+				System.arraycopy(fromValues, 0, values, 0, count);
+			}
 		}
 
 		public int get(int channel, long tick)
 		{
-			if (map[channel] == null)
-				return defaultValue;
+			int i = Util.floorIndex(ticks[channel], tick);
+			return (i < 0) ? defaultValue : values[channel][i];
+		}
+
+		/**
+		 * Gets the value at a tick, starting from the index of the last value that was found for the
+		 * channel, and updates the index.
+		 * 
+		 * @param position The index of the value that was last found for each channel, or -1.
+		 */
+		public int get(int channel, long tick, int[] position)
+		{
+			long[] t = ticks[channel];
+			int i = position[channel];
+			if (i >= 0 && t[i] > tick)
+			{
+				// Moved back, so search again
+				i = Util.floorIndex(t, tick);
+			}
+			else
+			{
+				while (i + 1 < t.length && t[i + 1] <= tick)
+					i++;
+			}
+			position[channel] = i;
+			return (i < 0) ? defaultValue : values[channel][i];
+		}
 
-			Entry<Long, Integer> entry = map[channel].floorEntry(tick);
-			if (entry == null) // No changes before this tick
-				return defaultValue;
+		public void writeTo(DataOutputStream out) throws IOException
+		{
+			for (int c = 0; c < CHANNEL_COUNT; c++)
+			{
+				out.writeInt(ticks[c].length);
+				SequenceInfoCache.writeLongs(out, ticks[c], ticks[c].length);
+				SequenceInfoCache.writeInts(out, values[c], values[c].length);
+			}
+		}
 
-			return entry.getValue();
+		public static MapByChannel readFrom(ByteBuffer in, int defaultValue)
+		{
+			MapByChannel result = new MapByChannel(defaultValue);
+			for (int c = 0; c < CHANNEL_COUNT; c++)
+			{
+				int count = in.getInt();
+				result.ticks[c] = SequenceInfoCache.readLongs(in, count);
+				result.values[c] = SequenceInfoCache.readInts(in, count);
+				result.counts[c] = count;
+			}
+			return result;
 		}
 	}
 }
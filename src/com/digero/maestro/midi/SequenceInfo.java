@@ -1,19 +1,19 @@
 package com.digero.maestro.midi;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
-import javax.sound.midi.MidiMessage;
-import javax.sound.midi.MidiSystem;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.ShortMessage;
-import javax.sound.midi.Track;
 
 import com.digero.common.abctomidi.AbcInfo;
 import com.digero.common.abctomidi.AbcToMidi;
@@ -22,6 +22,7 @@ import com.digero.common.midi.KeySignature;
 import com.digero.common.midi.MidiFactory;
 import com.digero.common.midi.TimeSignature;
 import com.digero.common.util.Pair;
+import com.digero.common.util.ParallelTasks;
 import com.digero.common.util.ParseException;
 import com.digero.maestro.abc.AbcConversionException;
 import com.digero.maestro.abc.AbcExporter;
@@ -31,10 +32,15 @@ import com.sun.media.sound.MidiUtils;
 
 /**
  * Container for a MIDI sequence. If necessary, converts type 0 MIDI files to type 1.
+ * <p>
+ * MIDI files are read into {@link PackedTrack}s, and the {@link Sequence} for playing the song is
+ * only created the first time {@link #getSequence()} is called.
  */
 public class SequenceInfo implements MidiConstants
 {
-	private final Sequence sequence;
+	/** The song's tracks, or null for songs previewed from ABC parts */
+	private final PackedSequence packedSequence;
+	private Sequence sequence;
 	private final SequenceDataCache sequenceCache;
 	private final String fileName;
 	private String title;
@@ -46,50 +52,128 @@ public class SequenceInfo implements MidiConstants
 	{
 		if (params.abcInfo == null)
 			params.abcInfo = new AbcInfo();
-		SequenceInfo sequenceInfo = new SequenceInfo(params.filesData.get(0).file.getName(), AbcToMidi.convert(params));
+		SequenceInfo sequenceInfo = new SequenceInfo(params.filesData.get(0).file.getName(),
+				PackedSequence.fromSequence(AbcToMidi.convert(params)));
 		sequenceInfo.title = params.abcInfo.getTitle();
 		sequenceInfo.composer = params.abcInfo.getComposer();
 		sequenceInfo.primaryTempoMPQ = (int) Math.round(MidiUtils.convertTempo(params.abcInfo.getPrimaryTempoBPM()));
 		return sequenceInfo;
 	}
 
+	/**
+	 * Reads a MIDI file, or the song from the default {@link SequenceInfoCache} if the same file has
+	 * been read before.
+	 */
 	public static SequenceInfo fromMidi(File midiFile) throws InvalidMidiDataException, IOException, ParseException
 	{
-		return new SequenceInfo(midiFile.getName(), MidiSystem.getSequence(midiFile));
+		return fromMidi(midiFile, SequenceInfoCache.getDefault());
+	}
+
+	/**
+	 * Reads a MIDI file, or the song from the cache if the same file has been read before.
+	 * 
+	 * @param cache The cache to look for the song in, and to store it in after reading the file.
+	 *            If null, the file is always read.
+	 */
+	public static SequenceInfo fromMidi(File midiFile, SequenceInfoCache cache) throws InvalidMidiDataException,
+			IOException, ParseException
+	{
+		if (cache == null)
+			return new SequenceInfo(midiFile.getName(), PackedSequence.read(midiFile));
+
+		String key = cache.getKey(midiFile);
+		SequenceInfo sequenceInfo = cache.load(key, midiFile.getName());
+		if (sequenceInfo == null)
+		{
+			sequenceInfo = new SequenceInfo(midiFile.getName(), PackedSequence.read(midiFile));
+			cache.store(key, sequenceInfo);
+		}
+		return sequenceInfo;
 	}
 
 	public static SequenceInfo fromAbcParts(AbcExporter abcExporter, boolean useLotroInstruments)
 			throws InvalidMidiDataException, AbcConversionException
 	{
-		return new SequenceInfo(abcExporter, useLotroInstruments);
+		return new SequenceInfo(abcExporter, useLotroInstruments, 0, AbcExporter.END_OF_SONG);
 	}
 
-	private SequenceInfo(String fileName, Sequence sequence) throws InvalidMidiDataException, ParseException
+	/** Previews a range of bars of the song; see {@link AbcExporter#exportToPreview(boolean, int, int)}. */
+	public static SequenceInfo fromAbcParts(AbcExporter abcExporter, boolean useLotroInstruments, int fromBar,
+			int toBar) throws InvalidMidiDataException, AbcConversionException
 	{
-		this.fileName = fileName;
-		this.sequence = sequence;
+		return new SequenceInfo(abcExporter, useLotroInstruments, fromBar, toBar);
+	}
 
-		// Since the drum track separation is only applicable to type 1 midi sequences, 
-		// do it before we convert this sequence to type 1, to avoid doing unnecessary work
-		separateDrumTracks(sequence);
-		convertToType1(sequence);
-		fixupTrackLength(sequence);
+	private SequenceInfo(String fileName, PackedSequence song) throws InvalidMidiDataException, ParseException
+	{
+		this.fileName = fileName;
 
-		Track[] tracks = sequence.getTracks();
-		if (tracks.length == 0)
+		if (song.getTracks().isEmpty())
 		{
 			throw new InvalidMidiDataException("The MIDI file doesn't have any tracks");
 		}
 
-		sequenceCache = new SequenceDataCache(sequence);
+		Pair<PackedSequence, SequenceDataCache> split = splitTracks(song);
+		this.packedSequence = split.first;
+		this.sequenceCache = split.second;
+		List<PackedTrack> tracks = packedSequence.getTracks();
 		primaryTempoMPQ = sequenceCache.getPrimaryTempoMPQ();
 
-		List<TrackInfo> trackInfoList = new ArrayList<TrackInfo>(tracks.length);
-		for (int i = 0; i < tracks.length; i++)
+		// Each track's notes only depend on the track and the data cache, so the tracks are read in
+		// parallel. The data cache isn't changed after it's created, and each TrackInfo reads it
+		// through its own cursor.
+		List<TrackInfoTask> tasks = new ArrayList<TrackInfoTask>(tracks.size());
+		for (int i = 0; i < tracks.size(); i++)
 		{
-			trackInfoList.add(new TrackInfo(this, tracks[i], i, sequenceCache));
+			tasks.add(new TrackInfoTask(tracks.get(i), i));
 		}
 
+		// Start the largest tracks first, so that a large track that's started last doesn't keep
+		// the other threads waiting for it. This depends on ParallelTasks.invokeAll() starting the
+		// tasks in list order; ForkJoinTask.invokeAll() would give idle threads the smallest first.
+		List<TrackInfoTask> bySize = new ArrayList<TrackInfoTask>(tasks);
+		Collections.sort(bySize, new Comparator<TrackInfoTask>()
+		{
+			@Override public int compare(TrackInfoTask a, TrackInfoTask b)
+			{
+				return Integer.compare(b.track.size(), a.track.size());
+			}
+		});
+		ParallelTasks.invokeAll(bySize);
+
+		List<TrackInfo> trackInfoList = new ArrayList<TrackInfo>(tracks.size());
+		for (TrackInfoTask task : tasks)
+		{
+			task.rethrowError();
+			trackInfoList.add(task.trackInfo);
+		}
+
+		this.trackInfoList = Collections.unmodifiableList(trackInfoList);
+		initTitle();
+	}
+
+	/** Reads a song that was written by {@link #writeTo(DataOutputStream)}. */
+	SequenceInfo(String fileName, ByteBuffer in) throws InvalidMidiDataException, IOException
+	{
+		this.fileName = fileName;
+		packedSequence = PackedSequence.readFrom(in);
+		sequenceCache = SequenceDataCache.readFrom(in);
+		primaryTempoMPQ = sequenceCache.getPrimaryTempoMPQ();
+
+		int trackCount = in.getInt();
+		if (trackCount != packedSequence.getTracks().size() || trackCount == 0)
+			throw new IOException("The number of tracks doesn't match");
+
+		List<TrackInfo> trackInfoList = new ArrayList<TrackInfo>(trackCount);
+		for (int i = 0; i < trackCount; i++)
+			trackInfoList.add(new TrackInfo(this, in, sequenceCache));
+
+		this.trackInfoList = Collections.unmodifiableList(trackInfoList);
+		initTitle();
+	}
+
+	private void initTitle()
+	{
 		composer = "";
 		if (trackInfoList.get(0).hasName())
 		{
@@ -103,20 +187,36 @@ public class SequenceInfo implements MidiConstants
 				title = title.substring(0, dot);
 			title = title.replace('_', ' ');
 		}
+	}
 
-		this.trackInfoList = Collections.unmodifiableList(trackInfoList);
+	/**
+	 * Writes the song's tracks, notes and data cache for {@link SequenceInfoCache}. Only songs that
+	 * were read from MIDI files can be written.
+	 */
+	void writeTo(DataOutputStream out) throws IOException
+	{
+		if (packedSequence == null)
+			throw new IOException("Only songs read from MIDI files can be written");
+
+		packedSequence.writeTo(out);
+		sequenceCache.writeTo(out);
+		out.writeInt(trackInfoList.size());
+		for (TrackInfo trackInfo : trackInfoList)
+			trackInfo.writeTo(out);
 	}
 
-	private SequenceInfo(AbcExporter abcExporter, boolean useLotroInstruments) throws InvalidMidiDataException,
-			AbcConversionException
+	private SequenceInfo(AbcExporter abcExporter, boolean useLotroInstruments, int fromBar, int toBar)
+			throws InvalidMidiDataException, AbcConversionException
 	{
 		AbcMetadataSource metadata = abcExporter.getMetadataSource();
 		this.fileName = metadata.getSongTitle() + ".abc";
 		this.composer = metadata.getComposer();
 		this.title = metadata.getSongTitle();
 
-		Pair<List<ExportTrackInfo>, Sequence> result = abcExporter.exportToPreview(useLotroInstruments);
+		Pair<List<ExportTrackInfo>, Sequence> result = abcExporter.exportToPreview(useLotroInstruments, fromBar,
+				toBar);
 
+		packedSequence = null;
 		sequence = result.second;
 		sequenceCache = new SequenceDataCache(sequence);
 		primaryTempoMPQ = sequenceCache.getPrimaryTempoMPQ();
@@ -136,8 +236,12 @@ public class SequenceInfo implements MidiConstants
 		return fileName;
 	}
 
-	public Sequence getSequence()
+	/** Returns the sequence for playing the song, creating it the first time it's needed. */
+	public synchronized Sequence getSequence()
 	{
+		if (sequence == null)
+			sequence = packedSequence.toSequence();
+
 		return sequence;
 	}
 
@@ -151,6 +255,26 @@ public class SequenceInfo implements MidiConstants
 		return composer;
 	}
 
+	/** Reads the notes of a single track */
+	@SuppressWarnings("serial")//
+	private class TrackInfoTask extends ParallelTasks.Task<InvalidMidiDataException>
+	{
+		private final PackedTrack track;
+		private final int trackNumber;
+		private TrackInfo trackInfo;
+
+		public TrackInfoTask(PackedTrack track, int trackNumber)
+		{
+			this.track = track;
+			this.trackNumber = trackNumber;
+		}
+
+		@Override protected void run() throws InvalidMidiDataException
+		{
+			trackInfo = new TrackInfo(SequenceInfo.this, track, trackNumber, sequenceCache);
+		}
+	}
+
 	public int getTrackCount()
 	{
 		return trackInfoList.size();
@@ -214,23 +338,17 @@ public class SequenceInfo implements MidiConstants
 	public long calcFirstNoteTick()
 	{
 		long firstNoteTick = Long.MAX_VALUE;
-		for (Track t : sequence.getTracks())
+		for (PackedTrack t : getPackedTracks())
 		{
 			for (int j = 0; j < t.size(); j++)
 			{
-				MidiEvent evt = t.get(j);
-				MidiMessage msg = evt.getMessage();
-				if (msg instanceof ShortMessage)
+				if (t.isShortMessage(j) && t.getCommand(j) == ShortMessage.NOTE_ON)
 				{
-					ShortMessage m = (ShortMessage) msg;
-					if (m.getCommand() == ShortMessage.NOTE_ON)
+					if (t.getTick(j) < firstNoteTick)
 					{
-						if (evt.getTick() < firstNoteTick)
-						{
-							firstNoteTick = evt.getTick();
-						}
-						break;
+						firstNoteTick = t.getTick(j);
 					}
+					break;
 				}
 			}
 		}
@@ -242,23 +360,17 @@ public class SequenceInfo implements MidiConstants
 	public long calcLastNoteTick()
 	{
 		long lastNoteTick = 0;
-		for (Track t : sequence.getTracks())
+		for (PackedTrack t : getPackedTracks())
 		{
 			for (int j = t.size() - 1; j >= 0; j--)
 			{
-				MidiEvent evt = t.get(j);
-				MidiMessage msg = evt.getMessage();
-				if (msg instanceof ShortMessage)
+				if (t.isShortMessage(j) && t.getCommand(j) == ShortMessage.NOTE_OFF)
 				{
-					ShortMessage m = (ShortMessage) msg;
-					if (m.getCommand() == ShortMessage.NOTE_OFF)
+					if (t.getTick(j) > lastNoteTick)
 					{
-						if (evt.getTick() > lastNoteTick)
-						{
-							lastNoteTick = evt.getTick();
-						}
-						break;
+						lastNoteTick = t.getTick(j);
 					}
+					break;
 				}
 			}
 		}
@@ -266,172 +378,177 @@ public class SequenceInfo implements MidiConstants
 		return lastNoteTick;
 	}
 
-	@SuppressWarnings("unchecked")//
-	public static void fixupTrackLength(Sequence song)
+	private List<PackedTrack> getPackedTracks()
 	{
-//		System.out.println("Before: " + Util.formatDuration(song.getMicrosecondLength()));
-//		TempoCache tempoCache = new TempoCache(song);
-		Track[] tracks = song.getTracks();
-		List<MidiEvent>[] suspectEvents = new List[tracks.length];
+		if (packedSequence != null)
+			return packedSequence.getTracks();
+
+		return PackedSequence.fromSequence(sequence).getTracks();
+	}
+
+	/**
+	 * Makes sure the song has one track per channel and no tracks with both drums and notes, and
+	 * reads its tempos, instruments, volumes and pitch bend ranges, in a single pass over its events:
+	 * <ul>
+	 * <li>Type 0 MIDI files are separated into one track per channel (type 1).</li>
+	 * <li>The drums are moved out of tracks that have both drums and notes, into a track of their
+	 * own after the other tracks.</li>
+	 * <li>Meta events that are past the last note are moved to the end of the song. Some songs have
+	 * extra meta messages way past the end.</li>
+	 * </ul>
+	 * Tracks that are split up are rebuilt by appending their events to new tracks. Tracks that
+	 * don't need to be split up are kept as they are.
+	 * 
+	 * @return The song itself if none of its tracks needed to be split up, otherwise a new sequence;
+	 *         and the data cache for the song.
+	 */
+	private static Pair<PackedSequence, SequenceDataCache> splitTracks(PackedSequence song)
+	{
+		final int DRUMS = 0x1;
+		final int NOTES = 0x2;
+		final int MIXED = DRUMS | NOTES;
+
+		List<PackedTrack> tracks = song.getTracks();
+		boolean isType0 = (tracks.size() == 1);
+
+		// For type 0, the events for each channel, in the order that the channels are first used
+		List<PackedTrack> channelTracks = new ArrayList<PackedTrack>();
+		PackedTrack[] channelTrackMap = new PackedTrack[CHANNEL_COUNT];
+		// For type 1, the tracks after the drums are moved out of the mixed tracks, and the drums
+		// that were moved out of each mixed track
+		List<PackedTrack> newTracks = new ArrayList<PackedTrack>(tracks.size() + 1);
+		List<PackedTrack> mixedTrackDrums = new ArrayList<PackedTrack>();
 		long endTick = 0;
+		SequenceDataCache.Builder cache = new SequenceDataCache.Builder(song.getDivisionType(), song.getResolution());
 
-		for (int i = 0; i < tracks.length; i++)
+		for (int i = 0; i < tracks.size(); i++)
 		{
-			Track track = tracks[i];
-			for (int j = track.size() - 1; j >= 0; --j)
+			PackedTrack track = tracks.get(i);
+			PackedTrack metaEvents = isType0 ? new PackedTrack() : null;
+			int contents = 0;
+			for (int j = 0, sz = track.size(); j < sz; j++)
 			{
-				MidiEvent evt = track.get(j);
-				if (MidiUtils.isMetaEndOfTrack(evt.getMessage()))
+				cache.add(track, j, i == 0);
+				if (track.isShortMessage(j))
 				{
-					if (suspectEvents[i] == null)
-						suspectEvents[i] = new ArrayList<MidiEvent>();
-					suspectEvents[i].add(evt);
-				}
-				else if (evt.getTick() > endTick)
-				{
-					// Seems like some songs have extra meta messages way past the end
-					if (evt.getMessage() instanceof MetaMessage)
+					int chan = track.getChannel(j);
+					if (isType0)
 					{
-						if (suspectEvents[i] == null)
-							suspectEvents[i] = new ArrayList<MidiEvent>();
-						suspectEvents[i].add(0, evt);
+						if (channelTrackMap[chan] == null)
+						{
+							int trackNumber = channelTracks.size() + 1;
+							String trackName = (chan == DRUM_CHANNEL) ? "Drums" : ("Track " + trackNumber);
+							channelTrackMap[chan] = createNamedTrack(trackName);
+							channelTracks.add(channelTrackMap[chan]);
+						}
+						channelTrackMap[chan].add(track, j);
 					}
-					else
+					else if (track.getCommand(j) == ShortMessage.NOTE_ON)
 					{
-						endTick = evt.getTick();
-						break;
+						contents |= (chan == DRUM_CHANNEL) ? DRUMS : NOTES;
 					}
 				}
+				else if (isType0)
+				{
+					metaEvents.add(track, j);
+				}
+
+				if (!(track.getLongMessage(j) instanceof MetaMessage) && track.getTick(j) > endTick)
+					endTick = track.getTick(j);
 			}
-		}
 
-		for (int i = 0; i < tracks.length; i++)
-		{
-			for (MidiEvent evt : suspectEvents[i])
+			if (isType0)
+			{
+				metaEvents.add(track.getEndOfTrackTick(), createEndOfTrack());
+				channelTracks.add(0, metaEvents);
+			}
+			else if (contents == MIXED)
 			{
-				if (evt.getTick() > endTick)
+				// Mixed track: move the events on the drum channel to the drum track
+				PackedTrack notes = new PackedTrack(track.size());
+				PackedTrack drums = new PackedTrack();
+				for (int j = 0, sz = track.size(); j < sz; j++)
 				{
-					tracks[i].remove(evt);
-//					System.out.println("Moving event from "
-//							+ Util.formatDuration(MidiUtils.tick2microsecond(song, evt.getTick(), tempoCache)) + " to "
-//							+ Util.formatDuration(MidiUtils.tick2microsecond(song, endTick, tempoCache)));
-					evt.setTick(endTick);
-					tracks[i].add(evt);
+					if (track.isShortMessage(j) && track.getChannel(j) == DRUM_CHANNEL)
+						drums.add(track, j);
+					else
+						notes.add(track, j);
 				}
+				notes.add(track.getEndOfTrackTick(), createEndOfTrack());
+				newTracks.add(notes);
+				mixedTrackDrums.add(drums);
+			}
+			else
+			{
+				newTracks.add(track);
 			}
 		}
 
-//		System.out.println("Real song duration: "
-//				+ Util.formatDuration(MidiUtils.tick2microsecond(song, endTick, tempoCache)));
-//		System.out.println("After: " + Util.formatDuration(song.getMicrosecondLength()));
+		if (isType0)
+		{
+			newTracks = channelTracks;
+		}
+		else if (!mixedTrackDrums.isEmpty())
+		{
+			PackedTrack drumTrack = createNamedTrack("Drums");
+			mergeTracks(mixedTrackDrums, drumTrack);
+			newTracks.add(drumTrack);
+		}
+
+		for (PackedTrack track : newTracks)
+			track.moveEventsToEnd(endTick);
+
+		PackedSequence result = song;
+		if (isType0 || !mixedTrackDrums.isEmpty())
+			result = new PackedSequence(song.getDivisionType(), song.getResolution(), newTracks);
+
+		return new Pair<PackedSequence, SequenceDataCache>(result, cache.build(endTick));
 	}
 
-	/**
-	 * Separates the MIDI file to have one track per channel (Type 1).
-	 */
-	public static void convertToType1(Sequence song)
+	private static PackedTrack createNamedTrack(String name)
 	{
-		if (song.getTracks().length == 1)
-		{
-			Track track0 = song.getTracks()[0];
-			Track[] tracks = new Track[CHANNEL_COUNT];
+		PackedTrack track = new PackedTrack();
+		MidiEvent evt = MidiFactory.createTrackNameEvent(name);
+		track.add(evt.getTick(), evt.getMessage());
+		return track;
+	}
 
-			int trackNumber = 1;
-			int i = 0;
-			while (i < track0.size())
-			{
-				MidiEvent evt = track0.get(i);
-				if (evt.getMessage() instanceof ShortMessage)
-				{
-					int chan = ((ShortMessage) evt.getMessage()).getChannel();
-					if (tracks[chan] == null)
-					{
-						tracks[chan] = song.createTrack();
-						String trackName = (chan == DRUM_CHANNEL) ? "Drums" : ("Track " + trackNumber);
-						trackNumber++;
-						tracks[chan].add(MidiFactory.createTrackNameEvent(trackName));
-					}
-					tracks[chan].add(evt);
-					if (track0.remove(evt))
-						continue;
-				}
-				i++;
-			}
+	private static MetaMessage createEndOfTrack()
+	{
+		try
+		{
+			return new MetaMessage(META_END_OF_TRACK, new byte[0], 0);
+		}
+		catch (InvalidMidiDataException e)
+		{
+			throw new RuntimeException(e);
 		}
 	}
 
 	/**
-	 * Ensures that there are no tracks with both drums and notes.
+	 * Appends the events of the tracks to the end of another track, in order by tick. Events on the
+	 * same tick are kept in the order of the tracks that they came from.
 	 */
-	public static void separateDrumTracks(Sequence song)
+	private static void mergeTracks(List<PackedTrack> tracks, PackedTrack result)
 	{
-		Track[] tracks = song.getTracks();
-		// This doesn't work on Type 0 MIDI files
-		if (tracks.length <= 1)
-			return;
-
-		final int DRUMS = 0x1;
-		final int NOTES = 0x2;
-		final int MIXED = DRUMS | NOTES;
-
-		int[] trackContents = new int[tracks.length];
-		boolean hasMixed = false;
-
-		for (int i = 0; i < tracks.length; i++)
+		int[] next = new int[tracks.size()];
+		while (true)
 		{
-			Track track = tracks[i];
-			for (int j = 0; j < track.size(); j++)
+			int first = -1;
+			for (int k = 0; k < tracks.size(); k++)
 			{
-				MidiEvent evt = track.get(j);
-				MidiMessage msg = evt.getMessage();
-				if (msg instanceof ShortMessage)
+				PackedTrack track = tracks.get(k);
+				if (next[k] < track.size()
+						&& (first < 0 || track.getTick(next[k]) < tracks.get(first).getTick(next[first])))
 				{
-					ShortMessage m = (ShortMessage) msg;
-					if (m.getCommand() == ShortMessage.NOTE_ON)
-					{
-						if (m.getChannel() == DRUM_CHANNEL)
-						{
-							trackContents[i] |= DRUMS;
-						}
-						else
-						{
-							trackContents[i] |= NOTES;
-						}
-
-						if (trackContents[i] == MIXED)
-						{
-							hasMixed = true;
-							break;
-						}
-					}
+					first = k;
 				}
 			}
-		}
 
-		// If there are no mixed tracks, don't need to do anything
-		if (!hasMixed)
-			return;
+			if (first < 0)
+				break;
 
-		Track drumTrack = song.createTrack();
-		drumTrack.add(MidiFactory.createTrackNameEvent("Drums"));
-		for (int i = 0; i < tracks.length; i++)
-		{
-			Track track = tracks[i];
-			if (trackContents[i] == MIXED)
-			{
-				// Mixed track: copy only the events on the drum channel
-				for (int j = 0; j < track.size(); j++)
-				{
-					MidiEvent evt = track.get(j);
-					MidiMessage msg = evt.getMessage();
-					if ((msg instanceof ShortMessage) && ((ShortMessage) msg).getChannel() == DRUM_CHANNEL)
-					{
-						drumTrack.add(evt);
-						if (track.remove(evt))
-							j--;
-					}
-				}
-			}
+			result.add(tracks.get(first), next[first]++);
 		}
 	}
 }
@@ -0,0 +1,441 @@
+package com.digero.maestro.midi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+
+import com.digero.common.midi.KeySignature;
+import com.digero.common.midi.MidiConstants;
+import com.digero.common.midi.TimeSignature;
+import com.digero.maestro.MaestroMain;
+
+/**
+ * Keeps the songs that have been read from MIDI files in a directory, so that opening the same
+ * file again (e.g. reopening a project) doesn't have to read and process the whole file. Each song
+ * is stored in a binary file named after a hash of the MIDI file's contents, so a file that has
+ * changed is read again, and the same song is found even if the file was moved. The hash also
+ * covers the code that reads songs, so songs stored by a different build are read again.
+ * <p>
+ * When the directory gets larger than its maximum size, the songs that were used the longest ago
+ * are removed. Songs that were stored with a different {@link #FORMAT_VERSION} are ignored.
+ */
+public class SequenceInfoCache
+{
+	/**
+	 * The version of the stored songs. This must be increased whenever a change to reading or
+	 * processing MIDI files changes the stored data or the results, so that songs stored by older
+	 * versions are read from their MIDI files again.
+	 */
+	static final int FORMAT_VERSION = 2;
+
+	private static final int MAGIC = 0x4d534551; // 'MSEQ'
+	private static final String FILE_EXTENSION = ".seq";
+	private static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+
+	/** The package whose classes read songs from MIDI files; see {@link #getCodeHash()} */
+	private static final String CODE_PACKAGE = "com/digero/maestro/midi/";
+
+	private static SequenceInfoCache defaultCache = null;
+	private static boolean defaultCacheSet = false;
+	private static byte[] codeHash = null;
+
+	private final File directory;
+	private final long maxSize;
+
+	/**
+	 * Returns the cache in the user's local application data directory, or null if the directory
+	 * can't be created.
+	 */
+	public static synchronized SequenceInfoCache getDefault()
+	{
+		if (defaultCache == null && !defaultCacheSet)
+		{
+			File directory;
+			String localAppData = System.getenv("LOCALAPPDATA");
+			if (localAppData != null && new File(localAppData).isDirectory())
+				directory = new File(localAppData, "Maestro/SongCache");
+			else
+				directory = new File(System.getProperty("user.home", ""), ".maestro/SongCache");
+
+			if (!directory.isDirectory() && !directory.mkdirs())
+				return null;
+
+			defaultCache = new SequenceInfoCache(directory, DEFAULT_MAX_SIZE);
+		}
+		return defaultCache;
+	}
+
+	/**
+	 * Replaces the cache returned by {@link #getDefault()}. Tests and benchmarks set it to null, so
+	 * that songs are always read from their MIDI files, and aren't stored in the user's cache.
+	 */
+	public static synchronized void setDefault(SequenceInfoCache cache)
+	{
+		defaultCache = cache;
+		defaultCacheSet = true;
+	}
+
+	public SequenceInfoCache(File directory, long maxSize)
+	{
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Returns the key that the song from the MIDI file is stored under: a hash of its contents and
+	 * of the code that reads it.
+	 */
+	String getKey(File midiFile) throws IOException
+	{
+		MessageDigest digest = createDigest();
+		digest.update(getCodeHash());
+		try (RandomAccessFile raf = new RandomAccessFile(midiFile, "r"); FileChannel channel = raf.getChannel())
+		{
+			digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			StringBuilder key = new StringBuilder(80);
+			for (byte b : digest.digest())
+				key.append(String.format("%02x", b & 0xFF));
+			return key.append('-').append(channel.size()).toString();
+		}
+	}
+
+	/**
+	 * Reads the song stored under the key, or returns null if it isn't stored, or if it was stored
+	 * by a different version or is damaged.
+	 */
+	SequenceInfo load(String key, String fileName)
+	{
+		File file = getFile(key);
+		if (!file.isFile())
+			return null;
+
+		try
+		{
+			ByteBuffer in;
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel())
+			{
+				in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+
+			if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION || !key.equals(readString(in)))
+				throw new IOException("Stored by a different version");
+
+			// The file ends with a checksum of everything before it, and the magic number again
+			int end = in.limit() - 8;
+			CRC32 checksum = new CRC32();
+			ByteBuffer contents = in.duplicate();
+			contents.position(0).limit(end);
+			checksum.update(contents);
+			if (in.getInt(end) != (int) checksum.getValue() || in.getInt(end + 4) != MAGIC)
+				throw new IOException("Damaged");
+
+			SequenceInfo sequenceInfo = new SequenceInfo(fileName, in);
+			if (in.position() != end)
+				throw new IOException("Damaged");
+
+			// The songs that were used the longest ago are removed first
+			file.setLastModified(System.currentTimeMillis());
+			return sequenceInfo;
+		}
+		catch (IOException | InvalidMidiDataException | RuntimeException e)
+		{
+			file.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the song under the key, then removes the songs that were used the longest ago if the
+	 * cache is too large. Songs that can't be stored are ignored, since they can always be read
+	 * from their MIDI files.
+	 */
+	void store(String key, SequenceInfo sequenceInfo)
+	{
+		File temp = null;
+		try
+		{
+			temp = File.createTempFile("song", ".tmp", directory);
+			CRC32 checksum = new CRC32();
+			try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(
+					new FileOutputStream(temp)), checksum)))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				writeString(out, key);
+				sequenceInfo.writeTo(out);
+				out.writeInt((int) checksum.getValue());
+				out.writeInt(MAGIC);
+			}
+
+			Files.move(temp.toPath(), getFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			temp = null;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			// Ignore. The song will be read from the MIDI file next time.
+		}
+		finally
+		{
+			if (temp != null)
+				temp.delete();
+		}
+
+		removeOldFiles();
+	}
+
+	private static MessageDigest createDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns a hash of the classes in the package that reads songs from MIDI files, so that a
+	 * build that changes how songs are read doesn't use the songs stored by other builds, even if
+	 * {@link #FORMAT_VERSION} wasn't increased. If the classes can't be read, the app version is
+	 * used instead.
+	 */
+	static synchronized byte[] getCodeHash()
+	{
+		if (codeHash == null)
+		{
+			MessageDigest digest = createDigest();
+			digest.update(Integer.toString(FORMAT_VERSION).getBytes());
+			digest.update(MaestroMain.APP_VERSION.toString().getBytes());
+			try
+			{
+				File location = new File(SequenceInfoCache.class.getProtectionDomain().getCodeSource().getLocation()
+						.toURI());
+				if (location.isDirectory())
+					hashClassFiles(digest, new File(location, CODE_PACKAGE));
+				else
+					hashJarClassFiles(digest, location);
+			}
+			catch (IOException | URISyntaxException | RuntimeException e)
+			{
+				// Fall back to the app version
+			}
+			codeHash = digest.digest();
+		}
+		return codeHash;
+	}
+
+	/** Adds the names and contents of the class files in the directory, in order of name. */
+	private static void hashClassFiles(MessageDigest digest, File directory) throws IOException
+	{
+		File[] files = directory.listFiles();
+		if (files == null)
+			throw new IOException("Can't list " + directory);
+
+		Arrays.sort(files);
+		for (File file : files)
+		{
+			if (file.getName().endsWith(".class"))
+			{
+				digest.update(file.getName().getBytes("UTF-8"));
+				digest.update(Files.readAllBytes(file.toPath()));
+			}
+		}
+	}
+
+	/** Adds the names and contents of the package's class files in the jar, in order of name. */
+	private static void hashJarClassFiles(MessageDigest digest, File jar) throws IOException
+	{
+		try (JarFile jarFile = new JarFile(jar))
+		{
+			List<JarEntry> entries = new ArrayList<JarEntry>();
+			Enumeration<JarEntry> e = jarFile.entries();
+			while (e.hasMoreElements())
+			{
+				JarEntry entry = e.nextElement();
+				String name = entry.getName();
+				boolean inPackage = name.startsWith(CODE_PACKAGE) && name.indexOf('/', CODE_PACKAGE.length()) < 0;
+				if (inPackage && name.endsWith(".class"))
+					entries.add(entry);
+			}
+			Collections.sort(entries, new Comparator<JarEntry>()
+			{
+				@Override public int compare(JarEntry a, JarEntry b)
+				{
+					return a.getName().compareTo(b.getName());
+				}
+			});
+
+			byte[] buffer = new byte[8192];
+			for (JarEntry entry : entries)
+			{
+				digest.update(entry.getName().getBytes("UTF-8"));
+				try (InputStream in = jarFile.getInputStream(entry))
+				{
+					int n;
+					while ((n = in.read(buffer)) > 0)
+						digest.update(buffer, 0, n);
+				}
+			}
+		}
+	}
+
+	private File getFile(String key)
+	{
+		return new File(directory, key + FILE_EXTENSION);
+	}
+
+	/** Removes the files that were used the longest ago until the directory isn't too large. */
+	private synchronized void removeOldFiles()
+	{
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+
+		long size = 0;
+		final long[] lastModified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++)
+		{
+			size += files[i].length();
+			lastModified[i] = files[i].lastModified();
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override public int compare(Integer a, Integer b)
+			{
+				return Long.compare(lastModified[a], lastModified[b]);
+			}
+		});
+
+		for (int i = 0; i < order.length && size > maxSize; i++)
+		{
+			File file = files[order[i]];
+			long length = file.length();
+			if (file.delete())
+				size -= length;
+		}
+	}
+
+	/** Writes a time signature as the data of its MIDI message. */
+	static void writeTimeSignature(DataOutputStream out, TimeSignature timeSignature) throws IOException
+	{
+		// Time signatures are only read back the same if they're valid
+		MetaMessage m = timeSignature.toMidiMessage();
+		if (!timeSignature.equals(new TimeSignature(m)))
+			throw new IOException("Can't write time signature: " + timeSignature);
+
+		out.write(m.getData());
+	}
+
+	static TimeSignature readTimeSignature(ByteBuffer in) throws InvalidMidiDataException
+	{
+		byte[] data = readBytes(in, 4);
+		return new TimeSignature(new MetaMessage(MidiConstants.META_TIME_SIGNATURE, data, data.length));
+	}
+
+	/** Writes a key signature as the data of its MIDI message. */
+	static void writeKeySignature(DataOutputStream out, KeySignature keySignature) throws IOException
+	{
+		out.write(keySignature.toMidiMessage().getData());
+	}
+
+	static KeySignature readKeySignature(ByteBuffer in) throws InvalidMidiDataException
+	{
+		byte[] data = readBytes(in, 2);
+		return new KeySignature(new MetaMessage(MidiConstants.META_KEY_SIGNATURE, data, data.length));
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(ByteBuffer in) throws IOException
+	{
+		return new String(readBytes(in, in.getInt()), "UTF-8");
+	}
+
+	static void writeLongs(DataOutputStream out, long[] values, int count) throws IOException
+	{
+		ByteBuffer bytes = ByteBuffer.allocate(count * 8);
+		bytes.asLongBuffer().put(values, 0, count);
+		out.write(bytes.array());
+	}
+
+	static long[] readLongs(ByteBuffer in, int count)
+	{
+		checkCount(in, count, 8);
+		long[] values = new long[count];
+		in.asLongBuffer().get(values);
+		in.position(in.position() + count * 8);
+		return values;
+	}
+
+	static void writeInts(DataOutputStream out, int[] values, int count) throws IOException
+	{
+		ByteBuffer bytes = ByteBuffer.allocate(count * 4);
+		bytes.asIntBuffer().put(values, 0, count);
+		out.write(bytes.array());
+	}
+
+	static int[] readInts(ByteBuffer in, int count)
+	{
+		checkCount(in, count, 4);
+		int[] values = new int[count];
+		in.asIntBuffer().get(values);
+		in.position(in.position() + count * 4);
+		return values;
+	}
+
+	static byte[] readBytes(ByteBuffer in, int count)
+	{
+		checkCount(in, count, 1);
+		byte[] values = new byte[count];
+		in.get(values);
+		return values;
+	}
+
+	/** Checks that a damaged file doesn't ask for more values than there are left to read. */
+	private static void checkCount(ByteBuffer in, int count, int valueSize)
+	{
+		if (count < 0 || (long) count * valueSize > in.remaining())
+			throw new BufferUnderflowException();
+	}
+}
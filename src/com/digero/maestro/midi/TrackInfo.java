@@ -1,21 +1,19 @@
 package com.digero.maestro.midi;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MetaMessage;
-import javax.sound.midi.MidiEvent;
-import javax.sound.midi.MidiMessage;
 import javax.sound.midi.ShortMessage;
-import javax.sound.midi.Track;
 
 import com.digero.common.abc.LotroInstrument;
 import com.digero.common.midi.KeySignature;
@@ -34,23 +32,25 @@ public class TrackInfo implements MidiConstants
 	private TimeSignature timeSignature = null;
 	private KeySignature keySignature = null;
 	private Set<Integer> instruments;
-	private List<NoteEvent> noteEvents;
+	private NoteEventList noteEvents;
 	private SortedSet<Integer> notesInUse;
 	private boolean isDrumTrack;
 	private final int minVelocity;
 	private final int maxVelocity;
 
-	@SuppressWarnings("unchecked")//
-	TrackInfo(SequenceInfo parent, Track track, int trackNumber, SequenceDataCache sequenceCache)
+	TrackInfo(SequenceInfo parent, PackedTrack track, int trackNumber, SequenceDataCache sequenceCache)
 			throws InvalidMidiDataException
 	{
 		this.sequenceInfo = parent;
 		this.trackNumber = trackNumber;
 
 		instruments = new HashSet<Integer>();
-		noteEvents = new ArrayList<NoteEvent>();
 		notesInUse = new TreeSet<Integer>();
-		List<NoteEvent>[] notesOn = new List[16];
+		NoteEventList.Builder notes = new NoteEventList.Builder(sequenceCache);
+		SequenceDataCache.Cursor controllers = sequenceCache.cursor();
+		// The indices of the notes that are on for each channel, in the order they were turned on
+		int[][] notesOn = new int[16][];
+		int[] notesOnCount = new int[16];
 		int notesNotTurnedOff = 0;
 
 		int minVelocity = Integer.MAX_VALUE;
@@ -59,52 +59,40 @@ public class TrackInfo implements MidiConstants
 		int[] pitchBend = new int[16];
 		for (int j = 0, sz = track.size(); j < sz; j++)
 		{
-			MidiEvent evt = track.get(j);
-			MidiMessage msg = evt.getMessage();
-
-			if (msg instanceof ShortMessage)
+			if (track.isShortMessage(j))
 			{
-				ShortMessage m = (ShortMessage) msg;
-				int cmd = m.getCommand();
-				int c = m.getChannel();
+				int cmd = track.getCommand(j);
+				int c = track.getChannel(j);
 
-				if (noteEvents.isEmpty())
+				if (notes.getNoteCount() == 0)
 					isDrumTrack = (c == DRUM_CHANNEL);
 				else if (isDrumTrack != (c == DRUM_CHANNEL))
 					System.err.println("Track contains both notes and drums");
 
 				if (notesOn[c] == null)
-					notesOn[c] = new ArrayList<NoteEvent>();
+					notesOn[c] = new int[8];
 
-				long tick = evt.getTick();
+				long tick = track.getTick(j);
 				if (cmd == ShortMessage.NOTE_ON || cmd == ShortMessage.NOTE_OFF)
 				{
-					int noteId = m.getData1() + (isDrumTrack ? 0 : pitchBend[c]);
-					int velocity = m.getData2() * sequenceCache.getVolume(c, tick) / DEFAULT_CHANNEL_VOLUME;
+					int noteId = track.getData1(j) + (isDrumTrack ? 0 : pitchBend[c]);
+					int velocity = track.getData2(j) * controllers.getVolume(c, tick) / DEFAULT_CHANNEL_VOLUME;
 					if (velocity > 127)
 						velocity = 127;
 
 					if (cmd == ShortMessage.NOTE_ON && velocity > 0)
 					{
-						Note note = Note.fromId(noteId);
-						if (note == null)
+						if (!isValidNoteId(noteId))
 						{
 							continue; // Note was probably bent out of range. Not great, but not a reason to fail.
 						}
 
-						NoteEvent ne = new NoteEvent(note, velocity, tick, tick, sequenceCache);
-
-						Iterator<NoteEvent> onIter = notesOn[c].iterator();
-						while (onIter.hasNext())
+						int on = findNoteOn(notes, notesOn[c], notesOnCount[c], noteId);
+						if (on >= 0)
 						{
-							NoteEvent on = onIter.next();
-							if (on.note.id == ne.note.id)
-							{
-								onIter.remove();
-								noteEvents.remove(on);
-								notesNotTurnedOff++;
-								break;
-							}
+							notes.remove(notesOn[c][on]);
+							removeNoteOn(notesOn[c], notesOnCount[c]--, on);
+							notesNotTurnedOff++;
 						}
 
 						if (velocity > maxVelocity)
@@ -114,65 +102,62 @@ public class TrackInfo implements MidiConstants
 
 						if (!isDrumTrack)
 						{
-							instruments.add(sequenceCache.getInstrument(c, tick));
+							instruments.add(controllers.getInstrument(c, tick));
 						}
-						noteEvents.add(ne);
-						notesInUse.add(ne.note.id);
-						notesOn[c].add(ne);
+						int ne = notes.add(noteId, velocity, tick, tick);
+						notesInUse.add(noteId);
+						notesOn[c] = addNoteOn(notesOn[c], notesOnCount[c]++, ne);
 					}
 					else
 					{
-						Iterator<NoteEvent> iter = notesOn[c].iterator();
-						while (iter.hasNext())
+						int on = findNoteOn(notes, notesOn[c], notesOnCount[c], noteId);
+						if (on >= 0)
 						{
-							NoteEvent ne = iter.next();
-							if (ne.note.id == noteId)
-							{
-								iter.remove();
-								ne.setEndTick(tick);
-								break;
-							}
+							notes.setEndTick(notesOn[c][on], tick);
+							removeNoteOn(notesOn[c], notesOnCount[c]--, on);
 						}
 					}
 				}
 				else if (cmd == ShortMessage.PITCH_BEND && !isDrumTrack)
 				{
-					double pct = 2 * (((m.getData1() | (m.getData2() << 7)) / (double) (1 << 14)) - 0.5);
-					int bend = (int) Math.round(pct * sequenceCache.getPitchBendRange(m.getChannel(), tick));
+					double pct = 2 * (((track.getData1(j) | (track.getData2(j) << 7)) / (double) (1 << 14)) - 0.5);
+					int bend = (int) Math.round(pct * controllers.getPitchBendRange(c, tick));
 
 					if (bend != pitchBend[c])
 					{
-						List<NoteEvent> bentNotes = new ArrayList<NoteEvent>();
-						for (NoteEvent ne : notesOn[c])
+						int[] bentNotes = new int[notesOn[c].length];
+						int bentCount = 0;
+						for (int k = 0; k < notesOnCount[c]; k++)
 						{
-							ne.setEndTick(tick);
+							int ne = notesOn[c][k];
+							notes.setEndTick(ne, tick);
 							long bendTick = tick;
-							if (ne.getLengthMicros() < TimingInfo.SHORTEST_NOTE_MICROS)
+							if (notes.getLengthMicros(ne) < TimingInfo.SHORTEST_NOTE_MICROS)
 							{
 								// If the note is too short, just skip it. The new (bent) note will 
 								// replace it, so start the bent note at the same time this one started.
-								noteEvents.remove(ne);
-								bendTick = ne.getStartTick();
+								notes.remove(ne);
+								bendTick = notes.getStartTick(ne);
 							}
 
-							Note bn = Note.fromId(ne.note.id + bend - pitchBend[c]);
-							// If bn is null, the note was bent out of the 0-127 range. 
+							int bn = notes.getNoteId(ne) + bend - pitchBend[c];
+							// If bn isn't valid, the note was bent out of the 0-127 range. 
 							// Not much we can do except skip it.
-							if (bn != null)
+							if (isValidNoteId(bn))
 							{
-								NoteEvent bne = new NoteEvent(bn, ne.velocity, bendTick, bendTick, sequenceCache);
-								noteEvents.add(bne);
-								bentNotes.add(bne);
+								int bne = notes.add(bn, notes.getVelocity(ne), bendTick, bendTick);
+								bentNotes[bentCount++] = bne;
 							}
 						}
 						notesOn[c] = bentNotes;
+						notesOnCount[c] = bentCount;
 						pitchBend[c] = bend;
 					}
 				}
 			}
-			else if (msg instanceof MetaMessage)
+			else if (track.getLongMessage(j) instanceof MetaMessage)
 			{
-				MetaMessage m = (MetaMessage) msg;
+				MetaMessage m = (MetaMessage) track.getLongMessage(j);
 				int type = m.getType();
 
 				if (type == META_TRACK_NAME && name == null)
@@ -203,20 +188,15 @@ public class TrackInfo implements MidiConstants
 
 		// Turn off notes that are on at the end of the song.  This shouldn't happen...
 		int ctNotesOn = 0;
-		for (List<NoteEvent> notesOnChannel : notesOn)
+		for (int c = 0; c < notesOn.length; c++)
 		{
-			if (notesOnChannel != null)
-				ctNotesOn += notesOnChannel.size();
+			ctNotesOn += notesOnCount[c];
+			for (int k = 0; k < notesOnCount[c]; k++)
+				notes.remove(notesOn[c][k]);
 		}
 		if (ctNotesOn > 0)
 		{
 			System.err.println((ctNotesOn + notesNotTurnedOff) + " note(s) not turned off at the end of the track.");
-
-			for (List<NoteEvent> notesOnChannel : notesOn)
-			{
-				if (notesOnChannel != null)
-					noteEvents.removeAll(notesOnChannel);
-			}
 		}
 
 		if (minVelocity == Integer.MAX_VALUE)
@@ -227,13 +207,101 @@ public class TrackInfo implements MidiConstants
 		this.minVelocity = minVelocity;
 		this.maxVelocity = maxVelocity;
 
-		noteEvents = Collections.unmodifiableList(noteEvents);
+		noteEvents = notes.build();
 		notesInUse = Collections.unmodifiableSortedSet(notesInUse);
 		instruments = Collections.unmodifiableSet(instruments);
 	}
 
+	private static boolean isValidNoteId(int noteId)
+	{
+		return noteId != Note.REST.id && Note.fromId(noteId) != null;
+	}
+
+	/** Finds the index in notesOn of the note with the given ID, or -1 if the note isn't on. */
+	private static int findNoteOn(NoteEventList notes, int[] notesOn, int count, int noteId)
+	{
+		for (int k = 0; k < count; k++)
+		{
+			if (notes.getNoteId(notesOn[k]) == noteId)
+				return k;
+		}
+		return -1;
+	}
+
+	private static int[] addNoteOn(int[] notesOn, int count, int ne)
+	{
+		if (count == notesOn.length)
+			notesOn = Arrays.copyOf(notesOn, count * 2);
+		notesOn[count] = ne;
+		return notesOn;
+	}
+
+	private static void removeNoteOn(int[] notesOn, int count, int k)
+	{
+		System.arraycopy(notesOn, k + 1, notesOn, k, count - k - 1);
+	}
+
+	/** Reads a track that was written by {@link #writeTo(DataOutputStream)}. */
+	TrackInfo(SequenceInfo parent, ByteBuffer in, SequenceDataCache sequenceCache) throws InvalidMidiDataException,
+			IOException
+	{
+		this.sequenceInfo = parent;
+		this.trackNumber = in.getInt();
+		if (in.get() != 0)
+			this.name = SequenceInfoCache.readString(in);
+		if (in.get() != 0)
+			this.timeSignature = SequenceInfoCache.readTimeSignature(in);
+		if (in.get() != 0)
+			this.keySignature = SequenceInfoCache.readKeySignature(in);
+
+		Set<Integer> instruments = new HashSet<Integer>();
+		for (int i = in.getInt(); i > 0; i--)
+			instruments.add(in.get() & 0xFF);
+		SortedSet<Integer> notesInUse = new TreeSet<Integer>();
+		for (int i = in.getInt(); i > 0; i--)
+			notesInUse.add(in.get() & 0xFF);
+
+		this.isDrumTrack = (in.get() != 0);
+		this.minVelocity = in.getInt();
+		this.maxVelocity = in.getInt();
+		this.noteEvents = NoteEventList.readFrom(in, sequenceCache);
+		this.notesInUse = Collections.unmodifiableSortedSet(notesInUse);
+		this.instruments = Collections.unmodifiableSet(instruments);
+	}
+
+	/**
+	 * Writes the track for {@link SequenceInfoCache}. Tracks that were read from a MIDI file can be
+	 * written, but not tracks that were created from ABC parts.
+	 */
+	void writeTo(DataOutputStream out) throws IOException
+	{
+		out.writeInt(trackNumber);
+		out.writeBoolean(name != null);
+		if (name != null)
+			SequenceInfoCache.writeString(out, name);
+
+		out.writeBoolean(timeSignature != null);
+		if (timeSignature != null)
+			SequenceInfoCache.writeTimeSignature(out, timeSignature);
+		out.writeBoolean(keySignature != null);
+		if (keySignature != null)
+			SequenceInfoCache.writeKeySignature(out, keySignature);
+
+		out.writeInt(instruments.size());
+		for (int instrument : instruments)
+			out.writeByte(instrument);
+		out.writeInt(notesInUse.size());
+		for (int noteId : notesInUse)
+			out.writeByte(noteId);
+
+		out.writeBoolean(isDrumTrack);
+		out.writeInt(minVelocity);
+		out.writeInt(maxVelocity);
+		noteEvents.writeTo(out);
+	}
+
 	public TrackInfo(SequenceInfo parent, int trackNumber, String name, LotroInstrument instrument,
-			TimeSignature timeSignature, KeySignature keySignature, List<NoteEvent> noteEvents)
+			TimeSignature timeSignature, KeySignature keySignature, NoteEventList noteEvents)
 	{
 		this.sequenceInfo = parent;
 		this.trackNumber = trackNumber;
@@ -247,14 +315,15 @@ public class TrackInfo implements MidiConstants
 
 		int minVelocity = Integer.MAX_VALUE;
 		int maxVelocity = Integer.MIN_VALUE;
-		for (NoteEvent ne : noteEvents)
+		for (int i = 0; i < noteEvents.size(); i++)
 		{
-			this.notesInUse.add(ne.note.id);
+			this.notesInUse.add(noteEvents.getNoteId(i));
 
-			if (ne.velocity > maxVelocity)
-				maxVelocity = ne.velocity;
-			if (ne.velocity < minVelocity)
-				minVelocity = ne.velocity;
+			int velocity = noteEvents.getVelocity(i);
+			if (velocity > maxVelocity)
+				maxVelocity = velocity;
+			if (velocity < minVelocity)
+				minVelocity = velocity;
 		}
 		if (minVelocity == Integer.MAX_VALUE)
 			minVelocity = 0;
@@ -266,7 +335,6 @@ public class TrackInfo implements MidiConstants
 
 		this.isDrumTrack = false;
 
-		this.noteEvents = Collections.unmodifiableList(this.noteEvents);
 		this.notesInUse = Collections.unmodifiableSortedSet(this.notesInUse);
 		this.instruments = Collections.unmodifiableSet(this.instruments);
 	}
@@ -313,8 +381,8 @@ public class TrackInfo implements MidiConstants
 		return isDrumTrack;
 	}
 
-	/** Gets an unmodifiable list of the note events in this track. */
-	public List<NoteEvent> getEvents()
+	/** Gets a read-only list of the note events in this track. */
+	public NoteEventList getEvents()
 	{
 		return noteEvents;
 	}
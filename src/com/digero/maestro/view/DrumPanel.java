@@ -32,7 +32,6 @@ import com.digero.common.view.ColorTable;
 import com.digero.maestro.abc.AbcPart;
 import com.digero.maestro.abc.AbcPartEvent;
 import com.digero.maestro.abc.LotroDrumInfo;
-import com.digero.maestro.midi.NoteEvent;
 import com.digero.maestro.midi.TrackInfo;
 
 @SuppressWarnings("serial")
@@ -385,9 +384,9 @@ public class DrumPanel extends JPanel implements IDiscardable, TableLayoutConsta
 			return false;
 		}
 
-		@Override protected boolean isNoteVisible(NoteEvent ne)
+		@Override protected boolean isNoteVisible(int noteId)
 		{
-			return ne.note.id == drumId;
+			return noteId == drumId;
 		}
 	}
 }
@@ -19,8 +19,6 @@ import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.util.Arrays;
 import java.util.BitSet;
-import java.util.Collections;
-import java.util.List;
 
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
@@ -34,7 +32,7 @@ import com.digero.common.util.IDiscardable;
 import com.digero.common.util.Listener;
 import com.digero.common.util.Util;
 import com.digero.common.view.ColorTable;
-import com.digero.maestro.midi.NoteEvent;
+import com.digero.maestro.midi.NoteEventList;
 import com.digero.maestro.midi.SequenceDataCache;
 import com.digero.maestro.midi.SequenceInfo;
 import com.digero.maestro.midi.TrackInfo;
@@ -138,7 +136,7 @@ public class NoteGraph extends JPanel implements Listener<SequencerEvent>, IDisc
 		return true;
 	}
 
-	protected boolean isNoteVisible(NoteEvent ne)
+	protected boolean isNoteVisible(int noteId)
 	{
 		return true;
 	}
@@ -251,10 +249,10 @@ public class NoteGraph extends JPanel implements Listener<SequencerEvent>, IDisc
 		return noteOnOutlineWidthPix;
 	}
 
-	protected List<NoteEvent> getEvents()
+	protected NoteEventList getEvents()
 	{
 		if (trackInfo == null)
-			return Collections.emptyList();
+			return NoteEventList.EMPTY;
 
 		return trackInfo.getEvents();
 	}
@@ -378,18 +376,21 @@ public class NoteGraph extends JPanel implements Listener<SequencerEvent>, IDisc
 				// contains the notes that were/are playing
 				if (isShowingNotesOn())
 				{
-					for (NoteEvent ne : getEvents())
+					NoteEventList noteEvents = getEvents();
+					for (int i = 0; i < noteEvents.size(); i++)
 					{
-						if (ne.getEndMicros() < leftSongPos)
+						long startMicros = noteEvents.getStartMicros(i);
+						long endMicros = noteEvents.getEndMicros(i);
+						if (endMicros < leftSongPos)
 							continue;
-						if (ne.getStartMicros() > rightSongPos)
+						if (startMicros > rightSongPos)
 							break;
 
 						// This note event is or was playing
-						if (ne.getStartMicros() < left)
-							left = ne.getStartMicros();
-						if (ne.getEndMicros() > right)
-							right = ne.getEndMicros();
+						if (startMicros < left)
+							left = startMicros;
+						if (endMicros > right)
+							right = endMicros;
 					}
 				}
 
@@ -429,35 +430,37 @@ public class NoteGraph extends JPanel implements Listener<SequencerEvent>, IDisc
 
 	private Rectangle2D.Double rectTmp = new Rectangle2D.Double();
 
-	private void fillNote(Graphics2D g2, NoteEvent ne, int noteId, double minWidth, double height)
+	private void fillNote(Graphics2D g2, NoteEventList notes, int i, int noteId, double minWidth, double height)
 	{
-		fillNote(g2, ne, noteId, minWidth, height, 0, 0);
+		fillNote(g2, notes, i, noteId, minWidth, height, 0, 0);
 	}
 
-	private void fillNote(Graphics2D g2, NoteEvent ne, int noteId, double minWidth, double height, double extraWidth,
-			double extraHeight)
+	private void fillNote(Graphics2D g2, NoteEventList notes, int i, int noteId, double minWidth, double height,
+			double extraWidth, double extraHeight)
 	{
-		double width = Math.max(minWidth, ne.getLengthMicros());
+		long startMicros = notes.getStartMicros(i);
+		double width = Math.max(minWidth, notes.getEndMicros(i) - startMicros);
 		double y = Util.clamp(noteId, MIN_RENDERED, MAX_RENDERED);
-		rectTmp.setRect(ne.getStartMicros() - extraWidth, y - extraHeight, width + 2 * extraWidth, height + 2
+		rectTmp.setRect(startMicros - extraWidth, y - extraHeight, width + 2 * extraWidth, height + 2
 				* extraHeight);
 		g2.fill(rectTmp);
 	}
 
-	private void fillNoteVelocity(Graphics2D g2, NoteEvent ne, Dynamics dynamics)
+	private void fillNoteVelocity(Graphics2D g2, NoteEventList notes, int i, Dynamics dynamics)
 	{
 		int velocity = dynamics.midiVol;
 
 		AffineTransform xform = getTransform();
 
 		double minWidth = NOTE_VELOCITY_MIN_WIDTH_PX / xform.getScaleX();
-		double width = Math.max(minWidth, ne.getLengthMicros());
+		long startMicros = notes.getStartMicros(i);
+		double width = Math.max(minWidth, notes.getEndMicros(i) - startMicros);
 
 		double minHeight = Math.abs(NOTE_VELOCITY_MIN_HEIGHT_PX / xform.getScaleY());
 		double height = ((double) (velocity - Dynamics.MINIMUM.midiVol) / Dynamics.MAXIMUM.midiVol)
 				* (MAX_RENDERED - MIN_RENDERED - minHeight) + minHeight;
 
-		rectTmp.setRect(ne.getStartMicros(), MIN_RENDERED, width, height);
+		rectTmp.setRect(startMicros, MIN_RENDERED, width, height);
 		g2.fill(rectTmp);
 	}
 
@@ -484,9 +487,9 @@ public class NoteGraph extends JPanel implements Listener<SequencerEvent>, IDisc
 		return new Color(Color.HSBtoRGB(hsb[0], hsb[1], hsb[2]));
 	}
 
-	private Color getNoteColorEx(NoteEvent ne, Color baseColor, Color[] cachedColorByDynamics)
+	private Color getNoteColorEx(int velocity, Color baseColor, Color[] cachedColorByDynamics)
 	{
-		Dynamics dyn = Dynamics.fromMidiVelocity(ne.velocity + deltaVolume);
+		Dynamics dyn = Dynamics.fromMidiVelocity(velocity + deltaVolume);
 		if (cachedColorByDynamics[dyn.ordinal()] == null)
 		{
 			cachedColorByDynamics[dyn.ordinal()] = makeDynamicColor(baseColor, dyn, 0.25f);
@@ -494,14 +497,14 @@ public class NoteGraph extends JPanel implements Listener<SequencerEvent>, IDisc
 		return cachedColorByDynamics[dyn.ordinal()];
 	}
 
-	private Color getNoteColor(NoteEvent ne)
+	private Color getNoteColor(int velocity)
 	{
-		return getNoteColorEx(ne, noteColor.get(), noteColorByDynamics);
+		return getNoteColorEx(velocity, noteColor.get(), noteColorByDynamics);
 	}
 
-	private Color getBadNoteColor(NoteEvent ne)
+	private Color getBadNoteColor(int velocity)
 	{
-		return getNoteColorEx(ne, badNoteColor.get(), badNoteColorByDynamics);
+		return getNoteColorEx(velocity, badNoteColor.get(), badNoteColorByDynamics);
 	}
 
 	@Override protected void paintComponent(Graphics g)
@@ -593,7 +596,7 @@ public class NoteGraph extends JPanel implements Listener<SequencerEvent>, IDisc
 		lastPaintedMinSongPos = minSongPos;
 		lastPaintedSongPos = songPos;
 
-		List<NoteEvent> noteEvents = getEvents();
+		NoteEventList noteEvents = getEvents();
 
 		if (notesOn != null)
 			notesOn.clear();
@@ -608,18 +611,20 @@ public class NoteGraph extends JPanel implements Listener<SequencerEvent>, IDisc
 			g2.setColor(noteColor.get());
 			for (int i = 0; i < noteEvents.size(); i++)
 			{
-				NoteEvent ne = noteEvents.get(i);
+				long startMicros = noteEvents.getStartMicros(i);
+				long endMicros = noteEvents.getEndMicros(i);
 
 				// Don't bother drawing the note if it's clipped
-				if (ne.getEndMicros() < clipPosStart || ne.getStartMicros() > clipPosEnd)
+				if (endMicros < clipPosStart || startMicros > clipPosEnd)
 					continue;
 
-				if (isNoteVisible(ne))
+				int eventNoteId = noteEvents.getNoteId(i);
+				if (isNoteVisible(eventNoteId))
 				{
-					int noteId = transposeNote(ne.note.id);
+					int noteId = transposeNote(eventNoteId);
 
-					if (showNotesOn && songPos >= ne.getStartMicros() && minSongPos <= ne.getEndMicros()
-							&& sequencer.isNoteActive(ne.note.id))
+					if (showNotesOn && songPos >= startMicros && minSongPos <= endMicros
+							&& sequencer.isNoteActive(eventNoteId))
 					{
 						if (notesOn == null)
 							notesOn = new BitSet(noteEvents.size());
@@ -633,8 +638,8 @@ public class NoteGraph extends JPanel implements Listener<SequencerEvent>, IDisc
 					}
 					else
 					{
-						g2.setColor(getNoteColor(ne));
-						fillNote(g2, ne, noteId, minLength, height);
+						g2.setColor(getNoteColor(noteEvents.getVelocity(i)));
+						fillNote(g2, noteEvents, i, noteId, minLength, height);
 					}
 				}
 			}
@@ -643,10 +648,9 @@ public class NoteGraph extends JPanel implements Listener<SequencerEvent>, IDisc
 			{
 				for (int i = notesBad.nextSetBit(0); i >= 0; i = notesBad.nextSetBit(i + 1))
 				{
-					NoteEvent ne = noteEvents.get(i);
-					g2.setColor(getBadNoteColor(ne));
-					int noteId = transposeNote(ne.note.id);
-					fillNote(g2, ne, noteId, minLength, height);
+					g2.setColor(getBadNoteColor(noteEvents.getVelocity(i)));
+					int noteId = transposeNote(noteEvents.getNoteId(i));
+					fillNote(g2, noteEvents, i, noteId, minLength, height);
 				}
 			}
 
@@ -659,20 +663,18 @@ public class NoteGraph extends JPanel implements Listener<SequencerEvent>, IDisc
 				g2.setColor(noteOnBorder.get());
 				for (int i = notesOn.nextSetBit(0); i >= 0; i = notesOn.nextSetBit(i + 1))
 				{
-					NoteEvent ne = noteEvents.get(i);
-					int noteId = transposeNote(ne.note.id);
+					int noteId = transposeNote(noteEvents.getNoteId(i));
 
-					fillNote(g2, noteEvents.get(i), noteId, minLength, height, noteOnOutlineWidthX, noteOnExtraHeightY
+					fillNote(g2, noteEvents, i, noteId, minLength, height, noteOnOutlineWidthX, noteOnExtraHeightY
 							+ noteOnOutlineWidthY);
 				}
 
 				g2.setColor(noteOnColor.get());
 				for (int i = notesOn.nextSetBit(0); i >= 0; i = notesOn.nextSetBit(i + 1))
 				{
-					NoteEvent ne = noteEvents.get(i);
-					int noteId = transposeNote(ne.note.id);
+					int noteId = transposeNote(noteEvents.getNoteId(i));
 
-					fillNote(g2, noteEvents.get(i), noteId, minLength, height, 0, noteOnExtraHeightY);
+					fillNote(g2, noteEvents, i, noteId, minLength, height, 0, noteOnExtraHeightY);
 				}
 			}
 		}
@@ -687,12 +689,13 @@ public class NoteGraph extends JPanel implements Listener<SequencerEvent>, IDisc
 			{
 				for (int i = 0; i < noteEvents.size(); i++)
 				{
-					NoteEvent ne = noteEvents.get(i);
+					long startMicros = noteEvents.getStartMicros(i);
+					long endMicros = noteEvents.getEndMicros(i);
 
-					if (ne.getEndMicros() < clipPosStart || ne.getStartMicros() > clipPosEnd)
+					if (endMicros < clipPosStart || startMicros > clipPosEnd)
 						continue;
 
-					int velocity = ne.velocity + deltaVolume;
+					int velocity = noteEvents.getVelocity(i) + deltaVolume;
 
 					Dynamics dynamicsRenderedInThisPass = null;
 					if (d == dynamicsValues.length)
@@ -726,23 +729,24 @@ public class NoteGraph extends JPanel implements Listener<SequencerEvent>, IDisc
 						continue;
 					}
 
-					if (isNoteVisible(ne))
+					int noteId = noteEvents.getNoteId(i);
+					if (isNoteVisible(noteId))
 					{
-						if (showNotesOn && songPos >= ne.getStartMicros() && minSongPos <= ne.getEndMicros()
-								&& sequencer.isNoteActive(ne.note.id))
+						if (showNotesOn && songPos >= startMicros && minSongPos <= endMicros
+								&& sequencer.isNoteActive(noteId))
 						{
 							g2.setColor(noteOnColor.get());
-							fillNoteVelocity(g2, ne, dynamicsRenderedInThisPass);
+							fillNoteVelocity(g2, noteEvents, i, dynamicsRenderedInThisPass);
 						}
 						else if (isOutOfRange)
 						{
 							g2.setColor(badNoteColor.get());
-							fillNoteVelocity(g2, ne, dynamicsRenderedInThisPass);
+							fillNoteVelocity(g2, noteEvents, i, dynamicsRenderedInThisPass);
 						}
 						else
 						{
-							g2.setColor(getNoteColor(ne));
-							fillNoteVelocity(g2, ne, dynamicsRenderedInThisPass);
+							g2.setColor(getNoteColor(noteEvents.getVelocity(i)));
+							fillNoteVelocity(g2, noteEvents, i, dynamicsRenderedInThisPass);
 						}
 					}
 				}
@@ -22,6 +22,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.prefs.Preferences;
 
 import javax.imageio.ImageIO;
@@ -111,6 +116,7 @@ public class ProjectFrame extends JFrame implements TableLayoutConstants, ICompi
 	private static final int HGAP = 4, VGAP = 4;
 	private static final double[] LAYOUT_COLS = new double[] { 180, FILL };
 	private static final double[] LAYOUT_ROWS = new double[] { FILL };
+	private static final int PREVIEW_REFRESH_DELAY_MILLIS = 150;
 
 	private Preferences prefs = Preferences.userNodeForPackage(MaestroMain.class);
 
@@ -188,6 +194,7 @@ public class ProjectFrame extends JFrame implements TableLayoutConstants, ICompi
 		Util.initWinBounds(this, prefs.node("window"), 800, 600);
 
 		ToolTipManager.sharedInstance().setDismissDelay(8000);
+		refreshPreviewTimer.setRepeats(false);
 
 		String welcomeMessage = formatInfoMessage("Hello Maestro", "Drag and drop a MIDI or ABC file to open it.\n"
 				+ "Or use File > Open.");
@@ -749,6 +756,9 @@ public class ProjectFrame extends JFrame implements TableLayoutConstants, ICompi
 			abcSong.getParts().getListModel().removeListDataListener(partsListListener);
 		}
 
+		refreshPreviewTimer.stop();
+		previewExecutor.shutdownNow();
+
 		discardObject(sequencer);
 		discardObject(abcSequencer);
 		discardObject(abcSong);
@@ -1251,8 +1261,13 @@ public class ProjectFrame extends JFrame implements TableLayoutConstants, ICompi
 
 			setAbcSongModified(true);
 
-			if (e.isAbcPreviewRelated() && abcSequencer.isRunning())
-				refreshPreviewSequence(false);
+			if (e.isAbcPreviewRelated())
+			{
+				if (abcSequencer.isRunning())
+					refreshPreviewSequence(false);
+				else
+					invalidatePreview();
+			}
 		}
 	};
 
@@ -1263,6 +1278,8 @@ public class ProjectFrame extends JFrame implements TableLayoutConstants, ICompi
 			if (abcSong == null || abcSong != e.getSource())
 				return;
 
+			invalidatePreview();
+
 			int idx;
 
 			switch (e.getProperty())
@@ -1449,6 +1466,9 @@ public class ProjectFrame extends JFrame implements TableLayoutConstants, ICompi
 			abcSong = null;
 		}
 
+		invalidatePreview();
+		refreshPreviewTimer.stop();
+
 		allowOverwriteSaveFile = false;
 		allowOverwriteExportFile = false;
 
@@ -1668,33 +1688,52 @@ public class ProjectFrame extends JFrame implements TableLayoutConstants, ICompi
 		}
 	}
 
-	private boolean refreshPreviewPending = false;
+	/**
+	 * Incremented whenever the song changes in a way that affects the preview, so that previews
+	 * built from an older version of the song can be thrown away.
+	 */
+	private int previewGeneration = 0;
+	private Future<?> previewBuild = null;
 
-	private class RefreshPreviewTask implements Runnable
+	/** Waits for edits to stop for a moment (e.g. while dragging a spinner) before rebuilding. */
+	private final Timer refreshPreviewTimer = new Timer(PREVIEW_REFRESH_DELAY_MILLIS, new ActionListener()
 	{
-		@Override public void run()
+		@Override public void actionPerformed(ActionEvent e)
 		{
-			if (refreshPreviewPending)
-			{
-				if (!refreshPreviewSequence(true))
-					abcSequencer.stop();
-			}
+			startPreviewBuild();
 		}
-	}
+	});
 
+	/** Builds previews one at a time, off of the event dispatch thread. */
+	private final ExecutorService previewExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+	{
+		@Override public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "Preview builder");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * Rebuilds the ABC preview and loads it into the ABC sequencer at the current position.
+	 * 
+	 * @param immediate If true, the preview is built before returning. Otherwise it's built in the
+	 *            background once the song stops changing, and any preview already being built is
+	 *            discarded.
+	 * @return False if the preview couldn't be built.
+	 */
 	private boolean refreshPreviewSequence(boolean immediate)
 	{
+		invalidatePreview();
+
 		if (!immediate)
 		{
-			if (!refreshPreviewPending)
-			{
-				refreshPreviewPending = true;
-				SwingUtilities.invokeLater(new RefreshPreviewTask());
-			}
+			refreshPreviewTimer.restart();
 			return true;
 		}
 
-		refreshPreviewPending = false;
+		refreshPreviewTimer.stop();
 
 		if (abcSong == null)
 		{
@@ -1713,51 +1752,169 @@ public class ProjectFrame extends JFrame implements TableLayoutConstants, ICompi
 			abcSong.setSkipSilenceAtStart(saveSettings.skipSilenceAtStart);
 			AbcExporter exporter = abcSong.getAbcExporter();
 			SequenceInfo previewSequenceInfo = SequenceInfo.fromAbcParts(exporter, !failedToLoadLotroInstruments);
+			loadPreviewSequence(exporter, previewSequenceInfo, exporter.getPreviewTrackNumbers());
+		}
+		catch (InvalidMidiDataException | AbcConversionException e)
+		{
+			showPreviewError(e);
+			return false;
+		}
 
-			long tick = sequencer.getTickPosition();
-			abcPreviewStartTick = exporter.getExportStartTick();
-			abcPreviewTempoFactor = abcSequencer.getTempoFactor();
-			abcBarLabel.setBarNumberCache(exporter.getTimingInfo());
-			abcBarLabel.setInitialOffsetTick(abcPreviewStartTick);
-			abcPositionLabel.setInitialOffsetTick(abcPreviewStartTick);
+		return true;
+	}
 
-			boolean running = abcSequencer.isRunning();
-			abcSequencer.reset(false);
-			abcSequencer.setSequence(previewSequenceInfo.getSequence());
+	/**
+	 * Called when the song changes. A preview that's being built in the background is now out of
+	 * date, so another one is started once the changes settle down.
+	 */
+	private void invalidatePreview()
+	{
+		previewGeneration++;
+		if (previewBuild != null)
+		{
+			previewBuild.cancel(false);
+			previewBuild = null;
+			refreshPreviewTimer.restart();
+		}
+	}
 
-			if (tick < abcPreviewStartTick)
-				tick = abcPreviewStartTick;
+	private void startPreviewBuild()
+	{
+		if (abcSong == null)
+		{
+			refreshPreviewSequence(true);
+			return;
+		}
 
-			if (tick >= abcSequencer.getTickLength())
-			{
-				tick = 0;
-				running = false;
-			}
+		final AbcSong song = abcSong;
+		final AbcExporter exporter;
+		try
+		{
+			song.setSkipSilenceAtStart(saveSettings.skipSilenceAtStart);
 
-			if (running && sequencer.isRunning())
-				sequencer.stop();
+			// The background thread gets its own exporter, but reads the parts' settings while they
+			// may still be edited here. Any edit bumps previewGeneration, so a preview that might
+			// have seen a partial edit is never used. Building doesn't change the parts; their
+			// preview track numbers are only set here once a current preview is loaded.
+			List<AbcPart> parts = new ArrayList<AbcPart>(song.getParts());
+			exporter = new AbcExporter(parts, song.getAbcTimingInfo(), song.getKeySignature(), song);
+			exporter.setSkipSilenceAtStart(song.isSkipSilenceAtStart());
 
-			abcSequencer.setTickPosition(tick);
-			abcSequencer.setRunning(running);
+			// Drum maps are created on first use; create them now rather than on the other thread
+			for (AbcPart part : parts)
+			{
+				if (part.isDrumPart())
+				{
+					for (int t = 0; t < song.getSequenceInfo().getTrackCount(); t++)
+					{
+						if (part.isTrackEnabled(t))
+							part.getDrumMap(t);
+					}
+				}
+			}
 		}
-		catch (InvalidMidiDataException e)
+		catch (AbcConversionException e)
 		{
-			sequencer.stop();
-			abcSequencer.stop();
-			JOptionPane.showMessageDialog(ProjectFrame.this, e.getMessage(), "Error previewing ABC",
-					JOptionPane.WARNING_MESSAGE);
-			return false;
+			showPreviewError(e);
+			return;
 		}
-		catch (AbcConversionException e)
+
+		final int generation = previewGeneration;
+		final boolean useLotroInstruments = !failedToLoadLotroInstruments;
+		previewBuild = previewExecutor.submit(new Runnable()
 		{
-			sequencer.stop();
-			abcSequencer.stop();
-			JOptionPane.showMessageDialog(ProjectFrame.this, e.getMessage(), "Error previewing ABC",
-					JOptionPane.WARNING_MESSAGE);
-			return false;
+			@Override public void run()
+			{
+				SequenceInfo previewSequenceInfo = null;
+				Map<AbcPart, Integer> previewTrackNumbers = null;
+				Exception error = null;
+				try
+				{
+					previewSequenceInfo = SequenceInfo.fromAbcParts(exporter, useLotroInstruments);
+					previewTrackNumbers = exporter.getPreviewTrackNumbers();
+				}
+				catch (Exception e)
+				{
+					error = e;
+				}
+
+				final SequenceInfo result = previewSequenceInfo;
+				final Map<AbcPart, Integer> resultTrackNumbers = previewTrackNumbers;
+				final Exception resultError = error;
+				SwingUtilities.invokeLater(new Runnable()
+				{
+					@Override public void run()
+					{
+						if (song != abcSong || generation != previewGeneration)
+							return; // Superseded by a newer build
+
+						previewBuild = null;
+						try
+						{
+							if (resultError != null)
+								throw resultError;
+
+							loadPreviewSequence(exporter, result, resultTrackNumbers);
+						}
+						catch (InvalidMidiDataException | AbcConversionException e)
+						{
+							showPreviewError(e);
+						}
+						catch (Exception e)
+						{
+							abcSequencer.stop();
+							throw new RuntimeException(e);
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Swaps a newly built preview into the ABC sequencer, keeping the current position and whether
+	 * or not it's playing. The parts are told their tracks in the preview here, on the event
+	 * thread, rather than while the preview is built.
+	 */
+	private void loadPreviewSequence(AbcExporter exporter, SequenceInfo previewSequenceInfo,
+			Map<AbcPart, Integer> previewTrackNumbers) throws InvalidMidiDataException
+	{
+		for (Map.Entry<AbcPart, Integer> entry : previewTrackNumbers.entrySet())
+			entry.getKey().setPreviewSequenceTrackNumber(entry.getValue());
+
+		boolean running = abcSequencer.isRunning();
+		long tick = running ? abcSequencer.getTickPosition() : sequencer.getTickPosition();
+		abcPreviewStartTick = exporter.getExportStartTick();
+		abcPreviewTempoFactor = abcSequencer.getTempoFactor();
+		abcBarLabel.setBarNumberCache(exporter.getTimingInfo());
+		abcBarLabel.setInitialOffsetTick(abcPreviewStartTick);
+		abcPositionLabel.setInitialOffsetTick(abcPreviewStartTick);
+
+		abcSequencer.reset(false);
+		abcSequencer.setSequence(previewSequenceInfo.getSequence());
+
+		if (tick < abcPreviewStartTick)
+			tick = abcPreviewStartTick;
+
+		if (tick >= abcSequencer.getTickLength())
+		{
+			tick = 0;
+			running = false;
 		}
 
-		return true;
+		if (running && sequencer.isRunning())
+			sequencer.stop();
+
+		abcSequencer.setTickPosition(tick);
+		abcSequencer.setRunning(running);
+	}
+
+	private void showPreviewError(Exception e)
+	{
+		sequencer.stop();
+		abcSequencer.stop();
+		JOptionPane.showMessageDialog(ProjectFrame.this, e.getMessage(), "Error previewing ABC",
+				JOptionPane.WARNING_MESSAGE);
 	}
 
 	private void commitAllFields()
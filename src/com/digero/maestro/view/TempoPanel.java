@@ -4,8 +4,6 @@ import info.clearthought.layout.TableLayout;
 import info.clearthought.layout.TableLayoutConstants;
 
 import java.awt.Font;
-import java.util.ArrayList;
-import java.util.List;
 
 import javax.swing.BorderFactory;
 import javax.swing.JLabel;
@@ -18,7 +16,7 @@ import com.digero.common.midi.SequencerWrapper;
 import com.digero.common.util.IDiscardable;
 import com.digero.common.util.Listener;
 import com.digero.common.view.ColorTable;
-import com.digero.maestro.midi.NoteEvent;
+import com.digero.maestro.midi.NoteEventList;
 import com.digero.maestro.midi.SequenceDataCache;
 import com.digero.maestro.midi.SequenceDataCache.TempoEvent;
 import com.digero.maestro.midi.SequenceInfo;
@@ -170,7 +168,7 @@ public class TempoPanel extends JPanel implements IDiscardable, TableLayoutConst
 	{
 		private final int minBPM;
 		private final int maxBPM;
-		private List<NoteEvent> events;
+		private NoteEventList events;
 
 		public TempoNoteGraph(SequenceInfo sequenceInfo, SequencerWrapper sequencer, int minBPM, int maxBPM)
 		{
@@ -190,15 +188,15 @@ public class TempoPanel extends JPanel implements IDiscardable, TableLayoutConst
 		private void recalcTempoEvents()
 		{
 			// Make fake note events for every tempo event
-			events = new ArrayList<NoteEvent>();
-			TempoEvent prevEvent = null;
 			SequenceDataCache dataCache = sequenceInfo.getDataCache();
+			NoteEventList.Builder events = new NoteEventList.Builder(dataCache);
+			TempoEvent prevEvent = null;
 			for (TempoEvent event : dataCache.getTempoEvents().values())
 			{
 				if (prevEvent != null)
 				{
 					int id = tempoToNoteId(prevEvent.tempoMPQ, minBPM, maxBPM);
-					events.add(new NoteEvent(Note.fromId(id), 127, prevEvent.tick, event.tick, dataCache));
+					events.add(id, 127, prevEvent.tick, event.tick);
 				}
 				prevEvent = event;
 			}
@@ -206,14 +204,14 @@ public class TempoPanel extends JPanel implements IDiscardable, TableLayoutConst
 			if (prevEvent != null)
 			{
 				int id = tempoToNoteId(prevEvent.tempoMPQ, minBPM, maxBPM);
-				events.add(new NoteEvent(Note.fromId(id), 127, prevEvent.tick, dataCache.getSongLengthTicks(),
-						dataCache));
+				events.add(id, 127, prevEvent.tick, dataCache.getSongLengthTicks());
 			}
 			else
 			{
 				int id = tempoToNoteId(sequenceInfo.getPrimaryTempoMPQ(), minBPM, maxBPM);
-				events.add(new NoteEvent(Note.fromId(id), 127, 0, dataCache.getSongLengthTicks(), dataCache));
+				events.add(id, 127, 0, dataCache.getSongLengthTicks());
 			}
+			this.events = events.build();
 		}
 
 		@Override protected boolean isShowingNotesOn()
@@ -221,7 +219,7 @@ public class TempoPanel extends JPanel implements IDiscardable, TableLayoutConst
 			return sequencer.isRunning() || abcSequencer.isRunning();
 		}
 
-		@Override protected List<NoteEvent> getEvents()
+		@Override protected NoteEventList getEvents()
 		{
 			if (events == null)
 				recalcTempoEvents();
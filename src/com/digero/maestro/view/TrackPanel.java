@@ -18,8 +18,6 @@ import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.List;
 import java.util.prefs.Preferences;
 
 import javax.swing.BorderFactory;
@@ -51,7 +49,7 @@ import com.digero.maestro.abc.AbcPart;
 import com.digero.maestro.abc.AbcPartEvent;
 import com.digero.maestro.abc.AbcPartEvent.AbcPartProperty;
 import com.digero.maestro.abc.DrumNoteMap;
-import com.digero.maestro.midi.NoteEvent;
+import com.digero.maestro.midi.NoteEventList;
 import com.digero.maestro.midi.TrackInfo;
 
 @SuppressWarnings("serial")
@@ -738,10 +736,10 @@ public class TrackPanel extends JPanel implements IDiscardable, TableLayoutConst
 			return false;
 		}
 
-		@Override protected List<NoteEvent> getEvents()
+		@Override protected NoteEventList getEvents()
 		{
 			if (showDrumPanels)
-				return Collections.emptyList();
+				return NoteEventList.EMPTY;
 
 			return super.getEvents();
 		}
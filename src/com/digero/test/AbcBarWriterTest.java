@@ -0,0 +1,129 @@
+package com.digero.test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Random;
+
+import com.digero.maestro.abc.AbcBarWriter;
+
+/**
+ * Checks that AbcBarWriter breaks lines in exactly the same places as the StringBuilder-based line
+ * breaking that AbcExporter used to do once each bar was complete.
+ */
+public class AbcBarWriterTest
+{
+	public static boolean run()
+	{
+		Random random = new Random(1);
+		for (int n = 0; n < 2000; n++)
+		{
+			StringWriter actual = new StringWriter();
+			PrintWriter out = new PrintWriter(actual);
+			AbcBarWriter bar = new AbcBarWriter(out);
+			StringBuilder expected = new StringBuilder();
+			StringBuilder reference = new StringBuilder();
+
+			int barCount = 1 + random.nextInt(4);
+			for (int b = 0; b < barCount; b++)
+			{
+				if (random.nextInt(3) == 0)
+				{
+					bar.append('\t');
+					reference.append('\t');
+				}
+
+				int tokenCount = random.nextInt(400);
+				for (int t = 0; t < tokenCount; t++)
+				{
+					String token = randomToken(random);
+					bar.append(token);
+					reference.append(token);
+				}
+
+				assert bar.isEmpty() == (reference.length() == 0);
+				if (!isBlank(reference))
+				{
+					bar.write();
+					expected.append(addLineBreaks(reference));
+				}
+				else
+				{
+					// Write out whitespace-only bars without using the reference implementation,
+					// which can't handle them
+					bar.write();
+				}
+				reference.setLength(0);
+				out.print(" |\n");
+				expected.append(" |\n");
+			}
+
+			out.flush();
+			assert actual.toString().equals(expected.toString()) : n;
+		}
+		return true;
+	}
+
+	private static String randomToken(Random random)
+	{
+		switch (random.nextInt(12))
+		{
+		case 0:
+			return " ";
+		case 1:
+			return "  ";
+		case 2:
+			// A long token without any spaces
+			StringBuilder sb = new StringBuilder();
+			int length = 1 + random.nextInt(200);
+			for (int i = 0; i < length; i++)
+				sb.append((char) ('a' + random.nextInt(26)));
+			return sb.toString();
+		case 3:
+			return "+mf+ ";
+		case 4:
+			return "[A,B/c2] ";
+		default:
+			return "z" + random.nextInt(16) + "/" + (1 + random.nextInt(8)) + " ";
+		}
+	}
+
+	private static boolean isBlank(CharSequence s)
+	{
+		for (int i = 0; i < s.length(); i++)
+		{
+			if (!Character.isWhitespace(s.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/** The line breaking that AbcExporter used to do on each complete bar. */
+	private static String addLineBreaks(StringBuilder bar)
+	{
+		final int BAR_LENGTH = 160;
+
+		// Trim end
+		int length = bar.length();
+		if (length == 0)
+			return "";
+
+		while (Character.isWhitespace(bar.charAt(length - 1)))
+			length--;
+		bar.setLength(length);
+
+		// Insert line breaks inside very long bars
+		for (int i = BAR_LENGTH; i < bar.length(); i += BAR_LENGTH)
+		{
+			for (int j = 0; j < BAR_LENGTH - 1; j++, i--)
+			{
+				if (bar.charAt(i) == ' ')
+				{
+					bar.replace(i, i + 1, "\r\n\t");
+					i += "\r\n\t".length() - 1;
+					break;
+				}
+			}
+		}
+		return bar.toString();
+	}
+}
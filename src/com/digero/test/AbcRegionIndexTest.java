@@ -0,0 +1,76 @@
+package com.digero.test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.digero.common.abctomidi.AbcRegion;
+import com.digero.common.abctomidi.AbcRegionIndex;
+import com.digero.common.midi.Note;
+
+/**
+ * Checks that AbcRegionIndex finds the same regions as checking every region, both for a single
+ * tick and when following the song forward from one tick to the next.
+ */
+public class AbcRegionIndexTest
+{
+	public static boolean run()
+	{
+		Random random = new Random(3);
+		for (int n = 0; n < 50; n++)
+		{
+			TreeSet<AbcRegion> regions = new TreeSet<AbcRegion>();
+			int count = random.nextInt(2000);
+			for (int i = 0; i < count; i++)
+			{
+				long start = random.nextInt(20000);
+				// Mostly short notes, with the occasional note that's held for a long time
+				long length = (random.nextInt(50) == 0) ? random.nextInt(10000) : random.nextInt(200);
+				regions.add(new AbcRegion(i / 10, i % 10, i % 10 + 1, start, start + length, Note.C4, random
+						.nextInt(8)));
+			}
+
+			AbcRegionIndex index = new AbcRegionIndex(regions);
+			assert index.size() == regions.size();
+
+			Set<AbcRegion> highlighted = new HashSet<AbcRegion>();
+			long lastTick = -1;
+			for (long tick = 0; tick < 31000; tick += random.nextInt(100))
+			{
+				List<AbcRegion> expected = getRegionsOn(regions, tick);
+				assert expected.equals(index.getRegionsOn(tick)) : n + ": " + tick;
+
+				// Follow the song the way HighlightAbcNotesFrame does
+				List<AbcRegion> stillOn = new ArrayList<AbcRegion>();
+				for (AbcRegion region : highlighted)
+				{
+					if (region.getStartTick() <= tick && region.getEndTick() > tick)
+						stillOn.add(region);
+				}
+				highlighted.retainAll(stillOn);
+				if (lastTick >= 0)
+					highlighted.addAll(index.getRegionsStarted(lastTick, tick));
+				else
+					highlighted.addAll(index.getRegionsOn(tick));
+				lastTick = tick;
+
+				assert highlighted.equals(new HashSet<AbcRegion>(expected)) : n + ": " + tick;
+			}
+		}
+		return true;
+	}
+
+	private static List<AbcRegion> getRegionsOn(TreeSet<AbcRegion> regions, long tick)
+	{
+		List<AbcRegion> on = new ArrayList<AbcRegion>();
+		for (AbcRegion region : regions)
+		{
+			if (region.getStartTick() <= tick && region.getEndTick() > tick)
+				on.add(region);
+		}
+		return on;
+	}
+}
@@ -0,0 +1,313 @@
+package com.digero.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+import com.digero.common.abc.LotroInstrument;
+import com.digero.common.abctomidi.AbcInfo;
+import com.digero.common.abctomidi.AbcLineIndex;
+import com.digero.common.abctomidi.AbcRegion;
+import com.digero.common.abctomidi.AbcToMidi;
+import com.digero.common.abctomidi.FileAndData;
+import com.digero.common.util.ParseException;
+
+/**
+ * Checks that the character lexer and the parallel part parser in AbcToMidi produce the same output
+ * as the original sequential regular expression parser, and that changing instruments in place
+ * produces the same output as converting the song again.
+ */
+public class AbcToMidiTest
+{
+	private static final String[] CORPUS_DIRS = { "website/files", "../website/files" };
+
+	private static final LotroInstrument[] UPDATE_INSTRUMENTS = { LotroInstrument.BASIC_FLUTE,
+			LotroInstrument.BASIC_THEORBO, LotroInstrument.BASIC_BAGPIPE, LotroInstrument.LUTE_OF_AGES };
+
+	private static int instrumentUpdateCount = 0;
+
+	private static final String[][] SNIPPETS = {
+			{ "X: 1", "T: Test - Lute", "M: 4/4", "L: 1/8", "Q: 120", "K: C", "",
+					"C D E F | G A B c | c' d'' e,, F,,,2 | z8 |]" },
+			{ "X: 1", "T: Accidentals - Harp", "K: C", "^c =c _B __B ^^f | c B f | [^ce_g]2 [ceg]/ z/ |]" },
+			{ "X: 1", "T: Lengths - Flute", "K: C", "a/ a// a/4 a3/2 a3/4 A>B C<<D E>>>F | z4 x2 |" },
+			{ "X: 1", "T: Ties - Horn", "K: C", "a2- a2 [ce-g]2 [ceg] | c-|c B4- | B2 z2 |]" },
+			{ "X: 1", "T: Tuplets - Clarinet", "M: 6/8", "K: C", "(3abc (2de (5fgabc | (3a2b2c2 z4 |" },
+			{ "X: 1", "T: Decorations - Theorbo", "K: C", "+ppp+ C +f+ D +fff+ [EG] (AB) \\ | % comment",
+					"%%Q: 90", "C D E F |", "%%Q: 120", "G A B c |" },
+			{ "% Multi-part", "X: 1", "T: Song - Lute", "%%part-name Lute Part", "K: C", "CDEF|GABc|]", "",
+					"X: 2", "T: Song - Bagpipe", "K: C", "C,,8 | z8 |]", "", "X: 3", "T: Song - Drum", "L: 1/4",
+					"K: C", "[C^D]2 [F_G] z |]" },
+			{ "X: 1", "T: Error - Whitespace in chord", "K: C", "[c e]" },
+			{ "X: 1", "T: Error - Unknown character", "K: C", "c d * e" },
+			{ "X: 1", "T: Error - Unmatched decoration", "K: C", "c +f d" },
+			{ "X: 1", "T: Error - Unsupported decoration", "K: C", "c +trill+ d" },
+			{ "X: 1", "T: Error - Broken rhythm", "K: C", "c>>d>e" },
+			{ "X: 1", "T: Error - Accidental on rest", "K: C", "c ^z" },
+			{ "X: 1", "T: Error - Octave on rest", "K: C", "c z'" },
+			{ "X: 1", "T: Error - Unclosed chord", "K: C", "[ceg" },
+			{ "X: 1", "T: Error - Unfinished tuplet", "K: C", "(3ab" },
+			{ "X: 1", "T: Error - Invalid tuplet", "K: C", "(1ab" },
+			{ "X: 1", "T: Error - Dangling tie", "K: C", "c- | z |" },
+			{ "X: 1", "T: Error - Bad meter", "M: 4", "K: C", "c" },
+			{ "T: Parts", "L: 1/4", "Q: 100", "K: C", "X: 1", "T: Parts - Lute", "%%Q: 80", "C D E F |", "%%Q: 120",
+					"G A B c |", "X: 2", "T: Parts - Flute", "M: 3/4", "L: 1/8", "[ceg]2 c'2 |", "%%Q: 90", "+ff+ a4 |",
+					"X: 3", "T: Parts - Horn", "K: G", "%%part-name Horn", "f2 F2 |", "X: 4", "T: Parts - Empty" },
+			{ "X: 1", "T: Parts - Lute", "K: C", "CDEF-|", "X: 2", "T: Parts - Harp", "K: C", "c d * e" },
+			{ "X: 1", "T: Parts - Lute", "K: C", "CDEF|", "X: 2", "T: Parts - Harp", "K: C", "c d * e", "X: 3",
+					"M: 4", "c" },
+			{ "X: 1", "T: Parts - Lute", "K: C", "CDEF|", "X: 2", "T: Parts - Harp", "K: C", "c d e", "X: 3",
+					"T: Parts - Horn", "L: 1/16", "c", "X: 4", "Q: 90", "K: C", "c" },
+			{ "X: 1", "T: Parts - Lute", "K: C", "CDEF|", "X: 2", "T: Parts - Harp", "Q: 90", "c d e" },
+			{ "X: 1", "T: Parts - Lute", "K: C", "CDEF|", "X: 2", "T: Parts - Harp", "K: C", "c d e", "T: Again" }, };
+
+	public static boolean run()
+	{
+		int index = 0;
+		for (String[] snippet : SNIPPETS)
+		{
+			List<FileAndData> data = new ArrayList<FileAndData>();
+			data.add(new FileAndData(new File("snippet" + (index++) + ".abc"), Arrays.asList(snippet)));
+			compare(data);
+		}
+
+		// A song split across several files
+		List<FileAndData> multiFileData = new ArrayList<FileAndData>();
+		multiFileData.add(new FileAndData(new File("header.abc"), Arrays.asList(SNIPPETS[0])));
+		multiFileData.add(new FileAndData(new File("parts.abc"), Arrays.asList(SNIPPETS[6])));
+		multiFileData.add(new FileAndData(new File("more.abc"), Arrays.asList(SNIPPETS[SNIPPETS.length - 6])));
+		compare(multiFileData);
+
+		for (String dirName : CORPUS_DIRS)
+		{
+			File[] files = new File(dirName).listFiles();
+			if (files == null)
+				continue;
+
+			for (File file : files)
+			{
+				if (!file.getName().toLowerCase().endsWith(".abc"))
+					continue;
+
+				try
+				{
+					List<FileAndData> data = new ArrayList<FileAndData>();
+					data.add(new FileAndData(file, AbcToMidi.readLines(file)));
+					compare(data);
+				}
+				catch (IOException e)
+				{
+					throw new AssertionError(e);
+				}
+			}
+			break;
+		}
+
+		assert instrumentUpdateCount > 0 : "No instruments were updated in place";
+		return true;
+	}
+
+	private static void compare(List<FileAndData> data)
+	{
+		for (int i = 0; i < 4; i++)
+		{
+			boolean useLotroInstruments = (i & 1) != 0;
+			boolean enableLotroErrors = (i & 2) != 0;
+
+			AbcInfo regexInfo = new AbcInfo();
+			Object regexResult = convert(data, useLotroInstruments, enableLotroErrors, regexInfo, true, false, true);
+
+			for (int j = 0; j < 2; j++)
+			{
+				boolean parseInParallel = (j != 0);
+				AbcInfo lexerInfo = new AbcInfo();
+				Object lexerResult = convert(data, useLotroInstruments, enableLotroErrors, lexerInfo, false,
+						parseInParallel, true);
+
+				String name = data.get(0).file.getName() + (parseInParallel ? " (parallel)" : "");
+				if (regexResult instanceof String || lexerResult instanceof String)
+				{
+					assert regexResult.equals(lexerResult) : name + ": Errors don't match\nRegex: " + regexResult
+							+ "\nLexer: " + lexerResult;
+					continue;
+				}
+
+				compareSequences(name, (Sequence) regexResult, (Sequence) lexerResult);
+				compareRegions(name, regexInfo, lexerInfo);
+				assert regexInfo.getBarCount() == lexerInfo.getBarCount() : name + ": Bar counts don't match";
+				assert regexInfo.getTitle().equals(lexerInfo.getTitle()) : name + ": Titles don't match";
+				compareInstrumentUpdate(name, data, useLotroInstruments, (Sequence) lexerResult, lexerInfo);
+				assert regexInfo.hasTriplets() == lexerInfo.hasTriplets() : name + ": Triplets don't match";
+				for (int t = 0; t < ((Sequence) regexResult).getTracks().length; t++)
+				{
+					assert regexInfo.getPartName(t).equals(lexerInfo.getPartName(t)) : name
+							+ ": Part names don't match";
+					assert regexInfo.getPartStartLine(t) == lexerInfo.getPartStartLine(t) : name
+							+ ": Part start lines don't match";
+					assert regexInfo.getPartEndLine(t) == lexerInfo.getPartEndLine(t) : name
+							+ ": Part end lines don't match";
+					checkLineIndex(name, lexerInfo, t);
+				}
+
+				// Parse without regions, and generate them when they're first needed
+				AbcInfo lazyInfo = new AbcInfo();
+				convert(data, useLotroInstruments, enableLotroErrors, lazyInfo, false, parseInParallel, false);
+				assert lazyInfo.isRegionsPending() : name;
+				for (int t = 0; t < ((Sequence) regexResult).getTracks().length; t++)
+					checkLineIndex(name + " (lazy regions)", lazyInfo, t);
+				compareRegions(name + " (lazy regions)", lexerInfo, lazyInfo);
+				assert !lazyInfo.isRegionsPending() : name;
+			}
+		}
+	}
+
+	private static void compareInstrumentUpdate(String name, List<FileAndData> data, boolean useLotroInstruments,
+			Sequence sequence, AbcInfo abcInfo)
+	{
+		for (int j = 0; j < 2; j++)
+		{
+			boolean stereo = (j != 0);
+			Map<Integer, LotroInstrument> overrides = new HashMap<Integer, LotroInstrument>();
+			for (int t = 1; t < sequence.getTracks().length; t++)
+			{
+				LotroInstrument instrument = UPDATE_INSTRUMENTS[(t + j) % UPDATE_INSTRUMENTS.length];
+				if (instrument == abcInfo.getPartInstrument(t))
+					instrument = UPDATE_INSTRUMENTS[(t + j + 1) % UPDATE_INSTRUMENTS.length];
+				overrides.put(t, instrument);
+			}
+
+			if (!AbcToMidi.updateInstruments(sequence, abcInfo, overrides, stereo))
+				continue;
+
+			AbcToMidi.Params params = new AbcToMidi.Params(data);
+			params.useLotroInstruments = useLotroInstruments;
+			params.instrumentOverrideMap = overrides;
+			params.stereo = stereo;
+			try
+			{
+				Sequence expected = AbcToMidi.convert(params);
+				compareSequences(name + " (updated instruments)", expected, sequence);
+			}
+			catch (ParseException e)
+			{
+				throw new AssertionError(e);
+			}
+			instrumentUpdateCount++;
+		}
+	}
+
+	private static Object convert(List<FileAndData> data, boolean useLotroInstruments, boolean enableLotroErrors,
+			AbcInfo abcInfo, boolean useRegexLexer, boolean parseInParallel, boolean generateRegions)
+	{
+		AbcToMidi.Params params = new AbcToMidi.Params(data);
+		params.useLotroInstruments = useLotroInstruments;
+		params.enableLotroErrors = enableLotroErrors;
+		params.generateRegions = generateRegions;
+		params.abcInfo = abcInfo;
+		params.useRegexLexer = useRegexLexer;
+		params.parseInParallel = parseInParallel;
+		try
+		{
+			return AbcToMidi.convert(params);
+		}
+		catch (ParseException e)
+		{
+			return e.getClass().getSimpleName() + ": " + e.getMessage();
+		}
+	}
+
+	private static void compareSequences(String name, Sequence expected, Sequence actual)
+	{
+		assert expected.getResolution() == actual.getResolution() : name + ": Resolutions don't match";
+
+		Track[] expectedTracks = expected.getTracks();
+		Track[] actualTracks = actual.getTracks();
+		assert expectedTracks.length == actualTracks.length : name + ": Track counts don't match";
+
+		for (int t = 0; t < expectedTracks.length; t++)
+		{
+			assert expectedTracks[t].size() == actualTracks[t].size() : name + ": Event counts don't match in track "
+					+ t;
+
+			for (int j = 0; j < expectedTracks[t].size(); j++)
+			{
+				MidiEvent e = expectedTracks[t].get(j);
+				MidiEvent a = actualTracks[t].get(j);
+				assert e.getTick() == a.getTick() : name + ": Ticks don't match in track " + t + ", event " + j;
+				assert Arrays.equals(e.getMessage().getMessage(), a.getMessage().getMessage()) : name
+						+ ": Messages don't match in track " + t + ", event " + j;
+			}
+		}
+	}
+
+	private static void compareRegions(String name, AbcInfo expected, AbcInfo actual)
+	{
+		assert expected.getRegions().size() == actual.getRegions().size() : name + ": Region counts don't match";
+
+		Iterator<AbcRegion> expectedIter = expected.getRegions().iterator();
+		Iterator<AbcRegion> actualIter = actual.getRegions().iterator();
+		while (expectedIter.hasNext())
+		{
+			AbcRegion e = expectedIter.next();
+			AbcRegion a = actualIter.next();
+			assert e.equals(a) && e.getNote() == a.getNote() && e.getTrackNumber() == a.getTrackNumber() : name
+					+ ": Regions don't match on line " + e.getLine();
+			assert (e.getTiesFrom() == null) == (a.getTiesFrom() == null) : name + ": Ties don't match on line "
+					+ e.getLine();
+			assert (e.getTiesTo() == null) == (a.getTiesTo() == null) : name + ": Ties don't match on line "
+					+ e.getLine();
+		}
+	}
+
+	/**
+	 * Checks the part's line index against a map from tick to line built from the regions, the way
+	 * that TrackListPanel used to build it.
+	 */
+	private static void checkLineIndex(String name, AbcInfo info, int trackIndex)
+	{
+		NavigableMap<Long, Integer> tickToLine = new TreeMap<Long, Integer>();
+		if (info.getRegions() != null)
+		{
+			int prevLine = -1;
+			for (AbcRegion region : info.getRegions())
+			{
+				if (region.getTrackNumber() == trackIndex && region.getLine() != prevLine)
+				{
+					tickToLine.put(region.getStartTick(), region.getLine());
+					prevLine = region.getLine();
+				}
+			}
+		}
+
+		AbcLineIndex index = info.getPartLineIndex(trackIndex);
+		if (index == null)
+		{
+			assert tickToLine.isEmpty() : name + ": Missing line index for part " + trackIndex;
+			return;
+		}
+
+		assert index.size() == tickToLine.size() : name + ": Line index sizes don't match for part " + trackIndex;
+		assert index.tickToLine(Long.MIN_VALUE) == -1;
+		for (long tick : tickToLine.keySet())
+		{
+			for (long t = tick - 1; t <= tick + 1; t++)
+			{
+				Map.Entry<Long, Integer> expected = tickToLine.floorEntry(t);
+				int expectedLine = (expected == null) ? -1 : expected.getValue();
+				assert index.tickToLine(t) == expectedLine : name + ": Line index doesn't match for part "
+						+ trackIndex + " at tick " + t;
+			}
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.digero.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import com.digero.common.abctomidi.AbcToMidi;
+import com.digero.common.abctomidi.FileAndData;
+import com.digero.maestro.abc.AbcExporter;
+import com.digero.maestro.abc.AbcExporter.ExportTrackInfo;
+import com.digero.maestro.abc.AbcSong;
+import com.digero.maestro.abc.QuantizedTimingInfo;
+import com.digero.maestro.midi.NoteEventList;
+
+/**
+ * Checks that previewing a range of bars plays the same notes as previewing the whole song, that
+ * notes that cross the edges of the range are cut off there, and that nothing plays outside of
+ * the range. The ABC for the range is read back with AbcToMidi, to check that its notes are tied
+ * so that they play the same notes as the preview.
+ */
+public class BarRangeExportTest
+{
+	public static boolean run()
+	{
+		try
+		{
+			File file = File.createTempFile("BarRangeExportTest", ".mid");
+			AbcSong song = null;
+			try
+			{
+				// A few notes play at a time, with some held across several bars
+				song = ExportTestSong.open(ExportTestSong.createSequence(new Random(5), 200, 120, 480, 4800), file,
+						BarRangeExportTest.class);
+
+				int[] edgeCount = new int[2];
+				check(song, edgeCount);
+				song.setTripletTiming(true);
+				check(song, edgeCount);
+				assert edgeCount[0] > 0 && edgeCount[1] > 0 : Arrays.toString(edgeCount);
+			}
+			finally
+			{
+				if (song != null)
+					song.discard();
+				file.delete();
+			}
+		}
+		catch (Exception e)
+		{
+			throw new AssertionError(e);
+		}
+		return true;
+	}
+
+	/**
+	 * @param edgeCount Counts the notes that were checked crossing the start and the end of a
+	 *            range, so the test can check that both happened.
+	 */
+	private static void check(AbcSong song, int[] edgeCount) throws Exception
+	{
+		AbcExporter exporter = createExporter(song);
+		List<ExportTrackInfo> whole = exporter.exportToPreview(false).first;
+		QuantizedTimingInfo qtm = exporter.getTimingInfo();
+		int firstBar = qtm.tickToBarNumber(exporter.getExportStartTick());
+		int barCount = qtm.tickToBarNumber(exporter.getExportEndTick()) - firstBar;
+		assert barCount > 4 : barCount;
+
+		// The range that covers the whole song is the same as exporting the whole song
+		String wholeAbc = exportAbc(exporter, 0, AbcExporter.END_OF_SONG);
+		assert wholeAbc.equals(exportAbc(exporter, 0, barCount));
+		checkTies(wholeAbc, whole);
+
+		Random random = new Random(11);
+		for (int n = 0; n < 20; n++)
+		{
+			int fromBar = random.nextInt(barCount);
+			int toBar = fromBar + 1 + random.nextInt(barCount - fromBar);
+			long startTick = qtm.barNumberToBarStartTick(firstBar + fromBar);
+			long endTick = qtm.barNumberToBarStartTick(firstBar + toBar);
+			String name = n + ": " + fromBar + " to " + toBar;
+
+			exporter = createExporter(song);
+			List<ExportTrackInfo> range = exporter.exportToPreview(false, fromBar, toBar).first;
+			assert exporter.getExportStartTick() == startTick;
+			assert exporter.getExportEndTick() == endTick;
+			assert range.size() == whole.size();
+
+			for (int t = 0; t < whole.size(); t++)
+			{
+				NoteEventList wholeNotes = whole.get(t).noteEvents;
+				NoteEventList rangeNotes = range.get(t).noteEvents;
+				for (int i = 0; i < rangeNotes.size(); i++)
+				{
+					assert rangeNotes.getStartTick(i) >= startTick : name;
+					assert rangeNotes.getEndTick(i) <= endTick : name;
+				}
+
+				assert getNotesInside(wholeNotes, startTick, endTick).equals(
+						getNotesInside(rangeNotes, startTick, endTick)) : name;
+
+				// Notes that cross the edges of the range are cut off at them
+				List<String> rangeList = toList(rangeNotes);
+				for (int i = 0; i < wholeNotes.size(); i++)
+				{
+					long noteStart = wholeNotes.getStartTick(i);
+					long noteEnd = wholeNotes.getEndTick(i);
+					if (noteStart < startTick && noteEnd > startTick)
+					{
+						String trimmed = toString(wholeNotes.getNoteId(i), startTick, Math.min(noteEnd, endTick));
+						assert rangeList.contains(trimmed) : name + ": " + trimmed;
+						edgeCount[0]++;
+					}
+					else if (noteStart >= startTick && noteStart < endTick && noteEnd > endTick)
+					{
+						String trimmed = toString(wholeNotes.getNoteId(i), noteStart, endTick);
+						assert rangeList.contains(trimmed) : name + ": " + trimmed;
+						edgeCount[1]++;
+					}
+				}
+			}
+
+			checkTies(exportAbc(exporter, fromBar, toBar), range);
+		}
+	}
+
+	/**
+	 * Reads the ABC back, and checks that each part plays as many notes as the preview. Notes that
+	 * are split across bar lines are tied back into one note, so a missing tie would play an extra
+	 * note, and a tie to the wrong note or past the end of the range would play too few.
+	 */
+	private static void checkTies(String abc, List<ExportTrackInfo> preview) throws Exception
+	{
+		List<FileAndData> data = new ArrayList<FileAndData>();
+		data.add(new FileAndData(new File("range.abc"), Arrays.asList(abc.split("\\r?\\n"))));
+		AbcToMidi.Params params = new AbcToMidi.Params(data);
+		params.stereo = false;
+		Sequence sequence = AbcToMidi.convert(params);
+
+		Track[] tracks = sequence.getTracks();
+		assert tracks.length == preview.size() + 1 : tracks.length;
+		for (int t = 0; t < preview.size(); t++)
+		{
+			int noteCount = 0;
+			Track track = tracks[t + 1];
+			for (int i = 0; i < track.size(); i++)
+			{
+				MidiEvent event = track.get(i);
+				if (event.getMessage() instanceof ShortMessage)
+				{
+					ShortMessage m = (ShortMessage) event.getMessage();
+					if (m.getCommand() == ShortMessage.NOTE_ON && m.getData2() > 0)
+						noteCount++;
+				}
+			}
+			assert noteCount == preview.get(t).noteEvents.size() : t + ": " + noteCount + " notes, expected "
+					+ preview.get(t).noteEvents.size();
+		}
+	}
+
+	private static AbcExporter createExporter(AbcSong song) throws Exception
+	{
+		// Quantize from scratch, so each export is checked on its own
+		return ExportTestSong.createExporter(song, false);
+	}
+
+	private static String exportAbc(AbcExporter exporter, int fromBar, int toBar) throws Exception
+	{
+		return ExportTestSong.exportAbc(exporter, fromBar, toBar);
+	}
+
+	/**
+	 * Returns the notes that start after the start tick and end before the end tick. Notes that
+	 * start or end on the edges of a range of bars may have been cut off there.
+	 */
+	private static List<String> getNotesInside(NoteEventList notes, long startTick, long endTick)
+	{
+		List<String> inside = new ArrayList<String>();
+		for (int i = 0; i < notes.size(); i++)
+		{
+			if (notes.getStartTick(i) > startTick && notes.getEndTick(i) < endTick)
+			{
+				inside.add(notes.getNoteId(i) + " " + notes.getVelocity(i) + " " + notes.getStartTick(i) + " "
+						+ notes.getEndTick(i));
+			}
+		}
+		return inside;
+	}
+
+	private static List<String> toList(NoteEventList notes)
+	{
+		List<String> list = new ArrayList<String>();
+		for (int i = 0; i < notes.size(); i++)
+			list.add(toString(notes.getNoteId(i), notes.getStartTick(i), notes.getEndTick(i)));
+		return list;
+	}
+
+	private static String toString(int noteId, long startTick, long endTick)
+	{
+		return noteId + " " + startTick + " " + endTick;
+	}
+}
@@ -0,0 +1,108 @@
+package com.digero.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.prefs.Preferences;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import com.digero.common.abc.LotroInstrument;
+import com.digero.common.midi.MidiConstants;
+import com.digero.common.midi.MidiFactory;
+import com.digero.maestro.abc.AbcExporter;
+import com.digero.maestro.abc.AbcPart;
+import com.digero.maestro.abc.AbcSong;
+import com.digero.maestro.abc.PartAutoNumberer;
+import com.digero.maestro.abc.PartNameTemplate;
+
+/**
+ * The song that the ABC export tests use: a tempo change after four bars, and three tracks of
+ * random notes, the last of them on the drum channel. The song is opened with a lute, a clarinet
+ * and a drum part, one for each track.
+ */
+class ExportTestSong
+{
+	private ExportTestSong()
+	{
+	}
+
+	/**
+	 * Creates the MIDI sequence.
+	 *
+	 * @param spacing The shortest time between the start of one note and the next in a track.
+	 *            Spacing the notes out keeps chords from having more notes than an instrument can
+	 *            play, since which notes are dropped from a chord that's too big depends on the
+	 *            notes around it.
+	 * @param heldLength If more than 0, one in ten notes is held for up to this long.
+	 */
+	static Sequence createSequence(Random random, int notesPerTrack, int spacing, int maxLength, int heldLength)
+			throws Exception
+	{
+		Sequence seq = new Sequence(Sequence.PPQ, 480);
+		Track track0 = seq.createTrack();
+		track0.add(MidiFactory.createTempoEvent(500000, 0));
+		track0.add(MidiFactory.createTempoEvent(400000, 480 * 16));
+
+		for (int t = 1; t <= 3; t++)
+		{
+			Track track = seq.createTrack();
+			int channel = (t == 3) ? MidiConstants.DRUM_CHANNEL : t;
+			long tick = 0;
+			for (int n = 0; n < notesPerTrack; n++)
+			{
+				tick += spacing + 60 * random.nextInt(5) + random.nextInt(10);
+				int noteId = (t == 3) ? 35 + random.nextInt(20) : 40 + random.nextInt(40);
+				long length = 1 + random.nextInt(maxLength);
+				if (heldLength > 0 && random.nextInt(10) == 0)
+					length = 1 + random.nextInt(heldLength);
+				track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, noteId,
+						30 + random.nextInt(90)), tick));
+				track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, channel, noteId, 0), tick + length));
+			}
+		}
+		return seq;
+	}
+
+	/**
+	 * Writes the sequence to the file, and opens it as a song with a lute part for track 1, a
+	 * clarinet part for track 2, and a drum part for track 3.
+	 */
+	static AbcSong open(Sequence sequence, File file, Class<?> test) throws Exception
+	{
+		MidiSystem.write(sequence, 1, file);
+
+		Preferences prefs = Preferences.userNodeForPackage(test).node(test.getSimpleName());
+		AbcSong song = new AbcSong(file, new PartAutoNumberer(prefs.node("partAutoNumberer")), new PartNameTemplate(
+				prefs.node("partNameTemplate")), null);
+
+		AbcPart lute = song.createNewPart();
+		lute.setTrackEnabled(1, true);
+		AbcPart clarinet = song.createNewPart();
+		clarinet.setInstrument(LotroInstrument.BASIC_CLARINET);
+		clarinet.setTrackEnabled(2, true);
+		AbcPart drums = song.createNewPart();
+		drums.setInstrument(LotroInstrument.BASIC_DRUM);
+		drums.setTrackEnabled(3, true);
+		return song;
+	}
+
+	static AbcExporter createExporter(AbcSong song, boolean reuseQuantizedParts) throws Exception
+	{
+		AbcExporter exporter = new AbcExporter(song.getParts(), song.getAbcTimingInfo(), song.getKeySignature(), song);
+		exporter.setReuseQuantizedParts(reuseQuantizedParts);
+		return exporter;
+	}
+
+	static String exportAbc(AbcExporter exporter, int fromBar, int toBar) throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		exporter.exportToAbc(out, Charset.forName("UTF-8"), fromBar, toBar);
+		return out.toString("UTF-8");
+	}
+}
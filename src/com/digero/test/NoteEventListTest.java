@@ -0,0 +1,145 @@
+package com.digero.test;
+
+import java.io.File;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import com.digero.common.midi.ITempoCache;
+import com.digero.maestro.midi.NoteEventList;
+import com.digero.maestro.midi.SequenceInfo;
+import com.digero.maestro.midi.TrackInfo;
+
+/**
+ * Checks the NoteEventList builder, and that TrackInfo pairs up note on and note off events
+ * correctly when it stores the notes in one.
+ */
+public class NoteEventListTest
+{
+	private static final ITempoCache TEMPO = new ITempoCache()
+	{
+		@Override public long tickToMicros(long tick)
+		{
+			return tick * 1000;
+		}
+
+		@Override public long microsToTick(long micros)
+		{
+			return micros / 1000;
+		}
+	};
+
+	public static boolean run()
+	{
+		testBuilder();
+		testTrackInfo();
+		return true;
+	}
+
+	private static void testBuilder()
+	{
+		NoteEventList.Builder builder = new NoteEventList.Builder(TEMPO);
+		for (int i = 0; i < 100; i++)
+			builder.add(i, i * 3 - 20, i * 10, i * 10 + 5);
+
+		builder.setTie(10, 12);
+		builder.setTie(12, 14);
+		builder.setEndTick(50, 1000);
+		for (int i = 1; i < 100; i += 2)
+			builder.remove(i);
+		builder.remove(1);
+		builder.remove(12);
+		assert builder.getNoteCount() == 49 : builder.getNoteCount();
+
+		NoteEventList list = builder.build();
+		assert list.size() == 49 : list.size();
+		int j = 0;
+		for (int i = 0; i < 100; i += 2)
+		{
+			if (i == 12)
+				continue;
+
+			assert list.getNoteId(j) == i;
+			assert list.getVelocity(j) == Math.max(0, Math.min(255, i * 3 - 20)) : list.getVelocity(j);
+			assert list.getStartTick(j) == i * 10;
+			assert list.getEndTick(j) == ((i == 50) ? 1000 : i * 10 + 5);
+			assert list.getStartMicros(j) == i * 10000;
+			assert list.getLengthMicros(j) == list.getLengthTicks(j) * 1000;
+			j++;
+		}
+
+		// The removed note's ties are dropped
+		assert list.getTiesTo(5) == -1 && list.getTiesFrom(6) == -1;
+		assert list.getTiesFrom(0) == -1 && list.getTiesTo(0) == -1;
+
+		builder = new NoteEventList.Builder(TEMPO);
+		builder.add(60, 64, 0, 10);
+		builder.add(62, 64, 10, 20);
+		builder.add(64, 64, 20, 30);
+		builder.remove(0);
+		builder.setTie(1, 2);
+		list = builder.build();
+		assert list.size() == 2;
+		assert list.getTiesTo(0) == 1 && list.getTiesFrom(1) == 0;
+		assert list.getTiesFrom(0) == -1 && list.getTiesTo(1) == -1;
+
+		assert NoteEventList.EMPTY.isEmpty();
+	}
+
+	private static void testTrackInfo()
+	{
+		try
+		{
+			Sequence seq = new Sequence(Sequence.PPQ, 480);
+			seq.createTrack();
+			Track track = seq.createTrack();
+			add(track, ShortMessage.NOTE_ON, 60, 100, 0);
+			add(track, ShortMessage.NOTE_ON, 64, 90, 0);
+			add(track, ShortMessage.NOTE_OFF, 60, 0, 480);
+			add(track, ShortMessage.NOTE_ON, 67, 80, 480);
+			add(track, ShortMessage.NOTE_ON, 67, 70, 960); // Replaces the stuck note
+			add(track, ShortMessage.NOTE_ON, 64, 0, 1440);
+			add(track, ShortMessage.NOTE_OFF, 67, 0, 1920);
+			add(track, ShortMessage.NOTE_ON, 72, 60, 1920);
+			add(track, ShortMessage.NOTE_ON, 72, 60, 2400); // Both on at the end of the track
+
+			File file = File.createTempFile("NoteEventListTest", ".mid");
+			try
+			{
+				MidiSystem.write(seq, 1, file);
+				TrackInfo trackInfo = SequenceInfo.fromMidi(file, null).getTrackInfo(1);
+				NoteEventList notes = trackInfo.getEvents();
+
+				long[][] expected = { { 60, 100, 0, 480 }, { 64, 90, 0, 1440 }, { 67, 70, 960, 1920 } };
+				assert notes.size() == expected.length : notes.size();
+				for (int i = 0; i < expected.length; i++)
+				{
+					assert notes.getNoteId(i) == expected[i][0];
+					assert notes.getVelocity(i) == expected[i][1];
+					assert notes.getStartTick(i) == expected[i][2];
+					assert notes.getEndTick(i) == expected[i][3];
+				}
+				assert trackInfo.getMinVelocity() == 60 && trackInfo.getMaxVelocity() == 100;
+				assert trackInfo.getNotesInUse().size() == 4;
+			}
+			finally
+			{
+				file.delete();
+			}
+		}
+		catch (Exception e)
+		{
+			throw new AssertionError(e);
+		}
+	}
+
+	private static void add(Track track, int command, int noteId, int velocity, long tick)
+			throws InvalidMidiDataException
+	{
+		track.add(new MidiEvent(new ShortMessage(command, 0, noteId, velocity), tick));
+	}
+}
@@ -0,0 +1,83 @@
+package com.digero.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.digero.common.midi.Note;
+import com.digero.maestro.midi.NoteEvent;
+import com.digero.maestro.midi.NoteEventQueue;
+
+/**
+ * Checks that NoteEventQueue returns notes in the same order as inserting them into a list with
+ * Collections.binarySearch(), including when the notes that start on the same tick aren't sorted.
+ */
+public class NoteEventQueueTest
+{
+	public static boolean run()
+	{
+		Random random = new Random(7);
+		for (int n = 0; n < 200; n++)
+		{
+			List<NoteEvent> events = new ArrayList<NoteEvent>();
+			long tick = 0;
+			int count = 1 + random.nextInt(300);
+			for (int i = 0; i < count; i++)
+			{
+				// Runs of notes on the same tick, in no particular order
+				if (random.nextInt(3) == 0)
+					tick += 1 + random.nextInt(100);
+				events.add(createNote(random, tick));
+			}
+
+			NoteEventQueue queue = new NoteEventQueue(events);
+			events = new ArrayList<NoteEvent>(events);
+			int next = 0;
+			long lastReadTick = events.get(0).getStartTick();
+			while (next < events.size())
+			{
+				int action = random.nextInt(10);
+				if (action < 5)
+				{
+					NoteEvent ne = queue.poll();
+					assert ne == events.get(next) : n + ": " + ne + " != " + events.get(next);
+					lastReadTick = ne.getStartTick();
+					next++;
+				}
+				else if (action < 8)
+				{
+					// Add on a tick that has notes that haven't been read yet, or on a new tick
+					long start = events.get(next + random.nextInt(events.size() - next)).getStartTick();
+					if (start <= lastReadTick || random.nextBoolean())
+						start = lastReadTick + 1 + random.nextInt(300);
+
+					NoteEvent ne = createNote(random, start);
+					int ins = Collections.binarySearch(events, ne);
+					if (ins < 0)
+						ins = -ins - 1;
+					assert ins >= next;
+					events.add(ins, ne);
+					queue.add(ne);
+				}
+				else
+				{
+					int i = random.nextInt(events.size());
+					queue.remove(events.remove(i));
+					if (i < next)
+						next--;
+				}
+
+				assert queue.peek() == (next < events.size() ? events.get(next) : null) : n;
+			}
+			assert queue.poll() == null;
+		}
+		return true;
+	}
+
+	private static NoteEvent createNote(Random random, long startTick)
+	{
+		Note note = Note.fromId(Note.C3.id + random.nextInt(36));
+		return new NoteEvent(note, 100, startTick, startTick + 1 + random.nextInt(500), null);
+	}
+}
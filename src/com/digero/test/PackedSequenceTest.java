@@ -0,0 +1,167 @@
+package com.digero.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+
+import com.digero.maestro.midi.PackedSequence;
+
+/**
+ * Checks that reading a MIDI file into a PackedSequence gives the same events as
+ * MidiSystem.getSequence(), both for files written by MidiSystem.write() and for files that use
+ * running status, have extra chunks, or have data after the end of a track.
+ */
+public class PackedSequenceTest
+{
+	public static boolean run()
+	{
+		try
+		{
+			Random random = new Random(11);
+			for (int n = 0; n < 20; n++)
+			{
+				Sequence song = new Sequence(Sequence.PPQ, 96 + random.nextInt(900));
+				int trackCount = (n % 2 == 0) ? 1 : 1 + random.nextInt(6);
+				for (int t = 0; t < trackCount; t++)
+					addRandomEvents(random, song.createTrack());
+
+				File file = File.createTempFile("PackedSequenceTest", ".mid");
+				try
+				{
+					MidiSystem.write(song, (trackCount == 1) ? 0 : 1, file);
+					check(file);
+				}
+				finally
+				{
+					file.delete();
+				}
+			}
+
+			ByteArrayOutputStream track = new ByteArrayOutputStream();
+			write(track, 0x00, 0xFF, 0x03, 0x04, 'T', 'e', 's', 't'); // Track name
+			write(track, 0x00, 0xC1, 0x05); // Program change
+			write(track, 0x10, 0x91, 0x3C, 0x40); // Note on
+			write(track, 0x00, 0x3E, 0x40); // Running status
+			write(track, 0x81, 0x00, 0x3C, 0x00); // Running status, with a two byte delta
+			write(track, 0x00, 0xF0, 0x03, 0x7E, 0x7F, 0xF7); // System exclusive
+			write(track, 0x05, 0xE1, 0x00, 0x50); // Pitch bend
+			write(track, 0x00, 0x20, 0x40); // Running status
+			write(track, 0x10, 0x81, 0x3E, 0x00); // Note off
+			write(track, 0x00, 0xFF, 0x2F, 0x00); // End of track
+			write(track, 0x00, 0x91, 0x40, 0x40); // Ignored, since it's after the end of the track
+
+			ByteArrayOutputStream midi = new ByteArrayOutputStream();
+			midi.write("MThd".getBytes("US-ASCII"));
+			write(midi, 0, 0, 0, 8, 0, 1, 0, 3, 0x01, 0xE0, 0xAB, 0xCD); // Two extra header bytes
+			midi.write("XTRA".getBytes("US-ASCII"));
+			write(midi, 0, 0, 0, 2, 0x12, 0x34); // Unknown chunk
+			for (int t = 0; t < 2; t++)
+			{
+				midi.write("MTrk".getBytes("US-ASCII"));
+				write(midi, 0, 0, track.size() >> 8, track.size() & 0xFF);
+				midi.write(track.toByteArray());
+			}
+			midi.write("MTrk".getBytes("US-ASCII"));
+			write(midi, 0, 0, 0x10, 0, 0x00, 0x90); // The third track is cut off, so it is ignored
+
+			File file = File.createTempFile("PackedSequenceTest", ".mid");
+			try
+			{
+				try (FileOutputStream out = new FileOutputStream(file))
+				{
+					midi.writeTo(out);
+				}
+				check(file);
+			}
+			finally
+			{
+				file.delete();
+			}
+		}
+		catch (Exception e)
+		{
+			throw new AssertionError(e);
+		}
+		return true;
+	}
+
+	private static void check(File file) throws Exception
+	{
+		Sequence expected = MidiSystem.getSequence(file);
+		Sequence actual = PackedSequence.read(file).toSequence();
+		assert actual.getDivisionType() == expected.getDivisionType();
+		assert actual.getResolution() == expected.getResolution();
+
+		Track[] expectedTracks = expected.getTracks();
+		Track[] actualTracks = actual.getTracks();
+		assert actualTracks.length == expectedTracks.length;
+		for (int t = 0; t < expectedTracks.length; t++)
+		{
+			assert actualTracks[t].size() == expectedTracks[t].size() : t;
+			for (int i = 0; i < expectedTracks[t].size(); i++)
+			{
+				MidiEvent e = expectedTracks[t].get(i);
+				MidiEvent a = actualTracks[t].get(i);
+				assert a.getTick() == e.getTick() : t + ": " + i;
+				assert Arrays.equals(a.getMessage().getMessage(), e.getMessage().getMessage()) : t + ": " + i;
+			}
+		}
+	}
+
+	private static void addRandomEvents(Random random, Track track) throws Exception
+	{
+		long tick = 0;
+		int count = random.nextInt(500);
+		for (int i = 0; i < count; i++)
+		{
+			tick += (random.nextInt(3) == 0) ? 0 : random.nextInt(random.nextBoolean() ? 100 : 100000);
+			int channel = random.nextInt(16);
+			switch (random.nextInt(8))
+			{
+			case 0:
+				track.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE, channel, random.nextInt(128), 0),
+						tick));
+				break;
+			case 1:
+				track.add(new MidiEvent(new ShortMessage(ShortMessage.CHANNEL_PRESSURE, channel, random.nextInt(128),
+						0), tick));
+				break;
+			case 2:
+				track.add(new MidiEvent(new ShortMessage(ShortMessage.PITCH_BEND, channel, random.nextInt(128),
+						random.nextInt(128)), tick));
+				break;
+			case 3:
+				byte[] data = new byte[random.nextInt(200)];
+				random.nextBytes(data);
+				track.add(new MidiEvent(new MetaMessage(random.nextInt(0x2F), data, data.length), tick));
+				break;
+			case 4:
+				byte[] sysex = new byte[1 + random.nextInt(20)];
+				sysex[0] = (byte) 0xF0;
+				track.add(new MidiEvent(new SysexMessage(sysex, sysex.length), tick));
+				break;
+			default:
+				int command = random.nextBoolean() ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF;
+				track.add(new MidiEvent(new ShortMessage(command, channel, random.nextInt(128), random.nextInt(128)),
+						tick));
+				break;
+			}
+		}
+	}
+
+	private static void write(ByteArrayOutputStream out, int... bytes)
+	{
+		for (int b : bytes)
+			out.write(b);
+	}
+}
@@ -0,0 +1,128 @@
+package com.digero.test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+import com.digero.maestro.abc.AbcExporter;
+import com.digero.maestro.abc.AbcExporter.ExportTrackInfo;
+import com.digero.maestro.abc.AbcPart;
+import com.digero.maestro.abc.AbcSong;
+
+/**
+ * Checks that reusing each part's quantized notes gives the same ABC and preview output as
+ * quantizing every part from scratch, as the parts and the song are edited.
+ */
+public class QuantizeCacheTest
+{
+	public static boolean run()
+	{
+		try
+		{
+			File file = File.createTempFile("QuantizeCacheTest", ".mid");
+			AbcSong song = null;
+			try
+			{
+				song = ExportTestSong.open(ExportTestSong.createSequence(new Random(9), 300, 0, 960, 0), file,
+						QuantizeCacheTest.class);
+				AbcPart lute = song.getParts().get(0);
+				AbcPart clarinet = song.getParts().get(1);
+				AbcPart drums = song.getParts().get(2);
+				check(song);
+
+				lute.setTrackTranspose(1, 5);
+				check(song);
+				clarinet.setTrackVolumeAdjust(2, -20);
+				check(song);
+				clarinet.setTrackEnabled(1, true);
+				check(song);
+				drums.setDrumEnabled(3, 38, false);
+				check(song);
+				lute.setTitle("Renamed");
+				check(song);
+				song.setTranspose(-3);
+				check(song);
+				song.setTripletTiming(true);
+				check(song);
+				lute.setTrackTranspose(1, 0);
+				song.setTranspose(0);
+				song.setTripletTiming(false);
+				check(song);
+			}
+			finally
+			{
+				if (song != null)
+					song.discard();
+				file.delete();
+			}
+		}
+		catch (Exception e)
+		{
+			throw new AssertionError(e);
+		}
+		return true;
+	}
+
+	private static void check(AbcSong song) throws Exception
+	{
+		// Export twice with the reused parts, since the first export may need to quantize them
+		for (int i = 0; i < 2; i++)
+		{
+			AbcExporter reused = createExporter(song, true);
+			AbcExporter fresh = createExporter(song, false);
+			assert exportAbc(reused).equals(exportAbc(fresh));
+			assert dump(reused.exportToPreview(false).second).equals(dump(fresh.exportToPreview(false).second));
+			assert dump(reused.exportToPreview(true).second).equals(dump(fresh.exportToPreview(true).second));
+		}
+
+		// Building a preview doesn't change the parts' track numbers; the exporter returns them
+		int[] trackNumbers = new int[song.getParts().size()];
+		for (int i = 0; i < trackNumbers.length; i++)
+			trackNumbers[i] = song.getParts().get(i).getPreviewSequenceTrackNumber();
+		AbcExporter exporter = createExporter(song, true);
+		List<ExportTrackInfo> preview = exporter.exportToPreview(false).first;
+		assert exporter.getPreviewTrackNumbers().size() == trackNumbers.length;
+		for (int i = 0; i < trackNumbers.length; i++)
+		{
+			AbcPart part = preview.get(i).part;
+			assert part == song.getParts().get(i);
+			assert part.getPreviewSequenceTrackNumber() == trackNumbers[i];
+			assert exporter.getPreviewTrackNumbers().get(part) == preview.get(i).trackNumber;
+		}
+	}
+
+	private static AbcExporter createExporter(AbcSong song, boolean reuseQuantizedParts) throws Exception
+	{
+		return ExportTestSong.createExporter(song, reuseQuantizedParts);
+	}
+
+	private static String exportAbc(AbcExporter exporter) throws Exception
+	{
+		return ExportTestSong.exportAbc(exporter, 0, AbcExporter.END_OF_SONG);
+	}
+
+	private static String dump(Sequence sequence)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Track track : sequence.getTracks())
+		{
+			for (int i = 0; i < track.size(); i++)
+			{
+				MidiEvent event = track.get(i);
+				MidiMessage message = event.getMessage();
+				sb.append(event.getTick()).append(':');
+				byte[] bytes = message.getMessage();
+				for (int j = 0; j < message.getLength(); j++)
+					sb.append(' ').append(bytes[j]);
+				sb.append('\n');
+			}
+			sb.append("--\n");
+		}
+		return sb.toString();
+	}
+}
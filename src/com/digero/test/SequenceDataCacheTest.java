@@ -0,0 +1,128 @@
+package com.digero.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import com.digero.common.midi.MidiConstants;
+import com.digero.maestro.midi.SequenceDataCache;
+
+/**
+ * Checks the instruments, volumes and pitch bend ranges in SequenceDataCache against maps built
+ * from the same events, for songs where several tracks use the same channel, so the values for a
+ * channel aren't added in order. Values are read both by tick and with cursors.
+ */
+public class SequenceDataCacheTest implements MidiConstants
+{
+	public static boolean run()
+	{
+		try
+		{
+			Random random = new Random(23);
+			for (int n = 0; n < 10; n++)
+				check(random);
+		}
+		catch (Exception e)
+		{
+			throw new AssertionError(e);
+		}
+		return true;
+	}
+
+	private static void check(Random random) throws Exception
+	{
+		Sequence song = new Sequence(Sequence.PPQ, 480);
+		List<TreeMap<Long, Integer>> instruments = new ArrayList<TreeMap<Long, Integer>>(CHANNEL_COUNT);
+		List<TreeMap<Long, Integer>> volumes = new ArrayList<TreeMap<Long, Integer>>(CHANNEL_COUNT);
+		for (int c = 0; c < CHANNEL_COUNT; c++)
+		{
+			instruments.add(new TreeMap<Long, Integer>());
+			volumes.add(new TreeMap<Long, Integer>());
+		}
+
+		long endTick = 0;
+		for (int t = 1 + random.nextInt(6); t > 0; t--)
+		{
+			Track track = song.createTrack();
+			long tick = 0;
+			for (int i = random.nextInt(400); i > 0; i--)
+			{
+				tick += (random.nextInt(4) == 0) ? 0 : random.nextInt(200);
+				int c = random.nextInt(4);
+				int value = random.nextInt(128);
+				if (random.nextBoolean())
+				{
+					track.add(new MidiEvent(new ShortMessage(ShortMessage.PROGRAM_CHANGE, c, value, 0), tick));
+					if (c != DRUM_CHANNEL)
+						instruments.get(c).put(tick, value);
+				}
+				else
+				{
+					track.add(new MidiEvent(new ShortMessage(ShortMessage.CONTROL_CHANGE, c,
+							CHANNEL_VOLUME_CONTROLLER_COARSE, value), tick));
+					volumes.get(c).put(tick, value);
+				}
+			}
+			endTick = Math.max(endTick, tick);
+		}
+
+		// Pitch bend ranges on one channel, changed in the middle of the song
+		Track bendTrack = song.createTrack();
+		addPitchBendRange(bendTrack, 1, 12, 50, endTick / 2);
+
+		SequenceDataCache cache = new SequenceDataCache(song);
+		SequenceDataCache.Cursor cursor = cache.cursor();
+		for (long tick = 0; tick <= endTick + 10; tick += 1 + random.nextInt(50))
+		{
+			checkTick(cache, cursor, instruments, volumes, endTick, tick);
+
+			// Going back still works
+			if (random.nextInt(20) == 0)
+				checkTick(cache, cursor, instruments, volumes, endTick, random.nextInt((int) tick + 1));
+		}
+	}
+
+	private static void checkTick(SequenceDataCache cache, SequenceDataCache.Cursor cursor,
+			List<TreeMap<Long, Integer>> instruments, List<TreeMap<Long, Integer>> volumes, long endTick, long tick)
+	{
+		for (int c = 0; c < CHANNEL_COUNT; c++)
+		{
+			int instrument = get(instruments, c, tick, DEFAULT_INSTRUMENT);
+			assert cache.getInstrument(c, tick) == instrument : c + ": " + tick;
+			assert cursor.getInstrument(c, tick) == instrument : c + ": " + tick;
+
+			int volume = get(volumes, c, tick, DEFAULT_CHANNEL_VOLUME);
+			assert cache.getVolume(c, tick) == volume : c + ": " + tick;
+			assert cursor.getVolume(c, tick) == volume : c + ": " + tick;
+
+			double range = (c == 1 && tick >= endTick / 2) ? 12.5 : DEFAULT_PITCH_BEND_RANGE_SEMITONES
+					+ DEFAULT_PITCH_BEND_RANGE_CENTS / 100.0;
+			assert cache.getPitchBendRange(c, tick) == range : c + ": " + tick;
+			assert cursor.getPitchBendRange(c, tick) == range : c + ": " + tick;
+		}
+	}
+
+	private static int get(List<TreeMap<Long, Integer>> map, int channel, long tick, int defaultValue)
+	{
+		Entry<Long, Integer> entry = map.get(channel).floorEntry(tick);
+		return (entry == null) ? defaultValue : entry.getValue();
+	}
+
+	private static void addPitchBendRange(Track track, int channel, int semitones, int cents, long tick)
+			throws Exception
+	{
+		int[][] controllers = {
+				{ REGISTERED_PARAMETER_NUMBER_MSB, REGISTERED_PARAM_PITCH_BEND_RANGE >> 7 },
+				{ REGISTERED_PARAMETER_NUMBER_LSB, REGISTERED_PARAM_PITCH_BEND_RANGE & 0x7F },
+				{ DATA_ENTRY_COARSE, semitones }, { DATA_ENTRY_FINE, cents } };
+		for (int[] cc : controllers)
+			track.add(new MidiEvent(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, cc[0], cc[1]), tick));
+	}
+}
@@ -0,0 +1,216 @@
+package com.digero.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import com.digero.common.midi.KeySignature;
+import com.digero.common.midi.MidiConstants;
+import com.digero.common.midi.MidiFactory;
+import com.digero.common.midi.TimeSignature;
+import com.digero.maestro.midi.NoteEventList;
+import com.digero.maestro.midi.SequenceDataCache;
+import com.digero.maestro.midi.SequenceInfo;
+import com.digero.maestro.midi.SequenceInfoCache;
+import com.digero.maestro.midi.TrackInfo;
+
+/**
+ * Checks that songs read from a SequenceInfoCache are the same as songs read from their MIDI files,
+ * that damaged files in the cache are ignored, and that the songs used the longest ago are removed
+ * when the cache gets too large.
+ */
+public class SequenceInfoCacheTest
+{
+	public static boolean run()
+	{
+		File directory = null;
+		File[] songs = new File[3];
+		try
+		{
+			directory = File.createTempFile("SequenceInfoCacheTest", "");
+			directory.delete();
+			directory.mkdir();
+			for (int i = 0; i < songs.length; i++)
+			{
+				songs[i] = File.createTempFile("SequenceInfoCacheTest", ".mid");
+				MidiSystem.write(createSong(i), 1, songs[i]);
+			}
+
+			SequenceInfoCache cache = new SequenceInfoCache(directory, Long.MAX_VALUE);
+			SequenceInfo expected = SequenceInfo.fromMidi(songs[0], null);
+			check(expected, SequenceInfo.fromMidi(songs[0], cache));
+			File[] files = directory.listFiles();
+			assert files.length == 1;
+			File cached = files[0];
+			Object fileKey = getFileKey(cached);
+
+			// A song read from the cache is the same as the song read from its file, and reading it
+			// doesn't store it again
+			check(expected, SequenceInfo.fromMidi(songs[0], cache));
+			assert directory.listFiles().length == 1;
+			assert fileKey == null || fileKey.equals(getFileKey(cached));
+
+			// Songs opened without giving a cache use the default cache
+			SequenceInfoCache.setDefault(cache);
+			try
+			{
+				check(expected, SequenceInfo.fromMidi(songs[0]));
+			}
+			finally
+			{
+				SequenceInfoCache.setDefault(null);
+			}
+			assert fileKey == null || fileKey.equals(getFileKey(cached));
+
+			// A damaged file is replaced
+			try (RandomAccessFile raf = new RandomAccessFile(cached, "rw"))
+			{
+				raf.seek(raf.length() / 2);
+				int b = raf.read();
+				raf.seek(raf.length() / 2);
+				raf.write(b ^ 0x10);
+			}
+			check(expected, SequenceInfo.fromMidi(songs[0], cache));
+			assert cached.isFile();
+			check(expected, SequenceInfo.fromMidi(songs[0], cache));
+
+			// The songs are the same size, and there's room for two of them
+			SequenceInfo.fromMidi(songs[1], cache);
+			File[] order = new File[2];
+			for (File file : directory.listFiles())
+				order[file.equals(cached) ? 0 : 1] = file;
+			long now = System.currentTimeMillis();
+			order[0].setLastModified(now - 10000);
+			order[1].setLastModified(now - 5000);
+			cache = new SequenceInfoCache(directory, cached.length() * 5 / 2);
+
+			// Using the first song makes the second song the oldest, so it's removed
+			check(expected, SequenceInfo.fromMidi(songs[0], cache));
+			check(SequenceInfo.fromMidi(songs[2], null), SequenceInfo.fromMidi(songs[2], cache));
+			assert directory.listFiles().length == 2;
+			assert cached.isFile() && !order[1].exists();
+		}
+		catch (Exception e)
+		{
+			throw new AssertionError(e);
+		}
+		finally
+		{
+			for (File song : songs)
+			{
+				if (song != null)
+					song.delete();
+			}
+			if (directory != null)
+			{
+				for (File file : directory.listFiles())
+					file.delete();
+				directory.delete();
+			}
+		}
+		return true;
+	}
+
+	private static Sequence createSong(int n) throws Exception
+	{
+		Sequence song = new Sequence(Sequence.PPQ, 480);
+		Track track0 = song.createTrack();
+		track0.add(MidiFactory.createTempoEvent(400000, 0));
+		track0.add(MidiFactory.createTempoEvent(600000, 4800));
+		track0.add(MidiFactory.createTimeSignatureEvent(new TimeSignature(3, 4), 0));
+		track0.add(MidiFactory.createKeySignatureEvent(new KeySignature(-2, false), 0));
+
+		Track mixed = song.createTrack();
+		mixed.add(MidiFactory.createTrackNameEvent("Mixed"));
+		mixed.add(MidiFactory.createProgramChangeEvent(24, 1, 0));
+		mixed.add(MidiFactory.createChannelVolumeEvent(80, 1, 960));
+		for (int i = 0; i < 40; i++)
+		{
+			long tick = i * 240;
+			mixed.add(MidiFactory.createNoteOnEventEx(48 + n + i % 12, 1, 60 + i, tick));
+			mixed.add(MidiFactory.createNoteOffEvent(48 + n + i % 12, 1, tick + 200));
+			mixed.add(MidiFactory.createNoteOnEventEx(36 + i % 3, MidiConstants.DRUM_CHANNEL, 100, tick));
+			mixed.add(MidiFactory.createNoteOffEvent(36 + i % 3, MidiConstants.DRUM_CHANNEL, tick + 100));
+		}
+		mixed.add(new MidiEvent(new ShortMessage(ShortMessage.PITCH_BEND, 1, 0, 80), 2000));
+		return song;
+	}
+
+	/** Identifies the file on disk (e.g. its inode), so a file that's written again is different */
+	private static Object getFileKey(File file) throws IOException
+	{
+		return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+	}
+
+	private static void check(SequenceInfo expected, SequenceInfo actual)
+	{
+		assert actual.getTitle().equals(expected.getTitle());
+		assert actual.getPrimaryTempoMPQ() == expected.getPrimaryTempoMPQ();
+		assert actual.getKeySignature().equals(expected.getKeySignature());
+		assert actual.getTimeSignature().equals(expected.getTimeSignature());
+		assert actual.calcFirstNoteTick() == expected.calcFirstNoteTick();
+		assert actual.calcLastNoteTick() == expected.calcLastNoteTick();
+
+		SequenceDataCache e = expected.getDataCache();
+		SequenceDataCache a = actual.getDataCache();
+		assert a.getSongLengthTicks() == e.getSongLengthTicks();
+		assert a.getMinTempoMPQ() == e.getMinTempoMPQ() && a.getMaxTempoMPQ() == e.getMaxTempoMPQ();
+		assert a.getTempoEvents().keySet().equals(e.getTempoEvents().keySet());
+		for (long tick = 0; tick < e.getSongLengthTicks() + 1000; tick += 100)
+		{
+			assert a.tickToMicros(tick) == e.tickToMicros(tick);
+			for (int c = 0; c < MidiConstants.CHANNEL_COUNT; c++)
+			{
+				assert a.getInstrument(c, tick) == e.getInstrument(c, tick);
+				assert a.getVolume(c, tick) == e.getVolume(c, tick);
+				assert a.getPitchBendRange(c, tick) == e.getPitchBendRange(c, tick);
+			}
+		}
+
+		assert actual.getTrackCount() == expected.getTrackCount();
+		for (int t = 0; t < expected.getTrackCount(); t++)
+		{
+			TrackInfo et = expected.getTrackInfo(t);
+			TrackInfo at = actual.getTrackInfo(t);
+			assert at.getTrackNumber() == et.getTrackNumber();
+			assert at.getName().equals(et.getName()) && at.hasName() == et.hasName();
+			assert at.isDrumTrack() == et.isDrumTrack();
+			assert at.getInstrumentNames().equals(et.getInstrumentNames());
+			assert at.getNotesInUse().equals(et.getNotesInUse());
+			assert at.getMinVelocity() == et.getMinVelocity() && at.getMaxVelocity() == et.getMaxVelocity();
+
+			NoteEventList en = et.getEvents();
+			NoteEventList an = at.getEvents();
+			assert an.size() == en.size();
+			for (int i = 0; i < en.size(); i++)
+			{
+				assert an.getStartTick(i) == en.getStartTick(i) && an.getEndTick(i) == en.getEndTick(i);
+				assert an.getNoteId(i) == en.getNoteId(i) && an.getVelocity(i) == en.getVelocity(i);
+			}
+		}
+
+		Track[] expectedTracks = expected.getSequence().getTracks();
+		Track[] actualTracks = actual.getSequence().getTracks();
+		assert actualTracks.length == expectedTracks.length;
+		for (int t = 0; t < expectedTracks.length; t++)
+		{
+			assert actualTracks[t].size() == expectedTracks[t].size();
+			for (int i = 0; i < expectedTracks[t].size(); i++)
+			{
+				MidiEvent ee = expectedTracks[t].get(i);
+				MidiEvent ae = actualTracks[t].get(i);
+				assert ae.getTick() == ee.getTick();
+				assert Arrays.equals(ae.getMessage().getMessage(), ee.getMessage().getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package com.digero.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import com.digero.common.midi.MidiConstants;
+import com.digero.common.midi.MidiFactory;
+import com.digero.common.midi.SequencerEngine;
+import com.sun.media.sound.MidiUtils;
+
+/**
+ * Plays songs with a SequencerEngine into a receiver that records the messages, and checks that
+ * the events are sent in order, that muted tracks aren't played, that seeking sends the controllers
+ * in effect at the new position, and that positions and times match MidiUtils.
+ */
+public class SequencerEngineTest implements MidiConstants
+{
+	public static boolean run()
+	{
+		SequencerEngine engine = new SequencerEngine();
+		try
+		{
+			Sequence song = createSong();
+			RecordingReceiver receiver = new RecordingReceiver();
+			engine.getTransmitter().setReceiver(receiver);
+			engine.open();
+			engine.setSequence(song);
+
+			// Times match MidiUtils, and seeking by tick keeps the exact tick
+			MidiUtils.TempoCache tempoCache = new MidiUtils.TempoCache(song);
+			Random random = new Random(25);
+			for (int i = 0; i < 200; i++)
+			{
+				long tick = random.nextInt((int) song.getTickLength() + 1);
+				long micros = MidiUtils.tick2microsecond(song, tick, tempoCache);
+				assert engine.tickToMicros(tick) == micros : tick;
+				assert engine.microsToTick(micros) == MidiUtils.microsecond2tick(song, micros, tempoCache) : micros;
+
+				engine.setTickPosition(tick);
+				assert engine.getTickPosition() == tick;
+				assert engine.getMicrosecondPosition() == micros;
+			}
+			assert engine.getMicrosecondLength() == MidiUtils.tick2microsecond(song, song.getTickLength(), tempoCache);
+
+			// All of the events are sent, in order of tick, then track
+			engine.setTempoFactor(8.0f);
+			engine.setTickPosition(0);
+			play(engine);
+			assert engine.getTickPosition() == engine.getTickLength();
+			assert receiver.getNotes().equals(getNotes(song, -1)) : receiver.getNotes();
+
+			// Muted tracks aren't played, and solo overrides muting
+			receiver.clear();
+			engine.setTrackMute(2, true);
+			engine.setTickPosition(0);
+			play(engine);
+			assert receiver.getNotes().equals(getNotes(song, 2)) : receiver.getNotes();
+
+			receiver.clear();
+			engine.setTrackSolo(2, true);
+			assert engine.isTrackActive(2) && !engine.isTrackActive(1);
+			engine.setTickPosition(0);
+			play(engine);
+			assert receiver.getNotes().equals(getNotes(song, 1)) : receiver.getNotes();
+			engine.setTrackSolo(2, false);
+			engine.setTrackMute(2, false);
+
+			// Starting after a seek first sends the controllers in effect at the position, in the
+			// order that they were in the song
+			receiver.clear();
+			engine.setTickPosition(480 * 6);
+			play(engine);
+			List<String> messages = receiver.getMessages();
+			assert messages.subList(0, 4).equals(toList("C1 30 00", "C0 05 00", "B0 07 50", "E1 00 50")) : messages;
+		}
+		catch (Exception e)
+		{
+			throw new AssertionError(e);
+		}
+		finally
+		{
+			engine.close();
+		}
+		return true;
+	}
+
+	/**
+	 * A song with a tempo change, two tracks of notes on different channels, and program and
+	 * volume changes that are later replaced.
+	 */
+	private static Sequence createSong() throws Exception
+	{
+		Sequence song = new Sequence(Sequence.PPQ, 480);
+		Track track0 = song.createTrack();
+		track0.add(MidiFactory.createTempoEvent(400000, 0));
+		track0.add(MidiFactory.createTempoEvent(300000, 480 * 4));
+
+		Track track1 = song.createTrack();
+		track1.add(MidiFactory.createProgramChangeEvent(2, 0, 0));
+		track1.add(MidiFactory.createChannelVolumeEvent(90, 0, 0));
+		track1.add(MidiFactory.createProgramChangeEvent(5, 0, 480));
+		track1.add(MidiFactory.createChannelVolumeEvent(80, 0, 960));
+
+		Track track2 = song.createTrack();
+		track2.add(MidiFactory.createProgramChangeEvent(48, 1, 0));
+		track2.add(new MidiEvent(new ShortMessage(ShortMessage.PITCH_BEND, 1, 0, 80), 960));
+
+		for (int i = 0; i < 8; i++)
+		{
+			long tick = i * 480;
+			track1.add(MidiFactory.createNoteOnEventEx(60 + i, 0, 100, tick));
+			track1.add(MidiFactory.createNoteOffEvent(60 + i, 0, tick + 240));
+			track2.add(MidiFactory.createNoteOnEventEx(40 + i, 1, 100, tick));
+			track2.add(MidiFactory.createNoteOffEvent(40 + i, 1, tick + 480));
+		}
+		return song;
+	}
+
+	private static void play(SequencerEngine engine) throws InterruptedException
+	{
+		engine.start();
+		long timeout = System.currentTimeMillis() + 10000;
+		while (engine.isRunning())
+		{
+			assert System.currentTimeMillis() < timeout : "The song didn't end";
+			Thread.sleep(5);
+		}
+	}
+
+	/** The note on and off messages of the song, in order, leaving out the track that's skipped. */
+	private static List<String> getNotes(Sequence song, int skipTrack)
+	{
+		List<MidiEvent> events = new ArrayList<MidiEvent>();
+		Track[] tracks = song.getTracks();
+		for (int t = 0; t < tracks.length; t++)
+		{
+			for (int i = 0; i < tracks[t].size(); i++)
+			{
+				if (t != skipTrack)
+					events.add(tracks[t].get(i));
+			}
+		}
+
+		// A stable sort by tick keeps events at the same tick in track order
+		Collections.sort(events, new Comparator<MidiEvent>()
+		{
+			@Override public int compare(MidiEvent a, MidiEvent b)
+			{
+				return Long.compare(a.getTick(), b.getTick());
+			}
+		});
+
+		List<String> notes = new ArrayList<String>();
+		for (MidiEvent evt : events)
+		{
+			if (isNote(evt.getMessage()))
+				notes.add(toString(evt.getMessage()));
+		}
+		return notes;
+	}
+
+	private static boolean isNote(MidiMessage message)
+	{
+		if (!(message instanceof ShortMessage))
+			return false;
+
+		int command = ((ShortMessage) message).getCommand();
+		return command == ShortMessage.NOTE_ON || command == ShortMessage.NOTE_OFF;
+	}
+
+	private static String toString(MidiMessage message)
+	{
+		StringBuilder s = new StringBuilder();
+		byte[] bytes = message.getMessage();
+		for (int i = 0; i < 3; i++)
+		{
+			if (i > 0)
+				s.append(' ');
+			s.append(String.format("%02X", (i < bytes.length) ? bytes[i] & 0xFF : 0));
+		}
+		return s.toString();
+	}
+
+	private static List<String> toList(String... values)
+	{
+		List<String> list = new ArrayList<String>();
+		for (String value : values)
+			list.add(value);
+		return list;
+	}
+
+	private static class RecordingReceiver implements Receiver
+	{
+		private final List<String> messages = new ArrayList<String>();
+		private final List<String> notes = new ArrayList<String>();
+
+		@Override public synchronized void send(MidiMessage message, long timeStamp)
+		{
+			messages.add(SequencerEngineTest.toString(message));
+			if (isNote(message))
+				notes.add(SequencerEngineTest.toString(message));
+		}
+
+		public synchronized List<String> getMessages()
+		{
+			return new ArrayList<String>(messages);
+		}
+
+		public synchronized List<String> getNotes()
+		{
+			return new ArrayList<String>(notes);
+		}
+
+		public synchronized void clear()
+		{
+			messages.clear();
+			notes.clear();
+		}
+
+		@Override public void close()
+		{
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.digero.test;
+
+import java.io.File;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+import com.digero.common.midi.MidiConstants;
+import com.digero.common.midi.MidiFactory;
+import com.digero.maestro.midi.NoteEventList;
+import com.digero.maestro.midi.SequenceInfo;
+import com.digero.maestro.midi.TrackInfo;
+
+/**
+ * Checks that loading a MIDI file separates type 0 files into one track per channel, moves the
+ * drums out of tracks that also have notes, and moves meta events that are past the end of the
+ * song back to the end.
+ */
+public class SplitTracksTest
+{
+	public static boolean run()
+	{
+		try
+		{
+			// Type 0: the channels get tracks in the order that they're first used
+			Sequence type0 = new Sequence(Sequence.PPQ, 480);
+			Track track = type0.createTrack();
+			track.add(MidiFactory.createTempoEvent(400000, 0));
+			addNotes(track, 3, 60, 0, 10);
+			addNotes(track, MidiConstants.DRUM_CHANNEL, 38, 120, 5);
+			addNotes(track, 0, 64, 240, 8);
+			track.add(createTextEvent(100000));
+
+			SequenceInfo sequenceInfo = load(type0, 0);
+			assert sequenceInfo.getTrackCount() == 4;
+			checkTrack(sequenceInfo.getTrackInfo(0), "Track 0", false, 0, -1);
+			checkTrack(sequenceInfo.getTrackInfo(1), "Track 1", false, 10, 60);
+			checkTrack(sequenceInfo.getTrackInfo(2), "Drums", true, 5, 38);
+			checkTrack(sequenceInfo.getTrackInfo(3), "Track 3", false, 8, 64);
+			assert sequenceInfo.getPrimaryTempoMPQ() == 400000;
+			assert sequenceInfo.getSequence().getTickLength() == lastNoteEnd(sequenceInfo);
+			assert sequenceInfo.getDataCache().getSongLengthTicks() == lastNoteEnd(sequenceInfo);
+
+			// Type 1: the drums from the tracks that have both drums and notes are merged into a new
+			// track after the others
+			Sequence type1 = new Sequence(Sequence.PPQ, 480);
+			type1.createTrack().add(MidiFactory.createTempoEvent(400000, 0));
+			Track mixed1 = type1.createTrack();
+			mixed1.add(MidiFactory.createTrackNameEvent("Mixed 1"));
+			addNotes(mixed1, 1, 50, 0, 6);
+			addNotes(mixed1, MidiConstants.DRUM_CHANNEL, 36, 60, 6);
+			Track notes = type1.createTrack();
+			notes.add(MidiFactory.createTrackNameEvent("Notes"));
+			addNotes(notes, 2, 70, 0, 4);
+			notes.add(createTextEvent(50000));
+			Track mixed2 = type1.createTrack();
+			mixed2.add(MidiFactory.createTrackNameEvent("Mixed 2"));
+			addNotes(mixed2, MidiConstants.DRUM_CHANNEL, 42, 30, 7);
+			addNotes(mixed2, 4, 55, 90, 3);
+
+			sequenceInfo = load(type1, 1);
+			assert sequenceInfo.getTrackCount() == 5;
+			checkTrack(sequenceInfo.getTrackInfo(1), "Mixed 1", false, 6, 50);
+			checkTrack(sequenceInfo.getTrackInfo(2), "Notes", false, 4, 70);
+			checkTrack(sequenceInfo.getTrackInfo(3), "Mixed 2", false, 3, 55);
+			checkTrack(sequenceInfo.getTrackInfo(4), "Drums", true, 13, -1);
+			assert sequenceInfo.getSequence().getTickLength() == lastNoteEnd(sequenceInfo);
+
+			NoteEventList drums = sequenceInfo.getTrackInfo(4).getEvents();
+			for (int i = 1; i < drums.size(); i++)
+				assert drums.getStartTick(i - 1) <= drums.getStartTick(i);
+		}
+		catch (Exception e)
+		{
+			throw new AssertionError(e);
+		}
+		return true;
+	}
+
+	private static SequenceInfo load(Sequence song, int type) throws Exception
+	{
+		File file = File.createTempFile("SplitTracksTest", ".mid");
+		try
+		{
+			MidiSystem.write(song, type, file);
+			return SequenceInfo.fromMidi(file, null);
+		}
+		finally
+		{
+			file.delete();
+		}
+	}
+
+	/** Adds notes that are each a quarter note long, a quarter note apart. */
+	private static void addNotes(Track track, int channel, int noteId, long startTick, int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			long tick = startTick + i * 480;
+			track.add(MidiFactory.createNoteOnEventEx(noteId, channel, 100, tick));
+			track.add(MidiFactory.createNoteOffEvent(noteId, channel, tick + 480));
+		}
+	}
+
+	private static MidiEvent createTextEvent(long tick) throws Exception
+	{
+		byte[] text = "Past the end".getBytes("US-ASCII");
+		return new MidiEvent(new MetaMessage(MidiConstants.META_TEXT, text, text.length), tick);
+	}
+
+	/** Checks the track, and that all of its notes have the note ID (unless it's -1) */
+	private static void checkTrack(TrackInfo trackInfo, String name, boolean isDrumTrack, int noteCount, int noteId)
+	{
+		assert trackInfo.getName().equals(name) : trackInfo.getName();
+		assert trackInfo.isDrumTrack() == isDrumTrack : name;
+		assert trackInfo.getEventCount() == noteCount : name + ": " + trackInfo.getEventCount();
+		for (int i = 0; noteId >= 0 && i < noteCount; i++)
+			assert trackInfo.getEvents().getNoteId(i) == noteId : name;
+	}
+
+	private static long lastNoteEnd(SequenceInfo sequenceInfo)
+	{
+		long end = 0;
+		for (TrackInfo trackInfo : sequenceInfo.getTrackList())
+		{
+			NoteEventList notes = trackInfo.getEvents();
+			for (int i = 0; i < notes.size(); i++)
+				end = Math.max(end, notes.getEndTick(i));
+		}
+		return end;
+	}
+}
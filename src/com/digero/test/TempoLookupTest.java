@@ -0,0 +1,129 @@
+package com.digero.test;
+
+import java.io.File;
+import java.util.Random;
+import java.util.TreeSet;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import com.digero.common.midi.MidiFactory;
+import com.digero.common.midi.TimeSignature;
+import com.digero.maestro.abc.QuantizedTimingInfo;
+import com.digero.maestro.midi.SequenceDataCache;
+import com.digero.maestro.midi.SequenceDataCache.TempoEvent;
+import com.digero.maestro.midi.SequenceInfo;
+
+/**
+ * Checks that the binary searches for tempo events by tick and by microsecond find the same events
+ * as a linear search through the tempo map.
+ */
+public class TempoLookupTest
+{
+	public static boolean run()
+	{
+		try
+		{
+			Sequence ramp = createRamp(2000, 7);
+			testDataCache(new SequenceDataCache(ramp));
+			testDataCache(new SequenceDataCache(createRamp(0, 0)));
+
+			File file = File.createTempFile("TempoLookupTest", ".mid");
+			try
+			{
+				MidiSystem.write(ramp, 1, file);
+				SequenceInfo sequenceInfo = SequenceInfo.fromMidi(file, null);
+				testTimingInfo(new QuantizedTimingInfo(sequenceInfo, 1.0f, TimeSignature.FOUR_FOUR, false));
+				testTimingInfo(new QuantizedTimingInfo(sequenceInfo, 1.5f, new TimeSignature(3, 4), true));
+			}
+			finally
+			{
+				file.delete();
+			}
+		}
+		catch (Exception e)
+		{
+			throw new AssertionError(e);
+		}
+		return true;
+	}
+
+	/** Creates a sequence with a tempo change every few ticks, and a note that lasts the whole song. */
+	private static Sequence createRamp(int tempoCount, int ticksPerTempo) throws Exception
+	{
+		Sequence seq = new Sequence(Sequence.PPQ, 480);
+		Track track0 = seq.createTrack();
+		Random random = new Random(tempoCount);
+		for (int i = 0; i < tempoCount; i++)
+			track0.add(MidiFactory.createTempoEvent(200000 + random.nextInt(800000), (long) i * ticksPerTempo));
+
+		Track track = seq.createTrack();
+		long endTick = Math.max(480, (long) tempoCount * ticksPerTempo + 480);
+		track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0));
+		track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), endTick));
+		return seq;
+	}
+
+	private static void testDataCache(SequenceDataCache cache)
+	{
+		long endMicros = cache.tickToMicros(cache.getSongLengthTicks());
+		for (long micros = -1000; micros <= endMicros + 100000; micros += 997)
+			checkMicros(cache, micros);
+		for (TempoEvent te : cache.getTempoEvents().values())
+		{
+			checkMicros(cache, te.micros - 1);
+			checkMicros(cache, te.micros);
+			checkMicros(cache, te.micros + 1);
+			assert cache.getTempoEventForTick(te.tick) == te;
+			assert te.tick == 0 || cache.getTempoEventForTick(te.tick - 1) != te;
+		}
+		assert cache.getTempoEventForTick(-1) == TempoEvent.DEFAULT_TEMPO;
+	}
+
+	private static void checkMicros(SequenceDataCache cache, long micros)
+	{
+		TempoEvent expected = TempoEvent.DEFAULT_TEMPO;
+		for (TempoEvent event : cache.getTempoEvents().values())
+		{
+			if (event.micros > micros)
+				break;
+
+			expected = event;
+		}
+		assert cache.getTempoEventForMicros(micros) == expected : micros;
+	}
+
+	private static void testTimingInfo(QuantizedTimingInfo qtm)
+	{
+		long prevTick = Long.MIN_VALUE;
+		long endMicros = qtm.tickToMicros(qtm.barNumberToBarStartTick(qtm.tickToBarNumber(20000) + 1));
+		for (long micros = 0; micros <= endMicros; micros += 1009)
+		{
+			long tick = qtm.microsToTick(micros);
+			assert tick >= prevTick : micros;
+			assert Math.abs(qtm.tickToMicros(tick) - micros) <= qtm.tickToMicros(tick + 1) - qtm.tickToMicros(tick)
+					: micros;
+			prevTick = tick;
+		}
+		for (long tick = 0; tick <= 20000; tick += 13)
+		{
+			long roundTrip = qtm.microsToTick(qtm.tickToMicros(tick));
+			assert Math.abs(roundTrip - tick) <= 1 : tick + " " + roundTrip;
+		}
+
+		// Within the song, the bar lookups should act like floor() and higher() on the bar start ticks
+		TreeSet<Long> barStarts = new TreeSet<Long>();
+		int lastBar = qtm.tickToBarNumber(30000) + 2;
+		for (int bar = 0; bar <= lastBar; bar++)
+			barStarts.add(qtm.barNumberToBarStartTick(bar));
+		for (long tick = 0; tick <= 14000; tick += 7)
+		{
+			assert qtm.tickToBarStartTick(tick) == barStarts.floor(tick) : tick;
+			assert qtm.tickToBarEndTick(tick) == barStarts.higher(tick) : tick;
+			assert qtm.quantize(qtm.quantize(tick)) == qtm.quantize(tick) : tick;
+		}
+	}
+}
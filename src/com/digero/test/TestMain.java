@@ -1,11 +1,28 @@
 package com.digero.test;
 
+import com.digero.maestro.midi.SequenceInfoCache;
 
 public class TestMain
 {
 	public static void runAll()
 	{
+		// Songs opened by the tests are read from their files, and not stored in the user's cache
+		SequenceInfoCache.setDefault(null);
+
 		LotroInstrumentTest.run();
+		AbcToMidiTest.run();
+		NoteEventListTest.run();
+		TempoLookupTest.run();
+		QuantizeCacheTest.run();
+		AbcBarWriterTest.run();
+		AbcRegionIndexTest.run();
+		NoteEventQueueTest.run();
+		BarRangeExportTest.run();
+		SplitTracksTest.run();
+		PackedSequenceTest.run();
+		SequenceInfoCacheTest.run();
+		SequenceDataCacheTest.run();
+		SequencerEngineTest.run();
 	}
 
 	public static void main(String[] args)
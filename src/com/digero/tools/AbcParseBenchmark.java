@@ -0,0 +1,93 @@
+package com.digero.tools;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Random;
+
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+
+import com.digero.common.abctomidi.AbcToMidi;
+
+/**
+ * Times AbcToMidi.convert() for songs with dense parts.
+ * <p>
+ * Usage: AbcParseBenchmark [file.abc]
+ * <p>
+ * Without a file, a song is generated with a fast lute part, a harp part of chords and a drum part,
+ * each with 40,000 notes. The notes are short and repeat the same few pitches, so most of them
+ * overlap the end of the previous note with the same pitch.
+ */
+public class AbcParseBenchmark
+{
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception
+	{
+		File abcFile;
+		if (args.length > 0)
+		{
+			abcFile = new File(args[0]);
+		}
+		else
+		{
+			abcFile = File.createTempFile("DenseParts", ".abc");
+			abcFile.deleteOnExit();
+			writeDenseSong(abcFile, 40000);
+		}
+
+		AbcToMidi.Params params = new AbcToMidi.Params(abcFile);
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++)
+		{
+			long start = System.nanoTime();
+			Sequence seq = AbcToMidi.convert(params);
+			long nanos = System.nanoTime() - start;
+
+			if (round >= WARMUP_ROUNDS)
+			{
+				int eventCount = 0;
+				for (Track track : seq.getTracks())
+					eventCount += track.size();
+
+				System.out.printf("%s: %8.1f ms  (%,d events)%n", abcFile.getName(), nanos / 1e6, eventCount);
+			}
+		}
+	}
+
+	private static void writeDenseSong(File file, int notesPerPart) throws Exception
+	{
+		Random random = new Random(0);
+		String[] titles = { "Lute", "Harp", "Drum" };
+		try (PrintWriter out = new PrintWriter(file))
+		{
+			for (int part = 0; part < titles.length; part++)
+			{
+				out.println("X: " + (part + 1));
+				out.println("T: Dense Parts - " + titles[part]);
+				out.println("M: 4/4");
+				out.println("L: 1/16");
+				out.println("Q: 120");
+				out.println("K: C");
+
+				for (int n = 0; n < notesPerPart; n++)
+				{
+					if (part == 1)
+						out.print("[" + pitch(random) + pitch(random) + pitch(random) + "] ");
+					else
+						out.print(pitch(random) + " ");
+
+					if (n % 16 == 15)
+						out.println("|");
+				}
+				out.println("|]");
+				out.println();
+			}
+		}
+	}
+
+	private static String pitch(Random random)
+	{
+		return String.valueOf("CDEFG".charAt(random.nextInt(5)));
+	}
+}
@@ -0,0 +1,211 @@
+package com.digero.tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.prefs.Preferences;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import com.digero.common.midi.MidiFactory;
+import com.digero.maestro.abc.AbcBarWriter;
+import com.digero.maestro.abc.AbcExporter;
+import com.digero.maestro.abc.AbcPart;
+import com.digero.maestro.abc.AbcSong;
+import com.digero.maestro.abc.PartAutoNumberer;
+import com.digero.maestro.abc.PartNameTemplate;
+import com.digero.maestro.midi.SequenceInfoCache;
+
+/**
+ * Times writing ABC files for very long songs:
+ * <ul>
+ * <li>export: AbcExporter.exportToAbc() for a generated medley several hours long, writing to a
+ * file. The parts are quantized before the timing starts, so this measures only the writing.</li>
+ * <li>bars: writing bars with thousands of notes, comparing AbcBarWriter with the line breaking
+ * that AbcExporter used to do (building the whole bar, inserting line breaks with
+ * StringBuilder.replace(), and printing through an unbuffered PrintStream).</li>
+ * </ul>
+ * Usage: AbcWriterBenchmark [hours]
+ */
+public class AbcWriterBenchmark
+{
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception
+	{
+		double hours = (args.length > 0) ? Double.parseDouble(args[0]) : 3;
+		SequenceInfoCache.setDefault(null);
+
+		File midiFile = File.createTempFile("Medley", ".mid");
+		midiFile.deleteOnExit();
+		MidiSystem.write(createMedley(hours, 6), 1, midiFile);
+
+		File abcFile = File.createTempFile("Medley", ".abc");
+		abcFile.deleteOnExit();
+
+		Preferences prefs = Preferences.userNodeForPackage(AbcWriterBenchmark.class).node("abcWriterBenchmark");
+		AbcSong song = new AbcSong(midiFile, new PartAutoNumberer(prefs.node("partAutoNumberer")),
+				new PartNameTemplate(prefs.node("partNameTemplate")), null);
+		for (int t = 1; t < song.getSequenceInfo().getTrackCount(); t++)
+		{
+			AbcPart part = song.createNewPart();
+			part.setTrackEnabled(t, true);
+		}
+
+		AbcExporter exporter = song.getAbcExporter();
+		exporter.quantizeParts();
+
+		System.out.printf("%.1f hour medley with %d parts%n", hours, song.getParts().size());
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++)
+		{
+			long start = System.nanoTime();
+			try (OutputStream out = new FileOutputStream(abcFile))
+			{
+				exporter.exportToAbc(out);
+			}
+			long nanos = System.nanoTime() - start;
+
+			if (round >= WARMUP_ROUNDS)
+			{
+				System.out.printf("  export: %8.1f ms  %6.1f MB/s  (%,d bytes)%n", nanos / 1e6, abcFile.length() / 1e6
+						/ (nanos / 1e9), abcFile.length());
+			}
+		}
+
+		List<String> bars = createLongBars(50, 20000);
+		System.out.println(bars.size() + " bars with 20,000 notes each");
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++)
+		{
+			long start = System.nanoTime();
+			try (FileOutputStream out = new FileOutputStream(abcFile))
+			{
+				writeBarsLegacy(bars, out);
+			}
+			long legacyNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			try (FileOutputStream out = new FileOutputStream(abcFile))
+			{
+				writeBars(bars, out);
+			}
+			long nanos = System.nanoTime() - start;
+
+			if (round >= WARMUP_ROUNDS)
+			{
+				System.out.printf("  bars: StringBuilder + PrintStream: %8.1f ms   AbcBarWriter: %8.1f ms%n",
+						legacyNanos / 1e6, nanos / 1e6);
+			}
+		}
+	}
+
+	private static void writeBars(List<String> bars, OutputStream os)
+	{
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(os, Charset.defaultCharset())));
+		AbcBarWriter bar = new AbcBarWriter(out);
+		for (String notes : bars)
+		{
+			// Append one note at a time, as AbcExporter does
+			int start = 0;
+			for (int i = notes.indexOf(' '); i >= 0; i = notes.indexOf(' ', start))
+			{
+				bar.append(notes.substring(start, i + 1));
+				start = i + 1;
+			}
+			bar.write();
+			out.println(" |");
+		}
+		out.flush();
+	}
+
+	private static void writeBarsLegacy(List<String> bars, OutputStream os)
+	{
+		final int BAR_LENGTH = 160;
+		PrintStream out = new PrintStream(os);
+		StringBuilder bar = new StringBuilder();
+		for (String notes : bars)
+		{
+			int start = 0;
+			for (int i = notes.indexOf(' '); i >= 0; i = notes.indexOf(' ', start))
+			{
+				bar.append(notes.substring(start, i + 1));
+				start = i + 1;
+			}
+
+			int length = bar.length();
+			while (Character.isWhitespace(bar.charAt(length - 1)))
+				length--;
+			bar.setLength(length);
+
+			for (int i = BAR_LENGTH; i < bar.length(); i += BAR_LENGTH)
+			{
+				for (int j = 0; j < BAR_LENGTH - 1; j++, i--)
+				{
+					if (bar.charAt(i) == ' ')
+					{
+						bar.replace(i, i + 1, "\r\n\t");
+						i += "\r\n\t".length() - 1;
+						break;
+					}
+				}
+			}
+
+			out.print(bar);
+			out.println(" |");
+			bar.setLength(0);
+		}
+		out.flush();
+	}
+
+	private static List<String> createLongBars(int barCount, int notesPerBar)
+	{
+		Random random = new Random(0);
+		String[] notes = { "C", "^D", "=E", "[F,A,c]", "G/", "a//", "b3/8", "z", "+mf+ c" };
+		List<String> bars = new ArrayList<String>(barCount);
+		for (int b = 0; b < barCount; b++)
+		{
+			StringBuilder sb = new StringBuilder();
+			for (int n = 0; n < notesPerBar; n++)
+				sb.append(notes[random.nextInt(notes.length)]).append(' ');
+			bars.add(sb.toString());
+		}
+		return bars;
+	}
+
+	/** Creates a song with a note about every eighth note in each part, for the given number of hours. */
+	private static Sequence createMedley(double hours, int partCount) throws Exception
+	{
+		final int ppq = 480;
+		Random random = new Random(0);
+		Sequence seq = new Sequence(Sequence.PPQ, ppq);
+		Track track0 = seq.createTrack();
+		track0.add(MidiFactory.createTempoEvent(500000, 0));
+
+		long endTick = (long) (hours * 60 * 60 * 2 * ppq); // 120 BPM
+		for (int t = 0; t < partCount; t++)
+		{
+			Track track = seq.createTrack();
+			for (long tick = 0; tick < endTick; tick += ppq / 4 + random.nextInt(ppq / 2))
+			{
+				int noteId = 48 + random.nextInt(36);
+				track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, t, noteId, 40 + random.nextInt(80)),
+						tick));
+				track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, t, noteId, 0), tick + ppq / 4
+						+ random.nextInt(ppq)));
+			}
+		}
+		return seq;
+	}
+}
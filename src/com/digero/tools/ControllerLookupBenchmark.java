@@ -0,0 +1,221 @@
+package com.digero.tools;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import com.digero.common.midi.MidiConstants;
+import com.digero.common.midi.MidiFactory;
+import com.digero.maestro.midi.SequenceDataCache;
+import com.digero.maestro.midi.SequenceInfo;
+
+/**
+ * Times the instrument and volume lookups that TrackInfo does for each note, and measures how many
+ * bytes they allocate, comparing the TreeMaps that SequenceDataCache used to keep with its binary
+ * search and with a SequenceDataCache.Cursor.
+ * <p>
+ * Usage: ControllerLookupBenchmark [file.mid ...]
+ * <p>
+ * Without a file, a song with 15 tracks that each change their volume every 10 ticks is generated.
+ */
+public class ControllerLookupBenchmark implements MidiConstants
+{
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length == 0)
+		{
+			File midiFile = File.createTempFile("Controllers", ".mid");
+			midiFile.deleteOnExit();
+			MidiSystem.write(createSong(15, 20000, 10), 1, midiFile);
+			run(midiFile);
+		}
+
+		for (String arg : args)
+			run(new File(arg));
+	}
+
+	private static void run(File midiFile) throws Exception
+	{
+		SequenceInfo sequenceInfo = SequenceInfo.fromMidi(midiFile, null);
+		SequenceDataCache cache = sequenceInfo.getDataCache();
+		Track[] tracks = sequenceInfo.getSequence().getTracks();
+
+		// The maps that SequenceDataCache used to keep, and the notes of each track
+		List<TreeMap<Long, Integer>> instruments = new ArrayList<TreeMap<Long, Integer>>(CHANNEL_COUNT);
+		List<TreeMap<Long, Integer>> volumes = new ArrayList<TreeMap<Long, Integer>>(CHANNEL_COUNT);
+		for (int c = 0; c < CHANNEL_COUNT; c++)
+		{
+			instruments.add(new TreeMap<Long, Integer>());
+			volumes.add(new TreeMap<Long, Integer>());
+		}
+
+		int controllerCount = 0;
+		int noteCount = 0;
+		long[][] noteTicks = new long[tracks.length][];
+		int[][] noteChannels = new int[tracks.length][];
+		for (int t = 0; t < tracks.length; t++)
+		{
+			noteTicks[t] = new long[tracks[t].size()];
+			noteChannels[t] = new int[tracks[t].size()];
+			int count = 0;
+			for (int i = 0; i < tracks[t].size(); i++)
+			{
+				MidiEvent evt = tracks[t].get(i);
+				if (!(evt.getMessage() instanceof ShortMessage))
+					continue;
+
+				ShortMessage m = (ShortMessage) evt.getMessage();
+				int c = m.getChannel();
+				if (m.getCommand() == ShortMessage.PROGRAM_CHANGE && c != DRUM_CHANNEL)
+				{
+					instruments.get(c).put(evt.getTick(), m.getData1());
+					controllerCount++;
+				}
+				else if (m.getCommand() == ShortMessage.CONTROL_CHANGE
+						&& m.getData1() == CHANNEL_VOLUME_CONTROLLER_COARSE)
+				{
+					volumes.get(c).put(evt.getTick(), m.getData2());
+					controllerCount++;
+				}
+				else if (m.getCommand() == ShortMessage.NOTE_ON && m.getData2() > 0)
+				{
+					noteTicks[t][count] = evt.getTick();
+					noteChannels[t][count] = c;
+					count++;
+				}
+			}
+			noteCount += count;
+			noteTicks[t] = Arrays.copyOf(noteTicks[t], count);
+		}
+
+		System.out.println(midiFile.getName() + ": " + noteCount + " notes, " + controllerCount
+				+ " program and volume changes");
+
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++)
+		{
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			long mapSum = 0;
+			for (int t = 0; t < tracks.length; t++)
+			{
+				for (int i = 0; i < noteTicks[t].length; i++)
+				{
+					mapSum += get(volumes, noteChannels[t][i], noteTicks[t][i], DEFAULT_CHANNEL_VOLUME);
+					mapSum += get(instruments, noteChannels[t][i], noteTicks[t][i], DEFAULT_INSTRUMENT);
+				}
+			}
+			long mapNanos = System.nanoTime() - start;
+			long mapBytes = allocatedBytes() - bytes;
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			long searchSum = 0;
+			for (int t = 0; t < tracks.length; t++)
+			{
+				for (int i = 0; i < noteTicks[t].length; i++)
+				{
+					searchSum += cache.getVolume(noteChannels[t][i], noteTicks[t][i]);
+					searchSum += cache.getInstrument(noteChannels[t][i], noteTicks[t][i]);
+				}
+			}
+			long searchNanos = System.nanoTime() - start;
+			long searchBytes = allocatedBytes() - bytes;
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			long cursorSum = 0;
+			for (int t = 0; t < tracks.length; t++)
+			{
+				SequenceDataCache.Cursor cursor = cache.cursor();
+				for (int i = 0; i < noteTicks[t].length; i++)
+				{
+					cursorSum += cursor.getVolume(noteChannels[t][i], noteTicks[t][i]);
+					cursorSum += cursor.getInstrument(noteChannels[t][i], noteTicks[t][i]);
+				}
+			}
+			long cursorNanos = System.nanoTime() - start;
+			long cursorBytes = allocatedBytes() - bytes;
+
+			if (mapSum != searchSum || mapSum != cursorSum)
+				throw new AssertionError("Lookup results don't match the TreeMaps");
+
+			if (round >= WARMUP_ROUNDS)
+			{
+				System.out.printf("  TreeMap: %6.1f ns/note %6.1f bytes/note   Binary search: %6.1f ns/note "
+						+ "%4.1f bytes/note   Cursor: %6.1f ns/note %4.1f bytes/note%n", perNote(mapNanos, noteCount),
+						perNote(mapBytes, noteCount), perNote(searchNanos, noteCount), perNote(searchBytes,
+								noteCount), perNote(cursorNanos, noteCount), perNote(cursorBytes, noteCount));
+			}
+		}
+	}
+
+	/** The lookup that SequenceDataCache used to do. */
+	private static int get(List<TreeMap<Long, Integer>> map, int channel, long tick, int defaultValue)
+	{
+		Entry<Long, Integer> entry = map.get(channel).floorEntry(tick);
+		return (entry == null) ? defaultValue : entry.getValue();
+	}
+
+	private static double perNote(long value, int noteCount)
+	{
+		return (noteCount == 0) ? 0 : (double) value / noteCount;
+	}
+
+	/** The number of bytes that the current thread has allocated, if the JVM can measure it. */
+	private static long allocatedBytes()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	/**
+	 * Creates a song where each track plays a note every 60 ticks on its own channel, while its
+	 * volume changes every few ticks and its instrument every 100 notes. The notes start and end on
+	 * volume changes, so the ticks per volume change must divide 10.
+	 */
+	private static Sequence createSong(int trackCount, int noteCount, int ticksPerVolume) throws Exception
+	{
+		Sequence seq = new Sequence(Sequence.PPQ, 480);
+		seq.createTrack().add(MidiFactory.createTempoEvent(500000, 0));
+		for (int t = 0; t < trackCount; t++)
+		{
+			Track track = seq.createTrack();
+			int c = (t < DRUM_CHANNEL) ? t : t + 1;
+			// Add the events in order, since adding to the middle of a Track is slow
+			for (long tick = 0; tick < noteCount * 60L; tick += ticksPerVolume)
+			{
+				int volume = (int) (80 + 40 * Math.sin((tick + t * 100) / 2000.0));
+				track.add(MidiFactory.createChannelVolumeEvent(volume, c, tick));
+				if (tick % 60 == 0)
+				{
+					int i = (int) (tick / 60);
+					if (i % 100 == 0)
+						track.add(MidiFactory.createProgramChangeEvent((i / 100 + t) % 128, c, tick));
+					track.add(MidiFactory.createNoteOnEventEx(48 + (i + t) % 24, c, 90, tick));
+				}
+				else if (tick % 60 == 50)
+				{
+					int i = (int) (tick / 60);
+					track.add(MidiFactory.createNoteOffEvent(48 + (i + t) % 24, c, tick));
+				}
+			}
+		}
+		return seq;
+	}
+}
@@ -0,0 +1,356 @@
+package com.digero.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.prefs.Preferences;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import com.digero.common.abc.LotroInstrument;
+import com.digero.common.midi.MidiConstants;
+import com.digero.common.midi.MidiFactory;
+import com.digero.maestro.abc.AbcExporter;
+import com.digero.maestro.abc.AbcPart;
+import com.digero.maestro.abc.AbcSong;
+import com.digero.maestro.abc.PartAutoNumberer;
+import com.digero.maestro.abc.PartNameTemplate;
+import com.digero.maestro.abc.QuantizedTimingInfo;
+import com.digero.maestro.midi.SequenceInfoCache;
+import com.digero.maestro.midi.TrackInfo;
+import com.digero.maestro.util.FileResolver;
+
+/**
+ * Times each stage of exporting a song to ABC, and measures how much memory each stage allocates:
+ * <ul>
+ * <li>load: reading the MIDI, ABC or Maestro song file (SequenceInfo)</li>
+ * <li>timing: building the QuantizedTimingInfo</li>
+ * <li>quantize: combining and quantizing the notes of each part, splitting them with ties, and
+ * building chords (AbcExporter.quantizeParts)</li>
+ * <li>abc: writing the ABC file (AbcExporter.exportToAbc)</li>
+ * <li>preview: building the preview sequence (AbcExporter.exportToPreview)</li>
+ * <li>edit-one: changing one part and building the preview again, reusing the other parts'
+ * quantized notes</li>
+ * </ul>
+ * All of the other stages quantize every part each time.
+ * <p>
+ * Usage: ExportBenchmark [file or directory...]
+ * <p>
+ * Accepts .mid, .abc and .msx files. MIDI files get one part for each track that has notes. With
+ * no arguments, runs on a generated corpus of synthetic MIDI files plus the ABC files in
+ * website/files.
+ */
+public class ExportBenchmark
+{
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int ITERATIONS = 10;
+
+	/** Results are added here so the JIT can't optimize away the work being measured. */
+	private static volatile int sink;
+
+	private static final FileResolver NON_INTERACTIVE = new FileResolver()
+	{
+		@Override public File locateFile(File original, String message)
+		{
+			return null;
+		}
+
+		@Override public File resolveFile(File original, String message)
+		{
+			return null;
+		}
+	};
+
+	private static abstract class Stage
+	{
+		public final String name;
+
+		public Stage(String name)
+		{
+			this.name = name;
+		}
+
+		public abstract Object run() throws Exception;
+	}
+
+	private final PartAutoNumberer partAutoNumberer;
+	private final PartNameTemplate partNameTemplate;
+	private final com.sun.management.ThreadMXBean threadBean;
+
+	private ExportBenchmark()
+	{
+		Preferences prefs = Preferences.userNodeForPackage(ExportBenchmark.class).node("exportBenchmark");
+		partAutoNumberer = new PartAutoNumberer(prefs.node("partAutoNumberer"));
+		partNameTemplate = new PartNameTemplate(prefs.node("partNameTemplate"));
+
+		com.sun.management.ThreadMXBean bean = null;
+		if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)
+		{
+			bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			if (!bean.isThreadAllocatedMemorySupported())
+				bean = null;
+			else
+				bean.setThreadAllocatedMemoryEnabled(true);
+		}
+		threadBean = bean;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		List<File> corpus = new ArrayList<File>();
+		for (String arg : args)
+			addFiles(corpus, new File(arg));
+
+		if (args.length == 0)
+		{
+			corpus.addAll(createSyntheticCorpus());
+			addFiles(corpus, new File("website/files"));
+		}
+
+		if (corpus.isEmpty())
+		{
+			System.out.println("Usage: ExportBenchmark [file or directory...]");
+			System.exit(1);
+		}
+
+		System.out.printf("%-32s %-9s %10s %10s %12s %10s%n", "File", "Stage", "ms/op", "ops/s", "KB alloc/op",
+				"MB/s alloc");
+
+		// Time reading the MIDI files, rather than reading the songs from the cache
+		SequenceInfoCache.setDefault(null);
+
+		ExportBenchmark benchmark = new ExportBenchmark();
+		for (File file : corpus)
+		{
+			try
+			{
+				benchmark.run(file);
+			}
+			catch (Exception e)
+			{
+				System.out.println(file.getName() + ": " + e);
+			}
+		}
+	}
+
+	private void run(final File file) throws Exception
+	{
+		final AbcSong song = openSong(file);
+		try
+		{
+			final QuantizedTimingInfo qtm = new QuantizedTimingInfo(song.getSequenceInfo(), song.getTempoFactor(),
+					song.getTimeSignature(), song.isTripletTiming());
+			final AbcExporter exporter = new AbcExporter(song.getParts(), qtm, song.getKeySignature(), song);
+			exporter.setSkipSilenceAtStart(song.isSkipSilenceAtStart());
+			exporter.setReuseQuantizedParts(false);
+
+			final AbcExporter reusingExporter = new AbcExporter(song.getParts(), qtm, song.getKeySignature(), song);
+			reusingExporter.setSkipSilenceAtStart(song.isSkipSilenceAtStart());
+			final AbcPart editPart = song.getParts().get(0);
+			int track = 0;
+			while (track < editPart.getTrackCount() - 1 && !editPart.isTrackEnabled(track))
+				track++;
+			final int editTrack = track;
+
+			Stage[] stages = {
+					new Stage("load")
+					{
+						@Override public Object run() throws Exception
+						{
+							AbcSong loaded = openSong(file);
+							loaded.discard();
+							return loaded;
+						}
+					}, new Stage("timing")
+					{
+						@Override public Object run() throws Exception
+						{
+							return new QuantizedTimingInfo(song.getSequenceInfo(), song.getTempoFactor(),
+									song.getTimeSignature(), song.isTripletTiming());
+						}
+					}, new Stage("quantize")
+					{
+						@Override public Object run() throws Exception
+						{
+							return exporter.quantizeParts();
+						}
+					}, new Stage("abc")
+					{
+						@Override public Object run() throws Exception
+						{
+							ByteArrayOutputStream out = new ByteArrayOutputStream();
+							exporter.exportToAbc(out);
+							return out.size();
+						}
+					}, new Stage("preview")
+					{
+						@Override public Object run() throws Exception
+						{
+							return exporter.exportToPreview(false);
+						}
+					}, new Stage("edit-one")
+					{
+						@Override public Object run() throws Exception
+						{
+							int volume = editPart.getTrackVolumeAdjust(editTrack);
+							editPart.setTrackVolumeAdjust(editTrack, (volume == 0) ? -1 : 0);
+							return reusingExporter.exportToPreview(false);
+						}
+					} };
+
+			String name = file.getName();
+			if (name.length() > 32)
+				name = name.substring(0, 29) + "...";
+
+			for (Stage stage : stages)
+				measure(name, stage);
+		}
+		finally
+		{
+			song.discard();
+		}
+	}
+
+	private void measure(String fileName, Stage stage) throws Exception
+	{
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			sink += System.identityHashCode(stage.run());
+
+		long threadId = Thread.currentThread().getId();
+		long startBytes = (threadBean == null) ? 0 : threadBean.getThreadAllocatedBytes(threadId);
+		long startNanos = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			sink += System.identityHashCode(stage.run());
+		long nanos = System.nanoTime() - startNanos;
+		long bytes = (threadBean == null) ? 0 : threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+		double msPerOp = nanos / 1e6 / ITERATIONS;
+		double seconds = nanos / 1e9;
+		System.out.printf("%-32s %-9s %10.2f %10.1f %12.1f %10.1f%n", fileName, stage.name, msPerOp,
+				ITERATIONS / seconds, bytes / 1024.0 / ITERATIONS, bytes / (1024.0 * 1024.0) / seconds);
+	}
+
+	private AbcSong openSong(File file) throws Exception
+	{
+		AbcSong song = new AbcSong(file, partAutoNumberer, partNameTemplate, NON_INTERACTIVE);
+		if (song.getParts().isEmpty())
+		{
+			// Plain MIDI file; give each track its own part
+			for (TrackInfo trackInfo : song.getSequenceInfo().getTrackList())
+			{
+				if (!trackInfo.hasEvents())
+					continue;
+
+				AbcPart part = song.createNewPart();
+				if (trackInfo.isDrumTrack())
+					part.setInstrument(LotroInstrument.BASIC_DRUM);
+				part.setTrackEnabled(trackInfo.getTrackNumber(), true);
+			}
+		}
+		return song;
+	}
+
+	private static void addFiles(List<File> corpus, File file)
+	{
+		if (file.isDirectory())
+		{
+			File[] children = file.listFiles();
+			if (children != null)
+			{
+				Arrays.sort(children);
+				for (File child : children)
+					addFiles(corpus, child);
+			}
+		}
+		else
+		{
+			String name = file.getName().toLowerCase();
+			if (name.endsWith(".mid") || name.endsWith(".midi") || name.endsWith(".abc")
+					|| name.endsWith(AbcSong.MSX_FILE_EXTENSION))
+			{
+				corpus.add(file);
+			}
+		}
+	}
+
+	/** Generates MIDI files that stress different parts of the export. */
+	private static List<File> createSyntheticCorpus() throws Exception
+	{
+		File dir = Files.createTempDirectory("ExportBenchmark").toFile();
+		dir.deleteOnExit();
+
+		List<File> corpus = new ArrayList<File>();
+		corpus.add(writeTemp(dir, "synthetic-dense", createSong(8, 4000, 0, false, 1)));
+		corpus.add(writeTemp(dir, "synthetic-tempo-ramp", createSong(4, 2000, 48, false, 2)));
+		corpus.add(writeTemp(dir, "synthetic-drums", createSong(3, 3000, 0, true, 3)));
+		return corpus;
+	}
+
+	private static File writeTemp(File dir, String name, Sequence seq) throws Exception
+	{
+		File file = new File(dir, name + ".mid");
+		file.deleteOnExit();
+		MidiSystem.write(seq, 1, file);
+		return file;
+	}
+
+	/**
+	 * Creates a song with random notes and chords of varying lengths, including notes that overlap
+	 * and notes that are shorter than the quantization grid.
+	 *
+	 * @param tempoChangeTicks If non-zero, the tempo changes this often.
+	 * @param drums If true, the last track is played on the drum channel.
+	 */
+	private static Sequence createSong(int trackCount, int notesPerTrack, int tempoChangeTicks, boolean drums,
+			long seed) throws Exception
+	{
+		final int ppq = 480;
+		Random random = new Random(seed);
+		Sequence seq = new Sequence(Sequence.PPQ, ppq);
+		Track track0 = seq.createTrack();
+		track0.add(MidiFactory.createTempoEvent(500000, 0));
+
+		long songEndTick = 0;
+		for (int t = 0; t < trackCount; t++)
+		{
+			Track track = seq.createTrack();
+			int channel = (drums && t == trackCount - 1) ? MidiConstants.DRUM_CHANNEL : t;
+			long tick = 0;
+			for (int n = 0; n < notesPerTrack; n++)
+			{
+				tick += ppq / 8 * random.nextInt(5) + random.nextInt(20);
+				int chordSize = (random.nextInt(4) == 0) ? 1 + random.nextInt(3) : 1;
+				for (int c = 0; c < chordSize; c++)
+				{
+					int noteId = drums ? 35 + random.nextInt(47) : 36 + random.nextInt(48);
+					long length = 1 + random.nextInt(ppq * 3);
+					track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, channel, noteId,
+							40 + random.nextInt(88)), tick));
+					track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, channel, noteId, 0), tick
+							+ length));
+					songEndTick = Math.max(songEndTick, tick + length);
+				}
+			}
+		}
+
+		if (tempoChangeTicks > 0)
+		{
+			for (long tick = tempoChangeTicks, i = 0; tick < songEndTick; tick += tempoChangeTicks, i++)
+			{
+				double bpm = 110 + 40 * Math.sin(i / 30.0);
+				track0.add(MidiFactory.createTempoEvent((int) Math.round(60000000 / bpm), tick));
+			}
+		}
+
+		return seq;
+	}
+}
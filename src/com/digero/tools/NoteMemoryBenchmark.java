@@ -0,0 +1,138 @@
+package com.digero.tools;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.digero.common.midi.Note;
+import com.digero.maestro.midi.NoteEvent;
+import com.digero.maestro.midi.NoteEventList;
+import com.digero.maestro.midi.SequenceInfo;
+import com.digero.maestro.midi.TrackInfo;
+
+/**
+ * Measures the memory used to store the notes of a MIDI file, comparing the NoteEventList that
+ * TrackInfo uses with the list of NoteEvent objects that it used to keep.
+ * <p>
+ * Usage: NoteMemoryBenchmark &lt;file.mid&gt; [...]
+ * <p>
+ * Run with a fixed heap size (e.g. -Xms1g -Xmx1g) so the measurements aren't affected by the heap
+ * growing.
+ */
+public class NoteMemoryBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		if (args.length == 0)
+		{
+			System.out.println("Usage: NoteMemoryBenchmark <file.mid> [...]");
+			System.exit(1);
+		}
+
+		for (String arg : args)
+			run(new File(arg));
+	}
+
+	private static void run(File midiFile) throws Exception
+	{
+		long gcCount = getGcCount();
+		long gcMillis = getGcMillis();
+		long startNanos = System.nanoTime();
+		SequenceInfo sequenceInfo = SequenceInfo.fromMidi(midiFile, null);
+		long loadNanos = System.nanoTime() - startNanos;
+		gcCount = getGcCount() - gcCount;
+		gcMillis = getGcMillis() - gcMillis;
+
+		int noteCount = 0;
+		for (TrackInfo trackInfo : sequenceInfo.getTrackList())
+			noteCount += trackInfo.getEventCount();
+
+		// Copy the notes into each layout and measure how much the heap grows
+		long before = usedMemory();
+		List<NoteEventList> columns = new ArrayList<NoteEventList>();
+		for (TrackInfo trackInfo : sequenceInfo.getTrackList())
+			columns.add(copyColumns(trackInfo.getEvents()));
+		long columnBytes = usedMemory() - before;
+
+		before = usedMemory();
+		List<List<NoteEvent>> objects = new ArrayList<List<NoteEvent>>();
+		for (TrackInfo trackInfo : sequenceInfo.getTrackList())
+			objects.add(copyObjects(trackInfo.getEvents()));
+		long objectBytes = usedMemory() - before;
+
+		System.out.println(midiFile.getName() + ": " + noteCount + " notes in " + sequenceInfo.getTrackList().size()
+				+ " tracks");
+		System.out.printf("  Load time:     %d ms (%d GCs, %d ms)%n", loadNanos / 1000000, gcCount, gcMillis);
+		System.out.printf("  NoteEventList: %,d bytes (%.1f bytes/note)%n", columnBytes, perNote(columnBytes,
+				noteCount));
+		System.out.printf("  NoteEvent:     %,d bytes (%.1f bytes/note)%n", objectBytes, perNote(objectBytes,
+				noteCount));
+
+		// Clearing the copies here also keeps them reachable until they've been measured
+		columns.clear();
+		objects.clear();
+	}
+
+	private static NoteEventList copyColumns(NoteEventList notes)
+	{
+		NoteEventList.Builder builder = new NoteEventList.Builder(notes.getTempoCache());
+		for (int i = 0; i < notes.size(); i++)
+			builder.add(notes.getNoteId(i), notes.getVelocity(i), notes.getStartTick(i), notes.getEndTick(i));
+		return builder.build();
+	}
+
+	private static List<NoteEvent> copyObjects(NoteEventList notes)
+	{
+		List<NoteEvent> list = new ArrayList<NoteEvent>();
+		for (int i = 0; i < notes.size(); i++)
+		{
+			NoteEvent ne = new NoteEvent(Note.fromId(notes.getNoteId(i)), notes.getVelocity(i), notes.getStartTick(i),
+					notes.getEndTick(i), notes.getTempoCache());
+			ne.getStartMicros(); // Fill in the cached values, as TrackInfo did
+			ne.getEndMicros();
+			list.add(ne);
+		}
+		return list;
+	}
+
+	private static double perNote(long bytes, int noteCount)
+	{
+		return (noteCount == 0) ? 0 : (double) bytes / noteCount;
+	}
+
+	private static long usedMemory()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++)
+		{
+			System.gc();
+			try
+			{
+				Thread.sleep(50);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long getGcCount()
+	{
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	private static long getGcMillis()
+	{
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			millis += Math.max(0, gc.getCollectionTime());
+		return millis;
+	}
+}
@@ -0,0 +1,126 @@
+package com.digero.tools;
+
+import java.io.File;
+import java.util.Random;
+
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+
+import com.digero.common.midi.MidiFactory;
+import com.digero.common.midi.TimeSignature;
+import com.digero.maestro.abc.QuantizedTimingInfo;
+import com.digero.maestro.midi.SequenceDataCache;
+import com.digero.maestro.midi.SequenceDataCache.TempoEvent;
+import com.digero.maestro.midi.SequenceInfo;
+import com.sun.media.sound.MidiUtils;
+
+/**
+ * Times microsToTick() for a song with many tempo changes, comparing the binary search in
+ * SequenceDataCache and QuantizedTimingInfo with a linear search through the tempo events.
+ * <p>
+ * Usage: TempoLookupBenchmark [file.mid]
+ * <p>
+ * Without a file, a song with a tempo change every 10 ticks (5,000 tempo events) is generated.
+ */
+public class TempoLookupBenchmark
+{
+	private static final int WARMUP_ROUNDS = 3;
+	private static final int ROUNDS = 5;
+	private static final int LOOKUPS = 20000;
+
+	public static void main(String[] args) throws Exception
+	{
+		File midiFile;
+		if (args.length > 0)
+		{
+			midiFile = new File(args[0]);
+		}
+		else
+		{
+			midiFile = File.createTempFile("TempoRamp", ".mid");
+			midiFile.deleteOnExit();
+			MidiSystem.write(createRamp(5000, 10), 1, midiFile);
+		}
+
+		SequenceInfo sequenceInfo = SequenceInfo.fromMidi(midiFile, null);
+		SequenceDataCache cache = sequenceInfo.getDataCache();
+		QuantizedTimingInfo qtm = new QuantizedTimingInfo(sequenceInfo, 1.0f, TimeSignature.FOUR_FOUR, false);
+
+		long endMicros = cache.tickToMicros(cache.getSongLengthTicks());
+		long[] micros = new long[LOOKUPS];
+		Random random = new Random(0);
+		for (int i = 0; i < micros.length; i++)
+			micros[i] = (long) (random.nextDouble() * endMicros);
+
+		System.out.println(midiFile.getName() + ": " + cache.getTempoEvents().size() + " tempo events, "
+				+ LOOKUPS + " lookups per round");
+
+		for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++)
+		{
+			boolean warmup = round < WARMUP_ROUNDS;
+
+			long start = System.nanoTime();
+			long linearSum = 0;
+			for (long m : micros)
+				linearSum += linearMicrosToTick(cache, m);
+			long linearNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long cacheSum = 0;
+			for (long m : micros)
+				cacheSum += cache.microsToTick(m);
+			long cacheNanos = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			long qtmSum = 0;
+			for (long m : micros)
+				qtmSum += qtm.microsToTick(m);
+			long qtmNanos = System.nanoTime() - start;
+
+			if (linearSum != cacheSum)
+				throw new AssertionError("Binary search results don't match the linear search");
+
+			if (!warmup)
+			{
+				System.out.printf("  Linear search: %8.1f ns/lookup   SequenceDataCache: %6.1f ns/lookup   "
+						+ "QuantizedTimingInfo: %6.1f ns/lookup (checksum %d)%n", (double) linearNanos / LOOKUPS,
+						(double) cacheNanos / LOOKUPS, (double) qtmNanos / LOOKUPS, qtmSum);
+			}
+		}
+	}
+
+	/** The microsToTick() implementation that searched all of the tempo events in order. */
+	private static long linearMicrosToTick(SequenceDataCache cache, long micros)
+	{
+		TempoEvent te = TempoEvent.DEFAULT_TEMPO;
+		for (TempoEvent event : cache.getTempoEvents().values())
+		{
+			if (event.micros > micros)
+				break;
+
+			te = event;
+		}
+		return te.tick + MidiUtils.microsec2ticks(micros - te.micros, te.tempoMPQ, cache.getTickResolution());
+	}
+
+	private static Sequence createRamp(int tempoCount, int ticksPerTempo) throws Exception
+	{
+		Sequence seq = new Sequence(Sequence.PPQ, 480);
+		Track track0 = seq.createTrack();
+		for (int i = 0; i < tempoCount; i++)
+		{
+			// Ramp between 60 and 180 BPM
+			double bpm = 120 + 60 * Math.sin(i / 200.0);
+			track0.add(MidiFactory.createTempoEvent((int) Math.round(60000000 / bpm), (long) i * ticksPerTempo));
+		}
+
+		Track track = seq.createTrack();
+		long endTick = (long) tempoCount * ticksPerTempo;
+		track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), 0));
+		track.add(new MidiEvent(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), endTick));
+		return seq;
+	}
+}